@@ -36,6 +36,8 @@ package fr.paris.lutece.plugins.knowledge.business;
 import javax.validation.constraints.Size;
 import javax.validation.constraints.NotEmpty;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the business class for the object Bot
@@ -59,6 +61,8 @@ public class Bot implements Serializable
 
     private int _nToolsetId;
 
+    private List<Integer> _listAdditionalDatasetIds = new ArrayList<>( );
+
     @NotEmpty( message = "#i18n{knowledge.validation.bot.ModelId.notEmpty}" )
     @Size( max = 255, message = "#i18n{knowledge.validation.bot.ModelId.size}" )
     private String _strModelId;
@@ -171,6 +175,27 @@ public class Bot implements Serializable
         _nDatasetId = nDatasetId;
     }
 
+    /**
+     * Returns the ids of the datasets searched in addition to the main one
+     * 
+     * @return The AdditionalDatasetIds
+     */
+    public List<Integer> getAdditionalDatasetIds( )
+    {
+        return _listAdditionalDatasetIds;
+    }
+
+    /**
+     * Sets the ids of the datasets searched in addition to the main one
+     * 
+     * @param listAdditionalDatasetIds
+     *            The AdditionalDatasetIds
+     */
+    public void setAdditionalDatasetIds( List<Integer> listAdditionalDatasetIds )
+    {
+        _listAdditionalDatasetIds = listAdditionalDatasetIds;
+    }
+
     /**
      * Returns the ToolsetId
      * 
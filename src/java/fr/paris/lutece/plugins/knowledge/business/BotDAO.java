@@ -56,6 +56,9 @@ public final class BotDAO implements IBotDAO
     private static final String SQL_QUERY_SELECTALL = "SELECT id_bots, name, description, story, dataset_id, toolset_id, model_id, type_id FROM knowledge_bot";
     private static final String SQL_QUERY_SELECTALL_ID = "SELECT id_bots FROM knowledge_bot";
     private static final String SQL_QUERY_SELECTALL_BY_IDS = "SELECT id_bots, name, description, story, dataset_id, toolset_id, model_id, type_id FROM knowledge_bot WHERE id_bots IN (  ";
+    private static final String SQL_QUERY_SELECT_DATASETS = "SELECT dataset_id FROM knowledge_bot_dataset WHERE bot_id = ? ORDER BY dataset_id";
+    private static final String SQL_QUERY_INSERT_DATASET = "INSERT INTO knowledge_bot_dataset ( bot_id, dataset_id ) VALUES ( ?, ? ) ";
+    private static final String SQL_QUERY_DELETE_DATASETS = "DELETE FROM knowledge_bot_dataset WHERE bot_id = ? ";
 
     /**
      * {@inheritDoc }
@@ -120,6 +123,7 @@ public final class BotDAO implements IBotDAO
     @Override
     public void delete( int nKey, Plugin plugin )
     {
+        storeAdditionalDatasetIds( nKey, new ArrayList<>( ), plugin );
         try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE, plugin ) )
         {
             daoUtil.setInt( 1, nKey );
@@ -275,4 +279,47 @@ public final class BotDAO implements IBotDAO
         return botList;
 
     }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public List<Integer> selectAdditionalDatasetIds( int nBotId, Plugin plugin )
+    {
+        List<Integer> listDatasetIds = new ArrayList<>( );
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_DATASETS, plugin ) )
+        {
+            daoUtil.setInt( 1, nBotId );
+            daoUtil.executeQuery( );
+
+            while ( daoUtil.next( ) )
+            {
+                listDatasetIds.add( daoUtil.getInt( 1 ) );
+            }
+
+            return listDatasetIds;
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void storeAdditionalDatasetIds( int nBotId, List<Integer> listDatasetIds, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE_DATASETS, plugin ) )
+        {
+            daoUtil.setInt( 1, nBotId );
+            daoUtil.executeUpdate( );
+        }
+        for ( Integer nDatasetId : listDatasetIds )
+        {
+            try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT_DATASET, plugin ) )
+            {
+                daoUtil.setInt( 1, nBotId );
+                daoUtil.setInt( 2, nDatasetId );
+                daoUtil.executeUpdate( );
+            }
+        }
+    }
 }
@@ -68,6 +68,7 @@ public final class BotHome
     public static Bot create( Bot bot )
     {
         _dao.insert( bot, _plugin );
+        _dao.storeAdditionalDatasetIds( bot.getId( ), bot.getAdditionalDatasetIds( ), _plugin );
 
         return bot;
     }
@@ -82,6 +83,7 @@ public final class BotHome
     public static Bot update( Bot bot )
     {
         _dao.store( bot, _plugin );
+        _dao.storeAdditionalDatasetIds( bot.getId( ), bot.getAdditionalDatasetIds( ), _plugin );
 
         return bot;
     }
@@ -106,7 +108,10 @@ public final class BotHome
      */
     public static Optional<Bot> findByPrimaryKey( int nKey )
     {
-        return _dao.load( nKey, _plugin );
+        Optional<Bot> bot = _dao.load( nKey, _plugin );
+        bot.ifPresent( b -> b.setAdditionalDatasetIds( _dao.selectAdditionalDatasetIds( nKey, _plugin ) ) );
+
+        return bot;
     }
 
     /**
@@ -33,6 +33,9 @@
  */
 package fr.paris.lutece.plugins.knowledge.business;
 
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.Size;
 import javax.validation.constraints.NotEmpty;
 import java.io.Serializable;
@@ -45,6 +48,15 @@ public class Dataset implements Serializable
 {
     private static final long serialVersionUID = 1L;
 
+    public static final String VECTOR_STORE_ELASTIC = "elastic";
+    public static final String VECTOR_STORE_FLAT = "flat";
+    public static final String QUANTIZATION_NONE = "none";
+    public static final String QUANTIZATION_INT8 = "int8";
+    public static final String QUANTIZATION_BINARY = "binary";
+    public static final String DEFAULT_EMBEDDING_MODEL = "text-embedding-ada-002";
+    public static final int DEFAULT_EMBEDDING_DIMENSION = 1536;
+    public static final double DEFAULT_MMR_LAMBDA = 1;
+
     // Variables declarations
     private int _nId;
 
@@ -56,6 +68,9 @@ public class Dataset implements Serializable
 
     private int _nRecordMaxTokens;
 
+    @Min( value = 0, message = "#i18n{knowledge.validation.dataset.RecordOverlapTokens.min}" )
+    private int _nRecordOverlapTokens;
+
     private int _nSearchMaxRecord;
 
     private int _nSearchMaxTokens;
@@ -66,6 +81,20 @@ public class Dataset implements Serializable
     @NotEmpty( message = "#i18n{knowledge.validation.dataset.MismatchInstruction.notEmpty}" )
     private String _strMismatchInstruction;
 
+    private String _strVectorStore = VECTOR_STORE_ELASTIC;
+
+    private String _strQuantization = QUANTIZATION_NONE;
+
+    private String _strEmbeddingModel = DEFAULT_EMBEDDING_MODEL;
+
+    private int _nEmbeddingDimension = DEFAULT_EMBEDDING_DIMENSION;
+
+    @DecimalMin( value = "0", message = "#i18n{knowledge.validation.dataset.MmrLambda.range}" )
+    @DecimalMax( value = "1", message = "#i18n{knowledge.validation.dataset.MmrLambda.range}" )
+    private double _dMmrLambda = DEFAULT_MMR_LAMBDA;
+
+    private int _nVersion;
+
     private List<DatasetFile> _listDatasetFiles;
 
     /**
@@ -152,6 +181,27 @@ public class Dataset implements Serializable
         _nRecordMaxTokens = nRecordMaxTokens;
     }
 
+    /**
+     * Returns the number of tokens of a segment repeated at the start of the next one
+     * 
+     * @return The RecordOverlapTokens
+     */
+    public int getRecordOverlapTokens( )
+    {
+        return _nRecordOverlapTokens;
+    }
+
+    /**
+     * Sets the number of tokens of a segment repeated at the start of the next one
+     * 
+     * @param nRecordOverlapTokens
+     *            The RecordOverlapTokens
+     */
+    public void setRecordOverlapTokens( int nRecordOverlapTokens )
+    {
+        _nRecordOverlapTokens = nRecordOverlapTokens;
+    }
+
     /**
      * Returns the SearchMaxRecord
      * 
@@ -236,6 +286,132 @@ public class Dataset implements Serializable
         _strMismatchInstruction = strMismatchInstruction;
     }
 
+    /**
+     * Returns the VectorStore
+     * 
+     * @return The VectorStore
+     */
+    public String getVectorStore( )
+    {
+        return _strVectorStore;
+    }
+
+    /**
+     * Sets the VectorStore
+     * 
+     * @param strVectorStore
+     *            The VectorStore
+     */
+    public void setVectorStore( String strVectorStore )
+    {
+        _strVectorStore = strVectorStore;
+    }
+
+    /**
+     * Returns the Quantization
+     * 
+     * @return The Quantization
+     */
+    public String getQuantization( )
+    {
+        return _strQuantization;
+    }
+
+    /**
+     * Sets the Quantization
+     * 
+     * @param strQuantization
+     *            The Quantization
+     */
+    public void setQuantization( String strQuantization )
+    {
+        _strQuantization = strQuantization;
+    }
+
+    /**
+     * Returns the EmbeddingModel
+     * 
+     * @return The EmbeddingModel
+     */
+    public String getEmbeddingModel( )
+    {
+        return _strEmbeddingModel;
+    }
+
+    /**
+     * Sets the EmbeddingModel
+     * 
+     * @param strEmbeddingModel
+     *            The EmbeddingModel
+     */
+    public void setEmbeddingModel( String strEmbeddingModel )
+    {
+        _strEmbeddingModel = strEmbeddingModel;
+    }
+
+    /**
+     * Returns the EmbeddingDimension
+     * 
+     * @return The EmbeddingDimension
+     */
+    public int getEmbeddingDimension( )
+    {
+        return _nEmbeddingDimension;
+    }
+
+    /**
+     * Sets the EmbeddingDimension
+     * 
+     * @param nEmbeddingDimension
+     *            The EmbeddingDimension
+     */
+    public void setEmbeddingDimension( int nEmbeddingDimension )
+    {
+        _nEmbeddingDimension = nEmbeddingDimension;
+    }
+
+    /**
+     * Returns the MMR diversity lambda
+     * 
+     * @return The MMR diversity lambda
+     */
+    public double getMmrLambda( )
+    {
+        return _dMmrLambda;
+    }
+
+    /**
+     * Sets the MMR diversity lambda
+     * 
+     * @param dMmrLambda
+     *            The MMR diversity lambda
+     */
+    public void setMmrLambda( double dMmrLambda )
+    {
+        _dMmrLambda = dMmrLambda;
+    }
+
+    /**
+     * Returns the Version, incremented each time the content of the dataset changes
+     * 
+     * @return The Version
+     */
+    public int getVersion( )
+    {
+        return _nVersion;
+    }
+
+    /**
+     * Sets the Version
+     * 
+     * @param nVersion
+     *            The Version
+     */
+    public void setVersion( int nVersion )
+    {
+        _nVersion = nVersion;
+    }
+
     /**
      * Returns the DatasetFile
      * 
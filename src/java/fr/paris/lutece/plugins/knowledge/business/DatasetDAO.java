@@ -49,13 +49,14 @@ import java.util.Optional;
 public final class DatasetDAO implements IDatasetDAO
 {
     // Constants
-    private static final String SQL_QUERY_SELECT = "SELECT id_dataset, name, description, record_max_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction FROM knowledge_dataset WHERE id_dataset = ?";
-    private static final String SQL_QUERY_INSERT = "INSERT INTO knowledge_dataset ( name, description, record_max_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction ) VALUES ( ?, ?, ?, ?, ?, ?, ? ) ";
+    private static final String SQL_QUERY_SELECT = "SELECT id_dataset, name, description, record_max_tokens, record_overlap_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction, vector_store, quantization, embedding_model, embedding_dimension, mmr_lambda, version FROM knowledge_dataset WHERE id_dataset = ?";
+    private static final String SQL_QUERY_INSERT = "INSERT INTO knowledge_dataset ( name, description, record_max_tokens, record_overlap_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction, vector_store, quantization, embedding_model, embedding_dimension, mmr_lambda ) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ) ";
     private static final String SQL_QUERY_DELETE = "DELETE FROM knowledge_dataset WHERE id_dataset = ? ";
-    private static final String SQL_QUERY_UPDATE = "UPDATE knowledge_dataset SET name = ?, description = ?, record_max_tokens = ?, search_max_record = ?, search_max_tokens = ?, match_instruction = ?, mismatch_instruction = ? WHERE id_dataset = ?";
-    private static final String SQL_QUERY_SELECTALL = "SELECT id_dataset, name, description, record_max_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction FROM knowledge_dataset";
+    private static final String SQL_QUERY_UPDATE = "UPDATE knowledge_dataset SET name = ?, description = ?, record_max_tokens = ?, record_overlap_tokens = ?, search_max_record = ?, search_max_tokens = ?, match_instruction = ?, mismatch_instruction = ?, vector_store = ?, quantization = ?, embedding_model = ?, embedding_dimension = ?, mmr_lambda = ?, version = version + 1 WHERE id_dataset = ?";
+    private static final String SQL_QUERY_SELECTALL = "SELECT id_dataset, name, description, record_max_tokens, record_overlap_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction, vector_store, quantization, embedding_model, embedding_dimension, mmr_lambda, version FROM knowledge_dataset";
+    private static final String SQL_QUERY_INCREMENT_VERSION = "UPDATE knowledge_dataset SET version = version + 1 WHERE id_dataset = ?";
     private static final String SQL_QUERY_SELECTALL_ID = "SELECT id_dataset FROM knowledge_dataset";
-    private static final String SQL_QUERY_SELECTALL_BY_IDS = "SELECT id_dataset, name, description, record_max_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction FROM knowledge_dataset WHERE id_dataset IN (  ";
+    private static final String SQL_QUERY_SELECTALL_BY_IDS = "SELECT id_dataset, name, description, record_max_tokens, record_overlap_tokens, search_max_record, search_max_tokens, match_instruction, mismatch_instruction, vector_store, quantization, embedding_model, embedding_dimension, mmr_lambda, version FROM knowledge_dataset WHERE id_dataset IN (  ";
 
     /**
      * {@inheritDoc }
@@ -69,10 +70,16 @@ public final class DatasetDAO implements IDatasetDAO
             daoUtil.setString( nIndex++, dataset.getName( ) );
             daoUtil.setString( nIndex++, dataset.getDescription( ) );
             daoUtil.setInt( nIndex++, dataset.getRecordMaxTokens( ) );
+            daoUtil.setInt( nIndex++, dataset.getRecordOverlapTokens( ) );
             daoUtil.setInt( nIndex++, dataset.getSearchMaxRecord( ) );
             daoUtil.setInt( nIndex++, dataset.getSearchMaxTokens( ) );
             daoUtil.setString( nIndex++, dataset.getMatchInstruction( ) );
             daoUtil.setString( nIndex++, dataset.getMismatchInstruction( ) );
+            daoUtil.setString( nIndex++, dataset.getVectorStore( ) );
+            daoUtil.setString( nIndex++, dataset.getQuantization( ) );
+            daoUtil.setString( nIndex++, dataset.getEmbeddingModel( ) );
+            daoUtil.setInt( nIndex++, dataset.getEmbeddingDimension( ) );
+            daoUtil.setDouble( nIndex++, dataset.getMmrLambda( ) );
 
             daoUtil.executeUpdate( );
             if ( daoUtil.nextGeneratedKey( ) )
@@ -104,10 +111,17 @@ public final class DatasetDAO implements IDatasetDAO
                 dataset.setName( daoUtil.getString( nIndex++ ) );
                 dataset.setDescription( daoUtil.getString( nIndex++ ) );
                 dataset.setRecordMaxTokens( daoUtil.getInt( nIndex++ ) );
+                dataset.setRecordOverlapTokens( daoUtil.getInt( nIndex++ ) );
                 dataset.setSearchMaxRecord( daoUtil.getInt( nIndex++ ) );
                 dataset.setSearchMaxTokens( daoUtil.getInt( nIndex++ ) );
                 dataset.setMatchInstruction( daoUtil.getString( nIndex++ ) );
-                dataset.setMismatchInstruction( daoUtil.getString( nIndex ) );
+                dataset.setMismatchInstruction( daoUtil.getString( nIndex++ ) );
+                dataset.setVectorStore( daoUtil.getString( nIndex++ ) );
+                dataset.setQuantization( daoUtil.getString( nIndex++ ) );
+                dataset.setEmbeddingModel( daoUtil.getString( nIndex++ ) );
+                dataset.setEmbeddingDimension( daoUtil.getInt( nIndex++ ) );
+                dataset.setMmrLambda( daoUtil.getDouble( nIndex++ ) );
+                dataset.setVersion( daoUtil.getInt( nIndex ) );
             }
 
             return Optional.ofNullable( dataset );
@@ -140,16 +154,35 @@ public final class DatasetDAO implements IDatasetDAO
             daoUtil.setString( nIndex++, dataset.getName( ) );
             daoUtil.setString( nIndex++, dataset.getDescription( ) );
             daoUtil.setInt( nIndex++, dataset.getRecordMaxTokens( ) );
+            daoUtil.setInt( nIndex++, dataset.getRecordOverlapTokens( ) );
             daoUtil.setInt( nIndex++, dataset.getSearchMaxRecord( ) );
             daoUtil.setInt( nIndex++, dataset.getSearchMaxTokens( ) );
             daoUtil.setString( nIndex++, dataset.getMatchInstruction( ) );
             daoUtil.setString( nIndex++, dataset.getMismatchInstruction( ) );
+            daoUtil.setString( nIndex++, dataset.getVectorStore( ) );
+            daoUtil.setString( nIndex++, dataset.getQuantization( ) );
+            daoUtil.setString( nIndex++, dataset.getEmbeddingModel( ) );
+            daoUtil.setInt( nIndex++, dataset.getEmbeddingDimension( ) );
+            daoUtil.setDouble( nIndex++, dataset.getMmrLambda( ) );
             daoUtil.setInt( nIndex, dataset.getId( ) );
 
             daoUtil.executeUpdate( );
         }
     }
 
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void incrementVersion( int nKey, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INCREMENT_VERSION, plugin ) )
+        {
+            daoUtil.setInt( 1, nKey );
+            daoUtil.executeUpdate( );
+        }
+    }
+
     /**
      * {@inheritDoc }
      */
@@ -170,10 +203,17 @@ public final class DatasetDAO implements IDatasetDAO
                 dataset.setName( daoUtil.getString( nIndex++ ) );
                 dataset.setDescription( daoUtil.getString( nIndex++ ) );
                 dataset.setRecordMaxTokens( daoUtil.getInt( nIndex++ ) );
+                dataset.setRecordOverlapTokens( daoUtil.getInt( nIndex++ ) );
                 dataset.setSearchMaxRecord( daoUtil.getInt( nIndex++ ) );
                 dataset.setSearchMaxTokens( daoUtil.getInt( nIndex++ ) );
                 dataset.setMatchInstruction( daoUtil.getString( nIndex++ ) );
-                dataset.setMismatchInstruction( daoUtil.getString( nIndex ) );
+                dataset.setMismatchInstruction( daoUtil.getString( nIndex++ ) );
+                dataset.setVectorStore( daoUtil.getString( nIndex++ ) );
+                dataset.setQuantization( daoUtil.getString( nIndex++ ) );
+                dataset.setEmbeddingModel( daoUtil.getString( nIndex++ ) );
+                dataset.setEmbeddingDimension( daoUtil.getInt( nIndex++ ) );
+                dataset.setMmrLambda( daoUtil.getDouble( nIndex++ ) );
+                dataset.setVersion( daoUtil.getInt( nIndex ) );
 
                 datasetList.add( dataset );
             }
@@ -260,10 +300,17 @@ public final class DatasetDAO implements IDatasetDAO
                     dataset.setName( daoUtil.getString( nIndex++ ) );
                     dataset.setDescription( daoUtil.getString( nIndex++ ) );
                     dataset.setRecordMaxTokens( daoUtil.getInt( nIndex++ ) );
+                    dataset.setRecordOverlapTokens( daoUtil.getInt( nIndex++ ) );
                     dataset.setSearchMaxRecord( daoUtil.getInt( nIndex++ ) );
                     dataset.setSearchMaxTokens( daoUtil.getInt( nIndex++ ) );
                     dataset.setMatchInstruction( daoUtil.getString( nIndex++ ) );
-                    dataset.setMismatchInstruction( daoUtil.getString( nIndex ) );
+                    dataset.setMismatchInstruction( daoUtil.getString( nIndex++ ) );
+                    dataset.setVectorStore( daoUtil.getString( nIndex++ ) );
+                    dataset.setQuantization( daoUtil.getString( nIndex++ ) );
+                    dataset.setEmbeddingModel( daoUtil.getString( nIndex++ ) );
+                    dataset.setEmbeddingDimension( daoUtil.getInt( nIndex++ ) );
+                    dataset.setMmrLambda( daoUtil.getDouble( nIndex++ ) );
+                    dataset.setVersion( daoUtil.getInt( nIndex ) );
 
                     datasetList.add( dataset );
                 }
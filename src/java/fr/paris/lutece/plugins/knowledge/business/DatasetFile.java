@@ -34,7 +34,6 @@
 package fr.paris.lutece.plugins.knowledge.business;
 import javax.validation.constraints.NotEmpty;
 
-import java.io.InputStream;
 import java.io.Serializable;
 
 /**
@@ -56,8 +55,6 @@ public class DatasetFile implements Serializable
 
     private int _nDatasetId;
 
-    private InputStream _file;
-
     /**
      * Returns the Id
      * 
@@ -142,16 +139,6 @@ public class DatasetFile implements Serializable
         _nDatasetId = nDatasetId;
     }
 
-    public InputStream getFile( )
-    {
-        return _file;
-    }
-
-    public void setFile( InputStream file )
-    {
-        _file = file;
-    }
-
     public String getFileKey( )
     {
         return _strFileKey;
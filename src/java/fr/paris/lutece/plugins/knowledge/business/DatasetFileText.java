@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import java.io.Serializable;
+
+/**
+ * This is the business class for the text extracted from a dataset file. The text is kept compressed, with the settings of the segments stored for
+ * the file, so that the file does not have to be parsed again to split it or to embed its segments again.
+ */
+public class DatasetFileText implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    // Variables declarations
+    private int _nDatasetFileId;
+
+    private byte [ ] _content;
+
+    private String _strSplitSettings = "";
+
+    private int _nSegmentCount;
+
+    /**
+     * Returns the DatasetFileId
+     * 
+     * @return The DatasetFileId
+     */
+    public int getDatasetFileId( )
+    {
+        return _nDatasetFileId;
+    }
+
+    /**
+     * Sets the DatasetFileId
+     * 
+     * @param nDatasetFileId
+     *            The DatasetFileId
+     */
+    public void setDatasetFileId( int nDatasetFileId )
+    {
+        _nDatasetFileId = nDatasetFileId;
+    }
+
+    /**
+     * Returns the compressed text, or null if the text of the file is not kept ( e.g. XLSX files, split while their rows are read )
+     * 
+     * @return The Content
+     */
+    public byte [ ] getContent( )
+    {
+        return _content;
+    }
+
+    /**
+     * Sets the compressed text
+     * 
+     * @param content
+     *            The Content
+     */
+    public void setContent( byte [ ] content )
+    {
+        _content = content;
+    }
+
+    /**
+     * Returns the settings of the splitter which produced the stored segments, empty if the segments are not complete
+     * 
+     * @return The SplitSettings
+     */
+    public String getSplitSettings( )
+    {
+        return _strSplitSettings;
+    }
+
+    /**
+     * Sets the settings of the splitter which produced the stored segments
+     * 
+     * @param strSplitSettings
+     *            The SplitSettings
+     */
+    public void setSplitSettings( String strSplitSettings )
+    {
+        _strSplitSettings = strSplitSettings;
+    }
+
+    /**
+     * Returns the number of stored segments
+     * 
+     * @return The SegmentCount
+     */
+    public int getSegmentCount( )
+    {
+        return _nSegmentCount;
+    }
+
+    /**
+     * Sets the number of stored segments
+     * 
+     * @param nSegmentCount
+     *            The SegmentCount
+     */
+    public void setSegmentCount( int nSegmentCount )
+    {
+        _nSegmentCount = nSegmentCount;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.util.sql.DAOUtil;
+
+import java.util.Optional;
+
+/**
+ * This class provides Data Access methods for DatasetFileText objects
+ */
+public final class DatasetFileTextDAO implements IDatasetFileTextDAO
+{
+    // Constants
+    private static final String SQL_QUERY_SELECT = "SELECT dataset_file_id, split_settings, segment_count FROM knowledge_dataset_file_text WHERE dataset_file_id = ?";
+    private static final String SQL_QUERY_SELECT_CONTENT = "SELECT content FROM knowledge_dataset_file_text WHERE dataset_file_id = ?";
+    private static final String SQL_QUERY_INSERT = "INSERT INTO knowledge_dataset_file_text ( dataset_file_id, content, split_settings, segment_count ) VALUES ( ?, ?, ?, ? ) ";
+    private static final String SQL_QUERY_UPDATE_SPLIT_SETTINGS = "UPDATE knowledge_dataset_file_text SET split_settings = ?, segment_count = ? WHERE dataset_file_id = ?";
+    private static final String SQL_QUERY_DELETE = "DELETE FROM knowledge_dataset_file_text WHERE dataset_file_id = ? ";
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void insert( DatasetFileText datasetFileText, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT, plugin ) )
+        {
+            int nIndex = 1;
+            daoUtil.setInt( nIndex++, datasetFileText.getDatasetFileId( ) );
+            daoUtil.setBytes( nIndex++, datasetFileText.getContent( ) );
+            daoUtil.setString( nIndex++, datasetFileText.getSplitSettings( ) );
+            daoUtil.setInt( nIndex, datasetFileText.getSegmentCount( ) );
+
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void storeSplitSettings( int nDatasetFileId, String strSplitSettings, int nSegmentCount, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_UPDATE_SPLIT_SETTINGS, plugin ) )
+        {
+            int nIndex = 1;
+            daoUtil.setString( nIndex++, strSplitSettings );
+            daoUtil.setInt( nIndex++, nSegmentCount );
+            daoUtil.setInt( nIndex, nDatasetFileId );
+
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void delete( int nDatasetFileId, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE, plugin ) )
+        {
+            daoUtil.setInt( 1, nDatasetFileId );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public Optional<DatasetFileText> load( int nDatasetFileId, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT, plugin ) )
+        {
+            daoUtil.setInt( 1, nDatasetFileId );
+            daoUtil.executeQuery( );
+            DatasetFileText datasetFileText = null;
+
+            if ( daoUtil.next( ) )
+            {
+                datasetFileText = new DatasetFileText( );
+                int nIndex = 1;
+
+                datasetFileText.setDatasetFileId( daoUtil.getInt( nIndex++ ) );
+                datasetFileText.setSplitSettings( daoUtil.getString( nIndex++ ) );
+                datasetFileText.setSegmentCount( daoUtil.getInt( nIndex ) );
+            }
+
+            return Optional.ofNullable( datasetFileText );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public byte [ ] loadContent( int nDatasetFileId, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_CONTENT, plugin ) )
+        {
+            daoUtil.setInt( 1, nDatasetFileId );
+            daoUtil.executeQuery( );
+
+            return daoUtil.next( ) ? daoUtil.getBytes( 1 ) : null;
+        }
+    }
+}
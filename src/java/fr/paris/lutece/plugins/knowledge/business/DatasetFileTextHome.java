@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.Optional;
+
+/**
+ * This class provides instances management methods (create, find, ...) for DatasetFileText objects
+ */
+public final class DatasetFileTextHome
+{
+    // Static variable pointed at the DAO instance
+    private static IDatasetFileTextDAO _dao = SpringContextService.getBean( "knowledge.datasetFileTextDAO" );
+    private static Plugin _plugin = PluginService.getPlugin( "knowledge" );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private DatasetFileTextHome( )
+    {
+    }
+
+    /**
+     * Create an instance of the datasetFileText class
+     * 
+     * @param datasetFileText
+     *            The instance of the DatasetFileText which contains the informations to store
+     * @return The instance of datasetFileText which has been created
+     */
+    public static DatasetFileText create( DatasetFileText datasetFileText )
+    {
+        _dao.insert( datasetFileText, _plugin );
+
+        return datasetFileText;
+    }
+
+    /**
+     * Update the settings of the segments stored for a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     * @param strSplitSettings
+     *            The settings of the splitter, empty while the segments are not complete
+     * @param nSegmentCount
+     *            The number of segments
+     */
+    public static void updateSplitSettings( int nDatasetFileId, String strSplitSettings, int nSegmentCount )
+    {
+        _dao.storeSplitSettings( nDatasetFileId, strSplitSettings, nSegmentCount, _plugin );
+    }
+
+    /**
+     * Remove the text of a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     */
+    public static void remove( int nDatasetFileId )
+    {
+        _dao.delete( nDatasetFileId, _plugin );
+    }
+
+    /**
+     * Returns the data of the text of a dataset file, without its content
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     * @return an instance of DatasetFileText
+     */
+    public static Optional<DatasetFileText> findByDatasetFileId( int nDatasetFileId )
+    {
+        return _dao.load( nDatasetFileId, _plugin );
+    }
+
+    /**
+     * Returns the compressed text of a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     * @return The compressed text, or null if it is not kept
+     */
+    public static byte [ ] findContent( int nDatasetFileId )
+    {
+        return _dao.loadContent( nDatasetFileId, _plugin );
+    }
+}
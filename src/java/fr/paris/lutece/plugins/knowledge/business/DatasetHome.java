@@ -97,6 +97,17 @@ public final class DatasetHome
         _dao.delete( nKey, _plugin );
     }
 
+    /**
+     * Increment the version of the dataset whose identifier is specified in parameter
+     * 
+     * @param nKey
+     *            The dataset Id
+     */
+    public static void incrementVersion( int nKey )
+    {
+        _dao.incrementVersion( nKey, _plugin );
+    }
+
     /**
      * Returns an instance of a dataset whose identifier is specified in parameter
      * 
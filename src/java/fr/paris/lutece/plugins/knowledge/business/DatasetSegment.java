@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import java.io.Serializable;
+
+/**
+ * This is the business class for a segment produced by the split of a dataset file
+ */
+public class DatasetSegment implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    // Variables declarations
+    private int _nDatasetFileId;
+
+    private int _nSegmentIndex;
+
+    private String _strTextHash;
+
+    private int _nTokenCount;
+
+    private String _strText;
+
+    private String _strMetadata;
+
+    /**
+     * Returns the DatasetFileId
+     * 
+     * @return The DatasetFileId
+     */
+    public int getDatasetFileId( )
+    {
+        return _nDatasetFileId;
+    }
+
+    /**
+     * Sets the DatasetFileId
+     * 
+     * @param nDatasetFileId
+     *            The DatasetFileId
+     */
+    public void setDatasetFileId( int nDatasetFileId )
+    {
+        _nDatasetFileId = nDatasetFileId;
+    }
+
+    /**
+     * Returns the position of the segment in the file
+     * 
+     * @return The SegmentIndex
+     */
+    public int getSegmentIndex( )
+    {
+        return _nSegmentIndex;
+    }
+
+    /**
+     * Sets the position of the segment in the file
+     * 
+     * @param nSegmentIndex
+     *            The SegmentIndex
+     */
+    public void setSegmentIndex( int nSegmentIndex )
+    {
+        _nSegmentIndex = nSegmentIndex;
+    }
+
+    /**
+     * Returns the TextHash
+     * 
+     * @return The TextHash
+     */
+    public String getTextHash( )
+    {
+        return _strTextHash;
+    }
+
+    /**
+     * Sets the TextHash
+     * 
+     * @param strTextHash
+     *            The TextHash
+     */
+    public void setTextHash( String strTextHash )
+    {
+        _strTextHash = strTextHash;
+    }
+
+    /**
+     * Returns the number of tokens of the text
+     * 
+     * @return The TokenCount
+     */
+    public int getTokenCount( )
+    {
+        return _nTokenCount;
+    }
+
+    /**
+     * Sets the number of tokens of the text
+     * 
+     * @param nTokenCount
+     *            The TokenCount
+     */
+    public void setTokenCount( int nTokenCount )
+    {
+        _nTokenCount = nTokenCount;
+    }
+
+    /**
+     * Returns the Text
+     * 
+     * @return The Text
+     */
+    public String getText( )
+    {
+        return _strText;
+    }
+
+    /**
+     * Sets the Text
+     * 
+     * @param strText
+     *            The Text
+     */
+    public void setText( String strText )
+    {
+        _strText = strText;
+    }
+
+    /**
+     * Returns the metadata, in JSON
+     * 
+     * @return The Metadata
+     */
+    public String getMetadata( )
+    {
+        return _strMetadata;
+    }
+
+    /**
+     * Sets the metadata, in JSON
+     * 
+     * @param strMetadata
+     *            The Metadata
+     */
+    public void setMetadata( String strMetadata )
+    {
+        _strMetadata = strMetadata;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.util.sql.DAOUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class provides Data Access methods for DatasetSegment objects
+ */
+public final class DatasetSegmentDAO implements IDatasetSegmentDAO
+{
+    // Constants
+    private static final String SQL_QUERY_SELECT_RANGE = "SELECT dataset_file_id, segment_index, text_hash, token_count, text, metadata FROM knowledge_dataset_segment WHERE dataset_file_id = ? AND segment_index >= ? AND segment_index < ? ORDER BY segment_index";
+    private static final String SQL_QUERY_INSERT = "INSERT INTO knowledge_dataset_segment ( dataset_file_id, segment_index, text_hash, token_count, text, metadata ) VALUES ( ?, ?, ?, ?, ?, ? ) ";
+    private static final String SQL_QUERY_DELETE_BY_DATASET_FILE_ID = "DELETE FROM knowledge_dataset_segment WHERE dataset_file_id = ? ";
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void insert( List<DatasetSegment> listSegments, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT, plugin ) )
+        {
+            for ( DatasetSegment segment : listSegments )
+            {
+                int nIndex = 1;
+                daoUtil.setInt( nIndex++, segment.getDatasetFileId( ) );
+                daoUtil.setInt( nIndex++, segment.getSegmentIndex( ) );
+                daoUtil.setString( nIndex++, segment.getTextHash( ) );
+                daoUtil.setInt( nIndex++, segment.getTokenCount( ) );
+                daoUtil.setString( nIndex++, segment.getText( ) );
+                daoUtil.setString( nIndex, segment.getMetadata( ) );
+                daoUtil.addBatch( );
+            }
+            daoUtil.executeBatch( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void deleteByDatasetFileId( int nDatasetFileId, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE_BY_DATASET_FILE_ID, plugin ) )
+        {
+            daoUtil.setInt( 1, nDatasetFileId );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public List<DatasetSegment> selectByDatasetFileId( int nDatasetFileId, int nFromIndex, int nCount, Plugin plugin )
+    {
+        List<DatasetSegment> listSegments = new ArrayList<>( );
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_RANGE, plugin ) )
+        {
+            daoUtil.setInt( 1, nDatasetFileId );
+            daoUtil.setInt( 2, nFromIndex );
+            daoUtil.setInt( 3, nFromIndex + nCount );
+            daoUtil.executeQuery( );
+
+            while ( daoUtil.next( ) )
+            {
+                DatasetSegment segment = new DatasetSegment( );
+                int nIndex = 1;
+
+                segment.setDatasetFileId( daoUtil.getInt( nIndex++ ) );
+                segment.setSegmentIndex( daoUtil.getInt( nIndex++ ) );
+                segment.setTextHash( daoUtil.getString( nIndex++ ) );
+                segment.setTokenCount( daoUtil.getInt( nIndex++ ) );
+                segment.setText( daoUtil.getString( nIndex++ ) );
+                segment.setMetadata( daoUtil.getString( nIndex ) );
+
+                listSegments.add( segment );
+            }
+        }
+        return listSegments;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.List;
+
+/**
+ * This class provides instances management methods (create, find, ...) for DatasetSegment objects
+ */
+public final class DatasetSegmentHome
+{
+    // Static variable pointed at the DAO instance
+    private static IDatasetSegmentDAO _dao = SpringContextService.getBean( "knowledge.datasetSegmentDAO" );
+    private static Plugin _plugin = PluginService.getPlugin( "knowledge" );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private DatasetSegmentHome( )
+    {
+    }
+
+    /**
+     * Create segments of a dataset file
+     * 
+     * @param listSegments
+     *            The segments to store
+     */
+    public static void create( List<DatasetSegment> listSegments )
+    {
+        if ( !listSegments.isEmpty( ) )
+        {
+            _dao.insert( listSegments, _plugin );
+        }
+    }
+
+    /**
+     * Remove the segments of a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     */
+    public static void removeByDatasetFileId( int nDatasetFileId )
+    {
+        _dao.deleteByDatasetFileId( nDatasetFileId, _plugin );
+    }
+
+    /**
+     * Returns a range of the segments of a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     * @param nFromIndex
+     *            The index of the first segment
+     * @param nCount
+     *            The maximum number of segments
+     * @return The segments, in the order of the file
+     */
+    public static List<DatasetSegment> findByDatasetFileId( int nDatasetFileId, int nFromIndex, int nCount )
+    {
+        return _dao.selectByDatasetFileId( nDatasetFileId, nFromIndex, nCount, _plugin );
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.util.sql.DAOUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class provides Data Access methods for the embedding cache
+ */
+public final class EmbeddingCacheDAO implements IEmbeddingCacheDAO
+{
+    // Constants
+    private static final String SQL_QUERY_SELECT_VECTORS = "SELECT text_hash, vector FROM knowledge_embedding_cache WHERE model = ? AND text_hash IN ( ";
+    private static final String SQL_QUERY_INSERT = "INSERT INTO knowledge_embedding_cache ( model, text_hash, vector ) VALUES ( ?, ?, ? ) ";
+    private static final int MAX_HASHES_PER_QUERY = 500;
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void insert( String strModel, String strTextHash, float [ ] vector, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT, plugin ) )
+        {
+            int nIndex = 1;
+            daoUtil.setString( nIndex++, strModel );
+            daoUtil.setString( nIndex++, strTextHash );
+            daoUtil.setBytes( nIndex, toBytes( vector ) );
+
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public Map<String, float [ ]> selectVectors( String strModel, Collection<String> collectionTextHashes, Plugin plugin )
+    {
+        Map<String, float [ ]> mapVectors = new HashMap<>( );
+        List<String> listHashes = new ArrayList<>( collectionTextHashes );
+        for ( int nFrom = 0; nFrom < listHashes.size( ); nFrom += MAX_HASHES_PER_QUERY )
+        {
+            List<String> listPart = listHashes.subList( nFrom, Math.min( listHashes.size( ), nFrom + MAX_HASHES_PER_QUERY ) );
+            String strQuery = SQL_QUERY_SELECT_VECTORS + String.join( ",", Collections.nCopies( listPart.size( ), "?" ) ) + " )";
+            try ( DAOUtil daoUtil = new DAOUtil( strQuery, plugin ) )
+            {
+                int nIndex = 1;
+                daoUtil.setString( nIndex++, strModel );
+                for ( String strHash : listPart )
+                {
+                    daoUtil.setString( nIndex++, strHash );
+                }
+                daoUtil.executeQuery( );
+
+                while ( daoUtil.next( ) )
+                {
+                    mapVectors.put( daoUtil.getString( 1 ), toVector( daoUtil.getBytes( 2 ) ) );
+                }
+            }
+        }
+        return mapVectors;
+    }
+
+    private static byte [ ] toBytes( float [ ] vector )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( vector.length * Float.BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+        buffer.asFloatBuffer( ).put( vector );
+        return buffer.array( );
+    }
+
+    private static float [ ] toVector( byte [ ] bytes )
+    {
+        float [ ] vector = new float [ bytes.length / Float.BYTES];
+        ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer( ).get( vector );
+        return vector;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * This class provides access to the vectors of the embedding cache
+ */
+public final class EmbeddingCacheHome
+{
+    // Static variable pointed at the DAO instance
+    private static IEmbeddingCacheDAO _dao = SpringContextService.getBean( "knowledge.embeddingCacheDAO" );
+    private static Plugin _plugin = PluginService.getPlugin( "knowledge" );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private EmbeddingCacheHome( )
+    {
+    }
+
+    /**
+     * Adds a vector to the cache
+     * 
+     * @param strModel
+     *            The embedding model and its dimension
+     * @param strTextHash
+     *            The hash of the embedded text
+     * @param vector
+     *            The vector
+     */
+    public static void create( String strModel, String strTextHash, float [ ] vector )
+    {
+        _dao.insert( strModel, strTextHash, vector, _plugin );
+    }
+
+    /**
+     * Finds the cached vectors of some texts
+     * 
+     * @param strModel
+     *            The embedding model and its dimension
+     * @param collectionTextHashes
+     *            The hashes of the texts
+     * @return The vectors found, by text hash
+     */
+    public static Map<String, float [ ]> findVectors( String strModel, Collection<String> collectionTextHashes )
+    {
+        return _dao.selectVectors( strModel, collectionTextHashes, _plugin );
+    }
+}
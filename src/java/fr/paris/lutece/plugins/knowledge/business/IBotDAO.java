@@ -125,4 +125,27 @@ public interface IBotDAO
      * @return The list which contains the data of all the avant objects
      */
     List<Bot> selectBotsListByIds( Plugin _plugin, List<Integer> listIds );
+
+    /**
+     * Load the ids of the datasets searched by a bot in addition to its main dataset
+     * 
+     * @param nBotId
+     *            The identifier of the bot
+     * @param plugin
+     *            the Plugin
+     * @return The list of dataset ids
+     */
+    List<Integer> selectAdditionalDatasetIds( int nBotId, Plugin plugin );
+
+    /**
+     * Replace the datasets searched by a bot in addition to its main dataset
+     * 
+     * @param nBotId
+     *            The identifier of the bot
+     * @param listDatasetIds
+     *            The list of dataset ids
+     * @param plugin
+     *            the Plugin
+     */
+    void storeAdditionalDatasetIds( int nBotId, List<Integer> listDatasetIds, Plugin plugin );
 }
@@ -74,6 +74,16 @@ public interface IDatasetDAO
      */
     void delete( int nKey, Plugin plugin );
 
+    /**
+     * Increment the version of a dataset, telling that its content changed
+     * 
+     * @param nKey
+     *            The identifier of the Dataset
+     * @param plugin
+     *            the Plugin
+     */
+    void incrementVersion( int nKey, Plugin plugin );
+
     ///////////////////////////////////////////////////////////////////////////
     // Finders
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * IIngestionJobDAO Interface
+ */
+public interface IIngestionJobDAO
+{
+    /**
+     * Insert a new record in the table.
+     * 
+     * @param ingestionJob
+     *            instance of the IngestionJob object to insert
+     * @param plugin
+     *            the Plugin
+     */
+    void insert( IngestionJob ingestionJob, Plugin plugin );
+
+    /**
+     * Update the record in the table
+     * 
+     * @param ingestionJob
+     *            the reference of the IngestionJob
+     * @param plugin
+     *            the Plugin
+     */
+    void store( IngestionJob ingestionJob, Plugin plugin );
+
+    /**
+     * Delete a record from the table
+     * 
+     * @param nKey
+     *            The identifier of the IngestionJob to delete
+     * @param plugin
+     *            the Plugin
+     */
+    void delete( int nKey, Plugin plugin );
+
+    /**
+     * Delete the jobs of a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The identifier of the dataset file
+     * @param plugin
+     *            the Plugin
+     */
+    void deleteByDatasetFileId( int nDatasetFileId, Plugin plugin );
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Finders
+
+    /**
+     * Load the data from the table
+     * 
+     * @param nKey
+     *            The identifier of the ingestionJob
+     * @param plugin
+     *            the Plugin
+     * @return The instance of the ingestionJob
+     */
+    Optional<IngestionJob> load( int nKey, Plugin plugin );
+
+    /**
+     * Load the jobs of a dataset, the most recent first
+     * 
+     * @param nDatasetId
+     *            The identifier of the dataset
+     * @param plugin
+     *            the Plugin
+     * @return The list which contains the jobs of the dataset
+     */
+    List<IngestionJob> selectIngestionJobsListByDatasetId( int nDatasetId, Plugin plugin );
+
+    /**
+     * Load the jobs of a dataset file, the most recent first
+     * 
+     * @param nDatasetFileId
+     *            The identifier of the dataset file
+     * @param plugin
+     *            the Plugin
+     * @return The list which contains the jobs of the dataset file
+     */
+    List<IngestionJob> selectIngestionJobsListByDatasetFileId( int nDatasetFileId, Plugin plugin );
+
+    /**
+     * Load the jobs having one of the given statuses, the oldest first
+     * 
+     * @param listStatuses
+     *            The statuses
+     * @param plugin
+     *            the Plugin
+     * @return The list which contains the jobs
+     */
+    List<IngestionJob> selectIngestionJobsListByStatus( List<String> listStatuses, Plugin plugin );
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.business;
+
+import java.io.Serializable;
+import java.sql.Timestamp;
+
+/**
+ * This is the business class for the object IngestionJob : the background parsing, embedding and indexing of a dataset file.
+ */
+public class IngestionJob implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_PARSING = "parsing";
+    public static final String STATUS_EMBEDDING = "embedding";
+    public static final String STATUS_INDEXING = "indexing";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+
+    // Variables declarations
+    private int _nId;
+
+    private int _nDatasetId;
+
+    private int _nDatasetFileId;
+
+    private String _strStatus = STATUS_PENDING;
+
+    private int _nSegmentsDone;
+
+    private int _nSegmentsTotal;
+
+    private int _nCheckpointSegment;
+
+    private int _nBatchesCommitted;
+
+    private String _strCheckpointSettings = "";
+
+    private int _nAttempts;
+
+    private String _strErrorMessage;
+
+    private Timestamp _dateCreationDate;
+
+    private Timestamp _dateUpdateDate;
+
+    /**
+     * Returns the Id
+     * 
+     * @return The Id
+     */
+    public int getId( )
+    {
+        return _nId;
+    }
+
+    /**
+     * Sets the Id
+     * 
+     * @param nId
+     *            The Id
+     */
+    public void setId( int nId )
+    {
+        _nId = nId;
+    }
+
+    /**
+     * Returns the DatasetId
+     * 
+     * @return The DatasetId
+     */
+    public int getDatasetId( )
+    {
+        return _nDatasetId;
+    }
+
+    /**
+     * Sets the DatasetId
+     * 
+     * @param nDatasetId
+     *            The DatasetId
+     */
+    public void setDatasetId( int nDatasetId )
+    {
+        _nDatasetId = nDatasetId;
+    }
+
+    /**
+     * Returns the DatasetFileId
+     * 
+     * @return The DatasetFileId
+     */
+    public int getDatasetFileId( )
+    {
+        return _nDatasetFileId;
+    }
+
+    /**
+     * Sets the DatasetFileId
+     * 
+     * @param nDatasetFileId
+     *            The DatasetFileId
+     */
+    public void setDatasetFileId( int nDatasetFileId )
+    {
+        _nDatasetFileId = nDatasetFileId;
+    }
+
+    /**
+     * Returns the Status : pending, parsing, embedding, indexing, done, failed or cancelled
+     * 
+     * @return The Status
+     */
+    public String getStatus( )
+    {
+        return _strStatus;
+    }
+
+    /**
+     * Sets the Status
+     * 
+     * @param strStatus
+     *            The Status
+     */
+    public void setStatus( String strStatus )
+    {
+        _strStatus = strStatus;
+    }
+
+    /**
+     * Tells whether the job is waiting or running
+     * 
+     * @return true if the job is not finished
+     */
+    public boolean isActive( )
+    {
+        return !STATUS_DONE.equals( _strStatus ) && !STATUS_FAILED.equals( _strStatus ) && !STATUS_CANCELLED.equals( _strStatus );
+    }
+
+    /**
+     * Returns the SegmentsDone
+     * 
+     * @return The number of segments embedded
+     */
+    public int getSegmentsDone( )
+    {
+        return _nSegmentsDone;
+    }
+
+    /**
+     * Sets the SegmentsDone
+     * 
+     * @param nSegmentsDone
+     *            The number of segments embedded
+     */
+    public void setSegmentsDone( int nSegmentsDone )
+    {
+        _nSegmentsDone = nSegmentsDone;
+    }
+
+    /**
+     * Returns the SegmentsTotal
+     * 
+     * @return The number of segments of the file
+     */
+    public int getSegmentsTotal( )
+    {
+        return _nSegmentsTotal;
+    }
+
+    /**
+     * Sets the SegmentsTotal
+     * 
+     * @param nSegmentsTotal
+     *            The number of segments of the file
+     */
+    public void setSegmentsTotal( int nSegmentsTotal )
+    {
+        _nSegmentsTotal = nSegmentsTotal;
+    }
+
+    /**
+     * Returns the CheckpointSegment : the number of segments of the file, in the order of the file, whose vectors are all stored
+     * 
+     * @return The CheckpointSegment
+     */
+    public int getCheckpointSegment( )
+    {
+        return _nCheckpointSegment;
+    }
+
+    /**
+     * Sets the CheckpointSegment
+     * 
+     * @param nCheckpointSegment
+     *            The CheckpointSegment
+     */
+    public void setCheckpointSegment( int nCheckpointSegment )
+    {
+        _nCheckpointSegment = nCheckpointSegment;
+    }
+
+    /**
+     * Returns the BatchesCommitted : the number of embedding batches stored by the job
+     * 
+     * @return The BatchesCommitted
+     */
+    public int getBatchesCommitted( )
+    {
+        return _nBatchesCommitted;
+    }
+
+    /**
+     * Sets the BatchesCommitted
+     * 
+     * @param nBatchesCommitted
+     *            The BatchesCommitted
+     */
+    public void setBatchesCommitted( int nBatchesCommitted )
+    {
+        _nBatchesCommitted = nBatchesCommitted;
+    }
+
+    /**
+     * Returns the CheckpointSettings : the split settings of the dataset the checkpoint was made with, the segments being numbered differently with
+     * other settings
+     * 
+     * @return The CheckpointSettings
+     */
+    public String getCheckpointSettings( )
+    {
+        return _strCheckpointSettings;
+    }
+
+    /**
+     * Sets the CheckpointSettings
+     * 
+     * @param strCheckpointSettings
+     *            The CheckpointSettings
+     */
+    public void setCheckpointSettings( String strCheckpointSettings )
+    {
+        _strCheckpointSettings = strCheckpointSettings;
+    }
+
+    /**
+     * Returns the Attempts
+     * 
+     * @return The number of runs of the job
+     */
+    public int getAttempts( )
+    {
+        return _nAttempts;
+    }
+
+    /**
+     * Sets the Attempts
+     * 
+     * @param nAttempts
+     *            The number of runs of the job
+     */
+    public void setAttempts( int nAttempts )
+    {
+        _nAttempts = nAttempts;
+    }
+
+    /**
+     * Returns the ErrorMessage
+     * 
+     * @return The error of the last failed run
+     */
+    public String getErrorMessage( )
+    {
+        return _strErrorMessage;
+    }
+
+    /**
+     * Sets the ErrorMessage
+     * 
+     * @param strErrorMessage
+     *            The error of the last failed run
+     */
+    public void setErrorMessage( String strErrorMessage )
+    {
+        _strErrorMessage = strErrorMessage;
+    }
+
+    /**
+     * Returns the CreationDate
+     * 
+     * @return The CreationDate
+     */
+    public Timestamp getCreationDate( )
+    {
+        return _dateCreationDate;
+    }
+
+    /**
+     * Sets the CreationDate
+     * 
+     * @param dateCreationDate
+     *            The CreationDate
+     */
+    public void setCreationDate( Timestamp dateCreationDate )
+    {
+        _dateCreationDate = dateCreationDate;
+    }
+
+    /**
+     * Returns the UpdateDate
+     * 
+     * @return The UpdateDate
+     */
+    public Timestamp getUpdateDate( )
+    {
+        return _dateUpdateDate;
+    }
+
+    /**
+     * Sets the UpdateDate
+     * 
+     * @param dateUpdateDate
+     *            The UpdateDate
+     */
+    public void setUpdateDate( Timestamp dateUpdateDate )
+    {
+        _dateUpdateDate = dateUpdateDate;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.util.sql.DAOUtil;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * This class provides Data Access methods for IngestionJob objects
+ */
+public final class IngestionJobDAO implements IIngestionJobDAO
+{
+    // Constants
+    private static final String SQL_QUERY_SELECT_FIELDS = "SELECT id_ingestion_job, dataset_id, dataset_file_id, status, segments_done, segments_total, checkpoint_segment, batches_committed, checkpoint_settings, attempts, error_message, creation_date, update_date FROM knowledge_ingestion_job";
+    private static final String SQL_QUERY_SELECT = SQL_QUERY_SELECT_FIELDS + " WHERE id_ingestion_job = ?";
+    private static final String SQL_QUERY_INSERT = "INSERT INTO knowledge_ingestion_job ( dataset_id, dataset_file_id, status, segments_done, segments_total, checkpoint_segment, batches_committed, checkpoint_settings, attempts, error_message, creation_date, update_date ) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ) ";
+    private static final String SQL_QUERY_DELETE = "DELETE FROM knowledge_ingestion_job WHERE id_ingestion_job = ? ";
+    private static final String SQL_QUERY_DELETE_BY_DATASET_FILE_ID = "DELETE FROM knowledge_ingestion_job WHERE dataset_file_id = ? ";
+    private static final String SQL_QUERY_UPDATE = "UPDATE knowledge_ingestion_job SET dataset_id = ?, dataset_file_id = ?, status = ?, segments_done = ?, segments_total = ?, checkpoint_segment = ?, batches_committed = ?, checkpoint_settings = ?, attempts = ?, error_message = ?, creation_date = ?, update_date = ? WHERE id_ingestion_job = ?";
+    private static final String SQL_QUERY_SELECTALL_BY_DATASET_ID = SQL_QUERY_SELECT_FIELDS + " WHERE dataset_id = ? ORDER BY id_ingestion_job DESC";
+    private static final String SQL_QUERY_SELECTALL_BY_DATASET_FILE_ID = SQL_QUERY_SELECT_FIELDS + " WHERE dataset_file_id = ? ORDER BY id_ingestion_job DESC";
+    private static final String SQL_QUERY_SELECTALL_BY_STATUS = SQL_QUERY_SELECT_FIELDS + " WHERE status IN ( ";
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void insert( IngestionJob ingestionJob, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT, Statement.RETURN_GENERATED_KEYS, plugin ) )
+        {
+            int nIndex = 1;
+            daoUtil.setInt( nIndex++, ingestionJob.getDatasetId( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getDatasetFileId( ) );
+            daoUtil.setString( nIndex++, ingestionJob.getStatus( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getSegmentsDone( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getSegmentsTotal( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getCheckpointSegment( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getBatchesCommitted( ) );
+            daoUtil.setString( nIndex++, ingestionJob.getCheckpointSettings( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getAttempts( ) );
+            daoUtil.setString( nIndex++, ingestionJob.getErrorMessage( ) );
+            daoUtil.setTimestamp( nIndex++, ingestionJob.getCreationDate( ) );
+            daoUtil.setTimestamp( nIndex, ingestionJob.getUpdateDate( ) );
+
+            daoUtil.executeUpdate( );
+            if ( daoUtil.nextGeneratedKey( ) )
+            {
+                ingestionJob.setId( daoUtil.getGeneratedKeyInt( 1 ) );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public Optional<IngestionJob> load( int nKey, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT, plugin ) )
+        {
+            daoUtil.setInt( 1, nKey );
+            daoUtil.executeQuery( );
+            IngestionJob ingestionJob = null;
+
+            if ( daoUtil.next( ) )
+            {
+                ingestionJob = dataToObject( daoUtil );
+            }
+
+            return Optional.ofNullable( ingestionJob );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void delete( int nKey, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE, plugin ) )
+        {
+            daoUtil.setInt( 1, nKey );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void deleteByDatasetFileId( int nDatasetFileId, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE_BY_DATASET_FILE_ID, plugin ) )
+        {
+            daoUtil.setInt( 1, nDatasetFileId );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public void store( IngestionJob ingestionJob, Plugin plugin )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_UPDATE, plugin ) )
+        {
+            int nIndex = 1;
+
+            daoUtil.setInt( nIndex++, ingestionJob.getDatasetId( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getDatasetFileId( ) );
+            daoUtil.setString( nIndex++, ingestionJob.getStatus( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getSegmentsDone( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getSegmentsTotal( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getCheckpointSegment( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getBatchesCommitted( ) );
+            daoUtil.setString( nIndex++, ingestionJob.getCheckpointSettings( ) );
+            daoUtil.setInt( nIndex++, ingestionJob.getAttempts( ) );
+            daoUtil.setString( nIndex++, ingestionJob.getErrorMessage( ) );
+            daoUtil.setTimestamp( nIndex++, ingestionJob.getCreationDate( ) );
+            daoUtil.setTimestamp( nIndex++, ingestionJob.getUpdateDate( ) );
+            daoUtil.setInt( nIndex, ingestionJob.getId( ) );
+
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public List<IngestionJob> selectIngestionJobsListByDatasetId( int nDatasetId, Plugin plugin )
+    {
+        return selectIngestionJobsList( SQL_QUERY_SELECTALL_BY_DATASET_ID, nDatasetId, plugin );
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public List<IngestionJob> selectIngestionJobsListByDatasetFileId( int nDatasetFileId, Plugin plugin )
+    {
+        return selectIngestionJobsList( SQL_QUERY_SELECTALL_BY_DATASET_FILE_ID, nDatasetFileId, plugin );
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public List<IngestionJob> selectIngestionJobsListByStatus( List<String> listStatuses, Plugin plugin )
+    {
+        List<IngestionJob> ingestionJobList = new ArrayList<>( );
+        if ( listStatuses.isEmpty( ) )
+        {
+            return ingestionJobList;
+        }
+
+        String strQuery = SQL_QUERY_SELECTALL_BY_STATUS + String.join( ",", Collections.nCopies( listStatuses.size( ), "?" ) )
+                + " ) ORDER BY id_ingestion_job";
+        try ( DAOUtil daoUtil = new DAOUtil( strQuery, plugin ) )
+        {
+            int nIndex = 1;
+            for ( String strStatus : listStatuses )
+            {
+                daoUtil.setString( nIndex++, strStatus );
+            }
+            daoUtil.executeQuery( );
+
+            while ( daoUtil.next( ) )
+            {
+                ingestionJobList.add( dataToObject( daoUtil ) );
+            }
+
+            return ingestionJobList;
+        }
+    }
+
+    private List<IngestionJob> selectIngestionJobsList( String strQuery, int nId, Plugin plugin )
+    {
+        List<IngestionJob> ingestionJobList = new ArrayList<>( );
+        try ( DAOUtil daoUtil = new DAOUtil( strQuery, plugin ) )
+        {
+            daoUtil.setInt( 1, nId );
+            daoUtil.executeQuery( );
+
+            while ( daoUtil.next( ) )
+            {
+                ingestionJobList.add( dataToObject( daoUtil ) );
+            }
+
+            return ingestionJobList;
+        }
+    }
+
+    private IngestionJob dataToObject( DAOUtil daoUtil )
+    {
+        IngestionJob ingestionJob = new IngestionJob( );
+        int nIndex = 1;
+
+        ingestionJob.setId( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setDatasetId( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setDatasetFileId( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setStatus( daoUtil.getString( nIndex++ ) );
+        ingestionJob.setSegmentsDone( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setSegmentsTotal( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setCheckpointSegment( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setBatchesCommitted( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setCheckpointSettings( daoUtil.getString( nIndex++ ) );
+        ingestionJob.setAttempts( daoUtil.getInt( nIndex++ ) );
+        ingestionJob.setErrorMessage( daoUtil.getString( nIndex++ ) );
+        ingestionJob.setCreationDate( daoUtil.getTimestamp( nIndex++ ) );
+        ingestionJob.setUpdateDate( daoUtil.getTimestamp( nIndex ) );
+
+        return ingestionJob;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+package fr.paris.lutece.plugins.knowledge.business;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * This class provides instances management methods (create, find, ...) for IngestionJob objects
+ */
+public final class IngestionJobHome
+{
+    // Static variable pointed at the DAO instance
+    private static IIngestionJobDAO _dao = SpringContextService.getBean( "knowledge.ingestionJobDAO" );
+    private static Plugin _plugin = PluginService.getPlugin( "knowledge" );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private IngestionJobHome( )
+    {
+    }
+
+    /**
+     * Create an instance of the ingestionJob class
+     * 
+     * @param ingestionJob
+     *            The instance of the IngestionJob which contains the informations to store
+     * @return The instance of ingestionJob which has been created with its primary key.
+     */
+    public static IngestionJob create( IngestionJob ingestionJob )
+    {
+        _dao.insert( ingestionJob, _plugin );
+
+        return ingestionJob;
+    }
+
+    /**
+     * Update of the ingestionJob which is specified in parameter
+     * 
+     * @param ingestionJob
+     *            The instance of the IngestionJob which contains the data to store
+     * @return The instance of the ingestionJob which has been updated
+     */
+    public static IngestionJob update( IngestionJob ingestionJob )
+    {
+        _dao.store( ingestionJob, _plugin );
+
+        return ingestionJob;
+    }
+
+    /**
+     * Remove the ingestionJob whose identifier is specified in parameter
+     * 
+     * @param nKey
+     *            The ingestionJob Id
+     */
+    public static void remove( int nKey )
+    {
+        _dao.delete( nKey, _plugin );
+    }
+
+    /**
+     * Remove the jobs of a dataset file
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     */
+    public static void removeByDatasetFileId( int nDatasetFileId )
+    {
+        _dao.deleteByDatasetFileId( nDatasetFileId, _plugin );
+    }
+
+    /**
+     * Returns an instance of a ingestionJob whose identifier is specified in parameter
+     * 
+     * @param nKey
+     *            The ingestionJob primary key
+     * @return an instance of IngestionJob
+     */
+    public static Optional<IngestionJob> findByPrimaryKey( int nKey )
+    {
+        return _dao.load( nKey, _plugin );
+    }
+
+    /**
+     * Load the jobs of a dataset, the most recent first
+     * 
+     * @param nDatasetId
+     *            The dataset Id
+     * @return the list which contains the jobs of the dataset
+     */
+    public static List<IngestionJob> getIngestionJobsListByDatasetId( int nDatasetId )
+    {
+        return _dao.selectIngestionJobsListByDatasetId( nDatasetId, _plugin );
+    }
+
+    /**
+     * Load the jobs of a dataset file, the most recent first
+     * 
+     * @param nDatasetFileId
+     *            The dataset file Id
+     * @return the list which contains the jobs of the dataset file
+     */
+    public static List<IngestionJob> getIngestionJobsListByDatasetFileId( int nDatasetFileId )
+    {
+        return _dao.selectIngestionJobsListByDatasetFileId( nDatasetFileId, _plugin );
+    }
+
+    /**
+     * Load the jobs having one of the given statuses, the oldest first
+     * 
+     * @param listStatuses
+     *            The statuses
+     * @return the list which contains the jobs
+     */
+    public static List<IngestionJob> getIngestionJobsListByStatus( List<String> listStatuses )
+    {
+        return _dao.selectIngestionJobsListByStatus( listStatuses, _plugin );
+    }
+}
@@ -42,6 +42,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import fr.paris.lutece.plugins.knowledge.service.ChatService;
+import fr.paris.lutece.plugins.knowledge.service.SegmentFilter;
 import org.glassfish.jersey.media.sse.EventOutput;
 import org.glassfish.jersey.media.sse.OutboundEvent;
 import org.glassfish.jersey.media.sse.SseFeature;
@@ -73,6 +74,10 @@ public class BotRest
         {
             return Response.status( Response.Status.UNAUTHORIZED ).entity( new ErrorJsonResponse( "Unauthorized" ) ).build( );
         }
+        if ( !SegmentFilter.isValid( data.getFilter( ) ) )
+        {
+            return Response.status( Response.Status.BAD_REQUEST ).entity( new ErrorJsonResponse( "Invalid filter" ) ).build( );
+        }
 
         String sessionId = UUID.randomUUID( ).toString( );
         final EventOutput eventOutput = new EventOutput( );
@@ -7,6 +7,7 @@ public class RequestData
     private String botId;
     private String botSessionId;
     private byte [ ] audioFile;
+    private String filter;
 
     public String getAction( )
     {
@@ -58,4 +59,14 @@ public class RequestData
         this.botSessionId = botSessionId;
     }
 
+    public String getFilter( )
+    {
+        return filter;
+    }
+
+    public void setFilter( String filter )
+    {
+        this.filter = filter;
+    }
+
 }
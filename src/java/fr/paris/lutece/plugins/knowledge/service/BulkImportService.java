@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
+import fr.paris.lutece.plugins.knowledge.business.IngestionJob;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Imports many files at once into a dataset, from a ZIP archive or from a directory of the server. Each file is stored and handed over to the ingestion
+ * jobs, which parse the files in parallel and share the bounded embedding pool. The last import of each dataset is kept, so that the admin UI can show
+ * the status of its files.
+ */
+public final class BulkImportService
+{
+    private static final List<String> EXTENSIONS = Arrays.stream( Constant.IMPORT_EXTENSIONS.split( "," ) )
+            .map( strExtension -> strExtension.trim( ).toLowerCase( Locale.ROOT ) ).filter( strExtension -> !strExtension.isEmpty( ) )
+            .collect( Collectors.toList( ) );
+    private static final int BUFFER_SIZE = 8192;
+    private static final Map<Integer, BulkImport> _mapLastImports = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor
+     */
+    private BulkImportService( )
+    {
+    }
+
+    /**
+     * Imports the files of a ZIP archive. The archive is read as a stream and each file is copied to a temporary file before being stored, so that the
+     * archive is never held in memory. The archive is no longer read once the maximum number of files is imported.
+     * 
+     * @param inputStream
+     *            The archive
+     * @param strArchiveName
+     *            The name of the archive
+     * @param dataset
+     *            The dataset
+     * @return The import
+     * @throws IOException
+     *             if the archive cannot be read
+     */
+    public static BulkImport importZip( InputStream inputStream, String strArchiveName, Dataset dataset ) throws IOException
+    {
+        BulkImport bulkImport = new BulkImport( strArchiveName );
+        try ( ZipInputStream zip = new ZipInputStream( inputStream ) )
+        {
+            ZipEntry entry;
+            while ( bulkImport.getImportedCount( ) < Constant.IMPORT_MAX_FILES && ( entry = zip.getNextEntry( ) ) != null )
+            {
+                if ( !entry.isDirectory( ) && !isHidden( entry.getName( ) ) )
+                {
+                    importFile( bulkImport, entry.getName( ), zip, dataset );
+                }
+                zip.closeEntry( );
+            }
+            // the following entries are not decompressed : only the next one is reported
+            if ( bulkImport.getImportedCount( ) >= Constant.IMPORT_MAX_FILES && ( entry = zip.getNextEntry( ) ) != null )
+            {
+                bulkImport.skip( entry.getName( ), BulkImport.REASON_TOO_MANY );
+            }
+        }
+        return finish( bulkImport, dataset );
+    }
+
+    /**
+     * Imports the files of a directory of the server and of its sub-directories. The directory must be under the import root of the configuration. The
+     * symbolic links are not followed, so that no file outside the import root is read.
+     * 
+     * @param strDirectory
+     *            The path of the directory
+     * @param dataset
+     *            The dataset
+     * @return The import
+     * @throws IOException
+     *             if the directory cannot be read
+     * @throws IllegalArgumentException
+     *             if the directory import is disabled or the directory is not under the import root
+     */
+    public static BulkImport importDirectory( String strDirectory, Dataset dataset ) throws IOException
+    {
+        if ( !isDirectoryImportEnabled( ) )
+        {
+            throw new IllegalArgumentException( "The import of directories is disabled" );
+        }
+        Path root = Paths.get( Constant.IMPORT_DIRECTORY_ROOT ).toRealPath( );
+        Path directory = root.resolve( strDirectory ).toRealPath( );
+        if ( !directory.startsWith( root ) || !Files.isDirectory( directory ) )
+        {
+            throw new IllegalArgumentException( "Not a directory under the import root : " + strDirectory );
+        }
+
+        BulkImport bulkImport = new BulkImport( root.relativize( directory ).toString( ) );
+        List<Path> listFiles;
+        try ( Stream<Path> files = Files.walk( directory ) )
+        {
+            listFiles = files.filter( file -> Files.isRegularFile( file, LinkOption.NOFOLLOW_LINKS ) ).sorted( ).collect( Collectors.toList( ) );
+        }
+        for ( Path file : listFiles )
+        {
+            String strName = directory.relativize( file ).toString( ).replace( '\\', '/' );
+            if ( isHidden( strName ) )
+            {
+                continue;
+            }
+            if ( Files.size( file ) > Constant.IMPORT_MAX_FILE_BYTES )
+            {
+                bulkImport.skip( strName, BulkImport.REASON_TOO_LARGE );
+                continue;
+            }
+            try ( InputStream inputStream = Files.newInputStream( file ) )
+            {
+                importFile( bulkImport, strName, inputStream, dataset );
+            }
+        }
+        return finish( bulkImport, dataset );
+    }
+
+    /**
+     * Tells whether the admins may import a directory of the server.
+     * 
+     * @return true if an import root is configured
+     */
+    public static boolean isDirectoryImportEnabled( )
+    {
+        return Constant.IMPORT_DIRECTORY_ROOT != null && !Constant.IMPORT_DIRECTORY_ROOT.trim( ).isEmpty( );
+    }
+
+    /**
+     * Gets the last import of a dataset since the start of the application.
+     * 
+     * @param nDatasetId
+     *            The dataset id
+     * @return The import, or null
+     */
+    public static BulkImport getLastImport( int nDatasetId )
+    {
+        return _mapLastImports.get( nDatasetId );
+    }
+
+    /**
+     * Stores a file of an import, unless it is not supported or beyond the limits.
+     */
+    private static void importFile( BulkImport bulkImport, String strName, InputStream inputStream, Dataset dataset ) throws IOException
+    {
+        if ( !EXTENSIONS.contains( getExtension( strName ) ) )
+        {
+            bulkImport.skip( strName, BulkImport.REASON_UNSUPPORTED );
+            return;
+        }
+        if ( bulkImport.getImportedCount( ) >= Constant.IMPORT_MAX_FILES )
+        {
+            bulkImport.skip( strName, BulkImport.REASON_TOO_MANY );
+            return;
+        }
+
+        Path temporaryFile = Files.createTempFile( "knowledge-import", getExtension( strName ) );
+        try
+        {
+            if ( !copy( inputStream, temporaryFile ) )
+            {
+                bulkImport.skip( strName, BulkImport.REASON_TOO_LARGE );
+                return;
+            }
+            try ( InputStream content = Files.newInputStream( temporaryFile ) )
+            {
+                DatasetFile datasetFile = DataSetService.create( strName, content, dataset );
+                bulkImport.add( strName, datasetFile.getId( ) );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Unable to import the file " + strName + " into the dataset " + dataset.getId( ), e );
+                bulkImport.skip( strName, BulkImport.REASON_ERROR );
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists( temporaryFile );
+        }
+    }
+
+    /**
+     * Copies a stream to a file, up to the maximum size of an imported file.
+     * 
+     * @return false if the stream is larger than the maximum size
+     */
+    private static boolean copy( InputStream inputStream, Path file ) throws IOException
+    {
+        byte [ ] buffer = new byte [ BUFFER_SIZE];
+        long lTotal = 0;
+        try ( OutputStream out = Files.newOutputStream( file ) )
+        {
+            int nRead;
+            while ( ( nRead = inputStream.read( buffer ) ) != -1 )
+            {
+                lTotal += nRead;
+                if ( lTotal > Constant.IMPORT_MAX_FILE_BYTES )
+                {
+                    return false;
+                }
+                out.write( buffer, 0, nRead );
+            }
+        }
+        return true;
+    }
+
+    private static BulkImport finish( BulkImport bulkImport, Dataset dataset )
+    {
+        _mapLastImports.put( dataset.getId( ), bulkImport );
+        AppLogService.info( "Imported " + bulkImport.getImportedCount( ) + " files from " + bulkImport.getSource( ) + " into the dataset "
+                + dataset.getId( ) + ", " + bulkImport.getSkippedFiles( ).size( ) + " skipped" );
+        return bulkImport;
+    }
+
+    /**
+     * Tells whether a file is hidden or holds the metadata of an archiver, e.g. the __MACOSX directory.
+     */
+    private static boolean isHidden( String strName )
+    {
+        for ( String strPart : strName.split( "[/\\\\]" ) )
+        {
+            if ( strPart.startsWith( "." ) || strPart.startsWith( "__MACOSX" ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getExtension( String strName )
+    {
+        int nDot = strName.lastIndexOf( '.' );
+        int nSlash = Math.max( strName.lastIndexOf( '/' ), strName.lastIndexOf( '\\' ) );
+        return ( nDot > nSlash ) ? strName.substring( nDot ).toLowerCase( Locale.ROOT ) : "";
+    }
+
+    /**
+     * The files of an import : the files stored, whose status is the one of their ingestion job, and the files skipped.
+     */
+    public static final class BulkImport
+    {
+        public static final String REASON_UNSUPPORTED = "unsupported";
+        public static final String REASON_TOO_LARGE = "tooLarge";
+        public static final String REASON_TOO_MANY = "tooMany";
+        public static final String REASON_ERROR = "error";
+
+        private final String _strSource;
+        private final Map<Integer, String> _mapImportedFiles = Collections.synchronizedMap( new HashMap<>( ) );
+        private final List<SkippedFile> _listSkippedFiles = Collections.synchronizedList( new ArrayList<>( ) );
+
+        BulkImport( String strSource )
+        {
+            _strSource = strSource;
+        }
+
+        void add( String strName, int nFileId )
+        {
+            _mapImportedFiles.put( nFileId, strName );
+        }
+
+        void skip( String strName, String strReason )
+        {
+            _listSkippedFiles.add( new SkippedFile( strName, strReason ) );
+        }
+
+        /**
+         * @return The name of the archive or the directory
+         */
+        public String getSource( )
+        {
+            return _strSource;
+        }
+
+        /**
+         * @return The number of files stored
+         */
+        public int getImportedCount( )
+        {
+            return _mapImportedFiles.size( );
+        }
+
+        /**
+         * @return The files skipped
+         */
+        public List<SkippedFile> getSkippedFiles( )
+        {
+            return new ArrayList<>( _listSkippedFiles );
+        }
+
+        /**
+         * Counts the files stored by the status of their last ingestion job.
+         * 
+         * @param mapJobs
+         *            The last ingestion job of the files of the dataset, by file id
+         * @return The number of files by status. The files removed since the import are not counted
+         */
+        public Map<String, Integer> getStatusCounts( Map<String, IngestionJob> mapJobs )
+        {
+            Map<String, Integer> mapCounts = new HashMap<>( );
+            synchronized( _mapImportedFiles )
+            {
+                for ( Integer nFileId : _mapImportedFiles.keySet( ) )
+                {
+                    IngestionJob job = mapJobs.get( String.valueOf( nFileId ) );
+                    if ( job != null )
+                    {
+                        mapCounts.merge( job.getStatus( ), 1, Integer::sum );
+                    }
+                }
+            }
+            return mapCounts;
+        }
+
+        /**
+         * Tells whether all the files stored are ingested, successfully or not.
+         * 
+         * @param mapJobs
+         *            The last ingestion job of the files of the dataset, by file id
+         * @return true if no job of the import is running
+         */
+        public boolean isFinished( Map<String, IngestionJob> mapJobs )
+        {
+            synchronized( _mapImportedFiles )
+            {
+                for ( Integer nFileId : _mapImportedFiles.keySet( ) )
+                {
+                    IngestionJob job = mapJobs.get( String.valueOf( nFileId ) );
+                    if ( job != null && job.isActive( ) )
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A file skipped by an import, with the reason.
+     */
+    public static final class SkippedFile
+    {
+        private final String _strName;
+        private final String _strReason;
+
+        SkippedFile( String strName, String strReason )
+        {
+            _strName = strName;
+            _strReason = strReason;
+        }
+
+        /**
+         * @return The name of the file in the archive or the directory
+         */
+        public String getName( )
+        {
+            return _strName;
+        }
+
+        /**
+         * @return The reason : one of the REASON_* constants of {@link BulkImport}
+         */
+        public String getReason( )
+        {
+            return _strReason;
+        }
+    }
+}
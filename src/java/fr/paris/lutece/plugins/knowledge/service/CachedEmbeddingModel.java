@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import fr.paris.lutece.plugins.knowledge.business.EmbeddingCacheHome;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Embedding model reading the vectors of the texts already embedded from a persistent cache, addressed by the model and the hash of the text. Only the
+ * texts missing from the cache are sent to the model, once even when they appear several times.
+ */
+public class CachedEmbeddingModel implements EmbeddingModel
+{
+    private final EmbeddingModel _model;
+    private final String _strModelKey;
+
+    /**
+     * Constructor
+     * 
+     * @param model
+     *            The embedding model
+     * @param strModelKey
+     *            The name and the dimension of the model, the vectors of different models being kept apart
+     */
+    public CachedEmbeddingModel( EmbeddingModel model, String strModelKey )
+    {
+        _model = model;
+        _strModelKey = strModelKey;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll( List<TextSegment> textSegments )
+    {
+        List<String> listHashes = new ArrayList<>( textSegments.size( ) );
+        Map<String, TextSegment> mapDistinct = new LinkedHashMap<>( );
+        for ( TextSegment segment : textSegments )
+        {
+            String strHash = DigestUtils.sha256Hex( segment.text( ) );
+            listHashes.add( strHash );
+            mapDistinct.putIfAbsent( strHash, segment );
+        }
+
+        Map<String, float [ ]> mapVectors = EmbeddingCacheHome.findVectors( _strModelKey, mapDistinct.keySet( ) );
+        List<String> listMissingHashes = new ArrayList<>( );
+        List<TextSegment> listMissing = new ArrayList<>( );
+        for ( Map.Entry<String, TextSegment> entry : mapDistinct.entrySet( ) )
+        {
+            if ( !mapVectors.containsKey( entry.getKey( ) ) )
+            {
+                listMissingHashes.add( entry.getKey( ) );
+                listMissing.add( entry.getValue( ) );
+            }
+        }
+
+        if ( !listMissing.isEmpty( ) )
+        {
+            List<Embedding> listEmbeddings = _model.embedAll( listMissing ).content( );
+            for ( int i = 0; i < listMissing.size( ); i++ )
+            {
+                float [ ] vector = listEmbeddings.get( i ).vector( );
+                mapVectors.put( listMissingHashes.get( i ), vector );
+                store( listMissingHashes.get( i ), vector );
+            }
+        }
+
+        List<Embedding> listEmbeddings = new ArrayList<>( textSegments.size( ) );
+        for ( String strHash : listHashes )
+        {
+            listEmbeddings.add( new Embedding( mapVectors.get( strHash ) ) );
+        }
+        return Response.from( listEmbeddings );
+    }
+
+    /**
+     * Adds a vector to the cache. A vector added meanwhile by another ingestion makes the insert fail, which is harmless.
+     */
+    private void store( String strHash, float [ ] vector )
+    {
+        try
+        {
+            EmbeddingCacheHome.create( _strModelKey, strHash, vector );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.debug( "Embedding already cached : " + strHash );
+        }
+    }
+}
@@ -4,27 +4,25 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.SocketAddress;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.glassfish.jersey.media.sse.EventOutput;
-import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.memory.chat.ChatMemoryProvider;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
-import dev.langchain4j.model.output.Response;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.service.MemoryId;
 import dev.langchain4j.service.TokenStream;
 import dev.langchain4j.service.UserMessage;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
-import dev.langchain4j.store.embedding.EmbeddingStore;
 import fr.paris.lutece.plugins.knowledge.business.Bot;
 import fr.paris.lutece.plugins.knowledge.business.BotHome;
 import fr.paris.lutece.plugins.knowledge.business.Dataset;
@@ -32,10 +30,14 @@ import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
 import fr.paris.lutece.plugins.knowledge.rs.BotResponse;
 import fr.paris.lutece.plugins.knowledge.rs.RequestData;
 import fr.paris.lutece.plugins.knowledge.service.ChatMemoryService.PersistentChatMemoryStore;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
 
 
 public class ChatService
 {
+    private static final int STEP_LOADING_ID = 1;
+    private static final String MESSAGE_LOADING = "knowledge.chat.loadingKnowledgeBase";
 
     public static CompletableFuture<Void> run( HttpServletRequest request, RequestData data, EventOutput output, String sessionId )
     {
@@ -54,11 +56,11 @@ public class ChatService
                 .build( );
 
                 
-        if ( bot.getDatasetId( ) != 0 )
+        List<Dataset> listDatasets = getDatasets( bot );
+        if ( !listDatasets.isEmpty( ) )
         {
-            Dataset dataSet = DatasetHome.findByPrimaryKey( bot.getDatasetId( ) ).get( );
-            EmbeddingStore<TextSegment> embeddingStore = ElasticStoreService.getEmbeddingStore( bot.getDatasetId( ) );
-            String promptText = generatePromptText( data, embeddingStore, dataSet );
+            openIndices( request, botResponse, listDatasets );
+            String promptText = generatePromptText( data, listDatasets );
             return processChatStream( assistant, botResponse, stepFuture, promptText, chatMemoryStore.getRight( ) );
         }
         else
@@ -100,12 +102,55 @@ public class ChatService
         return stepFuture;
     }
 
-    private static String generatePromptText( RequestData data, EmbeddingStore<TextSegment> embeddingStore, Dataset dataSet )
+    private static List<Dataset> getDatasets( Bot bot )
+    {
+        List<Dataset> listDatasets = new ArrayList<>( );
+        if ( bot.getDatasetId( ) != 0 )
+        {
+            DatasetHome.findByPrimaryKey( bot.getDatasetId( ) ).ifPresent( listDatasets::add );
+            for ( Integer nDatasetId : bot.getAdditionalDatasetIds( ) )
+            {
+                DatasetHome.findByPrimaryKey( nDatasetId ).ifPresent( listDatasets::add );
+            }
+        }
+        return listDatasets;
+    }
+
+    /**
+     * Opens the closed indices of the datasets, showing a loading step meanwhile. A dataset whose index can not be opened is left to the retrieval.
+     */
+    private static void openIndices( HttpServletRequest request, BotResponse botResponse, List<Dataset> listDatasets )
+    {
+        List<Dataset> listClosed = listDatasets.stream( ).filter( IndexLifecycleService::isClosed ).collect( Collectors.toList( ) );
+        if ( listClosed.isEmpty( ) )
+        {
+            return;
+        }
+        botResponse.initStep( STEP_LOADING_ID, Constant.STEP_LOADING );
+        botResponse.updateStep( STEP_LOADING_ID, I18nService.getLocalizedString( MESSAGE_LOADING, request.getLocale( ) ) );
+        try
+        {
+            for ( Dataset dataSet : listClosed )
+            {
+                IndexLifecycleService.open( dataSet );
+            }
+            botResponse.completeStep( STEP_LOADING_ID );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Unable to open the indices of the datasets " + listClosed.stream( ).map( Dataset::getId ).collect( Collectors.toList( ) ), e );
+            botResponse.failStep( STEP_LOADING_ID, e.getMessage( ) );
+        }
+    }
+
+    private static String generatePromptText( RequestData data, List<Dataset> listDatasets )
     {
-        Response<Embedding> questionEmbedding = ElasticStoreService.getEmbeddingModel( ).embed( data.getQuestion( ) );
-        List<EmbeddingMatch<TextSegment>> relevantEmbeddings = embeddingStore.findRelevant( questionEmbedding.content( ), dataSet.getSearchMaxRecord( ), 0.7 );
+        Dataset dataSet = listDatasets.get( 0 );
+        List<EmbeddingMatch<TextSegment>> relevantEmbeddings = RetrievalService.findRelevant( listDatasets, data.getQuestion( ),
+                SegmentFilter.parse( data.getFilter( ) ) );
         String embeddingMatchText = relevantEmbeddings.stream( ).map( match -> match.embedded( ).text( ) ).collect( Collectors.joining( "\n\n" ) );
-        List<String> fileNamesSources = Collections.singletonList( "lutece.pdf" );
+        List<String> fileNamesSources = relevantEmbeddings.stream( ).map( match -> match.embedded( ).metadata( ).get( SegmentFilter.KEY_FILE_NAME ) )
+                .filter( Objects::nonNull ).distinct( ).collect( Collectors.toList( ) );
         return PromptUtils.generateQAPrompt( data.getQuestion( ), embeddingMatchText, fileNamesSources, dataSet.getMatchInstruction( ),
                 dataSet.getMismatchInstruction( ) ).text( );
     }
@@ -13,6 +13,47 @@ public class Constant
     public static final String ELASTIC_URL = AppPropertiesService.getProperty( "knowledge.elastic.url" );
     public static final String ELASTIC_USERNAME = AppPropertiesService.getProperty( "knowledge.elastic.username" );
     public static final String ELASTIC_PASSWORD = AppPropertiesService.getProperty( "knowledge.elastic.password" );
+    public static final String FLAT_STORE_PATH = AppPropertiesService.getProperty( "knowledge.flatstore.path", "/WEB-INF/plugins/knowledge/vectors" );
+    public static final int FLAT_STORE_PARALLEL_THRESHOLD = AppPropertiesService.getPropertyInt( "knowledge.flatstore.parallelThreshold", 16384 );
+    public static final int QUANTIZATION_INT8_OVERSAMPLE = AppPropertiesService.getPropertyInt( "knowledge.quantization.int8.oversample", 4 );
+    public static final int QUANTIZATION_BINARY_OVERSAMPLE = AppPropertiesService.getPropertyInt( "knowledge.quantization.binary.oversample", 10 );
+    public static final int ELASTIC_KNN_NUM_CANDIDATES_FACTOR = AppPropertiesService.getPropertyInt( "knowledge.elastic.knn.numCandidatesFactor", 2 );
+    public static final long ELASTIC_BULK_MAX_BYTES = AppPropertiesService.getPropertyLong( "knowledge.elastic.bulk.maxBytes", 5L * 1024 * 1024 );
+    public static final int ELASTIC_BULK_CONCURRENCY = AppPropertiesService.getPropertyInt( "knowledge.elastic.bulk.concurrency", 4 );
+    public static final boolean ELASTIC_BULK_DISABLE_REFRESH = AppPropertiesService.getPropertyBoolean( "knowledge.elastic.bulk.disableRefresh", true );
+    public static final int ELASTIC_BULK_FORCE_MERGE_SEGMENTS = AppPropertiesService.getPropertyInt( "knowledge.elastic.bulk.forceMergeSegments", 0 );
+    public static final int ELASTIC_IDLE_CLOSE_HOURS = AppPropertiesService.getPropertyInt( "knowledge.elastic.idleCloseHours", 720 );
+    public static final int ELASTIC_OPEN_TIMEOUT_SECONDS = AppPropertiesService.getPropertyInt( "knowledge.elastic.openTimeoutSeconds", 60 );
+    public static final int MMR_FETCH_FACTOR = AppPropertiesService.getPropertyInt( "knowledge.mmr.fetchFactor", 4 );
+    public static final int ONNX_MAX_BATCH_SIZE = AppPropertiesService.getPropertyInt( "knowledge.onnx.maxBatchSize", 32 );
+    public static final int ONNX_MAX_WAIT_MILLIS = AppPropertiesService.getPropertyInt( "knowledge.onnx.maxWaitMillis", 5 );
+    public static final int ONNX_INTRA_OP_THREADS = AppPropertiesService.getPropertyInt( "knowledge.onnx.intraOpThreads", 0 );
+    public static final int RETRIEVAL_THREADS = AppPropertiesService.getPropertyInt( "knowledge.retrieval.threads", 8 );
+    public static final int RETRIEVAL_TIMEOUT_MILLIS = AppPropertiesService.getPropertyInt( "knowledge.retrieval.timeoutMillis", 3000 );
+    public static final int RETRIEVAL_RRF_RANK_CONSTANT = AppPropertiesService.getPropertyInt( "knowledge.retrieval.rrfRankConstant", 60 );
+    public static final int RETRIEVAL_CACHE_QUANTIZATION_LEVELS = AppPropertiesService.getPropertyInt( "knowledge.retrieval.cache.quantizationLevels", 100 );
+    public static final int REBUILD_MAX_SEGMENTS_PER_SECOND = AppPropertiesService.getPropertyInt( "knowledge.rebuild.maxSegmentsPerSecond", 50 );
+    public static final int EMBEDDING_BATCH_SIZE = AppPropertiesService.getPropertyInt( "knowledge.embedding.batchSize", 64 );
+    public static final int EMBEDDING_BATCH_MAX_TOKENS = AppPropertiesService.getPropertyInt( "knowledge.embedding.batchMaxTokens", 20000 );
+    public static final int EMBEDDING_CONCURRENCY = AppPropertiesService.getPropertyInt( "knowledge.embedding.concurrency", 4 );
+    public static final int EMBEDDING_MAX_ATTEMPTS = AppPropertiesService.getPropertyInt( "knowledge.embedding.maxAttempts", 3 );
+    public static final int EMBEDDING_RETRY_DELAY_MILLIS = AppPropertiesService.getPropertyInt( "knowledge.embedding.retryDelayMillis", 1000 );
+    public static final int EMBEDDING_SCHEDULER_MAX_REQUESTS = AppPropertiesService.getPropertyInt( "knowledge.embedding.scheduler.maxRequests", 8 );
+    public static final int EMBEDDING_SCHEDULER_BULK_MAX_REQUESTS = AppPropertiesService.getPropertyInt( "knowledge.embedding.scheduler.bulkMaxRequests", 6 );
+    public static final int EMBEDDING_SCHEDULER_BULK_YIELD_MILLIS = AppPropertiesService.getPropertyInt( "knowledge.embedding.scheduler.bulkYieldMillis", 2000 );
+    public static final int EMBEDDING_BULK_MAX_TOKENS_PER_MINUTE = AppPropertiesService.getPropertyInt( "knowledge.embedding.bulk.maxTokensPerMinute", 0 );
+    public static final boolean EMBEDDING_CACHE_ENABLED = AppPropertiesService.getPropertyBoolean( "knowledge.embedding.cache.enabled", true );
+    public static final int PDF_PAGES_PER_RANGE = AppPropertiesService.getPropertyInt( "knowledge.pdf.pagesPerRange", 10 );
+    public static final long PDF_MAX_MAIN_MEMORY_BYTES = AppPropertiesService.getPropertyLong( "knowledge.pdf.maxMainMemoryBytes", 16L * 1024 * 1024 );
+    public static final int INGESTION_THREADS = AppPropertiesService.getPropertyInt( "knowledge.ingestion.threads", 0 );
+    public static final int INGESTION_MAX_ATTEMPTS = AppPropertiesService.getPropertyInt( "knowledge.ingestion.maxAttempts", 3 );
+    public static final int INGESTION_RETRY_DELAY_SECONDS = AppPropertiesService.getPropertyInt( "knowledge.ingestion.retryDelaySeconds", 30 );
+    public static final String IMPORT_EXTENSIONS = AppPropertiesService.getProperty( "knowledge.import.extensions", ".pdf,.xlsx,.pptx,.docx,.txt" );
+    public static final int IMPORT_MAX_FILES = AppPropertiesService.getPropertyInt( "knowledge.import.maxFiles", 1000 );
+    public static final long IMPORT_MAX_FILE_BYTES = AppPropertiesService.getPropertyLong( "knowledge.import.maxFileBytes", 100L * 1024 * 1024 );
+    public static final String IMPORT_DIRECTORY_ROOT = AppPropertiesService.getProperty( "knowledge.import.directoryRoot", "" );
+    public static final int UPLOAD_SPOOL_MAX_AGE_HOURS = AppPropertiesService.getPropertyInt( "knowledge.upload.spoolMaxAgeHours", 48 );
     public static final String STEP_CHAT = "chat";
+    public static final String STEP_LOADING = "loading";
 }
 
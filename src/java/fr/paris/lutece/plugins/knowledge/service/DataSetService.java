@@ -1,10 +1,14 @@
 package fr.paris.lutece.plugins.knowledge.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.Optional;
 import org.apache.commons.fileupload.FileItem;
 import fr.paris.lutece.plugins.knowledge.business.Dataset;
 import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
 import fr.paris.lutece.plugins.knowledge.business.DatasetFileHome;
+import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
 import fr.paris.lutece.portal.service.file.FileService;
 import fr.paris.lutece.portal.service.file.IFileStoreServiceProvider;
 import fr.paris.lutece.portal.service.util.AppLogService;
@@ -18,7 +22,8 @@ public class DataSetService
     }
 
     /**
-     * Create a new document in the datastore. This will store the file in the storage and create an entry in the database.
+     * Create a new document in the datastore. This will store the file in the storage and create an entry in the database. The file is parsed,
+     * embedded and indexed in the background by an ingestion job.
      * @param document The file to be stored.
      * @param dataSet The dataset to which the file belongs.
      * @return The created document.
@@ -28,18 +33,9 @@ public class DataSetService
 
         if ( document != null && document.getSize( ) > 0 )
         {
-            try
+            try ( InputStream inputStream = document.getInputStream( ) )
             {
-                String fileStoreKey = FILE_STORE_SERVICE.storeFileItem( document );
-                DatasetFile doc = new DatasetFile( );
-                doc.setFile( document.getInputStream( ) );
-                doc.setFileKey( fileStoreKey );
-                doc.setName( document.getName( ) );
-                doc.setDatasetId( dataSet.getId( ) );
-                DatasetFile datasetFile = DatasetFileHome.create( doc );
-                ElasticStoreService.store( datasetFile, dataSet );
-                return datasetFile;
-
+                return create( document.getName( ), inputStream, dataSet );
             }
             catch( Exception e )
             {
@@ -51,6 +47,65 @@ public class DataSetService
 
     }
 
+    /**
+     * Create a new document in the datastore from a stream, e.g. a file of an imported archive. The file is parsed, embedded and indexed in the
+     * background by an ingestion job. The stream is read once : it is copied to the spool of the ingestion while it is stored.
+     * @param name The name of the file.
+     * @param inputStream The content of the file, closed by the caller.
+     * @param dataSet The dataset to which the file belongs.
+     * @return The created document.
+     */
+    public static DatasetFile create( String name, InputStream inputStream, Dataset dataSet )
+    {
+        DatasetFile doc = new DatasetFile( );
+        doc.setFileKey( storeFile( inputStream ) );
+        doc.setName( name );
+        doc.setDatasetId( dataSet.getId( ) );
+        DatasetFile datasetFile = DatasetFileHome.create( doc );
+        IngestionJobService.submit( datasetFile );
+        return datasetFile;
+    }
+
+    /**
+     * Replace a document by a new version. The new file is stored in place of the previous one and re-ingested in the background : only its segments
+     * not indexed yet are embedded, and the segments of the previous version no longer in the file are removed.
+     * @param document The new version of the file.
+     * @param datasetFile The document to replace.
+     * @return The updated document.
+     */
+    public static DatasetFile update( FileItem document, DatasetFile datasetFile )
+    {
+        if ( document == null || document.getSize( ) == 0 )
+        {
+            return null;
+        }
+        String oldFileKey = datasetFile.getFileKey( );
+        try ( InputStream inputStream = document.getInputStream( ) )
+        {
+            IngestionJobService.cancelByDatasetFile( datasetFile.getId( ) );
+            ExtractedTextService.remove( datasetFile.getId( ) );
+            datasetFile.setFileKey( storeFile( inputStream ) );
+            datasetFile.setName( document.getName( ) );
+            DatasetFileHome.update( datasetFile );
+            IngestionJobService.submit( datasetFile );
+        }
+        catch( Exception e )
+        {
+            AppLogService.error( "Error updating the file", e );
+            throw new IllegalStateException( "Error updating the file", e );
+        }
+        try
+        {
+            UploadSpoolService.remove( oldFileKey );
+            FILE_STORE_SERVICE.delete( oldFileKey );
+        }
+        catch( Exception e )
+        {
+            AppLogService.error( "Unable to delete the previous version of the file " + datasetFile.getId( ), e );
+        }
+        return datasetFile;
+    }
+
     /**
      * Delete a document identified by its ID from the datastore. This will remove both the file from the storage and the entry from the database.
      *
@@ -61,11 +116,76 @@ public class DataSetService
     {
         Optional<DatasetFile> document = DatasetFileHome.findByPrimaryKey( documentId );
         document.ifPresent( doc -> {
+            IngestionJobService.removeByDatasetFile( documentId );
+            UploadSpoolService.remove( doc.getFileKey( ) );
             FILE_STORE_SERVICE.delete( doc.getFileKey( ) );
             DatasetFileHome.remove( documentId );
+            ExtractedTextService.remove( documentId );
+            removeVectors( doc );
+            DatasetHome.incrementVersion( doc.getDatasetId( ) );
+        } );
+    }
+
+    /**
+     * Delete a dataset with its documents. The vector store of the dataset is dropped in the background.
+     *
+     * @param datasetId
+     *            The ID of the dataset to be deleted.
+     */
+    public static void deleteDataset( int datasetId )
+    {
+        Optional<Dataset> dataset = DatasetHome.findByPrimaryKey( datasetId );
+        dataset.ifPresent( ds -> {
+            for ( DatasetFile doc : DatasetFileHome.getDatasetFilesListByDataSetId( datasetId ) )
+            {
+                IngestionJobService.removeByDatasetFile( doc.getId( ) );
+                UploadSpoolService.remove( doc.getFileKey( ) );
+                FILE_STORE_SERVICE.delete( doc.getFileKey( ) );
+                DatasetFileHome.remove( doc.getId( ) );
+                ExtractedTextService.remove( doc.getId( ) );
+            }
+            DatasetHome.remove( datasetId );
+            EmbeddingStoreCleanupService.dropDataset( ds );
         } );
     }
 
+    /**
+     * Stores a file in the file store, keeping a copy in the spool of the ingestion.
+     *
+     * @param inputStream
+     *            The content of the file, closed by the caller.
+     * @return The key of the file in the file store.
+     */
+    private static String storeFile( InputStream inputStream )
+    {
+        try
+        {
+            return UploadSpoolService.store( FILE_STORE_SERVICE, inputStream );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to store the file", e );
+        }
+    }
+
+    /**
+     * Removes the segments of a deleted document from the vector store. On failure they are purged later by the reconciliation daemon.
+     *
+     * @param doc
+     *            The deleted document.
+     */
+    private static void removeVectors( DatasetFile doc )
+    {
+        try
+        {
+            DatasetHome.findByPrimaryKey( doc.getDatasetId( ) ).ifPresent( ds -> ElasticStoreService.removeFile( ds, doc.getId( ) ) );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Unable to remove the vectors of the file " + doc.getId( ), e );
+        }
+    }
+
     /**
      * Get the file store service provider.
      * @return The file store service provider.
@@ -3,72 +3,245 @@ package fr.paris.lutece.plugins.knowledge.service;
 
 import dev.langchain4j.data.document.*;
 import dev.langchain4j.data.document.parser.*;
-import dev.langchain4j.data.document.splitter.*;
-import dev.langchain4j.data.embedding.*;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.model.embedding.*;
-import dev.langchain4j.model.openai.*;
-import dev.langchain4j.model.output.Response;
 import dev.langchain4j.store.embedding.*;
-import dev.langchain4j.store.embedding.elasticsearch.ElasticsearchEmbeddingStore;
 import fr.paris.lutece.plugins.knowledge.business.Dataset;
 import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
 import fr.paris.lutece.portal.service.file.IFileStoreServiceProvider;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ExpandWildcard;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.rest_client.RestClientTransport;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import static dev.langchain4j.model.openai.OpenAiModelName.*;
-import static java.time.Duration.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ElasticStoreService
 {
     private static IFileStoreServiceProvider fileStoreService = DataSetService.getFileStoreServiceProvider( );
-    private static final Map<Integer, EmbeddingStore<TextSegment>> embeddingStores = new HashMap<>( );
-    private static final EmbeddingModel embeddingModel = OpenAiEmbeddingModel.builder( ).apiKey( Constant.API_KEY ).modelName( TEXT_EMBEDDING_ADA_002 )
-            .timeout( ofSeconds( 600 ) ).logRequests( true ).logResponses( true ).build( );
+    private static final Map<Integer, FilterableEmbeddingStore> embeddingStores = new ConcurrentHashMap<>( );
+    private static ElasticsearchClient elasticsearchClient;
+    private static final String REBUILD_SUFFIX = "-rebuild";
+    private static final String INDEX_PREFIX = "luteceai-embeddings-";
+    private static final String FLAT_STORE_PREFIX = "dataset-";
+    private static final Pattern PATTERN_INDEX = Pattern.compile( INDEX_PREFIX + "(\\d+)(-v\\d+)?" );
+    private static final Pattern PATTERN_FLAT_STORE_FILE = Pattern.compile( FLAT_STORE_PREFIX + "(\\d+)(" + REBUILD_SUFFIX + ")?\\..+" );
 
     /**
-     * Stores a file.
-     * 
-     * @param document
-     *            The document to store.
-     * @param projectId
-     *            The ID of the project.
+     * Receives the segments of a file as it is parsed
      */
-    public static void store( DatasetFile dataSetFile, Dataset dataSet )
+    @FunctionalInterface
+    public interface SegmentConsumer
     {
-        String fileKey = dataSetFile.getFileKey( );
-        EmbeddingStore<TextSegment> projectEmbeddingStore;
+        /**
+         * Receives the next segments of a file
+         * 
+         * @param listSegments
+         *            The segments, in the order of the file
+         * @throws InterruptedException
+         *             if the thread is interrupted
+         */
+        void accept( List<TextSegment> listSegments ) throws InterruptedException;
+    }
 
-        projectEmbeddingStore = embeddingStores.computeIfAbsent( dataSet.getId( ), key -> {
-            return getElasticsearchEmbeddingStore( dataSet.getId( ) );
-        } );
+    /**
+     * Parses a file and splits it into segments according to the settings of a dataset. Each segment carries the id and the name of the file, and for
+     * PDF files the page and the section ( top level bookmark ) it comes from, so that searches can be restricted to some files. PDF files are read
+     * a few pages at a time and XLSX files a few rows at a time, and their segments handed over to the consumer before the rest is read, so that the
+     * memory used does not depend on the size of the file. Each segment also carries its hash, to recognize the segments unchanged by a new version of
+     * the file. The extracted text and the segments are kept : the segments are read back as long as the split settings of the dataset do not change,
+     * and the kept text is split again when they do, so that a file is parsed only once.
+     * 
+     * @param dataSetFile
+     *            The file.
+     * @param dataSet
+     *            The dataset of the file.
+     * @param consumer
+     *            The consumer of the segments.
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public static void split( DatasetFile dataSetFile, Dataset dataSet, SegmentConsumer consumer ) throws InterruptedException
+    {
+        String strSplitSettings = ExtractedTextService.getSplitSettings( dataSet );
+        if ( ExtractedTextService.replaySegments( dataSetFile.getId( ), strSplitSettings, consumer ) )
+        {
+            return;
+        }
+        DocumentSplitter splitter = new TokenAwareDocumentSplitter( EmbeddingModelService.getTokenizer( dataSet ), dataSet.getRecordMaxTokens( ),
+                dataSet.getRecordOverlapTokens( ) );
+        try ( ExtractedTextService.Recorder recorder = ExtractedTextService.startRecording( dataSetFile.getId( ), strSplitSettings ) )
+        {
+            SegmentConsumer hashingConsumer = segments -> {
+                for ( TextSegment segment : segments )
+                {
+                    segment.metadata( ).add( SegmentFilter.KEY_TEXT_HASH, hash( segment ) );
+                }
+                recorder.addSegments( segments );
+                consumer.accept( segments );
+            };
+            String extension = getExtension( dataSetFile.getName( ) );
+            if ( ".xlsx".equals( extension ) || !ExtractedTextService.replayText( dataSetFile.getId( ), Math.max( 1, Constant.PDF_PAGES_PER_RANGE ),
+                    documents -> hashingConsumer.accept( split( documents, dataSetFile, splitter ) ) ) )
+            {
+                parseAndSplit( dataSetFile, dataSet, extension, splitter, recorder, hashingConsumer );
+            }
+            recorder.complete( );
+            UploadSpoolService.remove( dataSetFile.getFileKey( ) );
+        }
+    }
 
-        // get file
-        InputStream file = fileStoreService.getInputStream( fileKey );
-        Document document4j = parseDocument( file, dataSetFile.getName( ) );
+    /**
+     * Parses a file from the file store and splits it, recording the text extracted by the parser.
+     * 
+     * @param dataSetFile
+     *            The file.
+     * @param dataSet
+     *            The dataset of the file.
+     * @param extension
+     *            The extension of the file.
+     * @param splitter
+     *            The splitter.
+     * @param recorder
+     *            The recorder of the extracted text.
+     * @param consumer
+     *            The consumer of the segments.
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    private static void parseAndSplit( DatasetFile dataSetFile, Dataset dataSet, String extension, DocumentSplitter splitter,
+            ExtractedTextService.Recorder recorder, SegmentConsumer consumer ) throws InterruptedException
+    {
+        // a file just uploaded is read from its spool copy, PDF and XLSX files without copying it first
+        Path spoolFile = UploadSpoolService.find( dataSetFile.getFileKey( ) ).orElse( null );
+        try
+        {
+            if ( ".pdf".equals( extension ) )
+            {
+                try ( PDDocument pdf = loadPdf( dataSetFile, spoolFile ) )
+                {
+                    splitPdf( pdf, dataSetFile, splitter, recorder, consumer );
+                }
+            }
+            else if ( ".xlsx".equals( extension ) && spoolFile != null )
+            {
+                XlsxRowChunker.split( spoolFile, dataSetFile, EmbeddingModelService.getTokenizer( dataSet ), dataSet.getRecordMaxTokens( ), consumer );
+            }
+            else
+            {
+                try ( InputStream file = ( spoolFile != null ) ? Files.newInputStream( spoolFile )
+                        : fileStoreService.getInputStream( dataSetFile.getFileKey( ) ) )
+                {
+                    if ( ".xlsx".equals( extension ) )
+                    {
+                        XlsxRowChunker.split( file, dataSetFile, EmbeddingModelService.getTokenizer( dataSet ), dataSet.getRecordMaxTokens( ),
+                                consumer );
+                    }
+                    else
+                    {
+                        List<Document> documents = parseDocument( file, dataSetFile.getName( ) );
+                        recorder.addDocuments( documents );
+                        consumer.accept( split( documents, dataSetFile, splitter ) );
+                    }
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to read the file " + dataSetFile.getName( ), e );
+        }
+    }
 
-        // Generate embeddings
-        List<TextSegment> segments = new DocumentByLineSplitter( dataSet.getRecordMaxTokens( ), 5 ).split( document4j );
+    /**
+     * Loads a PDF file, from its spool copy if any, or else from the file store. A file read from the file store is buffered in memory up to a limit,
+     * then in a temporary file.
+     * 
+     * @param dataSetFile
+     *            The file.
+     * @param spoolFile
+     *            The spool copy of the file, or null.
+     * @return The PDF document, to close by the caller.
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private static PDDocument loadPdf( DatasetFile dataSetFile, Path spoolFile ) throws IOException
+    {
+        MemoryUsageSetting memoryUsage = MemoryUsageSetting.setupMixed( Constant.PDF_MAX_MAIN_MEMORY_BYTES );
+        if ( spoolFile != null )
+        {
+            return PDDocument.load( spoolFile.toFile( ), memoryUsage );
+        }
+        try ( InputStream file = fileStoreService.getInputStream( dataSetFile.getFileKey( ) ) )
+        {
+            return PDDocument.load( file, memoryUsage );
+        }
+    }
 
-        Response<List<Embedding>> embeddings = embeddingModel.embedAll( segments );
+    private static List<TextSegment> split( List<Document> documents, DatasetFile dataSetFile, DocumentSplitter splitter )
+    {
+        List<TextSegment> segments = new ArrayList<>( );
+        for ( Document document : documents )
+        {
+            document.metadata( ).add( SegmentFilter.KEY_FILE_ID, dataSetFile.getId( ) ).add( SegmentFilter.KEY_FILE_NAME, dataSetFile.getName( ) );
+            segments.addAll( splitter.split( document ) );
+        }
+        return segments;
+    }
 
-        // Store embeddings
-        projectEmbeddingStore.addAll( embeddings.content( ), segments );
+    /**
+     * Computes the hash of a segment from its text and its section. The name of the file and the position of the segment ( index, page ) are left out :
+     * a segment of a renamed file, or moved by a new version of the file, keeps its hash and its vector, only its metadata being rewritten.
+     * 
+     * @param segment
+     *            The segment.
+     * @return The SHA-256 hash, in hexadecimal.
+     */
+    private static String hash( TextSegment segment )
+    {
+        String strSection = segment.metadata( SegmentFilter.KEY_SECTION );
+        return DigestUtils.sha256Hex( ( strSection != null ) ? segment.text( ) + '\n' + SegmentFilter.KEY_SECTION + '=' + strSection : segment.text( ) );
+    }
 
+    private static String getExtension( String fileName )
+    {
+        return fileName.substring( fileName.lastIndexOf( "." ), fileName.length( ) );
     }
 
     /**
-     * Gets the embedding sources for the relevant embeddings.
+     * Parses a file.
      * 
-     * @param relevantEmbeddings
-     *            The relevant embeddings.
-     * @return The list of embedding sources.
+     * @param inputStream
+     *            The input stream of the file.
+     * @param fileName
+     *            The name of the file.
+     * @return The parsed documents.
      */
-    private static Document parseDocument( InputStream inputStream, String fileName )
+    private static List<Document> parseDocument( InputStream inputStream, String fileName )
     {
-        String extension = fileName.substring( fileName.lastIndexOf( "." ), fileName.length( ) );
-
-        return extensionSwitcher( extension, inputStream );
+        return extensionSwitcher( getExtension( fileName ), inputStream );
     }
 
     /**
@@ -78,64 +251,487 @@ public class ElasticStoreService
      *            The extension of the file.
      * @param inputStream
      *            The input stream of the file.
-     * @return The parsed document.
+     * @return The parsed documents.
      */
-    private static Document extensionSwitcher( String extension, InputStream inputStream )
+    private static List<Document> extensionSwitcher( String extension, InputStream inputStream )
     {
         switch( extension )
         {
-            case ".pdf":
-                return new PdfDocumentParser( ).parse( inputStream );
             case ".docx":
-                return new MsOfficeDocumentParser( DocumentType.DOC ).parse( inputStream );
+                return Collections.singletonList( new MsOfficeDocumentParser( DocumentType.DOC ).parse( inputStream ) );
             case ".pptx":
-                return new MsOfficeDocumentParser( DocumentType.PPT ).parse( inputStream );
-            case ".xlsx":
-                return new MsOfficeDocumentParser( DocumentType.XLS ).parse( inputStream );
+                return Collections.singletonList( new MsOfficeDocumentParser( DocumentType.PPT ).parse( inputStream ) );
             default:
-                return new TextDocumentParser( DocumentType.TXT ).parse( inputStream );
+                return Collections.singletonList( new TextDocumentParser( DocumentType.TXT ).parse( inputStream ) );
+        }
+    }
+
+    /**
+     * Parses a PDF file page by page, and hands over the segments of each range of pages before reading the next one.
+     * 
+     * @param pdf
+     *            The PDF document.
+     * @param dataSetFile
+     *            The file.
+     * @param splitter
+     *            The splitter.
+     * @param recorder
+     *            The recorder of the extracted text.
+     * @param consumer
+     *            The consumer of the segments.
+     */
+    private static void splitPdf( PDDocument pdf, DatasetFile dataSetFile, DocumentSplitter splitter, ExtractedTextService.Recorder recorder,
+            SegmentConsumer consumer ) throws IOException, InterruptedException
+    {
+        Map<Integer, String> sections = getSectionsByPage( pdf );
+        PDFTextStripper stripper = new PDFTextStripper( );
+        int nPagesPerRange = Math.max( 1, Constant.PDF_PAGES_PER_RANGE );
+        String section = null;
+        for ( int nFirst = 1; nFirst <= pdf.getNumberOfPages( ); nFirst += nPagesPerRange )
+        {
+            List<Document> documents = new ArrayList<>( );
+            for ( int page = nFirst; page < nFirst + nPagesPerRange && page <= pdf.getNumberOfPages( ); page++ )
+            {
+                section = sections.getOrDefault( page, section );
+                stripper.setStartPage( page );
+                stripper.setEndPage( page );
+                String text = stripper.getText( pdf );
+                if ( text.trim( ).isEmpty( ) )
+                {
+                    continue;
+                }
+                Metadata metadata = Metadata.from( "document_type", DocumentType.PDF ).add( SegmentFilter.KEY_PAGE, page );
+                if ( section != null )
+                {
+                    metadata.add( SegmentFilter.KEY_SECTION, section );
+                }
+                documents.add( Document.from( text, metadata ) );
+            }
+            recorder.addDocuments( documents );
+            List<TextSegment> segments = split( documents, dataSetFile, splitter );
+            if ( !segments.isEmpty( ) )
+            {
+                consumer.accept( segments );
+            }
+        }
+    }
+
+    /**
+     * Gets the first page of each top level bookmark of a PDF file.
+     * 
+     * @param pdf
+     *            The PDF file.
+     * @return The bookmark titles by page number.
+     */
+    private static Map<Integer, String> getSectionsByPage( PDDocument pdf ) throws IOException
+    {
+        Map<Integer, String> sections = new HashMap<>( );
+        PDDocumentOutline outline = pdf.getDocumentCatalog( ).getDocumentOutline( );
+        if ( outline != null )
+        {
+            for ( PDOutlineItem item : outline.children( ) )
+            {
+                PDPage page = item.findDestinationPage( pdf );
+                if ( page != null && item.getTitle( ) != null )
+                {
+                    sections.putIfAbsent( pdf.getPages( ).indexOf( page ) + 1, item.getTitle( ).trim( ) );
+                }
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * Gets the Elasticsearch client shared by the dataset stores.
+     * 
+     * @return The Elasticsearch client.
+     */
+    private static synchronized ElasticsearchClient getElasticsearchClient( )
+    {
+        if ( elasticsearchClient == null )
+        {
+            RestClientBuilder builder = RestClient.builder( HttpHost.create( Constant.ELASTIC_URL ) );
+            if ( Constant.ELASTIC_USERNAME != null && !Constant.ELASTIC_USERNAME.isEmpty( ) )
+            {
+                BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider( );
+                credentialsProvider.setCredentials( AuthScope.ANY, new UsernamePasswordCredentials( Constant.ELASTIC_USERNAME, Constant.ELASTIC_PASSWORD ) );
+                builder.setHttpClientConfigCallback( httpClientBuilder -> httpClientBuilder.setDefaultCredentialsProvider( credentialsProvider ) );
+            }
+            elasticsearchClient = new ElasticsearchClient( new RestClientTransport( builder.build( ), new JacksonJsonpMapper( ) ) );
+        }
+        return elasticsearchClient;
+    }
+
+    /**
+     * Gets the Elasticsearch embedding store for the given dataset.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The embedding store.
+     */
+    private static ElasticsearchVectorStore getElasticsearchEmbeddingStore( Dataset dataSet )
+    {
+        String strQuantization = VectorQuantizer.normalize( dataSet.getQuantization( ) );
+        return new ElasticsearchVectorStore( getElasticsearchClient( ), getIndexAlias( dataSet ), true, strQuantization,
+                getOversample( strQuantization ), Constant.ELASTIC_KNN_NUM_CANDIDATES_FACTOR, Constant.RETRIEVAL_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * Gets the flat file embedding store for the given dataset.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The embedding store.
+     */
+    private static FlatFileEmbeddingStore getFlatFileEmbeddingStore( Dataset dataSet )
+    {
+        return getFlatFileEmbeddingStore( dataSet, getFlatStoreName( dataSet ) );
+    }
+
+    /**
+     * Gets a flat file embedding store of a dataset.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @param strName
+     *            The name of the store.
+     * @return The embedding store.
+     */
+    private static FlatFileEmbeddingStore getFlatFileEmbeddingStore( Dataset dataSet, String strName )
+    {
+        String strQuantization = VectorQuantizer.normalize( dataSet.getQuantization( ) );
+        return new FlatFileEmbeddingStore( getFlatStoreDirectory( ), strName, strQuantization, getOversample( strQuantization ), Constant.FLAT_STORE_PARALLEL_THRESHOLD );
+    }
+
+    private static Path getFlatStoreDirectory( )
+    {
+        Path directory = Paths.get( Constant.FLAT_STORE_PATH );
+        return directory.isAbsolute( ) ? directory : Paths.get( AppPathService.getWebAppPath( ), Constant.FLAT_STORE_PATH );
+    }
+
+    private static String getIndexAlias( Dataset dataSet )
+    {
+        return INDEX_PREFIX + dataSet.getId( );
+    }
+
+    private static String getFlatStoreName( Dataset dataSet )
+    {
+        return FLAT_STORE_PREFIX + dataSet.getId( );
+    }
+
+    /**
+     * Gets the number of candidates re-scored per expected result.
+     * 
+     * @param strQuantization
+     *            The quantization.
+     * @return The oversampling factor.
+     */
+    private static int getOversample( String strQuantization )
+    {
+        return VectorQuantizer.BINARY.equals( strQuantization ) ? Constant.QUANTIZATION_BINARY_OVERSAMPLE : Constant.QUANTIZATION_INT8_OVERSAMPLE;
+    }
+
+    /**
+     * Tells whether a cached store still matches the vector store and the quantization of its dataset.
+     */
+    private static boolean isUpToDate( FilterableEmbeddingStore store, Dataset dataSet )
+    {
+        String strQuantization = VectorQuantizer.normalize( dataSet.getQuantization( ) );
+        if ( store instanceof FlatFileEmbeddingStore )
+        {
+            return Dataset.VECTOR_STORE_FLAT.equals( dataSet.getVectorStore( ) ) && ( (FlatFileEmbeddingStore) store ).getQuantization( ).equals( strQuantization );
         }
+        // binary quantization falls back to int8 on Elasticsearch
+        String strEffective = VectorQuantizer.BINARY.equals( strQuantization ) ? VectorQuantizer.INT8 : strQuantization;
+        return !Dataset.VECTOR_STORE_FLAT.equals( dataSet.getVectorStore( ) ) && ( (ElasticsearchVectorStore) store ).getQuantization( ).equals( strEffective );
     }
 
     /**
-     * Gets the embedding store for the given project ID.
+     * Gets the embedding store of a dataset, according to its vector store type.
      * 
-     * @param projectId
-     *            The ID of the project.
+     * @param dataSet
+     *            The dataset.
      * @return The embedding store.
      */
-    private static ElasticsearchEmbeddingStore getElasticsearchEmbeddingStore( int dateSetId )
+    public static FilterableEmbeddingStore getEmbeddingStore( Dataset dataSet )
     {
-        // null basicauth credentials are managed by the builder
-        return ElasticsearchEmbeddingStore.builder( ).serverUrl( Constant.ELASTIC_URL ).userName( Constant.ELASTIC_USERNAME ).password( Constant.ELASTIC_PASSWORD )
-                .indexName( "luteceai-embeddings-" + dateSetId ).build( );
-    };
+        return embeddingStores.compute( dataSet.getId( ), ( key, store ) -> {
+            if ( store != null && isUpToDate( store, dataSet ) )
+            {
+                return store;
+            }
+            return Dataset.VECTOR_STORE_FLAT.equals( dataSet.getVectorStore( ) ) ? getFlatFileEmbeddingStore( dataSet ) : getElasticsearchEmbeddingStore( dataSet );
+        } );
+    }
 
     /**
-     * Gets the embedding store by project ID.
+     * Creates an empty store to rebuild the vectors of a dataset, next to its current store : a new versioned index for Elasticsearch, new files for the
+     * flat store.
      * 
-     * @param projectId
-     *            The ID of the project.
+     * @param dataSet
+     *            The dataset, with the settings of the rebuild.
      * @return The embedding store.
      */
-    public static EmbeddingStore<TextSegment> getEmbeddingStore( int dateSetId )
+    public static FilterableEmbeddingStore createRebuildStore( Dataset dataSet )
     {
-        if ( !embeddingStores.containsKey( dateSetId ) )
+        String strQuantization = VectorQuantizer.normalize( dataSet.getQuantization( ) );
+        if ( Dataset.VECTOR_STORE_FLAT.equals( dataSet.getVectorStore( ) ) )
         {
-            embeddingStores.put( dateSetId, getElasticsearchEmbeddingStore( dateSetId ) );
+            String strName = getFlatStoreName( dataSet ) + REBUILD_SUFFIX;
+            try
+            {
+                // leftovers of an interrupted rebuild
+                getFlatFileEmbeddingStore( dataSet, strName ).delete( );
+            }
+            catch( IOException e )
+            {
+                throw new UncheckedIOException( "Unable to clean the flat store " + strName, e );
+            }
+            return getFlatFileEmbeddingStore( dataSet, strName );
         }
+        return new ElasticsearchVectorStore( getElasticsearchClient( ), ElasticsearchVectorStore.newVersionName( getIndexAlias( dataSet ) ), false,
+                strQuantization, getOversample( strQuantization ), Constant.ELASTIC_KNN_NUM_CANDIDATES_FACTOR, Constant.RETRIEVAL_TIMEOUT_MILLIS );
+    }
 
-        return embeddingStores.get( dateSetId );
+    /**
+     * Replaces the store of a dataset by its rebuilt store. The searches started before keep using the previous store.
+     * 
+     * @param dataSet
+     *            The dataset, with the settings of the rebuild.
+     * @param rebuildStore
+     *            The rebuilt store.
+     */
+    public static void swapRebuildStore( Dataset dataSet, FilterableEmbeddingStore rebuildStore )
+    {
+        embeddingStores.compute( dataSet.getId( ), ( key, store ) -> {
+            if ( rebuildStore instanceof FlatFileEmbeddingStore )
+            {
+                try
+                {
+                    ( (FlatFileEmbeddingStore) rebuildStore ).moveTo( getFlatStoreName( dataSet ) );
+                }
+                catch( IOException e )
+                {
+                    throw new UncheckedIOException( "Unable to replace the flat store of the dataset " + dataSet.getId( ), e );
+                }
+                return getFlatFileEmbeddingStore( dataSet );
+            }
+            ( (ElasticsearchVectorStore) rebuildStore ).swapAlias( getIndexAlias( dataSet ) );
+            return getElasticsearchEmbeddingStore( dataSet );
+        } );
+    }
+
+    /**
+     * Drops a rebuild store that will not replace the store of its dataset.
+     * 
+     * @param rebuildStore
+     *            The rebuild store.
+     */
+    public static void dropRebuildStore( FilterableEmbeddingStore rebuildStore )
+    {
+        if ( rebuildStore instanceof FlatFileEmbeddingStore )
+        {
+            try
+            {
+                ( (FlatFileEmbeddingStore) rebuildStore ).delete( );
+            }
+            catch( IOException e )
+            {
+                throw new UncheckedIOException( "Unable to delete a flat rebuild store", e );
+            }
+        }
+        else
+        {
+            ( (ElasticsearchVectorStore) rebuildStore ).drop( );
+        }
+    }
+
+    /**
+     * Starts an ingestion into a store. An Elasticsearch index is no longer refreshed until the ingestions running into it are over.
+     * 
+     * @param store
+     *            The store.
+     */
+    public static void startBulkIngestion( FilterableEmbeddingStore store )
+    {
+        if ( store instanceof ElasticsearchVectorStore )
+        {
+            ( (ElasticsearchVectorStore) store ).startBulkIngestion( );
+        }
+    }
+
+    /**
+     * Ends an ingestion into a store. The last one running into an Elasticsearch index restores its refresh, so that the new segments become
+     * searchable.
+     * 
+     * @param store
+     *            The store.
+     */
+    public static void endBulkIngestion( FilterableEmbeddingStore store )
+    {
+        if ( store instanceof ElasticsearchVectorStore )
+        {
+            ( (ElasticsearchVectorStore) store ).endBulkIngestion( );
+        }
+    }
+
+    /**
+     * Removes the segments of a file from the store of its dataset.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @param nFileId
+     *            The file id.
+     */
+    public static void removeFile( Dataset dataSet, int nFileId )
+    {
+        IndexLifecycleService.open( dataSet );
+        getEmbeddingStore( dataSet ).removeByFileId( nFileId );
+    }
+
+    /**
+     * Drops all the stores of a dataset : its Elasticsearch indices, including a rebuild in progress, and its flat files.
+     * 
+     * @param nDatasetId
+     *            The dataset id.
+     * @param bElasticsearch
+     *            true to drop the Elasticsearch indices too.
+     */
+    public static void dropEmbeddingStores( int nDatasetId, boolean bElasticsearch )
+    {
+        embeddingStores.remove( nDatasetId );
+        try
+        {
+            if ( bElasticsearch )
+            {
+                dropIndices( nDatasetId );
+            }
+            dropFlatFiles( nDatasetId );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to drop the stores of the dataset " + nDatasetId, e );
+        }
+    }
+
+    /**
+     * Drops the store a dataset had in the vector store type it no longer uses, e.g. once a rebuild moved it to the other type.
+     * 
+     * @param nDatasetId
+     *            The dataset id.
+     * @param strVectorStore
+     *            The vector store type the dataset no longer uses.
+     */
+    public static void dropPreviousStore( int nDatasetId, String strVectorStore )
+    {
+        try
+        {
+            if ( Dataset.VECTOR_STORE_FLAT.equals( strVectorStore ) )
+            {
+                dropFlatFiles( nDatasetId );
+            }
+            else
+            {
+                dropIndices( nDatasetId );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to drop the previous store of the dataset " + nDatasetId, e );
+        }
+    }
+
+    private static void dropIndices( int nDatasetId ) throws IOException
+    {
+        ElasticsearchClient client = getElasticsearchClient( );
+        for ( String strIndex : listIndices( client ) )
+        {
+            if ( getDatasetId( PATTERN_INDEX, strIndex ) == nDatasetId )
+            {
+                client.indices( ).delete( d -> d.index( strIndex ) );
+                AppLogService.info( "Dropped the index " + strIndex + " of the dataset " + nDatasetId );
+            }
+        }
+    }
+
+    /**
+     * Lists the indices of the datasets, the closed ones included.
+     */
+    private static Set<String> listIndices( ElasticsearchClient client ) throws IOException
+    {
+        return client.indices( ).get( g -> g.index( INDEX_PREFIX + "*" ).expandWildcards( ExpandWildcard.All ) ).result( ).keySet( );
+    }
+
+    private static void dropFlatFiles( int nDatasetId ) throws IOException
+    {
+        Path directory = getFlatStoreDirectory( );
+        if ( Files.isDirectory( directory ) )
+        {
+            try ( Stream<Path> files = Files.list( directory ) )
+            {
+                for ( Path file : (Iterable<Path>) files::iterator )
+                {
+                    if ( getDatasetId( PATTERN_FLAT_STORE_FILE, file.getFileName( ).toString( ) ) == nDatasetId )
+                    {
+                        Files.deleteIfExists( file );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the datasets having a store : an Elasticsearch index or flat files.
+     * 
+     * @param bElasticsearch
+     *            true to list the Elasticsearch indices too.
+     * @return The dataset ids.
+     */
+    public static Set<Integer> getStoredDatasetIds( boolean bElasticsearch )
+    {
+        Set<Integer> setIds = new HashSet<>( );
+        try
+        {
+            if ( bElasticsearch )
+            {
+                for ( String strIndex : listIndices( getElasticsearchClient( ) ) )
+                {
+                    addDatasetId( setIds, getDatasetId( PATTERN_INDEX, strIndex ) );
+                }
+            }
+            Path directory = getFlatStoreDirectory( );
+            if ( Files.isDirectory( directory ) )
+            {
+                try ( Stream<Path> files = Files.list( directory ) )
+                {
+                    files.forEach( file -> addDatasetId( setIds, getDatasetId( PATTERN_FLAT_STORE_FILE, file.getFileName( ).toString( ) ) ) );
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to list the stores of the datasets", e );
+        }
+        return setIds;
+    }
+
+    private static void addDatasetId( Set<Integer> setIds, int nDatasetId )
+    {
+        if ( nDatasetId >= 0 )
+        {
+            setIds.add( nDatasetId );
+        }
     }
 
     /**
-     * Gets the embedding model.
+     * Gets the dataset id from the name of an index or a file.
      * 
-     * @return The embedding model.
+     * @return The dataset id, or -1 if the name does not match.
      */
-    public static EmbeddingModel getEmbeddingModel( )
+    private static int getDatasetId( Pattern pattern, String strName )
     {
-        return embeddingModel;
+        Matcher matcher = pattern.matcher( strName );
+        return matcher.matches( ) ? Integer.parseInt( matcher.group( 1 ) ) : -1;
     }
 
 }
@@ -0,0 +1,1398 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.client.config.RequestConfig;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ExpandWildcard;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.HealthStatus;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.IdsQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.PrefixQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermsQuery;
+import co.elastic.clients.elasticsearch.cat.indices.IndicesRecord;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.DeleteByQueryResponse;
+import co.elastic.clients.elasticsearch.core.ScrollResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.core.bulk.OperationType;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.indices.IndexSettings;
+import co.elastic.clients.elasticsearch.indices.IndexState;
+import co.elastic.clients.elasticsearch.indices.update_aliases.Action;
+import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
+import co.elastic.clients.json.JsonData;
+import co.elastic.clients.transport.TransportOptions;
+import co.elastic.clients.transport.rest_client.RestClientOptions;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Elasticsearch embedding store of a dataset.
+ * <p>
+ * The documents keep the fields of the langchain4j store ( text, vector, metadata ), so existing indices are still readable. Without quantization the
+ * full precision vectors are scanned by a script score query. With int8 quantization the vectors are also indexed as byte vectors in an HNSW graph,
+ * which holds a quarter of the memory of float vectors : the kNN search returns oversampled candidates that are re-scored with their full precision
+ * vector. When the quantization is enabled on an existing index, its documents are quantized in the background and the index is searched by the script
+ * score query until they all are.
+ * </p>
+ * <p>
+ * The metadata filters are translated into Elasticsearch filter clauses : they restrict the documents scored by the script or walked by the kNN search,
+ * instead of being applied to the top k results.
+ * </p>
+ * <p>
+ * The store of a dataset reads and writes through an alias : the physical index behind it is versioned, so that a rebuilt index can replace it
+ * atomically. Indices created before the aliases were introduced are used as is until their first rebuild.
+ * </p>
+ */
+public class ElasticsearchVectorStore implements FilterableEmbeddingStore
+{
+    public static final String FIELD_TEXT = "text";
+    public static final String FIELD_VECTOR = "vector";
+    public static final String FIELD_VECTOR_INT8 = "vector_int8";
+    public static final String FIELD_METADATA = "metadata";
+
+    private static final String SCRIPT_COSINE = "(cosineSimilarity(params.query_vector, 'vector') + 1.0) / 2";
+    // int8 codes of the vector scaled by its largest component, as VectorQuantizer.quantizeInt8 does, in base 64
+    private static final String SCRIPT_VECTOR_CODES = "float[] v = doc['vector'].vectorValue; float m = 0f; for (int i = 0; i < v.length; ++i) "
+            + "{ m = Math.max(m, Math.abs(v[i])); } byte[] c = new byte[v.length]; if (m > 0f) { for (int i = 0; i < v.length; ++i) "
+            + "{ c[i] = (byte) Math.round(v[i] * 127f / m); } } return Base64.getEncoder().encodeToString(c);";
+    private static final String FIELD_VECTOR_CODES = "vector_codes";
+    private static final String PARAM_QUERY_VECTOR = "query_vector";
+    private static final int MAX_NUM_CANDIDATES = 10000;
+    private static final int QUANTIZE_BATCH_SIZE = 500;
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final int SCROLL_SIZE = 1000;
+    private static final String SCROLL_KEEP_ALIVE = "1m";
+    private static final String FIELD_SHARD_DOC = "_shard_doc";
+    private static final String VERSION_SEPARATOR = "-v";
+    private static final String REFRESH_DISABLED = "-1";
+    private static final String INDEX_STATUS_CLOSED = "close";
+    private static final String INDEX_CLOSED_EXCEPTION = "index_closed_exception";
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+    private static final int BULK_OPERATION_BYTES = 200;
+    private static final int BULK_VECTOR_COMPONENT_BYTES = 12;
+    private static final int BULK_VECTOR_INT8_COMPONENT_BYTES = 17;
+    private static final Semaphore BULK_PERMITS = new Semaphore( Math.max( 1, Constant.ELASTIC_BULK_CONCURRENCY ) );
+    // ingestions running in this instance, by index name
+    private static final Map<String, BulkMode> BULK_MODES = new HashMap<>( );
+    private static final ExecutorService QUANTIZATION_EXECUTOR = Executors.newSingleThreadExecutor( runnable -> {
+        Thread thread = new Thread( runnable, "knowledge-index-quantization" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+    // indices whose existing documents are being quantized, and indices whose documents all have their byte vector
+    private static final Set<String> QUANTIZING_INDICES = ConcurrentHashMap.newKeySet( );
+    private static final Set<String> QUANTIZED_INDICES = ConcurrentHashMap.newKeySet( );
+
+    private final ElasticsearchClient _client;
+    private final ElasticsearchClient _searchClient;
+    private final ElasticsearchAsyncClient _asyncClient;
+    private final String _strIndexName;
+    private final String _strQuantization;
+    private final int _nOversample;
+    private final int _nNumCandidatesFactor;
+    private final int _nSearchTimeoutMillis;
+    private final boolean _bAlias;
+    private volatile boolean _bIndexReady;
+
+    /**
+     * Constructor
+     * 
+     * @param client
+     *            The Elasticsearch client
+     * @param strIndexName
+     *            The name of the index
+     * @param bAlias
+     *            true if the name is an alias, a versioned index being created behind it when it does not exist
+     * @param strQuantization
+     *            The quantization of the dataset
+     * @param nOversample
+     *            The number of candidates re-scored per expected result when the vectors are quantized
+     * @param nNumCandidatesFactor
+     *            The number of candidates visited per shard for each candidate returned by the kNN search
+     * @param nSearchTimeoutMillis
+     *            The time allowed to a similarity search, on the cluster and on the connection, 0 for the client defaults
+     */
+    public ElasticsearchVectorStore( ElasticsearchClient client, String strIndexName, boolean bAlias, String strQuantization, int nOversample,
+            int nNumCandidatesFactor, int nSearchTimeoutMillis )
+    {
+        String strEffective = VectorQuantizer.normalize( strQuantization );
+        if ( VectorQuantizer.BINARY.equals( strEffective ) )
+        {
+            // Elasticsearch 8.9 has no bit vectors : the closest index is the byte one
+            AppLogService.info( "Binary quantization is not available for the Elasticsearch index " + strIndexName + ", int8 is used instead" );
+            strEffective = VectorQuantizer.INT8;
+        }
+        _client = client;
+        _searchClient = withTimeout( client, nSearchTimeoutMillis );
+        _asyncClient = new ElasticsearchAsyncClient( client._transport( ), client._transportOptions( ) );
+        _strIndexName = strIndexName;
+        _bAlias = bAlias;
+        _strQuantization = strEffective;
+        _nOversample = Math.max( 1, nOversample );
+        _nNumCandidatesFactor = Math.max( 1, nNumCandidatesFactor );
+        _nSearchTimeoutMillis = Math.max( 0, nSearchTimeoutMillis );
+    }
+
+    /**
+     * Gets a client whose requests give up after the timeout, so that an index that does not answer does not hold the thread of the search.
+     */
+    private static ElasticsearchClient withTimeout( ElasticsearchClient client, int nTimeoutMillis )
+    {
+        TransportOptions options = ( client._transportOptions( ) != null ) ? client._transportOptions( ) : client._transport( ).options( );
+        if ( nTimeoutMillis <= 0 || !( options instanceof RestClientOptions ) )
+        {
+            return client;
+        }
+        RestClientOptions.Builder builder = ( (RestClientOptions) options ).toBuilder( );
+        builder.restClientRequestOptionsBuilder( ).setRequestConfig( RequestConfig.custom( ).setConnectionRequestTimeout( nTimeoutMillis )
+                .setConnectTimeout( nTimeoutMillis ).setSocketTimeout( nTimeoutMillis ).build( ) );
+        return client.withTransportOptions( builder.build( ) );
+    }
+
+    /**
+     * Returns the quantization actually applied to the index.
+     * 
+     * @return the quantization
+     */
+    public String getQuantization( )
+    {
+        return _strQuantization;
+    }
+
+    /**
+     * Returns the name of the index.
+     * 
+     * @return the index name
+     */
+    public String getIndexName( )
+    {
+        return _strIndexName;
+    }
+
+    /**
+     * Builds the name of a new physical index for an alias.
+     * 
+     * @param strAlias
+     *            The alias
+     * @return the versioned index name
+     */
+    public static String newVersionName( String strAlias )
+    {
+        return strAlias + VERSION_SEPARATOR + System.currentTimeMillis( );
+    }
+
+    /**
+     * Points an alias to the index of this store and drops the indices it pointed to. The alias is moved in a single atomic request, so searches see
+     * either the old or the new index. An index named like the alias, created before the aliases were introduced, is removed by the same request.
+     * 
+     * @param strAlias
+     *            The alias
+     */
+    public void swapAlias( String strAlias )
+    {
+        try
+        {
+            _client.indices( ).refresh( r -> r.index( _strIndexName ) );
+
+            List<String> listOldIndices = new ArrayList<>( );
+            boolean bLegacyIndex = false;
+            if ( _client.indices( ).existsAlias( e -> e.name( strAlias ) ).value( ) )
+            {
+                listOldIndices.addAll( _client.indices( ).getAlias( g -> g.name( strAlias ) ).result( ).keySet( ) );
+            }
+            else
+            {
+                bLegacyIndex = _client.indices( ).exists( e -> e.index( strAlias ) ).value( );
+            }
+
+            List<Action> listActions = new ArrayList<>( );
+            listActions.add( Action.of( a -> a.add( add -> add.index( _strIndexName ).alias( strAlias ) ) ) );
+            for ( String strOldIndex : listOldIndices )
+            {
+                listActions.add( Action.of( a -> a.remove( remove -> remove.index( strOldIndex ).alias( strAlias ) ) ) );
+            }
+            if ( bLegacyIndex )
+            {
+                listActions.add( Action.of( a -> a.removeIndex( remove -> remove.index( strAlias ) ) ) );
+            }
+            _client.indices( ).updateAliases( u -> u.actions( listActions ) );
+
+            for ( String strOldIndex : listOldIndices )
+            {
+                if ( !strOldIndex.equals( _strIndexName ) )
+                {
+                    _client.indices( ).delete( d -> d.index( strOldIndex ) );
+                }
+            }
+            AppLogService.info( "The alias " + strAlias + " now points to the index " + _strIndexName + ", dropped indices : " + listOldIndices
+                    + ( bLegacyIndex ? " " + strAlias : "" ) );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to point the alias " + strAlias + " to " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Drops the index of this store, e.g. after a failed rebuild.
+     */
+    public void drop( )
+    {
+        try
+        {
+            if ( _client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+            {
+                _client.indices( ).delete( d -> d.index( _strIndexName ) );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to drop the index " + _strIndexName, e );
+        }
+    }
+
+    @Override
+    public String add( Embedding embedding )
+    {
+        return addAll( Collections.singletonList( embedding ) ).get( 0 );
+    }
+
+    @Override
+    public void add( String id, Embedding embedding )
+    {
+        addAll( Collections.singletonList( id ), Collections.singletonList( embedding ), Collections.singletonList( null ) );
+    }
+
+    @Override
+    public String add( Embedding embedding, TextSegment textSegment )
+    {
+        return addAll( Collections.singletonList( embedding ), Collections.singletonList( textSegment ) ).get( 0 );
+    }
+
+    @Override
+    public List<String> addAll( List<Embedding> embeddings )
+    {
+        return addAll( embeddings, Collections.nCopies( embeddings.size( ), null ) );
+    }
+
+    @Override
+    public List<String> addAll( List<Embedding> embeddings, List<TextSegment> embedded )
+    {
+        List<String> ids = new ArrayList<>( embeddings.size( ) );
+        for ( int i = 0; i < embeddings.size( ); i++ )
+        {
+            ids.add( UUID.randomUUID( ).toString( ) );
+        }
+        addAll( ids, embeddings, embedded );
+        return ids;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The documents are sent in bulk requests of a bounded size, the requests of all the stores running concurrently being bounded as well.
+     * </p>
+     */
+    @Override
+    public void addAll( List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded )
+    {
+        if ( embeddings.isEmpty( ) )
+        {
+            return;
+        }
+        if ( ids.size( ) != embeddings.size( ) || embedded.size( ) != embeddings.size( ) )
+        {
+            throw new IllegalArgumentException( "ids, embeddings and segments must have the same size" );
+        }
+
+        try
+        {
+            prepareIndex( embeddings.get( 0 ).dimensions( ), true );
+            applyBulkMode( );
+
+            List<List<BulkOperation>> listRequests = new ArrayList<>( );
+            List<BulkOperation> listOperations = new ArrayList<>( );
+            long lBytes = 0;
+            for ( int i = 0; i < embeddings.size( ); i++ )
+            {
+                float [ ] vector = embeddings.get( i ).vector( );
+                long lDocumentBytes = estimateBytes( vector, embedded.get( i ) );
+                if ( !listOperations.isEmpty( ) && lBytes + lDocumentBytes > Constant.ELASTIC_BULK_MAX_BYTES )
+                {
+                    listRequests.add( listOperations );
+                    listOperations = new ArrayList<>( );
+                    lBytes = 0;
+                }
+                Map<String, Object> document = toDocument( vector, embedded.get( i ) );
+                String strId = ids.get( i );
+                listOperations.add( BulkOperation.of( op -> op.index( idx -> idx.index( _strIndexName ).id( strId ).document( document ) ) ) );
+                lBytes += lDocumentBytes;
+            }
+            listRequests.add( listOperations );
+            sendBulk( listRequests );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to index the vectors in " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Sends bulk requests, at most {@link Constant#ELASTIC_BULK_CONCURRENCY} being in flight for all the stores, and waits for all of them.
+     */
+    private void sendBulk( List<List<BulkOperation>> listRequests ) throws IOException
+    {
+        List<CompletableFuture<BulkResponse>> listResponses = new ArrayList<>( );
+        try
+        {
+            for ( List<BulkOperation> listOperations : listRequests )
+            {
+                BULK_PERMITS.acquire( );
+                CompletableFuture<BulkResponse> response;
+                try
+                {
+                    response = _asyncClient.bulk( b -> b.operations( listOperations ) );
+                }
+                catch( RuntimeException e )
+                {
+                    BULK_PERMITS.release( );
+                    throw e;
+                }
+                listResponses.add( response.whenComplete( ( r, e ) -> BULK_PERMITS.release( ) ) );
+            }
+            CompletableFuture.allOf( listResponses.toArray( new CompletableFuture<?> [ 0] ) ).exceptionally( e -> null ).get( );
+            for ( CompletableFuture<BulkResponse> response : listResponses )
+            {
+                checkErrors( response.get( ) );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new IllegalStateException( "Interrupted while indexing the vectors in " + _strIndexName, e );
+        }
+        catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause( );
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            throw ( cause instanceof RuntimeException ) ? (RuntimeException) cause : new IllegalStateException( cause );
+        }
+    }
+
+    /**
+     * Estimates the size of the bulk request body of a document : its vectors written as JSON numbers, its text and its metadata.
+     */
+    private long estimateBytes( float [ ] vector, TextSegment segment )
+    {
+        long lBytes = BULK_OPERATION_BYTES + (long) vector.length * ( isQuantized( ) ? BULK_VECTOR_INT8_COMPONENT_BYTES : BULK_VECTOR_COMPONENT_BYTES );
+        if ( segment != null )
+        {
+            lBytes += segment.text( ).length( );
+            for ( Map.Entry<String, String> entry : segment.metadata( ).asMap( ).entrySet( ) )
+            {
+                lBytes += entry.getKey( ).length( ) + String.valueOf( entry.getValue( ) ).length( ) + 6;
+            }
+        }
+        return lBytes;
+    }
+
+    /**
+     * Starts an ingestion into the index : its periodic refresh is disabled until the last ingestion running in this instance ends, the documents
+     * becoming searchable at that time. The refresh is disabled when the index is first written if it does not exist yet.
+     */
+    public void startBulkIngestion( )
+    {
+        synchronized( BULK_MODES )
+        {
+            BULK_MODES.computeIfAbsent( _strIndexName, strIndex -> new BulkMode( ) )._nIngestions++;
+        }
+        try
+        {
+            applyBulkMode( );
+        }
+        catch( IOException | ElasticsearchException e )
+        {
+            AppLogService.error( "Unable to disable the refresh of the index " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Ends an ingestion into the index. The last one running restores the refresh interval of the index, refreshes it and, if configured, force merges
+     * its segments. The errors are logged : an index left without refresh is repaired the next time it is opened.
+     */
+    public void endBulkIngestion( )
+    {
+        BulkMode mode;
+        synchronized( BULK_MODES )
+        {
+            mode = BULK_MODES.get( _strIndexName );
+            if ( mode == null || --mode._nIngestions > 0 )
+            {
+                return;
+            }
+            BULK_MODES.remove( _strIndexName );
+            if ( !mode._bApplied )
+            {
+                return;
+            }
+            try
+            {
+                String strInterval = ( mode._strPreviousInterval != null ) ? mode._strPreviousInterval : DEFAULT_REFRESH_INTERVAL;
+                _client.indices( ).putSettings( p -> p.index( _strIndexName ).settings( st -> st.refreshInterval( t -> t.time( strInterval ) ) ) );
+                _client.indices( ).refresh( r -> r.index( _strIndexName ) );
+            }
+            catch( IOException | ElasticsearchException e )
+            {
+                AppLogService.error( "Unable to restore the refresh of the index " + _strIndexName, e );
+                return;
+            }
+        }
+        if ( Constant.ELASTIC_BULK_FORCE_MERGE_SEGMENTS > 0 )
+        {
+            try
+            {
+                _client.indices( ).forcemerge( f -> f.index( _strIndexName ).maxNumSegments( (long) Constant.ELASTIC_BULK_FORCE_MERGE_SEGMENTS ) );
+            }
+            catch( IOException | ElasticsearchException e )
+            {
+                AppLogService.error( "Unable to force merge the index " + _strIndexName, e );
+            }
+        }
+    }
+
+    /**
+     * Disables the refresh of the index if an ingestion is running and the index exists.
+     */
+    private void applyBulkMode( ) throws IOException
+    {
+        if ( !Constant.ELASTIC_BULK_DISABLE_REFRESH )
+        {
+            return;
+        }
+        synchronized( BULK_MODES )
+        {
+            BulkMode mode = BULK_MODES.get( _strIndexName );
+            if ( mode == null || mode._bApplied || !_client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+            {
+                return;
+            }
+            String strInterval = getRefreshInterval( );
+            mode._strPreviousInterval = REFRESH_DISABLED.equals( strInterval ) ? null : strInterval;
+            _client.indices( ).putSettings( p -> p.index( _strIndexName ).settings( st -> st.refreshInterval( t -> t.time( REFRESH_DISABLED ) ) ) );
+            mode._bApplied = true;
+        }
+    }
+
+    /**
+     * Gets the refresh interval set on the index, or null if it uses the default one.
+     */
+    private String getRefreshInterval( ) throws IOException
+    {
+        for ( IndexState state : _client.indices( ).getSettings( g -> g.index( _strIndexName ) ).result( ).values( ) )
+        {
+            IndexSettings settings = state.settings( );
+            Time interval = ( settings == null ) ? null
+                    : ( ( settings.index( ) != null && settings.index( ).refreshInterval( ) != null ) ? settings.index( ).refreshInterval( )
+                            : settings.refreshInterval( ) );
+            if ( interval != null && interval.isTime( ) )
+            {
+                return interval.time( );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restores the refresh of an index left without refresh by an ingestion interrupted by a restart.
+     */
+    private void repairBulkMode( ) throws IOException
+    {
+        synchronized( BULK_MODES )
+        {
+            if ( BULK_MODES.containsKey( _strIndexName ) || !REFRESH_DISABLED.equals( getRefreshInterval( ) ) )
+            {
+                return;
+            }
+            _client.indices( ).putSettings( p -> p.index( _strIndexName ).settings( st -> st.refreshInterval( t -> t.time( DEFAULT_REFRESH_INTERVAL ) ) ) );
+            AppLogService.info( "Restored the refresh of the index " + _strIndexName + ", left disabled by an interrupted ingestion" );
+        }
+    }
+
+    @Override
+    public void removeAll( Collection<String> ids )
+    {
+        if ( ids.isEmpty( ) )
+        {
+            return;
+        }
+        try
+        {
+            if ( !_client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+            {
+                return;
+            }
+            List<String> listIds = new ArrayList<>( ids );
+            for ( int nStart = 0; nStart < listIds.size( ); nStart += DELETE_BATCH_SIZE )
+            {
+                BulkRequest.Builder bulk = new BulkRequest.Builder( );
+                for ( String strId : listIds.subList( nStart, Math.min( listIds.size( ), nStart + DELETE_BATCH_SIZE ) ) )
+                {
+                    bulk.operations( op -> op.delete( d -> d.index( _strIndexName ).id( strId ) ) );
+                }
+                checkErrors( _client.bulk( bulk.build( ) ) );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to delete the vectors from " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The metadata is sent as partial updates, which Elasticsearch does not write when the metadata is unchanged.
+     * </p>
+     */
+    @Override
+    public void updateMetadata( Map<String, Metadata> mapMetadata )
+    {
+        if ( mapMetadata.isEmpty( ) )
+        {
+            return;
+        }
+        List<List<BulkOperation>> listRequests = new ArrayList<>( );
+        List<BulkOperation> listOperations = new ArrayList<>( );
+        long lBytes = 0;
+        for ( Map.Entry<String, Metadata> entry : mapMetadata.entrySet( ) )
+        {
+            long lDocumentBytes = BULK_OPERATION_BYTES;
+            for ( Map.Entry<String, String> metadata : entry.getValue( ).asMap( ).entrySet( ) )
+            {
+                lDocumentBytes += metadata.getKey( ).length( ) + String.valueOf( metadata.getValue( ) ).length( ) + 6;
+            }
+            if ( !listOperations.isEmpty( ) && lBytes + lDocumentBytes > Constant.ELASTIC_BULK_MAX_BYTES )
+            {
+                listRequests.add( listOperations );
+                listOperations = new ArrayList<>( );
+                lBytes = 0;
+            }
+            Map<String, Object> partial = Collections.singletonMap( FIELD_METADATA, entry.getValue( ).asMap( ) );
+            listOperations.add( BulkOperation.of( op -> op.update( u -> u.index( _strIndexName ).id( entry.getKey( ) ).action( a -> a.doc( partial ) ) ) ) );
+            lBytes += lDocumentBytes;
+        }
+        listRequests.add( listOperations );
+        try
+        {
+            sendBulk( listRequests );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to update the metadata of the vectors in " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The documents are deleted by a query on their file id.
+     * </p>
+     */
+    @Override
+    public void removeByFileId( int nFileId )
+    {
+        Query query = TermQuery.of( t -> t.field( FIELD_METADATA + "." + SegmentFilter.KEY_FILE_ID ).value( nFileId ) )._toQuery( );
+        deleteByQuery( query );
+    }
+
+    @Override
+    public long removeOrphans( Collection<Integer> fileIds )
+    {
+        List<FieldValue> listValues = new ArrayList<>( );
+        for ( Integer nFileId : fileIds )
+        {
+            listValues.add( FieldValue.of( nFileId ) );
+        }
+        String strField = FIELD_METADATA + "." + SegmentFilter.KEY_FILE_ID;
+        Query query = BoolQuery.of( b -> b.filter( f -> f.exists( e -> e.field( strField ) ) )
+                .mustNot( m -> m.terms( t -> t.field( strField ).terms( v -> v.value( listValues ) ) ) ) )._toQuery( );
+        return deleteByQuery( query );
+    }
+
+    /**
+     * Deletes the documents matching a query. The documents updated meanwhile are deleted anyway.
+     * 
+     * @return the number of documents deleted
+     */
+    private long deleteByQuery( Query query )
+    {
+        try
+        {
+            if ( !_client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+            {
+                return 0;
+            }
+            DeleteByQueryResponse response = _client
+                    .deleteByQuery( d -> d.index( _strIndexName ).query( query ).conflicts( Conflicts.Proceed ).refresh( true ) );
+            if ( !response.failures( ).isEmpty( ) )
+            {
+                throw new IllegalStateException(
+                        "Unable to delete the vectors of " + _strIndexName + " : " + response.failures( ).get( 0 ).cause( ).reason( ) );
+            }
+            return ( response.deleted( ) != null ) ? response.deleted( ) : 0;
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to delete the vectors from " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The documents of the file are read with a scroll, only their hash being fetched.
+     * </p>
+     */
+    @Override
+    public Map<String, String> findSegmentHashes( int nFileId )
+    {
+        Map<String, String> mapHashes = new HashMap<>( );
+        String strScrollId = null;
+        try
+        {
+            if ( !_client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+            {
+                return mapHashes;
+            }
+            String strHashField = FIELD_METADATA + "." + SegmentFilter.KEY_TEXT_HASH;
+            Query query = TermQuery.of( t -> t.field( FIELD_METADATA + "." + SegmentFilter.KEY_FILE_ID ).value( nFileId ) )._toQuery( );
+            SearchResponse<ObjectNode> response = _client.search( s -> s.index( _strIndexName ).size( SCROLL_SIZE )
+                    .scroll( t -> t.time( SCROLL_KEEP_ALIVE ) ).query( query ).source( src -> src.filter( f -> f.includes( strHashField ) ) ),
+                    ObjectNode.class );
+            strScrollId = response.scrollId( );
+            List<Hit<ObjectNode>> listHits = response.hits( ).hits( );
+            while ( !listHits.isEmpty( ) )
+            {
+                for ( Hit<ObjectNode> hit : listHits )
+                {
+                    mapHashes.put( hit.id( ), hit.source( ).path( FIELD_METADATA ).path( SegmentFilter.KEY_TEXT_HASH ).asText( "" ) );
+                }
+                String strCurrentScrollId = strScrollId;
+                ScrollResponse<ObjectNode> next = _client.scroll( s -> s.scrollId( strCurrentScrollId ).scroll( t -> t.time( SCROLL_KEEP_ALIVE ) ),
+                        ObjectNode.class );
+                strScrollId = next.scrollId( );
+                listHits = next.hits( ).hits( );
+            }
+            return mapHashes;
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to read the segments of the file " + nFileId + " from " + _strIndexName, e );
+        }
+        finally
+        {
+            clearScroll( strScrollId );
+        }
+    }
+
+    private void clearScroll( String strScrollId )
+    {
+        if ( strScrollId == null )
+        {
+            return;
+        }
+        try
+        {
+            _client.clearScroll( c -> c.scrollId( strScrollId ) );
+        }
+        catch( IOException | ElasticsearchException e )
+        {
+            AppLogService.error( "Unable to clear a scroll of the index " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Tells whether the index of this store is closed.
+     * 
+     * @return true if the index exists and is closed
+     */
+    public boolean isClosed( )
+    {
+        try
+        {
+            List<String> listIndices = getPhysicalIndices( );
+            if ( listIndices.isEmpty( ) )
+            {
+                return false;
+            }
+            for ( IndicesRecord record : _client.cat( ).indices( c -> c.index( listIndices ).expandWildcards( ExpandWildcard.All ) ).valueBody( ) )
+            {
+                if ( INDEX_STATUS_CLOSED.equals( record.status( ) ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to read the state of the index " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Closes the index of this store : it keeps its data on disk but no longer uses any memory of the cluster, and can not be searched until it is
+     * opened again.
+     */
+    public void close( )
+    {
+        try
+        {
+            List<String> listIndices = getPhysicalIndices( );
+            if ( !listIndices.isEmpty( ) )
+            {
+                _client.indices( ).close( c -> c.index( listIndices ) );
+                AppLogService.info( "Closed the index " + _strIndexName );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to close the index " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Opens the index of this store, waits for its shards to be ready and warms it up with a search, so that the first search of a user does not pay
+     * for loading the index.
+     */
+    public void open( )
+    {
+        try
+        {
+            List<String> listIndices = getPhysicalIndices( );
+            if ( listIndices.isEmpty( ) )
+            {
+                return;
+            }
+            long lStart = System.currentTimeMillis( );
+            _client.indices( ).open( o -> o.index( listIndices ) );
+            _client.cluster( ).health( h -> h.index( listIndices ).waitForStatus( HealthStatus.Yellow )
+                    .timeout( t -> t.time( Constant.ELASTIC_OPEN_TIMEOUT_SECONDS + "s" ) ) );
+            try
+            {
+                warmUp( );
+            }
+            catch( IOException | ElasticsearchException e )
+            {
+                // the index is open, only its first search will be slower
+                AppLogService.error( "Unable to warm up the index " + _strIndexName, e );
+            }
+            AppLogService.info( "Opened the index " + _strIndexName + " in " + ( System.currentTimeMillis( ) - lStart ) + " ms" );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to open the index " + _strIndexName, e );
+        }
+    }
+
+    /**
+     * Searches the index with the vector of one of its documents.
+     */
+    private void warmUp( ) throws IOException
+    {
+        SearchResponse<ObjectNode> response = _client.search(
+                s -> s.index( _strIndexName ).size( 1 ).source( src -> src.filter( f -> f.includes( FIELD_VECTOR ) ) ), ObjectNode.class );
+        for ( Hit<ObjectNode> hit : response.hits( ).hits( ) )
+        {
+            float [ ] vector = toVector( hit.source( ).get( FIELD_VECTOR ) );
+            search( Embedding.from( vector ), 1, 0, SegmentFilter.none( ), false );
+        }
+    }
+
+    /**
+     * Gets the physical indices behind the name of this store.
+     */
+    private List<String> getPhysicalIndices( ) throws IOException
+    {
+        if ( _client.indices( ).existsAlias( e -> e.name( _strIndexName ) ).value( ) )
+        {
+            return new ArrayList<>( _client.indices( ).getAlias( g -> g.name( _strIndexName ) ).result( ).keySet( ) );
+        }
+        if ( _client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+        {
+            return Collections.singletonList( _strIndexName );
+        }
+        return Collections.emptyList( );
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore )
+    {
+        return findRelevant( referenceEmbedding, maxResults, minScore, SegmentFilter.none( ) );
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore, SegmentFilter filter )
+    {
+        return findRelevant( referenceEmbedding, maxResults, minScore, filter, true );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Without embeddings, the documents are read without their vector, which makes most of their size.
+     * </p>
+     */
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore, SegmentFilter filter,
+            boolean bEmbeddings )
+    {
+        try
+        {
+            if ( maxResults <= 0 )
+            {
+                return Collections.emptyList( );
+            }
+            try
+            {
+                return search( referenceEmbedding, maxResults, minScore, filter, bEmbeddings );
+            }
+            catch( ElasticsearchException e )
+            {
+                if ( !INDEX_CLOSED_EXCEPTION.equals( e.error( ).type( ) ) )
+                {
+                    throw e;
+                }
+                // closed since this instance last knew its state, e.g. by another instance
+                open( );
+                return search( referenceEmbedding, maxResults, minScore, filter, bEmbeddings );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to search the index " + _strIndexName, e );
+        }
+    }
+
+    private List<EmbeddingMatch<TextSegment>> search( Embedding referenceEmbedding, int nMaxResults, double dMinScore, SegmentFilter filter,
+            boolean bEmbeddings ) throws IOException
+    {
+        if ( !prepareIndex( referenceEmbedding.dimensions( ), false ) )
+        {
+            return Collections.emptyList( );
+        }
+        Query filterQuery = toQuery( filter );
+        if ( isQuantized( ) && QUANTIZED_INDICES.contains( _strIndexName ) )
+        {
+            return findRelevantQuantized( referenceEmbedding.vector( ), nMaxResults, dMinScore, filterQuery, bEmbeddings );
+        }
+        return findRelevantExact( referenceEmbedding.vector( ), nMaxResults, dMinScore, filterQuery, bEmbeddings );
+    }
+
+    /**
+     * Scans the full precision vectors. The vectors are read from the doc values by the script and never fetched from the source : when the
+     * embeddings are returned, e.g. to re-rank the matches, a script field encodes them as int8 codes, which keep their direction and so their cosine
+     * similarities, in a quarter of the size of their floats.
+     */
+    private List<EmbeddingMatch<TextSegment>> findRelevantExact( float [ ] query, int nMaxResults, double dMinScore, Query filterQuery,
+            boolean bEmbeddings ) throws IOException
+    {
+        JsonData queryVector = JsonData.of( query );
+        SearchResponse<ObjectNode> response = _searchClient.search( s -> {
+            withTimeout( s.index( _strIndexName ).size( nMaxResults ) )
+                    .query( q -> q.scriptScore( ss -> ss.minScore( (float) dMinScore )
+                            .query( ( filterQuery != null ) ? filterQuery : Query.of( m -> m.matchAll( a -> a ) ) )
+                            .script( sc -> sc.inline( i -> i.source( SCRIPT_COSINE ).params( PARAM_QUERY_VECTOR, queryVector ) ) ) ) )
+                    .source( src -> src.filter( f -> f.includes( FIELD_TEXT, FIELD_METADATA ) ) );
+            return bEmbeddings ? s.scriptFields( FIELD_VECTOR_CODES, f -> f.script( sc -> sc.inline( i -> i.source( SCRIPT_VECTOR_CODES ) ) ) ) : s;
+        }, ObjectNode.class );
+
+        List<EmbeddingMatch<TextSegment>> listMatches = new ArrayList<>( );
+        for ( Hit<ObjectNode> hit : response.hits( ).hits( ) )
+        {
+            listMatches.add( toMatch( hit, hit.score( ) ) );
+        }
+        return listMatches;
+    }
+
+    /**
+     * Searches the byte vectors, then re-scores the candidates with their full precision vector. The kNN search only returns the ids of the candidates,
+     * which are re-scored by the script of the exact search, so that no vector is sent back unless the embeddings are returned.
+     */
+    private List<EmbeddingMatch<TextSegment>> findRelevantQuantized( float [ ] query, int nMaxResults, double dMinScore, Query filterQuery,
+            boolean bEmbeddings ) throws IOException
+    {
+        int nCandidates = (int) Math.min( MAX_NUM_CANDIDATES, (long) nMaxResults * _nOversample );
+        int nNumCandidates = (int) Math.min( MAX_NUM_CANDIDATES, (long) nCandidates * _nNumCandidatesFactor );
+        List<Float> listCodes = toCodes( query );
+
+        SearchResponse<ObjectNode> response = _searchClient.search(
+                s -> withTimeout( s.index( _strIndexName ).size( nCandidates ) )
+                        .knn( k -> {
+                            k.field( FIELD_VECTOR_INT8 ).queryVector( listCodes ).k( nCandidates ).numCandidates( nNumCandidates );
+                            return ( filterQuery != null ) ? k.filter( filterQuery ) : k;
+                        } )
+                        .source( src -> src.fetch( false ) ),
+                ObjectNode.class );
+
+        List<String> listIds = new ArrayList<>( );
+        for ( Hit<ObjectNode> hit : response.hits( ).hits( ) )
+        {
+            listIds.add( hit.id( ) );
+        }
+        if ( listIds.isEmpty( ) )
+        {
+            return Collections.emptyList( );
+        }
+        Query candidatesQuery = IdsQuery.of( i -> i.values( listIds ) )._toQuery( );
+        return findRelevantExact( query, nMaxResults, dMinScore, candidatesQuery, bEmbeddings );
+    }
+
+    private SearchRequest.Builder withTimeout( SearchRequest.Builder search )
+    {
+        return ( _nSearchTimeoutMillis > 0 ) ? search.timeout( _nSearchTimeoutMillis + "ms" ) : search;
+    }
+
+    /**
+     * Creates the index if needed and makes sure that all its documents carry the fields of the quantization.
+     * 
+     * @param nDimension
+     *            The dimension of the vectors
+     * @param bCreate
+     *            true to create a missing index
+     * @return true if the index exists
+     */
+    private boolean prepareIndex( int nDimension, boolean bCreate ) throws IOException
+    {
+        if ( _bIndexReady )
+        {
+            return true;
+        }
+        synchronized( this )
+        {
+            if ( _bIndexReady )
+            {
+                return true;
+            }
+            if ( !_client.indices( ).exists( e -> e.index( _strIndexName ) ).value( ) )
+            {
+                if ( !bCreate )
+                {
+                    return false;
+                }
+                String strAliases = _bAlias ? "\"aliases\":{\"" + _strIndexName + "\":{}}," : "";
+                String strMapping = "{" + strAliases + "\"mappings\":{\"properties\":{\"" + FIELD_TEXT + "\":{\"type\":\"text\"}," + metadataMapping( )
+                        + "," + vectorMapping( nDimension ) + ( isQuantized( ) ? "," + int8Mapping( nDimension ) : "" ) + "}}}";
+                String strPhysicalName = _bAlias ? newVersionName( _strIndexName ) : _strIndexName;
+                _client.indices( ).create( c -> c.index( strPhysicalName ).withJson( new StringReader( strMapping ) ) );
+                if ( isQuantized( ) )
+                {
+                    QUANTIZED_INDICES.add( _strIndexName );
+                }
+                else
+                {
+                    QUANTIZED_INDICES.remove( _strIndexName );
+                }
+            }
+            else
+            {
+                if ( isQuantized( ) && !hasField( FIELD_VECTOR_INT8 ) )
+                {
+                    String strMapping = "{\"properties\":{" + int8Mapping( nDimension ) + "}}";
+                    _client.indices( ).putMapping( p -> p.index( _strIndexName ).withJson( new StringReader( strMapping ) ) );
+                }
+                addMetadataMapping( );
+                repairBulkMode( );
+                if ( isQuantized( ) )
+                {
+                    startQuantization( );
+                }
+                else
+                {
+                    // the documents indexed from now on have no byte vector
+                    QUANTIZED_INDICES.remove( _strIndexName );
+                }
+            }
+            _bIndexReady = true;
+            return true;
+        }
+    }
+
+    /**
+     * Quantizes in the background the documents indexed before the quantization was enabled, unless they all have their byte vector.
+     */
+    private void startQuantization( ) throws IOException
+    {
+        if ( QUANTIZED_INDICES.contains( _strIndexName ) || QUANTIZING_INDICES.contains( _strIndexName ) )
+        {
+            return;
+        }
+        if ( _client.count( c -> c.index( _strIndexName ).query( unquantizedQuery( ) ) ).count( ) == 0 )
+        {
+            QUANTIZED_INDICES.add( _strIndexName );
+            return;
+        }
+        if ( QUANTIZING_INDICES.add( _strIndexName ) )
+        {
+            QUANTIZATION_EXECUTOR.execute( this::quantizeExistingDocuments );
+        }
+    }
+
+    /**
+     * Adds the byte vectors to the documents indexed before the quantization was enabled. The documents are paged with search_after in a point in time,
+     * which is not affected by the updates. The index is refreshed once all the documents are updated, so that the kNN search sees them all.
+     */
+    private void quantizeExistingDocuments( )
+    {
+        String strPitId = null;
+        try
+        {
+            strPitId = _client.openPointInTime( o -> o.index( _strIndexName ).keepAlive( t -> t.time( SCROLL_KEEP_ALIVE ) ) ).id( );
+            Query query = unquantizedQuery( );
+            List<FieldValue> listSearchAfter = null;
+            long lQuantized = 0;
+            while ( true )
+            {
+                String strCurrentPitId = strPitId;
+                List<FieldValue> listAfter = listSearchAfter;
+                SearchResponse<ObjectNode> response = _client.search( s -> {
+                    s.pit( p -> p.id( strCurrentPitId ).keepAlive( t -> t.time( SCROLL_KEEP_ALIVE ) ) ).size( QUANTIZE_BATCH_SIZE ).query( query )
+                            .sort( o -> o.field( f -> f.field( FIELD_SHARD_DOC ) ) ).source( src -> src.filter( f -> f.includes( FIELD_VECTOR ) ) );
+                    return ( listAfter != null ) ? s.searchAfter( listAfter ) : s;
+                }, ObjectNode.class );
+                strPitId = ( response.pitId( ) != null ) ? response.pitId( ) : strPitId;
+                List<Hit<ObjectNode>> listHits = response.hits( ).hits( );
+                if ( listHits.isEmpty( ) )
+                {
+                    break;
+                }
+
+                BulkRequest.Builder bulk = new BulkRequest.Builder( );
+                for ( Hit<ObjectNode> hit : listHits )
+                {
+                    Map<String, Object> partial = Collections.singletonMap( FIELD_VECTOR_INT8, toCodes( toVector( hit.source( ).get( FIELD_VECTOR ) ) ) );
+                    bulk.operations( op -> op.update( u -> u.index( hit.index( ) ).id( hit.id( ) ).action( a -> a.doc( partial ) ) ) );
+                }
+                checkErrors( _client.bulk( bulk.build( ) ) );
+                lQuantized += listHits.size( );
+                listSearchAfter = listHits.get( listHits.size( ) - 1 ).sort( );
+            }
+            _client.indices( ).refresh( r -> r.index( _strIndexName ) );
+            QUANTIZED_INDICES.add( _strIndexName );
+            AppLogService.info( "Quantized " + lQuantized + " existing vectors of the index " + _strIndexName );
+        }
+        catch( IOException | RuntimeException e )
+        {
+            // the index keeps being searched by the script score query, the quantization is started again with the next store of the index
+            AppLogService.error( "Unable to quantize the existing vectors of the index " + _strIndexName, e );
+        }
+        finally
+        {
+            QUANTIZING_INDICES.remove( _strIndexName );
+            closePointInTime( strPitId );
+        }
+    }
+
+    private void closePointInTime( String strPitId )
+    {
+        if ( strPitId == null )
+        {
+            return;
+        }
+        try
+        {
+            _client.closePointInTime( c -> c.id( strPitId ) );
+        }
+        catch( IOException | ElasticsearchException e )
+        {
+            AppLogService.error( "Unable to close a point in time of the index " + _strIndexName, e );
+        }
+    }
+
+    private static Query unquantizedQuery( )
+    {
+        return Query.of( q -> q.bool( b -> b.mustNot( m -> m.exists( ex -> ex.field( FIELD_VECTOR_INT8 ) ) ) ) );
+    }
+
+    private boolean hasField( String strField ) throws IOException
+    {
+        for ( IndexMappingRecord mapping : _client.indices( ).getMapping( m -> m.index( _strIndexName ) ).result( ).values( ) )
+        {
+            if ( mapping.mappings( ).properties( ).containsKey( strField ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Maps the filterable metadata keys of an index created before they were stored.
+     */
+    private void addMetadataMapping( ) throws IOException
+    {
+        for ( IndexMappingRecord mapping : _client.indices( ).getMapping( m -> m.index( _strIndexName ) ).result( ).values( ) )
+        {
+            Property metadata = mapping.mappings( ).properties( ).get( FIELD_METADATA );
+            if ( metadata != null && metadata.isObject( ) && metadata.object( ).properties( ).containsKey( SegmentFilter.KEY_FILE_ID ) )
+            {
+                return;
+            }
+        }
+        try
+        {
+            String strMapping = "{\"properties\":{" + metadataMapping( ) + "}}";
+            _client.indices( ).putMapping( p -> p.index( _strIndexName ).withJson( new StringReader( strMapping ) ) );
+        }
+        catch( ElasticsearchException e )
+        {
+            AppLogService.error( "Unable to map the metadata of the index " + _strIndexName + ", the filters may not match", e );
+        }
+    }
+
+    private boolean isQuantized( )
+    {
+        return VectorQuantizer.INT8.equals( _strQuantization );
+    }
+
+    private static String metadataMapping( )
+    {
+        return "\"" + FIELD_METADATA + "\":{\"type\":\"object\",\"properties\":{\"" + SegmentFilter.KEY_FILE_ID + "\":{\"type\":\"integer\"},\""
+                + SegmentFilter.KEY_FILE_NAME + "\":{\"type\":\"keyword\"},\"" + SegmentFilter.KEY_PAGE + "\":{\"type\":\"integer\"},\""
+                + SegmentFilter.KEY_SECTION + "\":{\"type\":\"keyword\"},\"" + SegmentFilter.KEY_TEXT_HASH
+                + "\":{\"type\":\"keyword\",\"index\":false}}}";
+    }
+
+    private static String vectorMapping( int nDimension )
+    {
+        return "\"" + FIELD_VECTOR + "\":{\"type\":\"dense_vector\",\"dims\":" + nDimension + ",\"index\":false}";
+    }
+
+    private static String int8Mapping( int nDimension )
+    {
+        return "\"" + FIELD_VECTOR_INT8 + "\":{\"type\":\"dense_vector\",\"element_type\":\"byte\",\"dims\":" + nDimension
+                + ",\"index\":true,\"similarity\":\"cosine\"}";
+    }
+
+    private Map<String, Object> toDocument( float [ ] vector, TextSegment segment )
+    {
+        Map<String, Object> document = new HashMap<>( );
+        document.put( FIELD_VECTOR, vector );
+        if ( isQuantized( ) )
+        {
+            document.put( FIELD_VECTOR_INT8, toCodes( vector ) );
+        }
+        if ( segment != null )
+        {
+            document.put( FIELD_TEXT, segment.text( ) );
+            document.put( FIELD_METADATA, segment.metadata( ).asMap( ) );
+        }
+        return document;
+    }
+
+    /**
+     * Translates a metadata filter into a query made of filter clauses, or null if the filter is empty.
+     */
+    private static Query toQuery( SegmentFilter filter )
+    {
+        if ( filter == null || filter.isEmpty( ) )
+        {
+            return null;
+        }
+        BoolQuery.Builder bool = new BoolQuery.Builder( );
+        for ( SegmentFilter.Condition condition : filter.getConditions( ) )
+        {
+            bool.filter( toQuery( condition ) );
+        }
+        return bool.build( )._toQuery( );
+    }
+
+    private static Query toQuery( SegmentFilter.Condition condition )
+    {
+        String strField = FIELD_METADATA + "." + condition.getKey( );
+        switch( condition.getOperator( ) )
+        {
+            case EQUALS:
+                return TermQuery.of( t -> t.field( strField ).value( condition.getValue( ) ) )._toQuery( );
+            case IN:
+                List<FieldValue> listValues = new ArrayList<>( );
+                for ( String strValue : condition.getValues( ) )
+                {
+                    listValues.add( FieldValue.of( strValue ) );
+                }
+                return TermsQuery.of( t -> t.field( strField ).terms( v -> v.value( listValues ) ) )._toQuery( );
+            case PREFIX:
+                return PrefixQuery.of( p -> p.field( strField ).value( condition.getValue( ) ) )._toQuery( );
+            default:
+                JsonData value = JsonData.of( Double.parseDouble( condition.getValue( ) ) );
+                return RangeQuery.of( r -> {
+                    r.field( strField );
+                    switch( condition.getOperator( ) )
+                    {
+                        case GREATER_THAN:
+                            return r.gt( value );
+                        case GREATER_OR_EQUALS:
+                            return r.gte( value );
+                        case LESS_THAN:
+                            return r.lt( value );
+                        default:
+                            return r.lte( value );
+                    }
+                } )._toQuery( );
+        }
+    }
+
+    private static List<Float> toCodes( float [ ] vector )
+    {
+        byte [ ] codes = new byte [ vector.length];
+        VectorQuantizer.quantizeInt8( vector, codes );
+        List<Float> listCodes = new ArrayList<>( codes.length );
+        for ( byte code : codes )
+        {
+            listCodes.add( (float) code );
+        }
+        return listCodes;
+    }
+
+    private static float [ ] toVector( JsonNode node )
+    {
+        float [ ] vector = new float [ node.size( )];
+        for ( int i = 0; i < vector.length; i++ )
+        {
+            vector [i] = (float) node.get( i ).asDouble( );
+        }
+        return vector;
+    }
+
+    private static float [ ] decodeCodes( String strCodes )
+    {
+        byte [ ] codes = Base64.getDecoder( ).decode( strCodes );
+        float [ ] vector = new float [ codes.length];
+        for ( int i = 0; i < codes.length; i++ )
+        {
+            vector [i] = codes [i];
+        }
+        return vector;
+    }
+
+    private static EmbeddingMatch<TextSegment> toMatch( Hit<ObjectNode> hit, double dScore )
+    {
+        ObjectNode source = hit.source( );
+        JsonData codes = hit.fields( ).get( FIELD_VECTOR_CODES );
+        Embedding embedding = ( codes != null ) ? new Embedding( decodeCodes( codes.toJson( ).asJsonArray( ).getString( 0 ) ) ) : null;
+        TextSegment segment = null;
+        if ( source.hasNonNull( FIELD_TEXT ) )
+        {
+            Map<String, String> metadata = new HashMap<>( );
+            JsonNode nodeMetadata = source.path( FIELD_METADATA );
+            for ( Iterator<Map.Entry<String, JsonNode>> it = nodeMetadata.fields( ); it.hasNext( ); )
+            {
+                Map.Entry<String, JsonNode> entry = it.next( );
+                metadata.put( entry.getKey( ), entry.getValue( ).asText( ) );
+            }
+            segment = TextSegment.from( source.get( FIELD_TEXT ).asText( ), new Metadata( metadata ) );
+        }
+        return new EmbeddingMatch<>( dScore, hit.id( ), embedding, segment );
+    }
+
+    private void checkErrors( BulkResponse response )
+    {
+        if ( response.errors( ) )
+        {
+            for ( BulkResponseItem item : response.items( ) )
+            {
+                // a document removed meanwhile is not updated
+                if ( item.error( ) != null && !( item.operationType( ) == OperationType.Update && item.status( ) == 404 ) )
+                {
+                    throw new IllegalStateException( "Unable to update the vectors of " + _strIndexName + " : " + item.error( ).reason( ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Ingestions running into an index
+     */
+    private static final class BulkMode
+    {
+        private int _nIngestions;
+        private boolean _bApplied;
+        private String _strPreviousInterval;
+    }
+}
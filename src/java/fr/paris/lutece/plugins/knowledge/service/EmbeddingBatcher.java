@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiModelName;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Embeds the segments of a file in batches bounded in number of segments and in tokens, so that large files do not exceed the request limits of the
+ * provider. Several batches are embedded concurrently, and each one is retried with an increasing delay before giving up. The finished batches are
+ * handed over in order, so that they can be stored while the next ones are embedded.
+ */
+public final class EmbeddingBatcher
+{
+    // the request limits are the ones of the OpenAI API, counted with the tokenizer of its embedding models
+    private static final Tokenizer TOKENIZER = new OpenAiTokenizer( OpenAiModelName.GPT_3_5_TURBO );
+    private static final ExecutorService _executor = Executors.newFixedThreadPool( Math.max( 1, Constant.EMBEDDING_CONCURRENCY ), runnable -> {
+        Thread thread = new Thread( runnable, "knowledge-embedding" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+
+    /**
+     * Receives the embedded batches
+     */
+    @FunctionalInterface
+    public interface BatchConsumer
+    {
+        /**
+         * Receives an embedded batch
+         * 
+         * @param listSegments
+         *            The segments of the batch
+         * @param listEmbeddings
+         *            Their embeddings
+         * @throws InterruptedException
+         *             if the thread is interrupted
+         */
+        void accept( List<TextSegment> listSegments, List<Embedding> listEmbeddings ) throws InterruptedException;
+    }
+
+    /**
+     * Private constructor
+     */
+    private EmbeddingBatcher( )
+    {
+    }
+
+    /**
+     * Embeds segments. The consumer is called from the calling thread, once per batch, in the order of the segments. When a batch fails after all its
+     * attempts or the consumer throws an exception, the batches still running are cancelled and the exception is thrown.
+     * 
+     * @param model
+     *            The embedding model
+     * @param listSegments
+     *            The segments
+     * @param consumer
+     *            The consumer of the embedded batches
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public static void embed( EmbeddingModel model, List<TextSegment> listSegments, BatchConsumer consumer ) throws InterruptedException
+    {
+        int nWindow = Math.max( 1, Constant.EMBEDDING_CONCURRENCY );
+        Deque<Future<List<Embedding>>> queueRunning = new ArrayDeque<>( );
+        Deque<List<TextSegment>> queueBatches = new ArrayDeque<>( );
+        try
+        {
+            for ( List<TextSegment> listBatch : split( listSegments, Constant.EMBEDDING_BATCH_SIZE, Constant.EMBEDDING_BATCH_MAX_TOKENS ) )
+            {
+                if ( queueRunning.size( ) >= nWindow )
+                {
+                    consumer.accept( queueBatches.poll( ), get( queueRunning.poll( ) ) );
+                }
+                queueBatches.add( listBatch );
+                queueRunning.add( _executor.submit( ( ) -> embedBatch( model, listBatch ) ) );
+            }
+            while ( !queueRunning.isEmpty( ) )
+            {
+                consumer.accept( queueBatches.poll( ), get( queueRunning.poll( ) ) );
+            }
+        }
+        finally
+        {
+            for ( Future<List<Embedding>> future : queueRunning )
+            {
+                future.cancel( true );
+            }
+        }
+    }
+
+    /**
+     * Splits segments into batches of at most nMaxSegments segments and nMaxTokens tokens. A segment larger than nMaxTokens gets a batch of its own.
+     * 
+     * @param listSegments
+     *            The segments
+     * @param nMaxSegments
+     *            The maximum number of segments per batch
+     * @param nMaxTokens
+     *            The maximum number of tokens per batch, 0 for no limit
+     * @return The batches
+     */
+    public static List<List<TextSegment>> split( List<TextSegment> listSegments, int nMaxSegments, int nMaxTokens )
+    {
+        int nMaxSize = Math.max( 1, nMaxSegments );
+        List<List<TextSegment>> listBatches = new ArrayList<>( );
+        List<TextSegment> listBatch = new ArrayList<>( );
+        int nTokens = 0;
+        for ( TextSegment segment : listSegments )
+        {
+            int nSegmentTokens = ( nMaxTokens > 0 ) ? TOKENIZER.estimateTokenCountInText( segment.text( ) ) : 0;
+            if ( !listBatch.isEmpty( ) && ( listBatch.size( ) >= nMaxSize || ( nMaxTokens > 0 && nTokens + nSegmentTokens > nMaxTokens ) ) )
+            {
+                listBatches.add( listBatch );
+                listBatch = new ArrayList<>( );
+                nTokens = 0;
+            }
+            listBatch.add( segment );
+            nTokens += nSegmentTokens;
+        }
+        if ( !listBatch.isEmpty( ) )
+        {
+            listBatches.add( listBatch );
+        }
+        return listBatches;
+    }
+
+    /**
+     * Estimates the number of tokens of a text.
+     * 
+     * @param strText
+     *            The text
+     * @return The number of tokens
+     */
+    public static int estimateTokenCount( String strText )
+    {
+        return TOKENIZER.estimateTokenCountInText( strText );
+    }
+
+    private static List<Embedding> embedBatch( EmbeddingModel model, List<TextSegment> listBatch ) throws InterruptedException
+    {
+        int nMaxAttempts = Math.max( 1, Constant.EMBEDDING_MAX_ATTEMPTS );
+        long lDelay = Constant.EMBEDDING_RETRY_DELAY_MILLIS;
+        for ( int nAttempt = 1;; nAttempt++ )
+        {
+            try
+            {
+                return model.embedAll( listBatch ).content( );
+            }
+            catch( RuntimeException e )
+            {
+                if ( nAttempt >= nMaxAttempts )
+                {
+                    throw e;
+                }
+                AppLogService.info( "Embedding of a batch of " + listBatch.size( ) + " segments failed, attempt " + nAttempt + " : " + e.getMessage( ) );
+                TimeUnit.MILLISECONDS.sleep( lDelay );
+                lDelay *= 2;
+            }
+        }
+    }
+
+    private static List<Embedding> get( Future<List<Embedding>> future ) throws InterruptedException
+    {
+        try
+        {
+            return future.get( );
+        }
+        catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause( );
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException( "Unable to embed the segments", cause );
+        }
+    }
+}
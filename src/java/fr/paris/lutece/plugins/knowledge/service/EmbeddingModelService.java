@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiModelName;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+
+/**
+ * Provides the embedding model of each dataset. The same model must embed the segments of a dataset and the questions asked on it, so both go through
+ * this service.
+ */
+public final class EmbeddingModelService
+{
+    public static final String MODEL_ADA_002 = "text-embedding-ada-002";
+    public static final String MODEL_3_SMALL = "text-embedding-3-small";
+    public static final String MODEL_3_LARGE = "text-embedding-3-large";
+    public static final String MODEL_LOCAL_MINILM = "all-minilm-l6-v2";
+    public static final String TOKENIZER_CL100K = "cl100k_base";
+    public static final String TOKENIZER_BERT = "bert-wordpiece";
+
+    private static final Map<String, Integer> NATIVE_DIMENSIONS;
+    private static final List<String> REDUCIBLE_MODELS = Arrays.asList( MODEL_3_SMALL, MODEL_3_LARGE );
+    private static final Map<String, EmbeddingModel> models = new ConcurrentHashMap<>( );
+    private static final Map<String, EmbeddingModel> scheduledModels = new ConcurrentHashMap<>( );
+    private static final Map<String, Tokenizer> tokenizers = new ConcurrentHashMap<>( );
+
+    static
+    {
+        Map<String, Integer> mapDimensions = new HashMap<>( );
+        mapDimensions.put( MODEL_ADA_002, 1536 );
+        mapDimensions.put( MODEL_3_SMALL, 1536 );
+        mapDimensions.put( MODEL_3_LARGE, 3072 );
+        mapDimensions.put( MODEL_LOCAL_MINILM, LocalOnnxEmbeddingModel.DIMENSION );
+        NATIVE_DIMENSIONS = Collections.unmodifiableMap( mapDimensions );
+    }
+
+    /**
+     * Private constructor
+     */
+    private EmbeddingModelService( )
+    {
+    }
+
+    /**
+     * Gets the embedding model of a dataset used to embed the questions. Its requests go through the interactive lane of the embedding scheduler.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The embedding model.
+     */
+    public static EmbeddingModel getEmbeddingModel( Dataset dataSet )
+    {
+        return getScheduledModel( dataSet, EmbeddingScheduler.Lane.INTERACTIVE );
+    }
+
+    /**
+     * Gets the embedding model of a dataset used to ingest files. Its requests go through the bulk lane of the embedding scheduler, and unless the cache
+     * is disabled, the texts already embedded by the same model and dimension, in any dataset, are read from the embedding cache instead of being sent
+     * to the model.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The embedding model.
+     */
+    public static EmbeddingModel getIngestionEmbeddingModel( Dataset dataSet )
+    {
+        EmbeddingModel model = getScheduledModel( dataSet, EmbeddingScheduler.Lane.BULK );
+
+        return Constant.EMBEDDING_CACHE_ENABLED ? new CachedEmbeddingModel( model, getModelName( dataSet ) + ":" + getDimension( dataSet ) ) : model;
+    }
+
+    /**
+     * Gets the tokenizer of the embedding model of a dataset, which the segment sizes are measured with : WordPiece for the in process model, cl100k
+     * for the OpenAI models.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The tokenizer, shared by the datasets of the same models.
+     */
+    public static Tokenizer getTokenizer( Dataset dataSet )
+    {
+        return tokenizers.computeIfAbsent( getTokenizerName( dataSet ), EmbeddingModelService::buildTokenizer );
+    }
+
+    /**
+     * Gets the name of the tokenizer of the embedding model of a dataset.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The tokenizer name.
+     */
+    public static String getTokenizerName( Dataset dataSet )
+    {
+        return MODEL_LOCAL_MINILM.equals( getModelName( dataSet ) ) ? TOKENIZER_BERT : TOKENIZER_CL100K;
+    }
+
+    /**
+     * Gets the dimension of the vectors of a dataset.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @return The dimension.
+     */
+    public static int getDimension( Dataset dataSet )
+    {
+        int nNative = NATIVE_DIMENSIONS.getOrDefault( getModelName( dataSet ), Dataset.DEFAULT_EMBEDDING_DIMENSION );
+        int nDimension = dataSet.getEmbeddingDimension( );
+
+        return ( nDimension <= 0 || nDimension > nNative ) ? nNative : nDimension;
+    }
+
+    /**
+     * Checks that a model is known and can output vectors of the given dimension.
+     * 
+     * @param strModel
+     *            The model name.
+     * @param nDimension
+     *            The dimension, 0 for the native dimension of the model.
+     * @return true if the model can be used.
+     */
+    public static boolean isSupported( String strModel, int nDimension )
+    {
+        Integer nNative = NATIVE_DIMENSIONS.get( strModel );
+        if ( nNative == null )
+        {
+            return false;
+        }
+        return nDimension == 0 || nDimension == nNative || ( REDUCIBLE_MODELS.contains( strModel ) && nDimension > 0 && nDimension < nNative );
+    }
+
+    /**
+     * Gets the throughput metrics of the in process model.
+     * 
+     * @return The metrics, or null if no dataset has used the in process model yet
+     */
+    public static LocalOnnxEmbeddingModel.Metrics getLocalModelMetrics( )
+    {
+        EmbeddingModel model = models.get( MODEL_LOCAL_MINILM + ":" + LocalOnnxEmbeddingModel.DIMENSION );
+        return ( model instanceof LocalOnnxEmbeddingModel ) ? ( (LocalOnnxEmbeddingModel) model ).getMetrics( ) : null;
+    }
+
+    /**
+     * Releases the in process model, e.g. when the application stops. A model requested afterwards is loaded again.
+     */
+    public static void shutdown( )
+    {
+        EmbeddingModel model = models.remove( MODEL_LOCAL_MINILM + ":" + LocalOnnxEmbeddingModel.DIMENSION );
+        if ( model instanceof LocalOnnxEmbeddingModel )
+        {
+            ( (LocalOnnxEmbeddingModel) model ).close( );
+        }
+    }
+
+    /**
+     * Gets the model of a dataset sending its requests through a lane of the scheduler. The in process model does not use the API key shared by the
+     * lanes, and is returned as is.
+     * 
+     * @param dataSet
+     *            The dataset.
+     * @param lane
+     *            The lane.
+     * @return The embedding model.
+     */
+    private static EmbeddingModel getScheduledModel( Dataset dataSet, EmbeddingScheduler.Lane lane )
+    {
+        String strModel = getModelName( dataSet );
+        int nDimension = getDimension( dataSet );
+        String strKey = strModel + ":" + nDimension;
+        EmbeddingModel model = models.computeIfAbsent( strKey, key -> buildEmbeddingModel( strModel, nDimension ) );
+        if ( MODEL_LOCAL_MINILM.equals( strModel ) )
+        {
+            return model;
+        }
+        return scheduledModels.computeIfAbsent( lane + ":" + strKey, key -> new ScheduledEmbeddingModel( model, lane ) );
+    }
+
+    private static String getModelName( Dataset dataSet )
+    {
+        String strModel = dataSet.getEmbeddingModel( );
+        return NATIVE_DIMENSIONS.containsKey( strModel ) ? strModel : Dataset.DEFAULT_EMBEDDING_MODEL;
+    }
+
+    private static Tokenizer buildTokenizer( String strTokenizer )
+    {
+        return TOKENIZER_BERT.equals( strTokenizer ) ? LocalOnnxEmbeddingModel.createTokenizer( ) : new OpenAiTokenizer( OpenAiModelName.GPT_3_5_TURBO );
+    }
+
+    private static EmbeddingModel buildEmbeddingModel( String strModel, int nDimension )
+    {
+        if ( MODEL_LOCAL_MINILM.equals( strModel ) )
+        {
+            return new LocalOnnxEmbeddingModel( Constant.ONNX_MAX_BATCH_SIZE, Constant.ONNX_MAX_WAIT_MILLIS, Constant.ONNX_INTRA_OP_THREADS );
+        }
+
+        OpenAiEmbeddingModel.OpenAiEmbeddingModelBuilder builder = OpenAiEmbeddingModel.builder( ).apiKey( Constant.API_KEY ).modelName( strModel )
+                .timeout( Duration.ofSeconds( 600 ) );
+        if ( Constant.PROXY_HOST != null && Constant.PROXY_PORT != null )
+        {
+            builder.proxy( new Proxy( Proxy.Type.HTTP, new InetSocketAddress( Constant.PROXY_HOST, Integer.valueOf( Constant.PROXY_PORT ) ) ) );
+        }
+        EmbeddingModel model = builder.build( );
+
+        return ( nDimension < NATIVE_DIMENSIONS.get( strModel ) ) ? new ReducedDimensionEmbeddingModel( model, nDimension ) : model;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Shares the embedding requests sent to the provider between the questions of the bots ( interactive lane ) and the ingestion of the files ( bulk
+ * lane ), which use the same API key. The number of requests in flight is bounded, and the bulk lane never takes all of it : it waits while questions
+ * are waiting, runs on half of its requests for a while after each question, and its tokens per minute can be limited. Both lanes are measured
+ * separately.
+ */
+public final class EmbeddingScheduler
+{
+    /**
+     * The lanes of the requests
+     */
+    public enum Lane
+    {
+        INTERACTIVE, BULK
+    }
+
+    private static final Object LOCK = new Object( );
+    private static final Map<Lane, LaneCounters> _mapCounters = new EnumMap<>( Lane.class );
+    private static int _nRunning;
+    private static int _nBulkRunning;
+    private static int _nInteractiveRunning;
+    private static int _nInteractiveWaiting;
+    private static long _lLastInteractiveNanos = System.nanoTime( ) - TimeUnit.DAYS.toNanos( 1 );
+    private static double _dBulkTokens = Constant.EMBEDDING_BULK_MAX_TOKENS_PER_MINUTE;
+    private static long _lBulkTokensRefillNanos = System.nanoTime( );
+
+    static
+    {
+        for ( Lane lane : Lane.values( ) )
+        {
+            _mapCounters.put( lane, new LaneCounters( ) );
+        }
+    }
+
+    /**
+     * Private constructor
+     */
+    private EmbeddingScheduler( )
+    {
+    }
+
+    /**
+     * Runs an embedding request once the lane is allowed to send it
+     * 
+     * @param <T>
+     *            The type of the result
+     * @param lane
+     *            The lane of the request
+     * @param nTexts
+     *            The number of texts embedded by the request
+     * @param nTokens
+     *            The number of tokens embedded by the request
+     * @param request
+     *            The request
+     * @return The result of the request
+     * @throws IllegalStateException
+     *             if the thread is interrupted while waiting
+     */
+    public static <T> T run( Lane lane, int nTexts, int nTokens, Supplier<T> request )
+    {
+        LaneCounters counters = _mapCounters.get( lane );
+        long lStart = System.nanoTime( );
+        try
+        {
+            acquire( lane, nTokens );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new IllegalStateException( "Interrupted while waiting to send an embedding request", e );
+        }
+        long lWait = System.nanoTime( ) - lStart;
+        counters._lWaitNanos.addAndGet( lWait );
+        counters._lMaxWaitNanos.accumulateAndGet( lWait, Math::max );
+        long lRunStart = System.nanoTime( );
+        try
+        {
+            T result = request.get( );
+            counters._lTexts.addAndGet( nTexts );
+            counters._lTokens.addAndGet( nTokens );
+            return result;
+        }
+        catch( RuntimeException e )
+        {
+            counters._lErrors.incrementAndGet( );
+            throw e;
+        }
+        finally
+        {
+            counters._lRequests.incrementAndGet( );
+            counters._lRunNanos.addAndGet( System.nanoTime( ) - lRunStart );
+            release( lane );
+        }
+    }
+
+    /**
+     * Gets the metrics of a lane
+     * 
+     * @param lane
+     *            The lane
+     * @return The metrics
+     */
+    public static Metrics getMetrics( Lane lane )
+    {
+        return new Metrics( _mapCounters.get( lane ) );
+    }
+
+    private static void acquire( Lane lane, int nTokens ) throws InterruptedException
+    {
+        int nMaxRunning = Math.max( 1, Constant.EMBEDDING_SCHEDULER_MAX_REQUESTS );
+        synchronized( LOCK )
+        {
+            if ( lane == Lane.INTERACTIVE )
+            {
+                _nInteractiveWaiting++;
+                try
+                {
+                    while ( _nRunning >= nMaxRunning )
+                    {
+                        LOCK.wait( );
+                    }
+                }
+                finally
+                {
+                    _nInteractiveWaiting--;
+                }
+                _nInteractiveRunning++;
+                _lLastInteractiveNanos = System.nanoTime( );
+            }
+            else
+            {
+                for ( long lDelay = getBulkDelayMillis( nMaxRunning ); lDelay != 0; lDelay = getBulkDelayMillis( nMaxRunning ) )
+                {
+                    LOCK.wait( Math.max( 0, lDelay ) );
+                }
+                _dBulkTokens -= nTokens;
+                _nBulkRunning++;
+            }
+            _nRunning++;
+        }
+    }
+
+    /**
+     * Tells how long a bulk request must wait before being sent
+     * 
+     * @param nMaxRunning
+     *            The maximum number of requests in flight
+     * @return 0 if it can be sent now, a delay in milliseconds to check again, or -1 to wait for a request to end
+     */
+    private static long getBulkDelayMillis( int nMaxRunning )
+    {
+        int nBulkMax = Math.min( nMaxRunning, Math.max( 1, Constant.EMBEDDING_SCHEDULER_BULK_MAX_REQUESTS ) );
+        long lNow = System.nanoTime( );
+        long lYieldEnd = _lLastInteractiveNanos + TimeUnit.MILLISECONDS.toNanos( Constant.EMBEDDING_SCHEDULER_BULK_YIELD_MILLIS );
+        boolean bYielding = _nInteractiveRunning > 0 || lNow < lYieldEnd;
+        if ( _nInteractiveWaiting > 0 || _nRunning >= nMaxRunning || _nBulkRunning >= ( bYielding ? Math.max( 1, nBulkMax / 2 ) : nBulkMax ) )
+        {
+            // a request ending wakes the bulk requests up, the end of the yield period does not
+            return ( bYielding && _nInteractiveRunning == 0 ) ? Math.max( 1, TimeUnit.NANOSECONDS.toMillis( lYieldEnd - lNow ) ) : -1;
+        }
+        int nMaxTokensPerMinute = Constant.EMBEDDING_BULK_MAX_TOKENS_PER_MINUTE;
+        if ( nMaxTokensPerMinute > 0 )
+        {
+            _dBulkTokens = Math.min( nMaxTokensPerMinute, _dBulkTokens + ( lNow - _lBulkTokensRefillNanos ) * nMaxTokensPerMinute / 6e10 );
+            _lBulkTokensRefillNanos = lNow;
+            if ( _dBulkTokens <= 0 )
+            {
+                // a request larger than the budget left is sent as soon as the budget is positive, and the debt paid by the next ones
+                return Math.max( 1, (long) Math.ceil( ( 1 - _dBulkTokens ) * 60000 / nMaxTokensPerMinute ) );
+            }
+        }
+        return 0;
+    }
+
+    private static void release( Lane lane )
+    {
+        synchronized( LOCK )
+        {
+            _nRunning--;
+            if ( lane == Lane.INTERACTIVE )
+            {
+                _nInteractiveRunning--;
+                _lLastInteractiveNanos = System.nanoTime( );
+            }
+            else
+            {
+                _nBulkRunning--;
+            }
+            LOCK.notifyAll( );
+        }
+    }
+
+    /**
+     * Counters of a lane
+     */
+    private static final class LaneCounters
+    {
+        private final AtomicLong _lRequests = new AtomicLong( );
+        private final AtomicLong _lErrors = new AtomicLong( );
+        private final AtomicLong _lTexts = new AtomicLong( );
+        private final AtomicLong _lTokens = new AtomicLong( );
+        private final AtomicLong _lWaitNanos = new AtomicLong( );
+        private final AtomicLong _lMaxWaitNanos = new AtomicLong( );
+        private final AtomicLong _lRunNanos = new AtomicLong( );
+    }
+
+    /**
+     * Metrics of a lane
+     */
+    public static final class Metrics
+    {
+        private final long _lRequests;
+        private final long _lErrors;
+        private final long _lTexts;
+        private final long _lTokens;
+        private final long _lWaitNanos;
+        private final long _lMaxWaitNanos;
+        private final long _lRunNanos;
+
+        private Metrics( LaneCounters counters )
+        {
+            _lRequests = counters._lRequests.get( );
+            _lErrors = counters._lErrors.get( );
+            _lTexts = counters._lTexts.get( );
+            _lTokens = counters._lTokens.get( );
+            _lWaitNanos = counters._lWaitNanos.get( );
+            _lMaxWaitNanos = counters._lMaxWaitNanos.get( );
+            _lRunNanos = counters._lRunNanos.get( );
+        }
+
+        /**
+         * @return The number of requests sent
+         */
+        public long getRequests( )
+        {
+            return _lRequests;
+        }
+
+        /**
+         * @return The number of requests that failed
+         */
+        public long getErrors( )
+        {
+            return _lErrors;
+        }
+
+        /**
+         * @return The number of texts embedded
+         */
+        public long getTexts( )
+        {
+            return _lTexts;
+        }
+
+        /**
+         * @return The number of tokens embedded
+         */
+        public long getTokens( )
+        {
+            return _lTokens;
+        }
+
+        /**
+         * @return The average time in milliseconds a request waited before being sent
+         */
+        public double getAverageWait( )
+        {
+            return ( _lRequests == 0 ) ? 0 : _lWaitNanos / 1e6 / _lRequests;
+        }
+
+        /**
+         * @return The longest time in milliseconds a request waited before being sent
+         */
+        public double getMaxWait( )
+        {
+            return _lMaxWaitNanos / 1e6;
+        }
+
+        /**
+         * @return The average duration in milliseconds of a request
+         */
+        public double getAverageDuration( )
+        {
+            return ( _lRequests == 0 ) ? 0 : _lRunNanos / 1e6 / _lRequests;
+        }
+
+        @Override
+        public String toString( )
+        {
+            return String.format( "requests=%d errors=%d texts=%d tokens=%d avgWaitMs=%.1f maxWaitMs=%.1f avgDurationMs=%.1f", _lRequests, _lErrors, _lTexts,
+                    _lTokens, getAverageWait( ), getMaxWait( ), getAverageDuration( ) );
+        }
+    }
+}
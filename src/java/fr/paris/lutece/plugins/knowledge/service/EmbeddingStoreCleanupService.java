@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFileHome;
+import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Removes the vectors left behind by the removed files and datasets. The stores of a removed dataset are dropped in the background, and a periodic
+ * reconciliation purges the segments of the files and the stores of the datasets that no longer exist, e.g. the ones removed before their vectors were
+ * deleted or while the vector store was unavailable.
+ */
+public final class EmbeddingStoreCleanupService
+{
+    private static final ExecutorService _executor = Executors.newSingleThreadExecutor( runnable -> {
+        Thread thread = new Thread( runnable, "knowledge-store-cleanup" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+
+    /**
+     * Private constructor
+     */
+    private EmbeddingStoreCleanupService( )
+    {
+    }
+
+    /**
+     * Drops the stores of a removed dataset in the background. A failure is left to the reconciliation.
+     * 
+     * @param dataset
+     *            The removed dataset
+     */
+    public static void dropDataset( Dataset dataset )
+    {
+        boolean bElasticsearch = !Dataset.VECTOR_STORE_FLAT.equals( dataset.getVectorStore( ) );
+        _executor.execute( ( ) -> {
+            try
+            {
+                ElasticStoreService.dropEmbeddingStores( dataset.getId( ), bElasticsearch );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Unable to drop the stores of the removed dataset " + dataset.getId( ), e );
+            }
+        } );
+    }
+
+    /**
+     * Purges the segments of the removed files and the stores of the removed datasets, and the stale spool copies of the uploaded files. The datasets
+     * being ingested are skipped, since the segments of a new file may be stored before the file is listed. The Elasticsearch indices are only listed
+     * when a dataset uses Elasticsearch.
+     * 
+     * @return A summary of the purge
+     */
+    public static synchronized String reconcile( )
+    {
+        long lSegments = 0;
+        int nStores = 0;
+        Set<Integer> setDatasetIds = new HashSet<>( );
+        Set<Integer> setIngested = IngestionJobService.getDatasetsBeingIngested( );
+        boolean bElasticsearch = false;
+        for ( Dataset dataset : DatasetHome.getDatasetsList( ) )
+        {
+            setDatasetIds.add( dataset.getId( ) );
+            bElasticsearch |= !Dataset.VECTOR_STORE_FLAT.equals( dataset.getVectorStore( ) );
+            // a closed index receives no new segments
+            if ( setIngested.contains( dataset.getId( ) ) || IndexLifecycleService.isClosed( dataset ) )
+            {
+                continue;
+            }
+            List<Integer> listFileIds = new ArrayList<>( );
+            for ( DatasetFile file : DatasetFileHome.getDatasetFilesListByDataSetId( dataset.getId( ) ) )
+            {
+                listFileIds.add( file.getId( ) );
+            }
+            try
+            {
+                lSegments += ElasticStoreService.getEmbeddingStore( dataset ).removeOrphans( listFileIds );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Unable to purge the orphan segments of the dataset " + dataset.getId( ), e );
+            }
+        }
+
+        for ( int nDatasetId : ElasticStoreService.getStoredDatasetIds( bElasticsearch ) )
+        {
+            if ( !setDatasetIds.contains( nDatasetId ) )
+            {
+                ElasticStoreService.dropEmbeddingStores( nDatasetId, bElasticsearch );
+                nStores++;
+            }
+        }
+        int nSpoolFiles = 0;
+        try
+        {
+            nSpoolFiles = UploadSpoolService.purge( );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Unable to purge the spool files of the uploads", e );
+        }
+        if ( lSegments > 0 || nStores > 0 || nSpoolFiles > 0 )
+        {
+            AppLogService.info( "Vector store reconciliation : " + lSegments + " orphan segments removed, " + nStores + " dataset stores dropped, "
+                    + nSpoolFiles + " stale spool files removed" );
+        }
+        return lSegments + " orphan segment(s) removed, " + nStores + " dataset store(s) dropped, " + nSpoolFiles + " spool file(s) removed";
+    }
+}
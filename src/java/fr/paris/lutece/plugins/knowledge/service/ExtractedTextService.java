@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFileText;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFileTextHome;
+import fr.paris.lutece.plugins.knowledge.business.DatasetSegment;
+import fr.paris.lutece.plugins.knowledge.business.DatasetSegmentHome;
+
+/**
+ * Keeps the text extracted from the dataset files and the segments produced from it, so that a file is parsed only once. The segments are read back
+ * as long as the splitter settings of the dataset do not change ( e.g. to embed them with another model ), and the text is split again when they do.
+ * The text of a file is kept compressed, as the documents handed over by its parser.
+ */
+public final class ExtractedTextService
+{
+    // v2 : the segment hash only covers the text and the section
+    private static final String SPLIT_SETTINGS_VERSION = "v2";
+    private static final int SEGMENTS_PER_READ = 500;
+    private static final int END_OF_TEXT = -1;
+    private static final ObjectMapper _mapper = new ObjectMapper( );
+    private static final TypeReference<Map<String, String>> TYPE_METADATA = new TypeReference<Map<String, String>>( )
+    {
+    };
+    private static final Set<Integer> _setRecordingFiles = ConcurrentHashMap.newKeySet( );
+
+    /**
+     * Receives the documents read back from the text of a file
+     */
+    @FunctionalInterface
+    public interface DocumentConsumer
+    {
+        /**
+         * Receives the next documents of a file
+         * 
+         * @param listDocuments
+         *            The documents, in the order of the file
+         * @throws InterruptedException
+         *             if the thread is interrupted
+         */
+        void accept( List<Document> listDocuments ) throws InterruptedException;
+    }
+
+    /**
+     * Private constructor
+     */
+    private ExtractedTextService( )
+    {
+    }
+
+    /**
+     * Gets the settings of a dataset which the segments depend on : the segment sizes and the tokenizer of the embedding model they are measured with
+     * 
+     * @param dataSet
+     *            The dataset
+     * @return The settings, as stored with the segments
+     */
+    public static String getSplitSettings( Dataset dataSet )
+    {
+        return SPLIT_SETTINGS_VERSION + ":" + EmbeddingModelService.getTokenizerName( dataSet ) + ":" + dataSet.getRecordMaxTokens( ) + ":"
+                + dataSet.getRecordOverlapTokens( );
+    }
+
+    /**
+     * Hands over the stored segments of a file, if they were produced with the given settings
+     * 
+     * @param nDatasetFileId
+     *            The file id
+     * @param strSplitSettings
+     *            The settings of the splitter
+     * @param consumer
+     *            The consumer of the segments
+     * @return true if the segments were stored, false if the file must be split
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public static boolean replaySegments( int nDatasetFileId, String strSplitSettings, ElasticStoreService.SegmentConsumer consumer )
+            throws InterruptedException
+    {
+        Optional<DatasetFileText> optText = DatasetFileTextHome.findByDatasetFileId( nDatasetFileId );
+        if ( !optText.isPresent( ) || !strSplitSettings.equals( optText.get( ).getSplitSettings( ) ) )
+        {
+            return false;
+        }
+        for ( int nFrom = 0; nFrom < optText.get( ).getSegmentCount( ); nFrom += SEGMENTS_PER_READ )
+        {
+            List<TextSegment> listSegments = new ArrayList<>( );
+            for ( DatasetSegment segment : DatasetSegmentHome.findByDatasetFileId( nDatasetFileId, nFrom, SEGMENTS_PER_READ ) )
+            {
+                listSegments.add( TextSegment.from( segment.getText( ), new Metadata( readMetadata( segment.getMetadata( ) ) ) ) );
+            }
+            if ( !listSegments.isEmpty( ) )
+            {
+                consumer.accept( listSegments );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands over the stored text of a file, as the documents of its parser, a few at a time
+     * 
+     * @param nDatasetFileId
+     *            The file id
+     * @param nDocumentsPerCall
+     *            The number of documents handed over together
+     * @param consumer
+     *            The consumer of the documents
+     * @return true if the text was stored, false if the file must be parsed
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public static boolean replayText( int nDatasetFileId, int nDocumentsPerCall, DocumentConsumer consumer ) throws InterruptedException
+    {
+        byte [ ] content = DatasetFileTextHome.findContent( nDatasetFileId );
+        if ( content == null )
+        {
+            return false;
+        }
+        try ( DataInputStream in = new DataInputStream( new GZIPInputStream( new ByteArrayInputStream( content ) ) ) )
+        {
+            List<Document> listDocuments = new ArrayList<>( );
+            for ( int nEntries = in.readInt( ); nEntries != END_OF_TEXT; nEntries = in.readInt( ) )
+            {
+                Metadata metadata = new Metadata( );
+                for ( int i = 0; i < nEntries; i++ )
+                {
+                    metadata.add( in.readUTF( ), in.readUTF( ) );
+                }
+                byte [ ] text = new byte [ in.readInt( )];
+                in.readFully( text );
+                listDocuments.add( Document.from( new String( text, StandardCharsets.UTF_8 ), metadata ) );
+                if ( listDocuments.size( ) >= nDocumentsPerCall )
+                {
+                    consumer.accept( listDocuments );
+                    listDocuments = new ArrayList<>( );
+                }
+            }
+            if ( !listDocuments.isEmpty( ) )
+            {
+                consumer.accept( listDocuments );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to read the text of the file " + nDatasetFileId, e );
+        }
+        return true;
+    }
+
+    /**
+     * Starts recording the text and the segments of a file as it is split. The segments stored before are discarded. If the file is already being
+     * recorded by another thread, the returned recorder ignores what it receives.
+     * 
+     * @param nDatasetFileId
+     *            The file id
+     * @param strSplitSettings
+     *            The settings of the splitter
+     * @return The recorder, to close once the file is split
+     */
+    public static Recorder startRecording( int nDatasetFileId, String strSplitSettings )
+    {
+        return new Recorder( nDatasetFileId, strSplitSettings );
+    }
+
+    /**
+     * Removes the text and the segments of a file, e.g. when it is deleted or replaced by a new version
+     * 
+     * @param nDatasetFileId
+     *            The file id
+     */
+    public static void remove( int nDatasetFileId )
+    {
+        DatasetFileTextHome.remove( nDatasetFileId );
+        DatasetSegmentHome.removeByDatasetFileId( nDatasetFileId );
+    }
+
+    private static Map<String, String> readMetadata( String strMetadata )
+    {
+        try
+        {
+            return _mapper.readValue( strMetadata, TYPE_METADATA );
+        }
+        catch( JsonProcessingException e )
+        {
+            throw new IllegalStateException( "Invalid segment metadata", e );
+        }
+    }
+
+    private static String writeMetadata( Metadata metadata )
+    {
+        try
+        {
+            return _mapper.writeValueAsString( metadata.asMap( ) );
+        }
+        catch( JsonProcessingException e )
+        {
+            throw new IllegalStateException( "Invalid segment metadata", e );
+        }
+    }
+
+    /**
+     * Records the text and the segments of a file while it is split. They are stored as complete only by {@link #complete()} : the segments of a
+     * split that failed are discarded on close.
+     */
+    public static final class Recorder implements AutoCloseable
+    {
+        private final int _nDatasetFileId;
+        private final String _strSplitSettings;
+        private final boolean _bActive;
+        private ByteArrayOutputStream _bufferText;
+        private DataOutputStream _outText;
+        private int _nSegmentCount;
+        private boolean _bComplete;
+
+        private Recorder( int nDatasetFileId, String strSplitSettings )
+        {
+            _nDatasetFileId = nDatasetFileId;
+            _strSplitSettings = strSplitSettings;
+            _bActive = _setRecordingFiles.add( nDatasetFileId );
+            if ( _bActive )
+            {
+                DatasetFileTextHome.updateSplitSettings( nDatasetFileId, "", 0 );
+                DatasetSegmentHome.removeByDatasetFileId( nDatasetFileId );
+            }
+        }
+
+        /**
+         * Records documents of the file, as they come out of the parser
+         * 
+         * @param listDocuments
+         *            The documents
+         */
+        public void addDocuments( List<Document> listDocuments )
+        {
+            if ( !_bActive )
+            {
+                return;
+            }
+            try
+            {
+                if ( _outText == null )
+                {
+                    _bufferText = new ByteArrayOutputStream( );
+                    _outText = new DataOutputStream( new GZIPOutputStream( _bufferText ) );
+                }
+                for ( Document document : listDocuments )
+                {
+                    Map<String, String> mapMetadata = document.metadata( ).asMap( );
+                    _outText.writeInt( mapMetadata.size( ) );
+                    for ( Map.Entry<String, String> entry : mapMetadata.entrySet( ) )
+                    {
+                        _outText.writeUTF( entry.getKey( ) );
+                        _outText.writeUTF( entry.getValue( ) );
+                    }
+                    byte [ ] text = document.text( ).getBytes( StandardCharsets.UTF_8 );
+                    _outText.writeInt( text.length );
+                    _outText.write( text );
+                }
+            }
+            catch( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+        }
+
+        /**
+         * Records segments of the file, in the order of the file
+         * 
+         * @param listSegments
+         *            The segments, with their hash
+         */
+        public void addSegments( List<TextSegment> listSegments )
+        {
+            if ( !_bActive )
+            {
+                return;
+            }
+            List<DatasetSegment> listStored = new ArrayList<>( listSegments.size( ) );
+            for ( TextSegment textSegment : listSegments )
+            {
+                DatasetSegment segment = new DatasetSegment( );
+                segment.setDatasetFileId( _nDatasetFileId );
+                segment.setSegmentIndex( _nSegmentCount++ );
+                segment.setTextHash( textSegment.metadata( ).get( SegmentFilter.KEY_TEXT_HASH ) );
+                segment.setTokenCount( EmbeddingBatcher.estimateTokenCount( textSegment.text( ) ) );
+                segment.setText( textSegment.text( ) );
+                segment.setMetadata( writeMetadata( textSegment.metadata( ) ) );
+                listStored.add( segment );
+            }
+            DatasetSegmentHome.create( listStored );
+        }
+
+        /**
+         * Stores the recorded text, and marks the recorded segments as complete for the settings of the splitter
+         */
+        public void complete( )
+        {
+            if ( !_bActive )
+            {
+                return;
+            }
+            if ( _outText != null )
+            {
+                try
+                {
+                    _outText.writeInt( END_OF_TEXT );
+                    _outText.close( );
+                }
+                catch( IOException e )
+                {
+                    throw new UncheckedIOException( e );
+                }
+                DatasetFileTextHome.remove( _nDatasetFileId );
+                createText( _bufferText.toByteArray( ) );
+            }
+            else
+                if ( DatasetFileTextHome.findByDatasetFileId( _nDatasetFileId ).isPresent( ) )
+                {
+                    DatasetFileTextHome.updateSplitSettings( _nDatasetFileId, _strSplitSettings, _nSegmentCount );
+                }
+                else
+                {
+                    // the text of the files split while they are read ( XLSX ) is not kept
+                    createText( null );
+                }
+            _bComplete = true;
+        }
+
+        private void createText( byte [ ] content )
+        {
+            DatasetFileText text = new DatasetFileText( );
+            text.setDatasetFileId( _nDatasetFileId );
+            text.setContent( content );
+            text.setSplitSettings( _strSplitSettings );
+            text.setSegmentCount( _nSegmentCount );
+            DatasetFileTextHome.create( text );
+        }
+
+        /**
+         * Discards the recorded segments if the split did not complete, and lets other threads record the file
+         */
+        @Override
+        public void close( )
+        {
+            if ( _bActive )
+            {
+                try
+                {
+                    if ( !_bComplete )
+                    {
+                        DatasetSegmentHome.removeByDatasetFileId( _nDatasetFileId );
+                    }
+                }
+                finally
+                {
+                    _setRecordingFiles.remove( _nDatasetFileId );
+                }
+            }
+        }
+    }
+}
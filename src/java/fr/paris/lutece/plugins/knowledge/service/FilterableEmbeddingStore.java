@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+
+/**
+ * Embedding store able to restrict a search to the segments meeting a metadata filter. The filter is applied before ranking, so the requested number
+ * of results is returned even when most segments are filtered out.
+ */
+public interface FilterableEmbeddingStore extends EmbeddingStore<TextSegment>
+{
+    /**
+     * Finds the segments most similar to a reference embedding among the ones meeting a filter.
+     * 
+     * @param referenceEmbedding
+     *            The reference embedding
+     * @param maxResults
+     *            The maximum number of results
+     * @param minScore
+     *            The minimum score, between 0 and 1
+     * @param filter
+     *            The metadata filter
+     * @return The matches, best first
+     */
+    List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore, SegmentFilter filter );
+
+    /**
+     * Finds the segments most similar to a reference embedding among the ones meeting a filter, with or without their embeddings.
+     * 
+     * @param referenceEmbedding
+     *            The reference embedding
+     * @param maxResults
+     *            The maximum number of results
+     * @param minScore
+     *            The minimum score, between 0 and 1
+     * @param filter
+     *            The metadata filter
+     * @param bEmbeddings
+     *            true if the embeddings of the matches are needed, e.g. to re-rank them. Otherwise the store may leave them out. The store may return
+     *            them scaled or quantized, only their cosine similarities being preserved
+     * @return The matches, best first
+     */
+    List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore, SegmentFilter filter, boolean bEmbeddings );
+
+    /**
+     * Indexes vectors and their segments under the given ids.
+     * 
+     * @param ids
+     *            The ids of the vectors
+     * @param embeddings
+     *            The vectors
+     * @param embedded
+     *            The segments, or null elements for vectors without segment
+     */
+    void addAll( List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded );
+
+    /**
+     * Removes vectors. Unknown ids are ignored.
+     * 
+     * @param ids
+     *            The ids of the vectors
+     */
+    void removeAll( Collection<String> ids );
+
+    /**
+     * Finds the segments indexed for a dataset file.
+     * 
+     * @param nFileId
+     *            The id of the dataset file
+     * @return the hash of each segment, by id. The hash is empty for the segments indexed before the hashes were stored
+     */
+    Map<String, String> findSegmentHashes( int nFileId );
+
+    /**
+     * Replaces the metadata of stored segments, e.g. the name of a renamed file or the page of a segment moved by a new version of the file. The
+     * segments whose metadata is unchanged are left as they are. Unknown ids are ignored.
+     * 
+     * @param mapMetadata
+     *            The new metadata of the segments, by id
+     */
+    void updateMetadata( Map<String, Metadata> mapMetadata );
+
+    /**
+     * Removes the segments of a dataset file.
+     * 
+     * @param nFileId
+     *            The id of the dataset file
+     */
+    void removeByFileId( int nFileId );
+
+    /**
+     * Removes the segments of the files missing from a list, e.g. the segments left by the files deleted before their vectors were removed. The
+     * segments without file id are kept.
+     * 
+     * @param fileIds
+     *            The ids of the files of the dataset
+     * @return the number of segments removed
+     */
+    long removeOrphans( Collection<Integer> fileIds );
+}
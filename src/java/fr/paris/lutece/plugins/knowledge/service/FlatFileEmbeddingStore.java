@@ -0,0 +1,1353 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+/**
+ * Embedding store keeping the vectors of a dataset in a memory-mapped flat file, searched by an exact scan.
+ * <p>
+ * The vector file starts with a header page followed by contiguous, L2-normalized float32 vectors. The vectors are mapped in page-aligned regions and stay off
+ * heap. The ids and segments are kept in an append-only sidecar file, which is mapped as well : only the offsets of its records stay on heap, in an array
+ * shared by the snapshots and grown by doubling. Relevance scores use the same ( cosine + 1 ) / 2 scale as the Elasticsearch store.
+ * </p>
+ * <p>
+ * With int8 or binary quantization, a code file is written next to the vectors and the scan only reads the codes. The best candidates are then re-scored
+ * with their full precision vectors, so only the pages of these candidates are read from the vector file.
+ * </p>
+ * <p>
+ * Removed vectors are not erased : their index is appended to a tombstone file and they are skipped by the scan. A rebuild of the dataset index compacts
+ * the files.
+ * </p>
+ */
+public class FlatFileEmbeddingStore implements FilterableEmbeddingStore
+{
+    private static final String EXTENSION_VECTORS = ".vec";
+    private static final String EXTENSION_SEGMENTS = ".seg";
+    private static final String EXTENSION_CODES = ".q";
+    private static final String EXTENSION_DELETED = ".del";
+    private static final int PAGE_SIZE = 4096;
+    private static final int MAGIC = 0x4C4B5646;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_OFFSET_DIMENSION = 8;
+    private static final int HEADER_OFFSET_COUNT = 12;
+    private static final long MAX_REGION_BYTES = 1L << 30;
+    private static final int MAX_SEGMENT_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final int REGION_ALIGNMENT = 1024;
+    private static final int WRITE_CHUNK_VECTORS = 256;
+    private static final int LEAF_SIZE = 4096;
+
+    private final Path _vectorFile;
+    private final Path _segmentFile;
+    private final Path _codeFile;
+    private final Path _deletedFile;
+    private final String _strQuantization;
+    private final int _nOversample;
+    private final int _nParallelThreshold;
+    private volatile Snapshot _snapshot;
+
+    /**
+     * Opens ( or prepares ) the flat store named strName in the given directory.
+     * 
+     * @param directory
+     *            The directory holding the store files
+     * @param strName
+     *            The name of the store
+     * @param strQuantization
+     *            The quantization of the scanned codes
+     * @param nOversample
+     *            The number of candidates re-scored per expected result when the codes are quantized
+     * @param nParallelThreshold
+     *            The number of vectors above which a search is split across the fork-join pool
+     */
+    public FlatFileEmbeddingStore( Path directory, String strName, String strQuantization, int nOversample, int nParallelThreshold )
+    {
+        _strQuantization = VectorQuantizer.normalize( strQuantization );
+        _vectorFile = directory.resolve( strName + EXTENSION_VECTORS );
+        _segmentFile = directory.resolve( strName + EXTENSION_SEGMENTS );
+        _codeFile = directory.resolve( strName + EXTENSION_CODES + _strQuantization );
+        _deletedFile = directory.resolve( strName + EXTENSION_DELETED );
+        _nOversample = Math.max( 1, nOversample );
+        _nParallelThreshold = nParallelThreshold;
+
+        try
+        {
+            Files.createDirectories( directory );
+            _snapshot = load( );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to open the flat vector store " + _vectorFile, e );
+        }
+    }
+
+    @Override
+    public String add( Embedding embedding )
+    {
+        return addAll( Collections.singletonList( embedding ) ).get( 0 );
+    }
+
+    @Override
+    public void add( String id, Embedding embedding )
+    {
+        addAll( Collections.singletonList( id ), Collections.singletonList( embedding ), Collections.singletonList( null ) );
+    }
+
+    @Override
+    public String add( Embedding embedding, TextSegment textSegment )
+    {
+        return addAll( Collections.singletonList( embedding ), Collections.singletonList( textSegment ) ).get( 0 );
+    }
+
+    @Override
+    public List<String> addAll( List<Embedding> embeddings )
+    {
+        return addAll( embeddings, Collections.nCopies( embeddings.size( ), null ) );
+    }
+
+    @Override
+    public List<String> addAll( List<Embedding> embeddings, List<TextSegment> embedded )
+    {
+        List<String> ids = new ArrayList<>( embeddings.size( ) );
+        for ( int i = 0; i < embeddings.size( ); i++ )
+        {
+            ids.add( UUID.randomUUID( ).toString( ) );
+        }
+        addAll( ids, embeddings, embedded );
+        return ids;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The vectors are appended to the store. The header count is only updated once both files are flushed, so an interrupted write is ignored on the next
+     * load.
+     * </p>
+     */
+    @Override
+    public synchronized void addAll( List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded )
+    {
+        if ( embeddings.isEmpty( ) )
+        {
+            return;
+        }
+        if ( ids.size( ) != embeddings.size( ) || embedded.size( ) != embeddings.size( ) )
+        {
+            throw new IllegalArgumentException( "ids, embeddings and segments must have the same size" );
+        }
+
+        Snapshot snapshot = _snapshot;
+        int nDimension = ( snapshot.dimension > 0 ) ? snapshot.dimension : embeddings.get( 0 ).dimensions( );
+
+        try ( FileChannel channel = FileChannel.open( _vectorFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            if ( snapshot.dimension == 0 )
+            {
+                writeHeader( channel, nDimension );
+            }
+
+            long lPosition = vectorOffset( snapshot.count, nDimension );
+            ByteBuffer buffer = ByteBuffer.allocate( WRITE_CHUNK_VECTORS * nDimension * Float.BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+            List<float [ ]> listVectors = new ArrayList<>( embeddings.size( ) );
+            for ( Embedding embedding : embeddings )
+            {
+                if ( embedding.dimensions( ) != nDimension )
+                {
+                    throw new IllegalArgumentException( "Expected vectors of dimension " + nDimension + " but got " + embedding.dimensions( ) );
+                }
+                float [ ] vector = normalize( embedding.vector( ) );
+                listVectors.add( vector );
+                for ( float f : vector )
+                {
+                    buffer.putFloat( f );
+                }
+                if ( !buffer.hasRemaining( ) )
+                {
+                    lPosition += flush( channel, buffer, lPosition );
+                }
+            }
+            flush( channel, buffer, lPosition );
+            channel.force( false );
+
+            if ( isQuantized( ) )
+            {
+                try ( FileChannel codes = FileChannel.open( _codeFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) )
+                {
+                    writeCodes( codes, listVectors, (long) snapshot.count * codeRecordBytes( nDimension ) );
+                    codes.force( false );
+                }
+            }
+
+            int nCount = snapshot.count + embeddings.size( );
+            long [ ] offsets = ( snapshot.segmentOffsets.length >= nCount ) ? snapshot.segmentOffsets
+                    : Arrays.copyOf( snapshot.segmentOffsets, Math.max( nCount, 2 * snapshot.segmentOffsets.length ) );
+            long lSegmentBytes = appendSegments( ids, embedded, snapshot.segmentBytes, offsets, snapshot.count );
+
+            ByteBuffer count = ByteBuffer.allocate( Integer.BYTES ).order( ByteOrder.LITTLE_ENDIAN ).putInt( nCount );
+            count.flip( );
+            channel.write( count, HEADER_OFFSET_COUNT );
+            channel.force( false );
+
+            _snapshot = new Snapshot( nDimension, nCount, mapVectors( channel, nDimension, nCount, snapshot ), mapCodes( nDimension, nCount, snapshot ),
+                    mapSegments( lSegmentBytes, snapshot ), offsets, lSegmentBytes, snapshot.deleted );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to write to the flat vector store " + _vectorFile, e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The indices of the removed vectors are appended to the tombstone file.
+     * </p>
+     */
+    @Override
+    public synchronized void removeAll( Collection<String> ids )
+    {
+        Snapshot snapshot = _snapshot;
+        Set<String> setIds = new HashSet<>( ids );
+        List<Integer> listIndices = new ArrayList<>( );
+        for ( int i = 0; i < snapshot.count && listIndices.size( ) < setIds.size( ); i++ )
+        {
+            if ( !snapshot.deleted.get( i ) && setIds.contains( snapshot.id( i ) ) )
+            {
+                listIndices.add( i );
+            }
+        }
+        removeIndices( listIndices );
+    }
+
+    /**
+     * Appends the indices of removed vectors to the tombstone file.
+     */
+    private void removeIndices( List<Integer> listIndices )
+    {
+        if ( listIndices.isEmpty( ) )
+        {
+            return;
+        }
+        Snapshot snapshot = _snapshot;
+        BitSet deleted = (BitSet) snapshot.deleted.clone( );
+        for ( int nIndex : listIndices )
+        {
+            deleted.set( nIndex );
+        }
+
+        try ( FileChannel channel = FileChannel.open( _deletedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND ) )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( listIndices.size( ) * Integer.BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+            for ( int nIndex : listIndices )
+            {
+                buffer.putInt( nIndex );
+            }
+            buffer.flip( );
+            while ( buffer.hasRemaining( ) )
+            {
+                channel.write( buffer );
+            }
+            channel.force( false );
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to remove vectors from the flat vector store " + _vectorFile, e );
+        }
+        _snapshot = new Snapshot( snapshot.dimension, snapshot.count, snapshot.vectorRegions, snapshot.codeRegions, snapshot.segmentRegions,
+                snapshot.segmentOffsets, snapshot.segmentBytes, deleted );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The sidecar records are written once, so a segment whose metadata changes is appended again with its vector and its previous copy removed.
+     * </p>
+     */
+    @Override
+    public synchronized void updateMetadata( Map<String, Metadata> mapMetadata )
+    {
+        Snapshot snapshot = _snapshot;
+        List<Integer> listIndices = new ArrayList<>( );
+        List<String> ids = new ArrayList<>( );
+        List<Embedding> embeddings = new ArrayList<>( );
+        List<TextSegment> segments = new ArrayList<>( );
+        int nFound = 0;
+        for ( int i = 0; i < snapshot.count && nFound < mapMetadata.size( ); i++ )
+        {
+            Metadata metadata = snapshot.deleted.get( i ) ? null : mapMetadata.get( snapshot.id( i ) );
+            if ( metadata == null )
+            {
+                continue;
+            }
+            nFound++;
+            TextSegment segment = snapshot.segment( i );
+            if ( segment != null && !segment.metadata( ).asMap( ).equals( metadata.asMap( ) ) )
+            {
+                listIndices.add( i );
+                ids.add( snapshot.id( i ) );
+                embeddings.add( Embedding.from( snapshot.vector( i ) ) );
+                segments.add( TextSegment.from( segment.text( ), metadata.copy( ) ) );
+            }
+        }
+        // the new copies are written first, an interruption leaves a duplicate rather than a missing segment
+        addAll( ids, embeddings, segments );
+        removeIndices( listIndices );
+    }
+
+    @Override
+    public void removeByFileId( int nFileId )
+    {
+        removeAll( findSegmentHashes( nFileId ).keySet( ) );
+    }
+
+    @Override
+    public long removeOrphans( Collection<Integer> fileIds )
+    {
+        Set<String> setFileIds = new HashSet<>( );
+        for ( Integer nFileId : fileIds )
+        {
+            setFileIds.add( String.valueOf( nFileId ) );
+        }
+        Snapshot snapshot = _snapshot;
+        List<String> listIds = new ArrayList<>( );
+        for ( int i = 0; i < snapshot.count; i++ )
+        {
+            if ( snapshot.deleted.get( i ) )
+            {
+                continue;
+            }
+            Metadata metadata = snapshot.metadata( i );
+            String strFileId = ( metadata != null ) ? metadata.get( SegmentFilter.KEY_FILE_ID ) : null;
+            if ( strFileId != null && !setFileIds.contains( strFileId ) )
+            {
+                listIds.add( snapshot.id( i ) );
+            }
+        }
+        removeAll( listIds );
+        return listIds.size( );
+    }
+
+    @Override
+    public Map<String, String> findSegmentHashes( int nFileId )
+    {
+        Snapshot snapshot = _snapshot;
+        String strFileId = String.valueOf( nFileId );
+        Map<String, String> mapHashes = new HashMap<>( );
+        for ( int i = 0; i < snapshot.count; i++ )
+        {
+            if ( snapshot.deleted.get( i ) )
+            {
+                continue;
+            }
+            Metadata metadata = snapshot.metadata( i );
+            if ( metadata != null && strFileId.equals( metadata.get( SegmentFilter.KEY_FILE_ID ) ) )
+            {
+                String strHash = metadata.get( SegmentFilter.KEY_TEXT_HASH );
+                mapHashes.put( snapshot.id( i ), ( strHash != null ) ? strHash : "" );
+            }
+        }
+        return mapHashes;
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore )
+    {
+        return findRelevant( referenceEmbedding, maxResults, minScore, SegmentFilter.none( ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The vectors are in memory : the embeddings are always returned.
+     * </p>
+     */
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore, SegmentFilter filter,
+            boolean bEmbeddings )
+    {
+        return findRelevant( referenceEmbedding, maxResults, minScore, filter );
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant( Embedding referenceEmbedding, int maxResults, double minScore, SegmentFilter filter )
+    {
+        Snapshot snapshot = _snapshot;
+        if ( snapshot.count == 0 || maxResults <= 0 )
+        {
+            return Collections.emptyList( );
+        }
+        if ( referenceEmbedding.dimensions( ) != snapshot.dimension )
+        {
+            throw new IllegalArgumentException( "Expected a query of dimension " + snapshot.dimension + " but got " + referenceEmbedding.dimensions( ) );
+        }
+
+        // the tombstones and the filter are tested by the scan tasks, in parallel
+        int nAllowed = snapshot.live;
+        if ( nAllowed == 0 )
+        {
+            return Collections.emptyList( );
+        }
+        SegmentFilter scanFilter = ( filter != null && !filter.isEmpty( ) ) ? filter : null;
+
+        float [ ] query = normalize( referenceEmbedding.vector( ) );
+        float fMinCosine = (float) ( 2 * minScore - 1 );
+        int nMaxResults = Math.min( maxResults, nAllowed );
+        TopK topK;
+        if ( isQuantized( ) )
+        {
+            long [ ] bits = null;
+            if ( VectorQuantizer.BINARY.equals( _strQuantization ) )
+            {
+                bits = new long [ VectorQuantizer.binaryWords( snapshot.dimension )];
+                VectorQuantizer.quantizeBinary( query, bits );
+            }
+            int nCandidates = (int) Math.min( nAllowed, (long) nMaxResults * _nOversample );
+            TopK candidates = scan( new ScanTask( snapshot, query, bits, scanFilter, 0, snapshot.count, nCandidates, Float.NEGATIVE_INFINITY ) );
+
+            // re-score the candidates with their full precision vectors
+            topK = new TopK( nMaxResults );
+            for ( int i = 0; i < candidates.size; i++ )
+            {
+                int nIndex = candidates._indices [i];
+                float fCosine = dot( query, snapshot.views, snapshot.regionOf( nIndex ), snapshot.offsetOf( nIndex ) );
+                if ( fCosine >= fMinCosine )
+                {
+                    topK.offer( fCosine, nIndex );
+                }
+            }
+        }
+        else
+        {
+            topK = scan( new ScanTask( snapshot, query, null, scanFilter, 0, snapshot.count, nMaxResults, fMinCosine ) );
+        }
+
+        List<EmbeddingMatch<TextSegment>> listMatches = new ArrayList<>( topK.size );
+        for ( int nSlot : topK.sortedSlots( ) )
+        {
+            int nIndex = topK._indices [nSlot];
+            double dScore = ( topK._scores [nSlot] + 1.0 ) / 2;
+            listMatches.add( new EmbeddingMatch<>( dScore, snapshot.id( nIndex ), new Embedding( snapshot.vector( nIndex ) ), snapshot.segment( nIndex ) ) );
+        }
+        return listMatches;
+    }
+
+    /**
+     * Returns the quantization of the scanned codes.
+     * 
+     * @return the quantization
+     */
+    public String getQuantization( )
+    {
+        return _strQuantization;
+    }
+
+    /**
+     * Returns the number of vectors in the store, the removed ones excepted.
+     * 
+     * @return the number of vectors
+     */
+    public int size( )
+    {
+        return _snapshot.live;
+    }
+
+    /**
+     * Moves the files of this store over the files of the store named strName in the same directory, e.g. to replace a store by its rebuilt version.
+     * The stores opened before the move keep reading the replaced files. This store must not be used afterwards.
+     * 
+     * @param strName
+     *            The name of the replaced store
+     * @throws IOException
+     *             if the files cannot be moved
+     */
+    public synchronized void moveTo( String strName ) throws IOException
+    {
+        Path directory = _vectorFile.getParent( );
+        for ( String strQuantization : new String [ ] {
+                VectorQuantizer.INT8, VectorQuantizer.BINARY
+        } )
+        {
+            Files.deleteIfExists( directory.resolve( strName + EXTENSION_CODES + strQuantization ) );
+        }
+        if ( Files.exists( _codeFile ) )
+        {
+            Files.move( _codeFile, directory.resolve( strName + EXTENSION_CODES + _strQuantization ), StandardCopyOption.REPLACE_EXISTING );
+        }
+        Path deletedTarget = directory.resolve( strName + EXTENSION_DELETED );
+        if ( Files.exists( _deletedFile ) )
+        {
+            Files.move( _deletedFile, deletedTarget, StandardCopyOption.REPLACE_EXISTING );
+        }
+        else
+        {
+            Files.deleteIfExists( deletedTarget );
+        }
+        Files.move( _segmentFile, directory.resolve( strName + EXTENSION_SEGMENTS ), StandardCopyOption.REPLACE_EXISTING );
+        Files.move( _vectorFile, directory.resolve( strName + EXTENSION_VECTORS ), StandardCopyOption.REPLACE_EXISTING );
+        _snapshot = Snapshot.EMPTY;
+    }
+
+    /**
+     * Deletes the files of this store, e.g. after a failed rebuild. This store must not be used afterwards.
+     * 
+     * @throws IOException
+     *             if the files cannot be deleted
+     */
+    public synchronized void delete( ) throws IOException
+    {
+        Files.deleteIfExists( _codeFile );
+        Files.deleteIfExists( _deletedFile );
+        Files.deleteIfExists( _segmentFile );
+        Files.deleteIfExists( _vectorFile );
+        _snapshot = Snapshot.EMPTY;
+    }
+
+    /**
+     * Reads the first vectors of a vector file, e.g. to benchmark the quantization on the vectors of a real dataset.
+     * 
+     * @param vectorFile
+     *            The vector file of a flat store
+     * @param nMaxVectors
+     *            The maximum number of vectors to read
+     * @return the normalized vectors
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    static List<float [ ]> readVectors( Path vectorFile, int nMaxVectors ) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( vectorFile, StandardOpenOption.READ ) )
+        {
+            ByteBuffer header = ByteBuffer.allocate( HEADER_OFFSET_COUNT + Integer.BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+            channel.read( header, 0 );
+            if ( header.getInt( 0 ) != MAGIC )
+            {
+                throw new IOException( "Not a flat vector file : " + vectorFile );
+            }
+            int nDimension = header.getInt( HEADER_OFFSET_DIMENSION );
+            int nCount = Math.min( nMaxVectors, header.getInt( HEADER_OFFSET_COUNT ) );
+
+            List<float [ ]> listVectors = new ArrayList<>( nCount );
+            ByteBuffer buffer = ByteBuffer.allocate( nDimension * Float.BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+            for ( int i = 0; i < nCount; i++ )
+            {
+                buffer.clear( );
+                channel.read( buffer, vectorOffset( i, nDimension ) );
+                buffer.flip( );
+                float [ ] vector = new float [ nDimension];
+                buffer.asFloatBuffer( ).get( vector );
+                listVectors.add( vector );
+            }
+            return listVectors;
+        }
+    }
+
+    /**
+     * Loads the header and the sidecar, and maps the committed vectors.
+     * 
+     * @return the snapshot of the store
+     * @throws IOException
+     *             if the files cannot be read
+     */
+    private Snapshot load( ) throws IOException
+    {
+        if ( !Files.exists( _vectorFile ) )
+        {
+            Files.deleteIfExists( _segmentFile );
+            Files.deleteIfExists( _deletedFile );
+            return Snapshot.EMPTY;
+        }
+
+        try ( FileChannel channel = FileChannel.open( _vectorFile, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            ByteBuffer header = ByteBuffer.allocate( HEADER_OFFSET_COUNT + Integer.BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+            channel.read( header, 0 );
+            header.flip( );
+            if ( header.remaining( ) < header.capacity( ) || header.getInt( 0 ) != MAGIC )
+            {
+                throw new IOException( "Not a flat vector file : " + _vectorFile );
+            }
+            int nDimension = header.getInt( HEADER_OFFSET_DIMENSION );
+            int nCount = header.getInt( HEADER_OFFSET_COUNT );
+
+            // the offset following the last record is the committed length of the sidecar
+            long [ ] offsets = new long [ nCount + 1];
+            nCount = readSegmentOffsets( nCount, offsets );
+            long lCommittedBytes = offsets [nCount];
+
+            // drop the records of an interrupted write
+            try ( FileChannel segments = FileChannel.open( _segmentFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) )
+            {
+                segments.truncate( lCommittedBytes );
+            }
+            channel.truncate( vectorOffset( nCount, nDimension ) );
+
+            MappedRegions vectors = mapVectors( channel, nDimension, nCount, null );
+            MappedRegions segments = mapSegments( lCommittedBytes, null );
+            BitSet deleted = readDeleted( nCount );
+            if ( isQuantized( ) && nCount > 0 )
+            {
+                syncCodes( new Snapshot( nDimension, nCount, vectors, MappedRegions.EMPTY, segments, offsets, lCommittedBytes, deleted ) );
+            }
+            return new Snapshot( nDimension, nCount, vectors, mapCodes( nDimension, nCount, null ), segments, offsets, lCommittedBytes, deleted );
+        }
+    }
+
+    /**
+     * Reads the tombstones of the committed vectors. A partially written index is dropped.
+     */
+    private BitSet readDeleted( int nCount ) throws IOException
+    {
+        BitSet deleted = new BitSet( );
+        if ( !Files.exists( _deletedFile ) )
+        {
+            return deleted;
+        }
+        try ( FileChannel channel = FileChannel.open( _deletedFile, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            long lCommittedBytes = channel.size( ) / Integer.BYTES * Integer.BYTES;
+            channel.truncate( lCommittedBytes );
+            ByteBuffer buffer = ByteBuffer.allocate( (int) lCommittedBytes ).order( ByteOrder.LITTLE_ENDIAN );
+            while ( buffer.hasRemaining( ) && channel.read( buffer, buffer.position( ) ) > 0 )
+            {
+                // read the whole file
+            }
+            buffer.flip( );
+            while ( buffer.remaining( ) >= Integer.BYTES )
+            {
+                int nIndex = buffer.getInt( );
+                if ( nIndex >= 0 && nIndex < nCount )
+                {
+                    deleted.set( nIndex );
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Drops the codes of an interrupted write, or rebuilds the code file when it does not cover all the vectors ( e.g. the quantization of the dataset was
+     * changed ).
+     */
+    private void syncCodes( Snapshot snapshot ) throws IOException
+    {
+        long lExpectedBytes = (long) snapshot.count * codeRecordBytes( snapshot.dimension );
+        try ( FileChannel codes = FileChannel.open( _codeFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) )
+        {
+            if ( codes.size( ) >= lExpectedBytes )
+            {
+                codes.truncate( lExpectedBytes );
+                return;
+            }
+
+            codes.truncate( 0 );
+            for ( int nFrom = 0; nFrom < snapshot.count; nFrom += WRITE_CHUNK_VECTORS )
+            {
+                int nTo = Math.min( snapshot.count, nFrom + WRITE_CHUNK_VECTORS );
+                List<float [ ]> listVectors = new ArrayList<>( nTo - nFrom );
+                for ( int i = nFrom; i < nTo; i++ )
+                {
+                    listVectors.add( snapshot.vector( i ) );
+                }
+                writeCodes( codes, listVectors, (long) nFrom * codeRecordBytes( snapshot.dimension ) );
+            }
+            codes.force( false );
+        }
+    }
+
+    /**
+     * Writes the codes of normalized vectors. An int8 record holds the scale of the vector followed by its codes, a binary record holds the sign bits.
+     */
+    private void writeCodes( FileChannel channel, List<float [ ]> listVectors, long lPosition ) throws IOException
+    {
+        int nDimension = listVectors.get( 0 ).length;
+        ByteBuffer buffer = ByteBuffer.allocate( WRITE_CHUNK_VECTORS * codeRecordBytes( nDimension ) ).order( ByteOrder.LITTLE_ENDIAN );
+        byte [ ] codes = new byte [ nDimension];
+        long [ ] words = new long [ VectorQuantizer.binaryWords( nDimension )];
+        long lOffset = lPosition;
+
+        for ( float [ ] vector : listVectors )
+        {
+            if ( VectorQuantizer.BINARY.equals( _strQuantization ) )
+            {
+                VectorQuantizer.quantizeBinary( vector, words );
+                for ( long lWord : words )
+                {
+                    buffer.putLong( lWord );
+                }
+            }
+            else
+            {
+                buffer.putFloat( VectorQuantizer.quantizeInt8( vector, codes ) );
+                buffer.put( codes );
+            }
+            if ( !buffer.hasRemaining( ) )
+            {
+                lOffset += flush( channel, buffer, lOffset );
+            }
+        }
+        flush( channel, buffer, lOffset );
+    }
+
+    private MappedRegions mapVectors( FileChannel channel, int nDimension, int nCount, Snapshot previous ) throws IOException
+    {
+        return map( channel, PAGE_SIZE, nDimension * Float.BYTES, nCount, ( previous != null ) ? previous.vectorRegions : null );
+    }
+
+    private MappedRegions mapCodes( int nDimension, int nCount, Snapshot previous ) throws IOException
+    {
+        if ( !isQuantized( ) || nCount == 0 )
+        {
+            return MappedRegions.EMPTY;
+        }
+        try ( FileChannel channel = FileChannel.open( _codeFile, StandardOpenOption.READ ) )
+        {
+            return map( channel, 0, codeRecordBytes( nDimension ), nCount, ( previous != null ) ? previous.codeRegions : null );
+        }
+    }
+
+    /**
+     * Maps the committed sidecar records in regions starting every 1 GiB. A region overlaps the next one by the maximum size of a record, so that each
+     * record is read from the region where it starts. The full regions of the previous snapshot are reused.
+     */
+    private MappedRegions mapSegments( long lBytes, Snapshot previous ) throws IOException
+    {
+        if ( lBytes == 0 )
+        {
+            return MappedRegions.EMPTY;
+        }
+        int nRegions = (int) ( ( lBytes + MAX_REGION_BYTES - 1 ) / MAX_REGION_BYTES );
+        ByteBuffer [ ] regions = new ByteBuffer [ nRegions];
+        try ( FileChannel channel = FileChannel.open( _segmentFile, StandardOpenOption.READ ) )
+        {
+            for ( int r = 0; r < nRegions; r++ )
+            {
+                long lOffset = r * MAX_REGION_BYTES;
+                long lLength = Math.min( lBytes - lOffset, MAX_REGION_BYTES + MAX_SEGMENT_RECORD_BYTES );
+                ByteBuffer [ ] previousRegions = ( previous != null ) ? previous.segmentRegions._regions : null;
+                boolean bReusable = previousRegions != null && r < previousRegions.length && previousRegions [r].capacity( ) == lLength;
+                regions [r] = bReusable ? previousRegions [r] : channel.map( FileChannel.MapMode.READ_ONLY, lOffset, lLength );
+            }
+        }
+        return new MappedRegions( regions, 0, 0 );
+    }
+
+    /**
+     * Maps fixed size records in regions of at most 1 GiB. Starting from the header page, the vector regions are page-aligned. The full regions of the
+     * previous snapshot are reused.
+     */
+    private static MappedRegions map( FileChannel channel, long lStart, int nRecordBytes, int nCount, MappedRegions previous ) throws IOException
+    {
+        int nRecordsPerRegion = (int) Math.max( REGION_ALIGNMENT, ( MAX_REGION_BYTES / nRecordBytes ) / REGION_ALIGNMENT * REGION_ALIGNMENT );
+        int nRegions = ( nCount + nRecordsPerRegion - 1 ) / nRecordsPerRegion;
+        ByteBuffer [ ] regions = new ByteBuffer [ nRegions];
+
+        for ( int r = 0; r < nRegions; r++ )
+        {
+            long lBytes = (long) Math.min( nRecordsPerRegion, nCount - r * nRecordsPerRegion ) * nRecordBytes;
+            boolean bReusable = previous != null && r < previous._regions.length && previous._regions [r].capacity( ) == lBytes;
+            if ( bReusable )
+            {
+                regions [r] = previous._regions [r];
+            }
+            else
+            {
+                long lOffset = lStart + (long) r * nRecordsPerRegion * nRecordBytes;
+                regions [r] = channel.map( FileChannel.MapMode.READ_ONLY, lOffset, lBytes ).order( ByteOrder.LITTLE_ENDIAN );
+            }
+        }
+        return new MappedRegions( regions, nRecordsPerRegion, nRecordBytes );
+    }
+
+    private boolean isQuantized( )
+    {
+        return !VectorQuantizer.NONE.equals( _strQuantization );
+    }
+
+    private int codeRecordBytes( int nDimension )
+    {
+        int nCodeBytes = VectorQuantizer.codeBytes( _strQuantization, nDimension );
+        return VectorQuantizer.INT8.equals( _strQuantization ) ? Float.BYTES + nCodeBytes : nCodeBytes;
+    }
+
+    private TopK scan( ScanTask task )
+    {
+        return ( task._nTo - task._nFrom < _nParallelThreshold ) ? task.compute( ) : ForkJoinPool.commonPool( ).invoke( task );
+    }
+
+    private static void writeHeader( FileChannel channel, int nDimension ) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( PAGE_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        header.putInt( MAGIC ).putInt( FORMAT_VERSION ).putInt( nDimension ).putInt( 0 );
+        header.clear( );
+        channel.write( header, 0 );
+    }
+
+    private static int flush( FileChannel channel, ByteBuffer buffer, long lPosition ) throws IOException
+    {
+        buffer.flip( );
+        int nWritten = 0;
+        while ( buffer.hasRemaining( ) )
+        {
+            nWritten += channel.write( buffer, lPosition + nWritten );
+        }
+        buffer.clear( );
+        return nWritten;
+    }
+
+    private static long vectorOffset( int nIndex, int nDimension )
+    {
+        return PAGE_SIZE + (long) nIndex * nDimension * Float.BYTES;
+    }
+
+    /**
+     * Appends the sidecar records after the committed ones, dropping the records of a previous write that was not committed.
+     * 
+     * @return the length in bytes of the sidecar once the records are written
+     */
+    private long appendSegments( List<String> ids, List<TextSegment> embedded, long lCommittedBytes, long [ ] offsets, int nFirstIndex ) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( _segmentFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) )
+        {
+            channel.truncate( lCommittedBytes );
+            channel.position( lCommittedBytes );
+            OutputStream out = new BufferedOutputStream( Channels.newOutputStream( channel ) );
+            ByteArrayOutputStream record = new ByteArrayOutputStream( );
+            DataOutputStream recordOut = new DataOutputStream( record );
+            long lPosition = lCommittedBytes;
+            for ( int i = 0; i < ids.size( ); i++ )
+            {
+                record.reset( );
+                TextSegment segment = embedded.get( i );
+                writeString( recordOut, ids.get( i ) );
+                recordOut.writeBoolean( segment != null );
+                if ( segment != null )
+                {
+                    writeString( recordOut, segment.text( ) );
+                    Map<String, String> metadata = segment.metadata( ).asMap( );
+                    recordOut.writeInt( metadata.size( ) );
+                    for ( Map.Entry<String, String> entry : metadata.entrySet( ) )
+                    {
+                        writeString( recordOut, entry.getKey( ) );
+                        writeString( recordOut, entry.getValue( ) );
+                    }
+                }
+                if ( record.size( ) > MAX_SEGMENT_RECORD_BYTES )
+                {
+                    throw new IllegalArgumentException( "The segment " + ids.get( i ) + " exceeds " + MAX_SEGMENT_RECORD_BYTES + " bytes" );
+                }
+                offsets [nFirstIndex + i] = lPosition;
+                record.writeTo( out );
+                lPosition += record.size( );
+            }
+            out.flush( );
+            channel.force( false );
+            return lPosition;
+        }
+    }
+
+    /**
+     * Reads the offsets of at most nCount sidecar records, skipping their content. The offset following the last record read is stored after the offsets of
+     * the records.
+     * 
+     * @return the number of records read
+     */
+    private int readSegmentOffsets( int nCount, long [ ] offsets ) throws IOException
+    {
+        int nRead = 0;
+        if ( !Files.exists( _segmentFile ) )
+        {
+            return nRead;
+        }
+
+        CountingInputStream counter = new CountingInputStream( new BufferedInputStream( Files.newInputStream( _segmentFile ) ) );
+        try ( DataInputStream in = new DataInputStream( counter ) )
+        {
+            while ( nRead < nCount )
+            {
+                IOUtils.skipFully( in, in.readInt( ) );
+                if ( in.readBoolean( ) )
+                {
+                    IOUtils.skipFully( in, in.readInt( ) );
+                    int nEntries = in.readInt( );
+                    for ( int i = 0; i < 2 * nEntries; i++ )
+                    {
+                        IOUtils.skipFully( in, in.readInt( ) );
+                    }
+                }
+                offsets [++nRead] = counter.getByteCount( );
+            }
+        }
+        catch( EOFException e )
+        {
+            // truncated record : keep what was fully written
+        }
+        return nRead;
+    }
+
+    private static void writeString( DataOutputStream out, String strValue ) throws IOException
+    {
+        byte [ ] bytes = strValue.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( ByteBuffer record )
+    {
+        byte [ ] bytes = new byte [ record.getInt( )];
+        record.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void skipString( ByteBuffer record )
+    {
+        int nLength = record.getInt( );
+        record.position( record.position( ) + nLength );
+    }
+
+    private static float [ ] normalize( float [ ] vector )
+    {
+        double dNorm = 0;
+        for ( float f : vector )
+        {
+            dNorm += f * f;
+        }
+        dNorm = Math.sqrt( dNorm );
+
+        float [ ] normalized = new float [ vector.length];
+        for ( int i = 0; i < vector.length; i++ )
+        {
+            normalized [i] = ( dNorm > 0 ) ? (float) ( vector [i] / dNorm ) : 0f;
+        }
+        return normalized;
+    }
+
+    /**
+     * Dot product of the query with the vector stored at the given offset. Four independent accumulators keep the loop free of dependencies so that the JIT
+     * can vectorize it.
+     */
+    private static float dot( float [ ] query, FloatBuffer [ ] views, int nRegion, int nOffset )
+    {
+        FloatBuffer view = views [nRegion];
+        int n = query.length;
+        float s0 = 0f;
+        float s1 = 0f;
+        float s2 = 0f;
+        float s3 = 0f;
+        int i = 0;
+        for ( ; i + 3 < n; i += 4 )
+        {
+            s0 += query [i] * view.get( nOffset + i );
+            s1 += query [i + 1] * view.get( nOffset + i + 1 );
+            s2 += query [i + 2] * view.get( nOffset + i + 2 );
+            s3 += query [i + 3] * view.get( nOffset + i + 3 );
+        }
+        for ( ; i < n; i++ )
+        {
+            s0 += query [i] * view.get( nOffset + i );
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Dot product of the query with the int8 codes of a record ( scale followed by the codes ), converted back to the scale of the vector.
+     */
+    private static float dotInt8( float [ ] query, ByteBuffer region, int nOffset )
+    {
+        int n = query.length;
+        int nCodes = nOffset + Float.BYTES;
+        float s0 = 0f;
+        float s1 = 0f;
+        float s2 = 0f;
+        float s3 = 0f;
+        int i = 0;
+        for ( ; i + 3 < n; i += 4 )
+        {
+            s0 += query [i] * region.get( nCodes + i );
+            s1 += query [i + 1] * region.get( nCodes + i + 1 );
+            s2 += query [i + 2] * region.get( nCodes + i + 2 );
+            s3 += query [i + 3] * region.get( nCodes + i + 3 );
+        }
+        for ( ; i < n; i++ )
+        {
+            s0 += query [i] * region.get( nCodes + i );
+        }
+        return ( s0 + s1 + s2 + s3 ) * region.getFloat( nOffset );
+    }
+
+    /**
+     * Hamming distance of the query sign bits with the binary code of a record.
+     */
+    private static int hamming( long [ ] bits, ByteBuffer region, int nOffset )
+    {
+        int nDistance = 0;
+        for ( int w = 0; w < bits.length; w++ )
+        {
+            nDistance += Long.bitCount( bits [w] ^ region.getLong( nOffset + w * Long.BYTES ) );
+        }
+        return nDistance;
+    }
+
+    /**
+     * Scans a range of vectors, splitting it across the fork-join pool while it is larger than a leaf. When the store is quantized the codes are scanned
+     * instead of the vectors, and the scores are approximated. The filter decodes the metadata of a vector : it is only tested for the vectors that would
+     * enter the results.
+     */
+    private static final class ScanTask extends RecursiveTask<TopK>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Snapshot _snapshot;
+        private final float [ ] _query;
+        private final long [ ] _bits;
+        private final transient SegmentFilter _filter;
+        private final int _nFrom;
+        private final int _nTo;
+        private final int _nMaxResults;
+        private final float _fMinCosine;
+
+        ScanTask( Snapshot snapshot, float [ ] query, long [ ] bits, SegmentFilter filter, int nFrom, int nTo, int nMaxResults, float fMinCosine )
+        {
+            _snapshot = snapshot;
+            _query = query;
+            _bits = bits;
+            _filter = filter;
+            _nFrom = nFrom;
+            _nTo = nTo;
+            _nMaxResults = nMaxResults;
+            _fMinCosine = fMinCosine;
+        }
+
+        @Override
+        protected TopK compute( )
+        {
+            if ( _nTo - _nFrom > LEAF_SIZE && getPool( ) != null )
+            {
+                int nMiddle = ( _nFrom + _nTo ) >>> 1;
+                ScanTask left = new ScanTask( _snapshot, _query, _bits, _filter, _nFrom, nMiddle, _nMaxResults, _fMinCosine );
+                ScanTask right = new ScanTask( _snapshot, _query, _bits, _filter, nMiddle, _nTo, _nMaxResults, _fMinCosine );
+                left.fork( );
+                TopK topK = right.compute( );
+                topK.merge( left.join( ) );
+                return topK;
+            }
+
+            TopK topK = new TopK( _nMaxResults );
+            for ( int i = _nFrom; i < _nTo; i++ )
+            {
+                if ( _snapshot.deleted.get( i ) )
+                {
+                    continue;
+                }
+                float fCosine = score( i );
+                if ( fCosine >= _fMinCosine && topK.accepts( fCosine ) && ( _filter == null || _filter.test( _snapshot.metadata( i ) ) ) )
+                {
+                    topK.offer( fCosine, i );
+                }
+            }
+            return topK;
+        }
+
+        private float score( int nIndex )
+        {
+            Snapshot snapshot = _snapshot;
+            if ( snapshot.codes.length == 0 )
+            {
+                return dot( _query, snapshot.views, snapshot.regionOf( nIndex ), snapshot.offsetOf( nIndex ) );
+            }
+
+            ByteBuffer region = snapshot.codes [nIndex / snapshot.codesPerRegion];
+            int nOffset = ( nIndex % snapshot.codesPerRegion ) * snapshot.codeRecordBytes;
+            if ( _bits != null )
+            {
+                return VectorQuantizer.binaryCosine( hamming( _bits, region, nOffset ), snapshot.dimension );
+            }
+            return dotInt8( _query, region, nOffset );
+        }
+    }
+
+    /**
+     * Bounded min-heap keeping the best k scores.
+     */
+    private static final class TopK
+    {
+        private final float [ ] _scores;
+        private final int [ ] _indices;
+        private int size;
+
+        TopK( int nCapacity )
+        {
+            _scores = new float [ nCapacity];
+            _indices = new int [ nCapacity];
+        }
+
+        boolean accepts( float fScore )
+        {
+            return size < _scores.length || fScore > _scores [0];
+        }
+
+        void offer( float fScore, int nIndex )
+        {
+            if ( size < _scores.length )
+            {
+                int i = size++;
+                while ( i > 0 && _scores [( i - 1 ) / 2] > fScore )
+                {
+                    _scores [i] = _scores [( i - 1 ) / 2];
+                    _indices [i] = _indices [( i - 1 ) / 2];
+                    i = ( i - 1 ) / 2;
+                }
+                _scores [i] = fScore;
+                _indices [i] = nIndex;
+            }
+            else
+                if ( fScore > _scores [0] )
+                {
+                    int i = 0;
+                    while ( 2 * i + 1 < size )
+                    {
+                        int nChild = 2 * i + 1;
+                        if ( nChild + 1 < size && _scores [nChild + 1] < _scores [nChild] )
+                        {
+                            nChild++;
+                        }
+                        if ( _scores [nChild] >= fScore )
+                        {
+                            break;
+                        }
+                        _scores [i] = _scores [nChild];
+                        _indices [i] = _indices [nChild];
+                        i = nChild;
+                    }
+                    _scores [i] = fScore;
+                    _indices [i] = nIndex;
+                }
+        }
+
+        void merge( TopK other )
+        {
+            for ( int i = 0; i < other.size; i++ )
+            {
+                offer( other._scores [i], other._indices [i] );
+            }
+        }
+
+        List<Integer> sortedSlots( )
+        {
+            List<Integer> listSlots = new ArrayList<>( size );
+            for ( int i = 0; i < size; i++ )
+            {
+                listSlots.add( i );
+            }
+            listSlots.sort( ( a, b ) -> Float.compare( _scores [b], _scores [a] ) );
+            return listSlots;
+        }
+    }
+
+    /**
+     * The mapped regions of a vector or code file.
+     */
+    private static final class MappedRegions
+    {
+        static final MappedRegions EMPTY = new MappedRegions( new ByteBuffer [ 0], REGION_ALIGNMENT, 0 );
+
+        private final ByteBuffer [ ] _regions;
+        private final int _nRecordsPerRegion;
+        private final int _nRecordBytes;
+
+        MappedRegions( ByteBuffer [ ] regions, int nRecordsPerRegion, int nRecordBytes )
+        {
+            _regions = regions;
+            _nRecordsPerRegion = nRecordsPerRegion;
+            _nRecordBytes = nRecordBytes;
+        }
+    }
+
+    /**
+     * Immutable view of the committed content of the store, swapped on each write so that searches never lock.
+     */
+    private static final class Snapshot
+    {
+        static final Snapshot EMPTY = new Snapshot( 0, 0, MappedRegions.EMPTY, MappedRegions.EMPTY, MappedRegions.EMPTY, new long [ 0], 0, new BitSet( ) );
+
+        final int dimension;
+        final int count;
+        final MappedRegions vectorRegions;
+        final MappedRegions codeRegions;
+        final FloatBuffer [ ] views;
+        final int vectorsPerRegion;
+        final ByteBuffer [ ] codes;
+        final int codesPerRegion;
+        final int codeRecordBytes;
+        final MappedRegions segmentRegions;
+        final long [ ] segmentOffsets;
+        final long segmentBytes;
+        final BitSet deleted;
+        final int live;
+
+        Snapshot( int nDimension, int nCount, MappedRegions vectors, MappedRegions codeMapping, MappedRegions segmentMapping, long [ ] offsets,
+                long lSegmentBytes, BitSet deletedIndices )
+        {
+            dimension = nDimension;
+            count = nCount;
+            vectorRegions = vectors;
+            codeRegions = codeMapping;
+            views = new FloatBuffer [ vectors._regions.length];
+            for ( int r = 0; r < views.length; r++ )
+            {
+                views [r] = vectors._regions [r].asFloatBuffer( );
+            }
+            vectorsPerRegion = vectors._nRecordsPerRegion;
+            codes = codeMapping._regions;
+            codesPerRegion = codeMapping._nRecordsPerRegion;
+            codeRecordBytes = codeMapping._nRecordBytes;
+            segmentRegions = segmentMapping;
+            segmentOffsets = offsets;
+            segmentBytes = lSegmentBytes;
+            deleted = deletedIndices;
+            live = nCount - deletedIndices.cardinality( );
+        }
+
+        int regionOf( int nIndex )
+        {
+            return nIndex / vectorsPerRegion;
+        }
+
+        int offsetOf( int nIndex )
+        {
+            return ( nIndex % vectorsPerRegion ) * dimension;
+        }
+
+        String id( int nIndex )
+        {
+            return readString( record( nIndex ) );
+        }
+
+        TextSegment segment( int nIndex )
+        {
+            ByteBuffer record = record( nIndex );
+            skipString( record );
+            if ( record.get( ) == 0 )
+            {
+                return null;
+            }
+            String strText = readString( record );
+            return TextSegment.from( strText, readMetadata( record ) );
+        }
+
+        Metadata metadata( int nIndex )
+        {
+            ByteBuffer record = record( nIndex );
+            skipString( record );
+            if ( record.get( ) == 0 )
+            {
+                return null;
+            }
+            skipString( record );
+            return readMetadata( record );
+        }
+
+        /**
+         * Returns a view of the region holding the sidecar record, positioned at its start.
+         */
+        private ByteBuffer record( int nIndex )
+        {
+            long lOffset = segmentOffsets [nIndex];
+            ByteBuffer record = segmentRegions._regions [(int) ( lOffset / MAX_REGION_BYTES )].duplicate( );
+            record.position( (int) ( lOffset % MAX_REGION_BYTES ) );
+            return record;
+        }
+
+        private static Metadata readMetadata( ByteBuffer record )
+        {
+            int nEntries = record.getInt( );
+            Map<String, String> metadata = new HashMap<>( nEntries );
+            for ( int i = 0; i < nEntries; i++ )
+            {
+                metadata.put( readString( record ), readString( record ) );
+            }
+            return new Metadata( metadata );
+        }
+
+        float [ ] vector( int nIndex )
+        {
+            FloatBuffer view = views [regionOf( nIndex )];
+            int nOffset = offsetOf( nIndex );
+            float [ ] vector = new float [ dimension];
+            for ( int i = 0; i < dimension; i++ )
+            {
+                vector [i] = view.get( nOffset + i );
+            }
+            return vector;
+        }
+    }
+}
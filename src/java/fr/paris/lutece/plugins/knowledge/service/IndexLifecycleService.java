@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Closes the Elasticsearch indices of the datasets that have not been queried for a while, so that they no longer use the memory of the cluster, and
+ * opens them again on the next request for their dataset.
+ * <p>
+ * The time of the last query of each dataset is kept in memory : after a restart, the datasets count as queried at the start. The indices closed by
+ * another instance are opened by the store itself when a search finds them closed.
+ * </p>
+ */
+public final class IndexLifecycleService
+{
+    private static final long START_MILLIS = System.currentTimeMillis( );
+    private static final Map<Integer, Long> _mapLastQueries = new ConcurrentHashMap<>( );
+    private static final Set<Integer> _setClosed = ConcurrentHashMap.newKeySet( );
+    private static final Map<Integer, Object> _mapLocks = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor
+     */
+    private IndexLifecycleService( )
+    {
+    }
+
+    /**
+     * Records a query of a dataset
+     * 
+     * @param dataSet
+     *            The dataset
+     */
+    public static void touch( Dataset dataSet )
+    {
+        _mapLastQueries.put( dataSet.getId( ), System.currentTimeMillis( ) );
+    }
+
+    /**
+     * Tells whether the index of a dataset is known to be closed
+     * 
+     * @param dataSet
+     *            The dataset
+     * @return true if the index has to be opened before being used
+     */
+    public static boolean isClosed( Dataset dataSet )
+    {
+        return _setClosed.contains( dataSet.getId( ) );
+    }
+
+    /**
+     * Opens the index of a dataset if it is closed, and records a query of the dataset so that it is not closed again meanwhile.
+     * 
+     * @param dataSet
+     *            The dataset
+     */
+    public static void open( Dataset dataSet )
+    {
+        touch( dataSet );
+        if ( !isClosed( dataSet ) )
+        {
+            return;
+        }
+        synchronized( getLock( dataSet.getId( ) ) )
+        {
+            if ( isClosed( dataSet ) )
+            {
+                FilterableEmbeddingStore store = ElasticStoreService.getEmbeddingStore( dataSet );
+                if ( store instanceof ElasticsearchVectorStore )
+                {
+                    ( (ElasticsearchVectorStore) store ).open( );
+                }
+                _setClosed.remove( dataSet.getId( ) );
+            }
+        }
+    }
+
+    /**
+     * Closes the indices of the datasets not queried for {@link Constant#ELASTIC_IDLE_CLOSE_HOURS} hours. The datasets being ingested or rebuilt are
+     * left open. The indices found closed, e.g. by a previous run before a restart, are recorded as such.
+     * 
+     * @return A summary of the run
+     */
+    public static String closeIdleIndices( )
+    {
+        if ( Constant.ELASTIC_IDLE_CLOSE_HOURS <= 0 )
+        {
+            return "Closing of the idle indices disabled";
+        }
+        long lIdleMillis = TimeUnit.HOURS.toMillis( Constant.ELASTIC_IDLE_CLOSE_HOURS );
+        Set<Integer> setIngested = IngestionJobService.getDatasetsBeingIngested( );
+        List<Integer> listClosed = new ArrayList<>( );
+        for ( Dataset dataSet : DatasetHome.getDatasetsList( ) )
+        {
+            if ( Dataset.VECTOR_STORE_FLAT.equals( dataSet.getVectorStore( ) ) || setIngested.contains( dataSet.getId( ) )
+                    || IndexRebuildService.isRunning( dataSet.getId( ) ) )
+            {
+                continue;
+            }
+            try
+            {
+                synchronized( getLock( dataSet.getId( ) ) )
+                {
+                    ElasticsearchVectorStore store = (ElasticsearchVectorStore) ElasticStoreService.getEmbeddingStore( dataSet );
+                    if ( store.isClosed( ) )
+                    {
+                        _setClosed.add( dataSet.getId( ) );
+                    }
+                    else
+                        if ( System.currentTimeMillis( ) - _mapLastQueries.getOrDefault( dataSet.getId( ), START_MILLIS ) >= lIdleMillis )
+                        {
+                            store.close( );
+                            _setClosed.add( dataSet.getId( ) );
+                            listClosed.add( dataSet.getId( ) );
+                        }
+                        else
+                        {
+                            _setClosed.remove( dataSet.getId( ) );
+                        }
+                }
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Unable to close the index of the dataset " + dataSet.getId( ), e );
+            }
+        }
+        return "Closed the indices of the datasets " + listClosed + ", " + _setClosed.size( ) + " indices closed";
+    }
+
+    private static Object getLock( int nDatasetId )
+    {
+        return _mapLocks.computeIfAbsent( nDatasetId, key -> new Object( ) );
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFileHome;
+import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Rebuilds the vectors of a dataset in the background, e.g. after its embedding model or its segment size changed. All the files are split and
+ * embedded again into a new store, while the bots keep searching the current one. Once done, the new store replaces the current one and the new
+ * settings of the dataset are saved.
+ * <p>
+ * The ingestion jobs of the dataset are held during the rebuild : a file added or replaced meanwhile is ingested into the new store once it is in
+ * place, with the new settings. The files deleted meanwhile are removed from the new store, before and after the swap.
+ * </p>
+ */
+public final class IndexRebuildService
+{
+    private static final ExecutorService _executor = Executors.newSingleThreadExecutor( runnable -> {
+        Thread thread = new Thread( runnable, "knowledge-index-rebuild" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+    private static final Map<Integer, Progress> _mapProgress = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor
+     */
+    private IndexRebuildService( )
+    {
+    }
+
+    /**
+     * Starts the rebuild of a dataset, unless one is already running.
+     * 
+     * @param target
+     *            The dataset, with the settings of the rebuild
+     * @return true if the rebuild is started
+     */
+    public static synchronized boolean start( Dataset target )
+    {
+        if ( isRunning( target.getId( ) ) )
+        {
+            return false;
+        }
+        Progress progress = new Progress( );
+        _mapProgress.put( target.getId( ), progress );
+        _executor.execute( ( ) -> rebuild( target, progress ) );
+        return true;
+    }
+
+    /**
+     * Tells whether a rebuild of a dataset is running.
+     * 
+     * @param nDatasetId
+     *            The dataset id
+     * @return true if a rebuild is running or queued
+     */
+    public static boolean isRunning( int nDatasetId )
+    {
+        Progress progress = _mapProgress.get( nDatasetId );
+        return progress != null && progress.isRunning( );
+    }
+
+    /**
+     * Gets the progress of the last rebuild of a dataset.
+     * 
+     * @param nDatasetId
+     *            The dataset id
+     * @return The progress, or null if the dataset was not rebuilt since the start of the application
+     */
+    public static Progress getProgress( int nDatasetId )
+    {
+        return _mapProgress.get( nDatasetId );
+    }
+
+    /**
+     * Rebuilds a dataset. The files added during the rebuild are processed before the swap, the files deleted are removed from the new store.
+     */
+    private static void rebuild( Dataset target, Progress progress )
+    {
+        FilterableEmbeddingStore store = null;
+        try
+        {
+            // the current index stays searchable until the swap, in the vector store type the dataset still uses
+            IndexLifecycleService.open( DatasetHome.findByPrimaryKey( target.getId( ) ).orElse( target ) );
+            store = ElasticStoreService.createRebuildStore( target );
+            ElasticStoreService.startBulkIngestion( store );
+            EmbeddingModel model = EmbeddingModelService.getIngestionEmbeddingModel( target );
+            Throttle throttle = new Throttle( Constant.REBUILD_MAX_SEGMENTS_PER_SECOND );
+            FilterableEmbeddingStore rebuildStore = store;
+            Set<Integer> setDone = new HashSet<>( );
+            List<DatasetFile> listPending = getPendingFiles( target, setDone );
+            while ( !listPending.isEmpty( ) )
+            {
+                progress._nFilesTotal += listPending.size( );
+                for ( DatasetFile file : listPending )
+                {
+                    ElasticStoreService.split( file, target, listSegments -> EmbeddingBatcher.embed( model, listSegments, ( listBatch, listEmbeddings ) -> {
+                        rebuildStore.addAll( listEmbeddings, new ArrayList<>( listBatch ) );
+                        progress._nSegments += listBatch.size( );
+                        throttle.acquire( listBatch.size( ) );
+                    } ) );
+                    setDone.add( file.getId( ) );
+                    progress._nFilesDone++;
+                }
+                listPending = getPendingFiles( target, setDone );
+            }
+            for ( Integer nFileId : getDeletedFiles( target, setDone ) )
+            {
+                rebuildStore.removeByFileId( nFileId );
+            }
+            ElasticStoreService.endBulkIngestion( store );
+
+            if ( !DatasetHome.findByPrimaryKey( target.getId( ) ).isPresent( ) )
+            {
+                throw new IllegalStateException( "The dataset was removed during the rebuild" );
+            }
+            ElasticStoreService.swapRebuildStore( target, store );
+            store = null;
+            // a file deleted since the check above had its vectors removed from the previous store
+            for ( Integer nFileId : getDeletedFiles( target, setDone ) )
+            {
+                ElasticStoreService.removeFile( target, nFileId );
+            }
+            String strPreviousVectorStore = saveSettings( target );
+            if ( strPreviousVectorStore != null && !strPreviousVectorStore.equals( target.getVectorStore( ) ) )
+            {
+                dropPreviousStore( target, strPreviousVectorStore );
+            }
+            progress._strState = Progress.STATE_DONE;
+            AppLogService.info( "Rebuilt the index of the dataset " + target.getId( ) + " : " + progress._nFilesDone + " files, " + progress._nSegments
+                    + " segments" );
+        }
+        catch( RuntimeException | InterruptedException e )
+        {
+            if ( e instanceof InterruptedException )
+            {
+                Thread.currentThread( ).interrupt( );
+            }
+            AppLogService.error( "Unable to rebuild the index of the dataset " + target.getId( ), e );
+            progress._strError = e.getMessage( );
+            progress._strState = Progress.STATE_FAILED;
+            if ( store != null )
+            {
+                try
+                {
+                    ElasticStoreService.endBulkIngestion( store );
+                    ElasticStoreService.dropRebuildStore( store );
+                }
+                catch( RuntimeException eDrop )
+                {
+                    AppLogService.error( "Unable to drop the rebuild store of the dataset " + target.getId( ), eDrop );
+                }
+            }
+        }
+    }
+
+    private static List<DatasetFile> getPendingFiles( Dataset target, Set<Integer> setDone )
+    {
+        List<DatasetFile> listPending = new ArrayList<>( );
+        for ( DatasetFile file : DatasetFileHome.getDatasetFilesListByDataSetId( target.getId( ) ) )
+        {
+            if ( !setDone.contains( file.getId( ) ) )
+            {
+                listPending.add( file );
+            }
+        }
+        return listPending;
+    }
+
+    /**
+     * Gets the files embedded by the rebuild that were deleted since, and forgets them.
+     */
+    private static List<Integer> getDeletedFiles( Dataset target, Set<Integer> setDone )
+    {
+        Set<Integer> setExisting = new HashSet<>( );
+        for ( DatasetFile file : DatasetFileHome.getDatasetFilesListByDataSetId( target.getId( ) ) )
+        {
+            setExisting.add( file.getId( ) );
+        }
+        List<Integer> listDeleted = new ArrayList<>( );
+        for ( Iterator<Integer> iterator = setDone.iterator( ); iterator.hasNext( ); )
+        {
+            Integer nFileId = iterator.next( );
+            if ( !setExisting.contains( nFileId ) )
+            {
+                listDeleted.add( nFileId );
+                iterator.remove( );
+            }
+        }
+        return listDeleted;
+    }
+
+    /**
+     * Saves the settings the rebuilt store was built with. The update of the dataset also invalidates the cached retrievals.
+     * 
+     * @return The vector store type the dataset used before, or null if the dataset was removed
+     */
+    private static String saveSettings( Dataset target )
+    {
+        Optional<Dataset> optDataset = DatasetHome.findByPrimaryKey( target.getId( ) );
+        if ( optDataset.isPresent( ) )
+        {
+            Dataset dataset = optDataset.get( );
+            String strPreviousVectorStore = dataset.getVectorStore( );
+            dataset.setVectorStore( target.getVectorStore( ) );
+            dataset.setRecordMaxTokens( target.getRecordMaxTokens( ) );
+            dataset.setRecordOverlapTokens( target.getRecordOverlapTokens( ) );
+            dataset.setEmbeddingModel( target.getEmbeddingModel( ) );
+            dataset.setEmbeddingDimension( target.getEmbeddingDimension( ) );
+            DatasetHome.update( dataset );
+            return strPreviousVectorStore;
+        }
+        return null;
+    }
+
+    /**
+     * Drops the store of the vector store type a dataset moved away from. A failure leaves the previous store behind, the rebuild being done anyway.
+     */
+    private static void dropPreviousStore( Dataset target, String strPreviousVectorStore )
+    {
+        try
+        {
+            ElasticStoreService.dropPreviousStore( target.getId( ), strPreviousVectorStore );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Unable to drop the previous store of the dataset " + target.getId( ), e );
+        }
+    }
+
+    /**
+     * Limits the number of segments embedded per second, so that a rebuild does not starve the bots of the embedding API quota.
+     */
+    private static final class Throttle
+    {
+        private final int _nMaxPerSecond;
+        private final long _lStart = System.nanoTime( );
+        private long _lCount;
+
+        Throttle( int nMaxPerSecond )
+        {
+            _nMaxPerSecond = nMaxPerSecond;
+        }
+
+        void acquire( int nCount ) throws InterruptedException
+        {
+            if ( _nMaxPerSecond <= 0 )
+            {
+                return;
+            }
+            _lCount += nCount;
+            long lWaitNanos = _lCount * TimeUnit.SECONDS.toNanos( 1 ) / _nMaxPerSecond - ( System.nanoTime( ) - _lStart );
+            if ( lWaitNanos > 0 )
+            {
+                TimeUnit.NANOSECONDS.sleep( lWaitNanos );
+            }
+        }
+    }
+
+    /**
+     * Progress of a rebuild
+     */
+    public static final class Progress
+    {
+        public static final String STATE_RUNNING = "running";
+        public static final String STATE_DONE = "done";
+        public static final String STATE_FAILED = "failed";
+
+        private volatile String _strState = STATE_RUNNING;
+        private volatile int _nFilesDone;
+        private volatile int _nFilesTotal;
+        private volatile int _nSegments;
+        private volatile String _strError;
+
+        /**
+         * @return The state : running, done or failed
+         */
+        public String getState( )
+        {
+            return _strState;
+        }
+
+        /**
+         * @return true if the rebuild is running
+         */
+        public boolean isRunning( )
+        {
+            return STATE_RUNNING.equals( _strState );
+        }
+
+        /**
+         * @return The number of files embedded
+         */
+        public int getFilesDone( )
+        {
+            return _nFilesDone;
+        }
+
+        /**
+         * @return The number of files to embed
+         */
+        public int getFilesTotal( )
+        {
+            return _nFilesTotal;
+        }
+
+        /**
+         * @return The number of segments embedded
+         */
+        public int getSegments( )
+        {
+            return _nSegments;
+        }
+
+        /**
+         * @return The error of a failed rebuild
+         */
+        public String getError( )
+        {
+            return _strError;
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFileHome;
+import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
+import fr.paris.lutece.plugins.knowledge.business.IngestionJob;
+import fr.paris.lutece.plugins.knowledge.business.IngestionJobHome;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Runs the ingestion of the uploaded files ( parsing, embedding and indexing ) in the background. The jobs are stored in the database with their
+ * progress, so that the admin UI can follow them and the unfinished ones can be resumed after a restart. A failed job is retried automatically with
+ * an increasing delay, and can be retried or cancelled by hand.
+ * <p>
+ * The segments of a file are compared by hash with the segments already stored for it : only the new ones are embedded and the vanished ones are
+ * removed. A new run of an interrupted job goes on where it stopped, and a modified file is re-ingested incrementally. The jobs of a same file run one
+ * after the other, and the jobs of a dataset being rebuilt wait for the new store of the dataset.
+ * </p>
+ */
+public final class IngestionJobService
+{
+    private static final List<String> ACTIVE_STATUSES = Arrays.asList( IngestionJob.STATUS_PENDING, IngestionJob.STATUS_PARSING,
+            IngestionJob.STATUS_EMBEDDING, IngestionJob.STATUS_INDEXING );
+
+    private static final ExecutorService _executor = Executors.newFixedThreadPool( getThreadCount( ), runnable -> {
+        Thread thread = new Thread( runnable, "knowledge-ingestion" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+    private static final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+        Thread thread = new Thread( runnable, "knowledge-ingestion-retry" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+    private static final Object LOCK = new Object( );
+    // jobs queued, scheduled for a retry or running in this instance
+    private static final Set<Integer> _setQueued = ConcurrentHashMap.newKeySet( );
+    private static final Set<Integer> _setCancelled = ConcurrentHashMap.newKeySet( );
+    // files whose job is running in this instance
+    private static final Set<Integer> _setRunningFiles = ConcurrentHashMap.newKeySet( );
+
+    /**
+     * Private constructor
+     */
+    private IngestionJobService( )
+    {
+    }
+
+    /**
+     * Gets the number of files ingested concurrently : the configured one, or one per core.
+     */
+    private static int getThreadCount( )
+    {
+        return ( Constant.INGESTION_THREADS > 0 ) ? Constant.INGESTION_THREADS : Runtime.getRuntime( ).availableProcessors( );
+    }
+
+    /**
+     * Creates and queues the ingestion job of a new or modified file.
+     * 
+     * @param datasetFile
+     *            The file, already stored
+     * @return The job
+     */
+    public static IngestionJob submit( DatasetFile datasetFile )
+    {
+        IngestionJob job = new IngestionJob( );
+        job.setDatasetId( datasetFile.getDatasetId( ) );
+        job.setDatasetFileId( datasetFile.getId( ) );
+        job.setCreationDate( new Timestamp( System.currentTimeMillis( ) ) );
+        job.setUpdateDate( job.getCreationDate( ) );
+        synchronized( LOCK )
+        {
+            IngestionJobHome.create( job );
+            _setQueued.add( job.getId( ) );
+        }
+        queue( job.getId( ), 0 );
+        return job;
+    }
+
+    /**
+     * Queues the unfinished jobs not handled by this instance, e.g. the ones interrupted by a restart. They go on after the segments already stored.
+     * 
+     * @return The number of jobs queued
+     */
+    public static int resume( )
+    {
+        int nCount = 0;
+        for ( IngestionJob job : IngestionJobHome.getIngestionJobsListByStatus( ACTIVE_STATUSES ) )
+        {
+            synchronized( LOCK )
+            {
+                if ( _setQueued.contains( job.getId( ) ) )
+                {
+                    continue;
+                }
+                reset( job );
+                IngestionJobHome.update( job );
+                _setQueued.add( job.getId( ) );
+            }
+            queue( job.getId( ), 0 );
+            nCount++;
+        }
+        return nCount;
+    }
+
+    /**
+     * Cancels a job. The segments already stored are kept, and a retry goes on after them. A job being indexed can no longer be cancelled.
+     * 
+     * @param nJobId
+     *            The job id
+     * @return true if the job is cancelled
+     */
+    public static boolean cancel( int nJobId )
+    {
+        synchronized( LOCK )
+        {
+            Optional<IngestionJob> optJob = IngestionJobHome.findByPrimaryKey( nJobId );
+            if ( !optJob.isPresent( ) || !optJob.get( ).isActive( ) || IngestionJob.STATUS_INDEXING.equals( optJob.get( ).getStatus( ) ) )
+            {
+                return false;
+            }
+            IngestionJob job = optJob.get( );
+            _setCancelled.add( nJobId );
+            job.setStatus( IngestionJob.STATUS_CANCELLED );
+            job.setUpdateDate( new Timestamp( System.currentTimeMillis( ) ) );
+            IngestionJobHome.update( job );
+            return true;
+        }
+    }
+
+    /**
+     * Cancels the unfinished jobs of a file, e.g. before the ingestion of its new version. A job being indexed goes on until it is over.
+     * 
+     * @param nDatasetFileId
+     *            The file id
+     */
+    public static void cancelByDatasetFile( int nDatasetFileId )
+    {
+        for ( IngestionJob job : IngestionJobHome.getIngestionJobsListByDatasetFileId( nDatasetFileId ) )
+        {
+            if ( job.isActive( ) )
+            {
+                cancel( job.getId( ) );
+            }
+        }
+    }
+
+    /**
+     * Cancels and removes the jobs of a file, before the file is deleted.
+     * 
+     * @param nDatasetFileId
+     *            The file id
+     */
+    public static void removeByDatasetFile( int nDatasetFileId )
+    {
+        synchronized( LOCK )
+        {
+            for ( IngestionJob job : IngestionJobHome.getIngestionJobsListByDatasetFileId( nDatasetFileId ) )
+            {
+                _setCancelled.add( job.getId( ) );
+            }
+            IngestionJobHome.removeByDatasetFileId( nDatasetFileId );
+        }
+    }
+
+    /**
+     * Runs again a failed or cancelled job, after the segments already stored.
+     * 
+     * @param nJobId
+     *            The job id
+     * @return true if the job is queued
+     */
+    public static boolean retry( int nJobId )
+    {
+        synchronized( LOCK )
+        {
+            Optional<IngestionJob> optJob = IngestionJobHome.findByPrimaryKey( nJobId );
+            if ( !optJob.isPresent( ) || optJob.get( ).isActive( ) || IngestionJob.STATUS_DONE.equals( optJob.get( ).getStatus( ) )
+                    || _setQueued.contains( nJobId ) )
+            {
+                return false;
+            }
+            IngestionJob job = optJob.get( );
+            reset( job );
+            job.setAttempts( 0 );
+            IngestionJobHome.update( job );
+            _setCancelled.remove( nJobId );
+            _setQueued.add( nJobId );
+        }
+        queue( nJobId, 0 );
+        return true;
+    }
+
+    /**
+     * Gets the datasets having unfinished jobs.
+     * 
+     * @return The dataset ids
+     */
+    public static Set<Integer> getDatasetsBeingIngested( )
+    {
+        Set<Integer> setDatasets = new HashSet<>( );
+        for ( IngestionJob job : IngestionJobHome.getIngestionJobsListByStatus( ACTIVE_STATUSES ) )
+        {
+            setDatasets.add( job.getDatasetId( ) );
+        }
+        return setDatasets;
+    }
+
+    /**
+     * Gets the last job of each file of a dataset.
+     * 
+     * @param nDatasetId
+     *            The dataset id
+     * @return The jobs
+     */
+    public static List<IngestionJob> getLastJobs( int nDatasetId )
+    {
+        List<IngestionJob> listJobs = new ArrayList<>( );
+        Set<Integer> setFiles = new HashSet<>( );
+        for ( IngestionJob job : IngestionJobHome.getIngestionJobsListByDatasetId( nDatasetId ) )
+        {
+            if ( setFiles.add( job.getDatasetFileId( ) ) )
+            {
+                listJobs.add( job );
+            }
+        }
+        return listJobs;
+    }
+
+    private static void reset( IngestionJob job )
+    {
+        job.setStatus( IngestionJob.STATUS_PENDING );
+        job.setErrorMessage( null );
+        job.setUpdateDate( new Timestamp( System.currentTimeMillis( ) ) );
+    }
+
+    private static void queue( int nJobId, long lDelaySeconds )
+    {
+        if ( lDelaySeconds > 0 )
+        {
+            _scheduler.schedule( ( ) -> _executor.execute( ( ) -> run( nJobId ) ), lDelaySeconds, TimeUnit.SECONDS );
+        }
+        else
+        {
+            _executor.execute( ( ) -> run( nJobId ) );
+        }
+    }
+
+    /**
+     * Runs a job. The job is postponed while another job of the same file is running, since both would compare the segments of the file with the same
+     * stored segments, and while its dataset is rebuilt, since the store it would write to is about to be replaced.
+     */
+    private static void run( int nJobId )
+    {
+        IngestionJob job;
+        synchronized( LOCK )
+        {
+            Optional<IngestionJob> optJob = IngestionJobHome.findByPrimaryKey( nJobId );
+            if ( !optJob.isPresent( ) || !IngestionJob.STATUS_PENDING.equals( optJob.get( ).getStatus( ) ) || _setCancelled.contains( nJobId ) )
+            {
+                _setQueued.remove( nJobId );
+                _setCancelled.remove( nJobId );
+                return;
+            }
+            job = optJob.get( );
+            if ( IndexRebuildService.isRunning( job.getDatasetId( ) ) || !_setRunningFiles.add( job.getDatasetFileId( ) ) )
+            {
+                queue( nJobId, Math.max( 1, Constant.INGESTION_RETRY_DELAY_SECONDS ) );
+                return;
+            }
+        }
+
+        boolean bRequeued = false;
+        try
+        {
+            job.setAttempts( job.getAttempts( ) + 1 );
+            Optional<Dataset> optDataset = DatasetHome.findByPrimaryKey( job.getDatasetId( ) );
+            Optional<DatasetFile> optFile = DatasetFileHome.findByPrimaryKey( job.getDatasetFileId( ) );
+            if ( !optDataset.isPresent( ) || !optFile.isPresent( ) )
+            {
+                throw new CancellationException( "The file or its dataset no longer exists" );
+            }
+            Dataset dataset = optDataset.get( );
+
+            save( job, IngestionJob.STATUS_PARSING );
+            IndexLifecycleService.open( dataset );
+            Pipeline pipeline = new Pipeline( job, dataset );
+            ElasticStoreService.startBulkIngestion( pipeline._store );
+            try
+            {
+                ElasticStoreService.split( optFile.get( ), dataset, pipeline );
+
+                save( job, IngestionJob.STATUS_INDEXING );
+                pipeline.removeVanishedSegments( );
+            }
+            finally
+            {
+                // the new segments become searchable
+                ElasticStoreService.endBulkIngestion( pipeline._store );
+            }
+            DatasetHome.incrementVersion( dataset.getId( ) );
+            save( job, IngestionJob.STATUS_DONE );
+        }
+        catch( CancellationException e )
+        {
+            AppLogService.info( "Ingestion job " + nJobId + " cancelled : " + e.getMessage( ) );
+            synchronized( LOCK )
+            {
+                if ( IngestionJobHome.findByPrimaryKey( nJobId ).isPresent( ) )
+                {
+                    job.setStatus( IngestionJob.STATUS_CANCELLED );
+                    job.setUpdateDate( new Timestamp( System.currentTimeMillis( ) ) );
+                    IngestionJobHome.update( job );
+                }
+            }
+        }
+        catch( RuntimeException e )
+        {
+            bRequeued = fail( job, e );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            bRequeued = fail( job, new IllegalStateException( "Interrupted", e ) );
+        }
+        finally
+        {
+            _setRunningFiles.remove( job.getDatasetFileId( ) );
+            if ( !bRequeued )
+            {
+                _setQueued.remove( nJobId );
+                _setCancelled.remove( nJobId );
+            }
+        }
+    }
+
+    /**
+     * Embeds and stores the segments of a file as they are parsed. A segment already stored with the same hash, by a previous run or for a previous
+     * version of the file, is kept instead, with the metadata of the new version ( e.g. the name of the file or the page ). The stored segments left
+     * unmatched once the file is parsed no longer exist in the file.
+     * <p>
+     * The vectors of a job are stored under ids derived from the job and the position of the segment in the file, so that a batch stored again after
+     * an interruption replaces its vectors instead of duplicating them. After each batch, the job records a checkpoint : the number of segments, in the
+     * order of the file, whose vectors are all stored. A new run of the job trusts the checkpoint for these segments, even when the store does not
+     * list them yet.
+     * </p>
+     */
+    private static final class Pipeline implements ElasticStoreService.SegmentConsumer
+    {
+        private final IngestionJob _job;
+        private final EmbeddingModel _model;
+        private final FilterableEmbeddingStore _store;
+        // ids of the stored segments not matched yet, by hash
+        private final Map<String, Deque<String>> _mapStoredIds = new HashMap<>( );
+        // hash of the stored segments not matched yet, by id
+        private final Map<String, String> _mapStoredHashes;
+        private final int _nCheckpoint;
+        private int _nParsed;
+
+        Pipeline( IngestionJob job, Dataset dataset )
+        {
+            _job = job;
+            _model = EmbeddingModelService.getIngestionEmbeddingModel( dataset );
+            _store = ElasticStoreService.getEmbeddingStore( dataset );
+            _mapStoredHashes = _store.findSegmentHashes( job.getDatasetFileId( ) );
+            for ( Map.Entry<String, String> entry : _mapStoredHashes.entrySet( ) )
+            {
+                _mapStoredIds.computeIfAbsent( entry.getValue( ), strHash -> new ArrayDeque<>( ) ).add( entry.getKey( ) );
+            }
+            String strSettings = ExtractedTextService.getSplitSettings( dataset );
+            if ( !strSettings.equals( job.getCheckpointSettings( ) ) )
+            {
+                job.setCheckpointSegment( 0 );
+                job.setBatchesCommitted( 0 );
+                job.setCheckpointSettings( strSettings );
+            }
+            else
+                if ( job.getCheckpointSegment( ) > 0 )
+                {
+                    AppLogService.info( "Ingestion job " + job.getId( ) + " resumes after segment " + job.getCheckpointSegment( ) + " ( "
+                            + job.getBatchesCommitted( ) + " batches committed )" );
+                }
+            _nCheckpoint = job.getCheckpointSegment( );
+            _job.setSegmentsDone( _nCheckpoint );
+            _job.setSegmentsTotal( _nCheckpoint );
+        }
+
+        @Override
+        public void accept( List<TextSegment> listSegments ) throws InterruptedException
+        {
+            List<TextSegment> listNewSegments = new ArrayList<>( );
+            List<String> listNewIds = new ArrayList<>( );
+            List<Integer> listNewPositions = new ArrayList<>( );
+            Map<String, Metadata> mapKeptMetadata = new HashMap<>( );
+            int nKept = 0;
+            for ( TextSegment segment : listSegments )
+            {
+                int nPosition = _nParsed++;
+                String strId = getSegmentId( nPosition );
+                if ( !match( strId, segment, mapKeptMetadata ) && nPosition >= _nCheckpoint )
+                {
+                    listNewSegments.add( segment );
+                    listNewIds.add( strId );
+                    listNewPositions.add( nPosition );
+                }
+                else
+                    if ( nPosition >= _nCheckpoint )
+                    {
+                        nKept++;
+                    }
+            }
+            int nEnd = _nParsed;
+            // the total is only known once the whole file is parsed
+            _job.setSegmentsTotal( Math.max( _nParsed, _nCheckpoint ) );
+            _job.setSegmentsDone( _job.getSegmentsDone( ) + nKept );
+            _store.updateMetadata( mapKeptMetadata );
+            commit( listNewPositions.isEmpty( ) ? nEnd : listNewPositions.get( 0 ) );
+
+            int [ ] stored = {
+                    0
+            };
+            EmbeddingBatcher.embed( _model, listNewSegments, ( listBatch, listEmbeddings ) -> {
+                int nFrom = stored [0];
+                stored [0] += listBatch.size( );
+                _store.addAll( listNewIds.subList( nFrom, stored [0] ), listEmbeddings, new ArrayList<>( listBatch ) );
+                _job.setSegmentsDone( _job.getSegmentsDone( ) + listBatch.size( ) );
+                _job.setBatchesCommitted( _job.getBatchesCommitted( ) + 1 );
+                // the batches are handed over in the order of the segments, so all the segments before the next new one are stored
+                commit( ( stored [0] < listNewPositions.size( ) ) ? listNewPositions.get( stored [0] ) : nEnd );
+            } );
+        }
+
+        /**
+         * Matches a segment with a stored segment : the one stored under its id by a previous run of the job, or else one with the same hash, whose
+         * metadata is then to be replaced by the one of the segment.
+         * 
+         * @return true if a stored segment was matched
+         */
+        private boolean match( String strId, TextSegment segment, Map<String, Metadata> mapKeptMetadata )
+        {
+            String strStoredHash = _mapStoredHashes.remove( strId );
+            if ( strStoredHash != null )
+            {
+                _mapStoredIds.get( strStoredHash ).remove( strId );
+                return true;
+            }
+            Deque<String> ids = _mapStoredIds.get( segment.metadata( SegmentFilter.KEY_TEXT_HASH ) );
+            String strStoredId = ( ids != null ) ? ids.poll( ) : null;
+            if ( strStoredId != null )
+            {
+                _mapStoredHashes.remove( strStoredId );
+                mapKeptMetadata.put( strStoredId, segment.metadata( ) );
+                return true;
+            }
+            return false;
+        }
+
+        private void commit( int nCheckpoint )
+        {
+            _job.setCheckpointSegment( Math.max( _job.getCheckpointSegment( ), nCheckpoint ) );
+            save( _job, IngestionJob.STATUS_EMBEDDING );
+        }
+
+        private String getSegmentId( int nPosition )
+        {
+            return UUID.nameUUIDFromBytes( ( "knowledge-ingestion:" + _job.getId( ) + ":" + nPosition ).getBytes( StandardCharsets.UTF_8 ) ).toString( );
+        }
+
+        /**
+         * Removes the stored segments that were not found in the file.
+         */
+        void removeVanishedSegments( )
+        {
+            List<String> listIds = new ArrayList<>( _mapStoredHashes.keySet( ) );
+            _store.removeAll( listIds );
+            if ( !listIds.isEmpty( ) )
+            {
+                AppLogService.info( "Ingestion job " + _job.getId( ) + " removed " + listIds.size( ) + " vanished segments of the file "
+                        + _job.getDatasetFileId( ) );
+            }
+        }
+    }
+
+    /**
+     * Records the failure of a job and schedules a new attempt if allowed.
+     * 
+     * @return true if the job is scheduled for a new attempt
+     */
+    private static boolean fail( IngestionJob job, RuntimeException e )
+    {
+        AppLogService.error( "Ingestion job " + job.getId( ) + " failed, attempt " + job.getAttempts( ), e );
+        boolean bRetry = job.getAttempts( ) < Constant.INGESTION_MAX_ATTEMPTS;
+        synchronized( LOCK )
+        {
+            if ( _setCancelled.contains( job.getId( ) ) )
+            {
+                return false;
+            }
+            job.setStatus( bRetry ? IngestionJob.STATUS_PENDING : IngestionJob.STATUS_FAILED );
+            job.setErrorMessage( e.getMessage( ) );
+            job.setUpdateDate( new Timestamp( System.currentTimeMillis( ) ) );
+            IngestionJobHome.update( job );
+        }
+        if ( bRetry )
+        {
+            queue( job.getId( ), (long) Constant.INGESTION_RETRY_DELAY_SECONDS * job.getAttempts( ) );
+        }
+        return bRetry;
+    }
+
+    /**
+     * Saves the progress of a job. A job cancelled meanwhile keeps its cancelled status, but its progress is still saved since the segments counted are
+     * already stored.
+     */
+    private static void save( IngestionJob job, String strStatus )
+    {
+        synchronized( LOCK )
+        {
+            if ( _setCancelled.contains( job.getId( ) ) )
+            {
+                job.setStatus( IngestionJob.STATUS_CANCELLED );
+                IngestionJobHome.update( job );
+                throw new CancellationException( "Cancelled by the user" );
+            }
+            job.setStatus( strStatus );
+            job.setUpdateDate( new Timestamp( System.currentTimeMillis( ) ) );
+            IngestionJobHome.update( job );
+        }
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.BertTokenizer;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Embedding model running the all-MiniLM-L6-v2 sentence model in process with ONNX Runtime on the CPU, so that no network access is needed.
+ * <p>
+ * The texts submitted by concurrent callers are queued and encoded together by a single worker thread : it waits at most a few milliseconds to fill a
+ * batch, pads the token sequences to the longest one and runs the model once for the whole batch. Texts longer than the model window are split and
+ * their partial vectors averaged, as the langchain4j in process models do.
+ * </p>
+ * <p>
+ * The model must be closed when the application stops, which stops the worker thread and releases the ONNX session.
+ * </p>
+ */
+public class LocalOnnxEmbeddingModel implements EmbeddingModel, AutoCloseable
+{
+    public static final int DIMENSION = 384;
+
+    private static final String MODEL_RESOURCE = "/all-minilm-l6-v2.onnx";
+    private static final String VOCABULARY_RESOURCE = "/bert-vocabulary-en.txt";
+    private static final String CLS = "[CLS]";
+    private static final String SEP = "[SEP]";
+    private static final int MAX_SEQUENCE_LENGTH = 510;
+    private static final String INPUT_IDS = "input_ids";
+    private static final String TOKEN_TYPE_IDS = "token_type_ids";
+    private static final String ATTENTION_MASK = "attention_mask";
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final OrtEnvironment _environment;
+    private final OrtSession _session;
+    private final BertTokenizer _tokenizer;
+    private final long _lClsId;
+    private final long _lSepId;
+    private final int _nMaxBatchSize;
+    private final long _lMaxWaitNanos;
+    private final BlockingQueue<Request> _queue = new LinkedBlockingQueue<>( );
+    private final Thread _worker;
+    private volatile boolean _bClosed;
+    private Request _carry;
+
+    private final long _lStartNanos = System.nanoTime( );
+    private final AtomicLong _lRequests = new AtomicLong( );
+    private final AtomicLong _lTexts = new AtomicLong( );
+    private final AtomicLong _lTokens = new AtomicLong( );
+    private final AtomicLong _lBatches = new AtomicLong( );
+    private final AtomicLong _lInferenceNanos = new AtomicLong( );
+    private final AtomicLong _lLatencyNanos = new AtomicLong( );
+
+    /**
+     * Constructor. Loads the model and starts the batching thread.
+     * 
+     * @param nMaxBatchSize
+     *            The maximum number of texts encoded by one model run
+     * @param lMaxWaitMillis
+     *            The maximum time spent waiting for other requests to fill a batch
+     * @param nIntraOpThreads
+     *            The number of threads used by ONNX Runtime for one run, 0 for its default
+     */
+    public LocalOnnxEmbeddingModel( int nMaxBatchSize, long lMaxWaitMillis, int nIntraOpThreads )
+    {
+        _nMaxBatchSize = Math.max( 1, nMaxBatchSize );
+        _lMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, lMaxWaitMillis ) );
+        _environment = OrtEnvironment.getEnvironment( );
+
+        try ( InputStream model = LocalOnnxEmbeddingModel.class.getResourceAsStream( MODEL_RESOURCE ) )
+        {
+            if ( model == null )
+            {
+                throw new IllegalStateException( "The ONNX model " + MODEL_RESOURCE + " is not in the classpath" );
+            }
+            OrtSession.SessionOptions options = new OrtSession.SessionOptions( );
+            if ( nIntraOpThreads > 0 )
+            {
+                options.setIntraOpNumThreads( nIntraOpThreads );
+            }
+            _session = _environment.createSession( readAll( model ), options );
+        }
+        catch( IOException | OrtException e )
+        {
+            throw new IllegalStateException( "Unable to load the ONNX embedding model", e );
+        }
+
+        _tokenizer = createTokenizer( );
+        _lClsId = _tokenizer.tokenId( CLS );
+        _lSepId = _tokenizer.tokenId( SEP );
+
+        _worker = new Thread( this::dispatch, "knowledge-onnx-embedding" );
+        _worker.setDaemon( true );
+        _worker.start( );
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll( List<TextSegment> textSegments )
+    {
+        if ( _bClosed )
+        {
+            throw new IllegalStateException( "The ONNX embedding model is closed" );
+        }
+        List<Request> listRequests = new ArrayList<>( );
+        for ( int nStart = 0; nStart < textSegments.size( ); nStart += _nMaxBatchSize )
+        {
+            List<String> listTexts = new ArrayList<>( );
+            for ( TextSegment segment : textSegments.subList( nStart, Math.min( nStart + _nMaxBatchSize, textSegments.size( ) ) ) )
+            {
+                listTexts.add( segment.text( ) );
+            }
+            Request request = new Request( listTexts );
+            listRequests.add( request );
+            _queue.add( request );
+        }
+        if ( _bClosed )
+        {
+            // closed while the requests were queued : the worker may be gone already
+            failPending( );
+        }
+
+        List<Embedding> listEmbeddings = new ArrayList<>( textSegments.size( ) );
+        int nTokens = 0;
+        for ( Request request : listRequests )
+        {
+            for ( float [ ] vector : await( request ) )
+            {
+                listEmbeddings.add( new Embedding( vector ) );
+            }
+            nTokens += request._nTokens;
+        }
+        return Response.from( listEmbeddings, new TokenUsage( nTokens ) );
+    }
+
+    /**
+     * Stops the worker thread once the running batch is done, fails the queued requests and releases the ONNX session.
+     */
+    @Override
+    public void close( )
+    {
+        _bClosed = true;
+        _worker.interrupt( );
+        try
+        {
+            _worker.join( CLOSE_TIMEOUT_MILLIS );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+        failPending( );
+        if ( _worker.isAlive( ) )
+        {
+            AppLogService.error( "The ONNX embedding worker did not stop, its session is left open" );
+            return;
+        }
+        try
+        {
+            _session.close( );
+        }
+        catch( OrtException e )
+        {
+            AppLogService.error( "Unable to close the ONNX embedding session", e );
+        }
+    }
+
+    private void failPending( )
+    {
+        IllegalStateException closed = new IllegalStateException( "The ONNX embedding model is closed" );
+        Request request;
+        while ( ( request = _queue.poll( ) ) != null )
+        {
+            request._future.completeExceptionally( closed );
+        }
+        if ( !_worker.isAlive( ) && _carry != null )
+        {
+            _carry._future.completeExceptionally( closed );
+            _carry = null;
+        }
+    }
+
+    /**
+     * Gets the throughput metrics of the model since it was loaded.
+     * 
+     * @return The metrics
+     */
+    public Metrics getMetrics( )
+    {
+        return new Metrics( this );
+    }
+
+    /**
+     * Creates the WordPiece tokenizer of the model, e.g. to measure the segments embedded by the model.
+     * 
+     * @return The tokenizer
+     */
+    public static BertTokenizer createTokenizer( )
+    {
+        return new BertTokenizer( LocalOnnxEmbeddingModel.class.getResource( VOCABULARY_RESOURCE ) );
+    }
+
+    private static float [ ] [ ] await( Request request )
+    {
+        try
+        {
+            return request._future.get( );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new IllegalStateException( "Interrupted while waiting for the embeddings", e );
+        }
+        catch( ExecutionException e )
+        {
+            throw new IllegalStateException( "Unable to compute the embeddings", e.getCause( ) );
+        }
+    }
+
+    /**
+     * Worker loop : takes the queued requests by batch and encodes them.
+     */
+    private void dispatch( )
+    {
+        while ( !Thread.currentThread( ).isInterrupted( ) )
+        {
+            List<Request> listBatch;
+            try
+            {
+                listBatch = nextBatch( );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread( ).interrupt( );
+                return;
+            }
+            process( listBatch );
+        }
+    }
+
+    private List<Request> nextBatch( ) throws InterruptedException
+    {
+        Request first = ( _carry != null ) ? _carry : _queue.take( );
+        _carry = null;
+
+        List<Request> listBatch = new ArrayList<>( );
+        listBatch.add( first );
+        int nTexts = first._listTexts.size( );
+        long lDeadline = System.nanoTime( ) + _lMaxWaitNanos;
+        while ( nTexts < _nMaxBatchSize )
+        {
+            long lRemaining = lDeadline - System.nanoTime( );
+            Request next = ( lRemaining > 0 ) ? _queue.poll( lRemaining, TimeUnit.NANOSECONDS ) : _queue.poll( );
+            if ( next == null )
+            {
+                break;
+            }
+            if ( nTexts + next._listTexts.size( ) > _nMaxBatchSize )
+            {
+                _carry = next;
+                break;
+            }
+            listBatch.add( next );
+            nTexts += next._listTexts.size( );
+        }
+        return listBatch;
+    }
+
+    private void process( List<Request> listBatch )
+    {
+        List<String> listTexts = new ArrayList<>( );
+        for ( Request request : listBatch )
+        {
+            listTexts.addAll( request._listTexts );
+        }
+
+        long lStart = System.nanoTime( );
+        float [ ] [ ] vectors;
+        int [ ] tokens = new int [ listTexts.size( )];
+        try
+        {
+            vectors = encode( listTexts, tokens );
+        }
+        catch( Exception e )
+        {
+            AppLogService.error( "Error while computing the embeddings of " + listTexts.size( ) + " texts", e );
+            for ( Request request : listBatch )
+            {
+                request._future.completeExceptionally( e );
+            }
+            return;
+        }
+        long lEnd = System.nanoTime( );
+
+        _lBatches.incrementAndGet( );
+        _lInferenceNanos.addAndGet( lEnd - lStart );
+        _lTexts.addAndGet( listTexts.size( ) );
+
+        int nOffset = 0;
+        for ( Request request : listBatch )
+        {
+            int nSize = request._listTexts.size( );
+            float [ ] [ ] result = new float [ nSize] [ ];
+            System.arraycopy( vectors, nOffset, result, 0, nSize );
+            for ( int i = nOffset; i < nOffset + nSize; i++ )
+            {
+                request._nTokens += tokens [i];
+            }
+            nOffset += nSize;
+
+            _lRequests.incrementAndGet( );
+            _lTokens.addAndGet( request._nTokens );
+            _lLatencyNanos.addAndGet( lEnd - request._lEnqueuedNanos );
+            request._future.complete( result );
+        }
+        if ( AppLogService.isDebugEnabled( ) )
+        {
+            AppLogService.debug( "ONNX embedding batch of " + listTexts.size( ) + " texts from " + listBatch.size( ) + " requests in "
+                    + TimeUnit.NANOSECONDS.toMillis( lEnd - lStart ) + " ms, " + getMetrics( ) );
+        }
+    }
+
+    /**
+     * Encodes texts with one model run.
+     * 
+     * @param listTexts
+     *            The texts
+     * @param tokens
+     *            Receives the token count of each text
+     * @return The normalized vectors
+     * @throws OrtException
+     *             if the model run fails
+     */
+    private float [ ] [ ] encode( List<String> listTexts, int [ ] tokens ) throws OrtException
+    {
+        // Each text gives one row per window of the model, the rows of a text are averaged afterwards
+        List<long [ ]> listRows = new ArrayList<>( );
+        List<Integer> listOwners = new ArrayList<>( );
+        int nMaxLength = 0;
+        for ( int nText = 0; nText < listTexts.size( ); nText++ )
+        {
+            List<String> listTokens = _tokenizer.tokenize( listTexts.get( nText ) );
+            tokens [nText] = listTokens.size( );
+            int nStart = 0;
+            do
+            {
+                List<String> listPartition = listTokens.subList( nStart, Math.min( nStart + MAX_SEQUENCE_LENGTH, listTokens.size( ) ) );
+                long [ ] row = new long [ listPartition.size( ) + 2];
+                row [0] = _lClsId;
+                for ( int i = 0; i < listPartition.size( ); i++ )
+                {
+                    row [i + 1] = _tokenizer.tokenId( listPartition.get( i ) );
+                }
+                row [row.length - 1] = _lSepId;
+                listRows.add( row );
+                listOwners.add( nText );
+                nMaxLength = Math.max( nMaxLength, row.length );
+                nStart += MAX_SEQUENCE_LENGTH;
+            }
+            while ( nStart < listTokens.size( ) );
+        }
+
+        int nRows = listRows.size( );
+        long [ ] ids = new long [ nRows * nMaxLength];
+        long [ ] mask = new long [ nRows * nMaxLength];
+        long [ ] types = new long [ nRows * nMaxLength];
+        for ( int nRow = 0; nRow < nRows; nRow++ )
+        {
+            long [ ] row = listRows.get( nRow );
+            System.arraycopy( row, 0, ids, nRow * nMaxLength, row.length );
+            for ( int i = 0; i < row.length; i++ )
+            {
+                mask [nRow * nMaxLength + i] = 1;
+            }
+        }
+
+        long [ ] shape = new long [ ] {
+                nRows, nMaxLength
+        };
+        float [ ] [ ] [ ] hidden;
+        try ( OnnxTensor tensorIds = OnnxTensor.createTensor( _environment, LongBuffer.wrap( ids ), shape );
+                OnnxTensor tensorMask = OnnxTensor.createTensor( _environment, LongBuffer.wrap( mask ), shape );
+                OnnxTensor tensorTypes = OnnxTensor.createTensor( _environment, LongBuffer.wrap( types ), shape ) )
+        {
+            Map<String, OnnxTensor> inputs = new HashMap<>( );
+            inputs.put( INPUT_IDS, tensorIds );
+            inputs.put( TOKEN_TYPE_IDS, tensorTypes );
+            inputs.put( ATTENTION_MASK, tensorMask );
+            try ( OrtSession.Result result = _session.run( inputs ) )
+            {
+                hidden = (float [ ] [ ] [ ]) result.get( 0 ).getValue( );
+            }
+        }
+
+        // Mean pooling over the tokens of each row, as the langchain4j encoder does : the means of the rows of a text split in several windows are
+        // averaged, weighted by the number of text tokens of each row, and the average is normalized
+        float [ ] [ ] vectors = new float [ listTexts.size( )] [ ];
+        int [ ] weights = new int [ listTexts.size( )];
+        for ( int nRow = 0; nRow < nRows; nRow++ )
+        {
+            int nLength = listRows.get( nRow ).length;
+            int nOwner = listOwners.get( nRow );
+            float [ ] [ ] states = hidden [nRow];
+            float [ ] mean = new float [ states [0].length];
+            for ( int t = 0; t < nLength; t++ )
+            {
+                for ( int d = 0; d < mean.length; d++ )
+                {
+                    mean [d] += states [t] [d];
+                }
+            }
+            if ( vectors [nOwner] == null )
+            {
+                vectors [nOwner] = new float [ mean.length];
+            }
+            float [ ] vector = vectors [nOwner];
+            int nWeight = Math.max( 1, nLength - 2 );
+            for ( int d = 0; d < vector.length; d++ )
+            {
+                vector [d] += mean [d] / nLength * nWeight;
+            }
+            weights [nOwner] += nWeight;
+        }
+        for ( int nText = 0; nText < vectors.length; nText++ )
+        {
+            float [ ] vector = vectors [nText];
+            for ( int d = 0; d < vector.length; d++ )
+            {
+                vector [d] /= weights [nText];
+            }
+            normalize( vector );
+        }
+        return vectors;
+    }
+
+    private static void normalize( float [ ] vector )
+    {
+        double dNorm = 0;
+        for ( float f : vector )
+        {
+            dNorm += f * f;
+        }
+        dNorm = Math.sqrt( dNorm );
+        if ( dNorm > 0 )
+        {
+            for ( int i = 0; i < vector.length; i++ )
+            {
+                vector [i] = (float) ( vector [i] / dNorm );
+            }
+        }
+    }
+
+    private static byte [ ] readAll( InputStream input ) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream( );
+        byte [ ] buffer = new byte [ 64 * 1024];
+        int nRead;
+        while ( ( nRead = input.read( buffer ) ) != -1 )
+        {
+            output.write( buffer, 0, nRead );
+        }
+        return output.toByteArray( );
+    }
+
+    /**
+     * Texts of one caller waiting to be encoded
+     */
+    private static final class Request
+    {
+        private final List<String> _listTexts;
+        private final long _lEnqueuedNanos = System.nanoTime( );
+        private final CompletableFuture<float [ ] [ ]> _future = new CompletableFuture<>( );
+        private int _nTokens;
+
+        private Request( List<String> listTexts )
+        {
+            _listTexts = Collections.unmodifiableList( listTexts );
+        }
+    }
+
+    /**
+     * Throughput metrics of the model
+     */
+    public static final class Metrics
+    {
+        private final long _lRequests;
+        private final long _lTexts;
+        private final long _lTokens;
+        private final long _lBatches;
+        private final long _lInferenceNanos;
+        private final long _lLatencyNanos;
+        private final long _lUptimeNanos;
+
+        private Metrics( LocalOnnxEmbeddingModel model )
+        {
+            _lRequests = model._lRequests.get( );
+            _lTexts = model._lTexts.get( );
+            _lTokens = model._lTokens.get( );
+            _lBatches = model._lBatches.get( );
+            _lInferenceNanos = model._lInferenceNanos.get( );
+            _lLatencyNanos = model._lLatencyNanos.get( );
+            _lUptimeNanos = System.nanoTime( ) - model._lStartNanos;
+        }
+
+        /**
+         * @return The number of requests served
+         */
+        public long getRequests( )
+        {
+            return _lRequests;
+        }
+
+        /**
+         * @return The number of texts embedded
+         */
+        public long getTexts( )
+        {
+            return _lTexts;
+        }
+
+        /**
+         * @return The number of tokens embedded
+         */
+        public long getTokens( )
+        {
+            return _lTokens;
+        }
+
+        /**
+         * @return The number of model runs
+         */
+        public long getBatches( )
+        {
+            return _lBatches;
+        }
+
+        /**
+         * @return The average number of texts per model run
+         */
+        public double getAverageBatchSize( )
+        {
+            return ( _lBatches == 0 ) ? 0 : (double) _lTexts / _lBatches;
+        }
+
+        /**
+         * @return The number of texts embedded per second of model run
+         */
+        public double getTextsPerSecond( )
+        {
+            return ( _lInferenceNanos == 0 ) ? 0 : _lTexts * 1e9 / _lInferenceNanos;
+        }
+
+        /**
+         * @return The average time in milliseconds between the submission of a request and its result, waiting included
+         */
+        public double getAverageLatency( )
+        {
+            return ( _lRequests == 0 ) ? 0 : _lLatencyNanos / 1e6 / _lRequests;
+        }
+
+        /**
+         * @return The share of the time since the model was loaded spent running it
+         */
+        public double getUtilization( )
+        {
+            return ( _lUptimeNanos == 0 ) ? 0 : (double) _lInferenceNanos / _lUptimeNanos;
+        }
+
+        @Override
+        public String toString( )
+        {
+            return String.format( "texts=%d requests=%d batches=%d avgBatch=%.1f texts/s=%.1f avgLatencyMs=%.1f utilization=%.2f", _lTexts, _lRequests,
+                    _lBatches, getAverageBatchSize( ), getTextsPerSecond( ), getAverageLatency( ), getUtilization( ) );
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+/**
+ * Maximal marginal relevance re-ranking of retrieved segments.
+ * <p>
+ * The segments are picked one by one : each step takes the candidate maximizing <code>lambda * relevance - ( 1 - lambda ) * redundancy</code>, where
+ * the redundancy is the highest similarity with an already picked segment. A lambda of 1 keeps the relevance order, lower values skip the segments
+ * repeating what was already picked. Relevance and similarities are both cosine similarities mapped to [0, 1], as the store scores are.
+ * </p>
+ */
+public final class MmrReranker
+{
+    /**
+     * Private constructor
+     */
+    private MmrReranker( )
+    {
+    }
+
+    /**
+     * Selects a diverse subset of the candidates.
+     * 
+     * @param listCandidates
+     *            The candidates returned by the store, with their embeddings
+     * @param nMaxResults
+     *            The number of segments to keep
+     * @param dLambda
+     *            The weight of the relevance against the diversity, between 0 and 1
+     * @return The selected segments, in selection order
+     */
+    public static List<EmbeddingMatch<TextSegment>> rerank( List<EmbeddingMatch<TextSegment>> listCandidates, int nMaxResults, double dLambda )
+    {
+        int nCandidates = listCandidates.size( );
+        int nSelect = Math.min( nMaxResults, nCandidates );
+        List<EmbeddingMatch<TextSegment>> listSelected = new ArrayList<>( nSelect );
+        if ( nSelect <= 0 )
+        {
+            return listSelected;
+        }
+
+        float [ ] [ ] vectors = new float [ nCandidates] [ ];
+        for ( int i = 0; i < nCandidates; i++ )
+        {
+            Embedding embedding = listCandidates.get( i ).embedding( );
+            vectors [i] = ( embedding != null ) ? embedding.vector( ) : null;
+        }
+
+        boolean [ ] selected = new boolean [ nCandidates];
+        double [ ] redundancy = new double [ nCandidates];
+        while ( listSelected.size( ) < nSelect )
+        {
+            int nBest = -1;
+            double dBest = Double.NEGATIVE_INFINITY;
+            for ( int i = 0; i < nCandidates; i++ )
+            {
+                if ( selected [i] )
+                {
+                    continue;
+                }
+                double dMmr = dLambda * listCandidates.get( i ).score( ) - ( 1 - dLambda ) * redundancy [i];
+                if ( dMmr > dBest )
+                {
+                    dBest = dMmr;
+                    nBest = i;
+                }
+            }
+
+            selected [nBest] = true;
+            listSelected.add( listCandidates.get( nBest ) );
+            for ( int i = 0; i < nCandidates; i++ )
+            {
+                if ( !selected [i] && vectors [i] != null && vectors [nBest] != null )
+                {
+                    double dSimilarity = ( VectorQuantizer.cosine( vectors [i], vectors [nBest] ) + 1 ) / 2;
+                    redundancy [i] = Math.max( redundancy [i], dSimilarity );
+                }
+            }
+        }
+        return listSelected;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+/**
+ * Embedding model shortening the vectors of a model trained for it ( text-embedding-3 family ) : the first dimensions are kept and the vector is
+ * normalized again, which is what the dimensions parameter of the OpenAI API does.
+ */
+public class ReducedDimensionEmbeddingModel implements EmbeddingModel
+{
+    private final EmbeddingModel _model;
+    private final int _nDimension;
+
+    /**
+     * Constructor
+     * 
+     * @param model
+     *            The full dimension model
+     * @param nDimension
+     *            The dimension of the returned vectors
+     */
+    public ReducedDimensionEmbeddingModel( EmbeddingModel model, int nDimension )
+    {
+        _model = model;
+        _nDimension = nDimension;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll( List<TextSegment> textSegments )
+    {
+        Response<List<Embedding>> response = _model.embedAll( textSegments );
+        List<Embedding> listEmbeddings = new ArrayList<>( response.content( ).size( ) );
+        for ( Embedding embedding : response.content( ) )
+        {
+            listEmbeddings.add( reduce( embedding ) );
+        }
+        return Response.from( listEmbeddings, response.tokenUsage( ), response.finishReason( ) );
+    }
+
+    private Embedding reduce( Embedding embedding )
+    {
+        float [ ] vector = embedding.vector( );
+        if ( vector.length <= _nDimension )
+        {
+            return embedding;
+        }
+
+        double dNorm = 0;
+        for ( int i = 0; i < _nDimension; i++ )
+        {
+            dNorm += vector [i] * vector [i];
+        }
+        dNorm = Math.sqrt( dNorm );
+
+        float [ ] reduced = new float [ _nDimension];
+        for ( int i = 0; i < _nDimension; i++ )
+        {
+            reduced [i] = ( dNorm > 0 ) ? (float) ( vector [i] / dNorm ) : 0f;
+        }
+        return new Embedding( reduced );
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.portal.service.cache.AbstractCacheableService;
+
+/**
+ * Cache of the retrieval results. A result is keyed by the dataset and its version, the retrieval parameters and a hash of the quantized question
+ * embedding, so that a change of the dataset content or close questions lead to another entry. Only the segment ids and scores are kept, the segments
+ * themselves being held by the {@link SegmentCacheService}.
+ */
+public final class RetrievalCacheService extends AbstractCacheableService
+{
+    private static final String SERVICE_NAME = "Knowledge Retrieval Cache Service";
+    private static final RetrievalCacheService _instance = new RetrievalCacheService( );
+
+    /**
+     * Private constructor
+     */
+    private RetrievalCacheService( )
+    {
+        initCache( );
+    }
+
+    /**
+     * Returns the unique instance of the service
+     * 
+     * @return The instance
+     */
+    public static RetrievalCacheService getInstance( )
+    {
+        return _instance;
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public String getName( )
+    {
+        return SERVICE_NAME;
+    }
+
+    /**
+     * Builds the key of a retrieval
+     * 
+     * @param dataSet
+     *            The dataset
+     * @param questionEmbedding
+     *            The embedding of the question
+     * @param dMinScore
+     *            The minimum score of the segments
+     * @param filter
+     *            The metadata filter of the segments
+     * @return The key
+     */
+    public static String getKey( Dataset dataSet, Embedding questionEmbedding, double dMinScore, SegmentFilter filter )
+    {
+        return dataSet.getId( ) + ":" + dataSet.getVersion( ) + ":" + dataSet.getSearchMaxRecord( ) + ":" + dMinScore + ":" + dataSet.getMmrLambda( ) + ":"
+                + filter + ":" + hash( questionEmbedding );
+    }
+
+    /**
+     * Gets the result of a retrieval
+     * 
+     * @param strKey
+     *            The key of the retrieval
+     * @param dataSet
+     *            The dataset
+     * @return The matches, without their embedding, or null if the result or one of its segments is not in the cache
+     */
+    public List<EmbeddingMatch<TextSegment>> getMatches( String strKey, Dataset dataSet )
+    {
+        CachedResult result = (CachedResult) getFromCache( strKey );
+        if ( result == null )
+        {
+            return null;
+        }
+
+        List<EmbeddingMatch<TextSegment>> listMatches = new ArrayList<>( result._ids.length );
+        for ( int i = 0; i < result._ids.length; i++ )
+        {
+            TextSegment segment = SegmentCacheService.getInstance( ).getSegment( dataSet, result._ids [i] );
+            if ( segment == null )
+            {
+                return null;
+            }
+            listMatches.add( new EmbeddingMatch<>( result._scores [i], result._ids [i], null, segment ) );
+        }
+        return listMatches;
+    }
+
+    /**
+     * Puts the result of a retrieval in the cache
+     * 
+     * @param strKey
+     *            The key of the retrieval
+     * @param dataSet
+     *            The dataset
+     * @param listMatches
+     *            The matches
+     */
+    public void putMatches( String strKey, Dataset dataSet, List<EmbeddingMatch<TextSegment>> listMatches )
+    {
+        if ( !isCacheEnable( ) )
+        {
+            return;
+        }
+
+        String [ ] ids = new String [ listMatches.size( )];
+        double [ ] scores = new double [ listMatches.size( )];
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            EmbeddingMatch<TextSegment> match = listMatches.get( i );
+            ids [i] = match.embeddingId( );
+            scores [i] = match.score( );
+            SegmentCacheService.getInstance( ).putSegment( dataSet, ids [i], match.embedded( ) );
+        }
+        putInCache( strKey, new CachedResult( ids, scores ) );
+    }
+
+    /**
+     * Hashes an embedding whose components are rounded to the cache quantization step
+     * 
+     * @param embedding
+     *            The embedding
+     * @return The hash
+     */
+    private static String hash( Embedding embedding )
+    {
+        float [ ] vector = embedding.vector( );
+        ByteBuffer buffer = ByteBuffer.allocate( vector.length * Integer.BYTES );
+        for ( float fValue : vector )
+        {
+            buffer.putInt( Math.round( fValue * Constant.RETRIEVAL_CACHE_QUANTIZATION_LEVELS ) );
+        }
+        return DigestUtils.sha256Hex( buffer.array( ) );
+    }
+
+    /**
+     * Segment ids and scores of a retrieval
+     */
+    private static final class CachedResult implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String [ ] _ids;
+        private final double [ ] _scores;
+
+        CachedResult( String [ ] ids, double [ ] scores )
+        {
+            _ids = ids;
+            _scores = scores;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Retrieves the segments of one or several datasets relevant to a question.
+ */
+public final class RetrievalService
+{
+    private static final double MIN_SCORE = 0.7;
+    private static final int THREADS = Math.max( 1, Constant.RETRIEVAL_THREADS );
+    private static final int QUEUED_TASKS_PER_THREAD = 4;
+
+    // a search that cannot start at once is refused rather than queued behind searches that will outlast the timeout
+    private static final ExecutorService _executor = new ThreadPoolExecutor( THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>( THREADS * QUEUED_TASKS_PER_THREAD ), runnable -> {
+                Thread thread = new Thread( runnable, "knowledge-retrieval" );
+                thread.setDaemon( true );
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy( ) );
+
+    /**
+     * Private constructor
+     */
+    private RetrievalService( )
+    {
+    }
+
+    /**
+     * Finds the segments relevant to a question. Unless the dataset diversity lambda is 1, more candidates than needed are fetched and the most relevant
+     * non redundant ones are kept. Results are cached until the dataset content changes. A closed index is opened first.
+     * 
+     * @param dataSet
+     *            The dataset
+     * @param questionEmbedding
+     *            The embedding of the question
+     * @param filter
+     *            The metadata filter of the segments
+     * @return The segments, at most the search max record of the dataset
+     */
+    public static List<EmbeddingMatch<TextSegment>> findRelevant( Dataset dataSet, Embedding questionEmbedding, SegmentFilter filter )
+    {
+        IndexLifecycleService.open( dataSet );
+        String strCacheKey = RetrievalCacheService.getKey( dataSet, questionEmbedding, MIN_SCORE, filter );
+        List<EmbeddingMatch<TextSegment>> listMatches = RetrievalCacheService.getInstance( ).getMatches( strCacheKey, dataSet );
+        if ( listMatches == null )
+        {
+            // the embeddings are only needed by the re-ranking
+            List<EmbeddingMatch<TextSegment>> listCandidates = ElasticStoreService.getEmbeddingStore( dataSet ).findRelevant( questionEmbedding,
+                    getCandidateCount( dataSet ), MIN_SCORE, filter, isReranked( dataSet ) );
+            listMatches = select( dataSet, listCandidates );
+            RetrievalCacheService.getInstance( ).putMatches( strCacheKey, dataSet, listMatches );
+        }
+        return listMatches;
+    }
+
+    /**
+     * Finds the segments relevant to a question in several datasets. The datasets are searched concurrently and their results merged by reciprocal rank
+     * fusion : the scores of datasets using different embedding models are not comparable, so a segment is ranked by its rank within its dataset. A dataset
+     * whose search fails, does not answer within the retrieval timeout or cannot be scheduled because the retrieval threads are saturated is left out of
+     * the results.
+     * 
+     * @param listDatasets
+     *            The datasets, the first one giving the number of results
+     * @param strQuestion
+     *            The question
+     * @param filter
+     *            The metadata filter of the segments
+     * @return The segments, at most the search max record of the first dataset
+     */
+    public static List<EmbeddingMatch<TextSegment>> findRelevant( List<Dataset> listDatasets, String strQuestion, SegmentFilter filter )
+    {
+        Dataset primary = listDatasets.get( 0 );
+        if ( listDatasets.size( ) == 1 )
+        {
+            return findRelevant( primary, EmbeddingModelService.getEmbeddingModel( primary ).embed( strQuestion ).content( ), filter );
+        }
+
+        // The question is embedded once per model, datasets sharing a model share the embedding
+        Map<EmbeddingModel, CompletableFuture<Embedding>> mapEmbeddings = new IdentityHashMap<>( );
+        List<CompletableFuture<List<EmbeddingMatch<TextSegment>>>> listSearches = new ArrayList<>( );
+        for ( Dataset dataSet : listDatasets )
+        {
+            CompletableFuture<Embedding> embedding = mapEmbeddings.computeIfAbsent( EmbeddingModelService.getEmbeddingModel( dataSet ),
+                    model -> submit( ( ) -> model.embed( strQuestion ).content( ) ) );
+            listSearches.add( embedding.thenCompose( questionEmbedding -> submit( ( ) -> findRelevant( dataSet, questionEmbedding, filter ) ) ) );
+        }
+
+        long lDeadline = System.nanoTime( ) + TimeUnit.MILLISECONDS.toNanos( Constant.RETRIEVAL_TIMEOUT_MILLIS );
+        List<EmbeddingMatch<TextSegment>> listMerged = new ArrayList<>( );
+        Map<EmbeddingMatch<TextSegment>, Double> mapFusedScores = new IdentityHashMap<>( );
+        for ( int i = 0; i < listSearches.size( ); i++ )
+        {
+            CompletableFuture<List<EmbeddingMatch<TextSegment>>> search = listSearches.get( i );
+            try
+            {
+                List<EmbeddingMatch<TextSegment>> listMatches = search.get( Math.max( 0, lDeadline - System.nanoTime( ) ), TimeUnit.NANOSECONDS );
+                for ( int nRank = 0; nRank < listMatches.size( ); nRank++ )
+                {
+                    mapFusedScores.put( listMatches.get( nRank ), 1.0 / ( Constant.RETRIEVAL_RRF_RANK_CONSTANT + nRank + 1 ) );
+                }
+                listMerged.addAll( listMatches );
+            }
+            catch( TimeoutException e )
+            {
+                search.cancel( true );
+                AppLogService.error( "Knowledge retrieval : dataset " + listDatasets.get( i ).getId( ) + " skipped, no answer within "
+                        + Constant.RETRIEVAL_TIMEOUT_MILLIS + " ms" );
+            }
+            catch( ExecutionException e )
+            {
+                Throwable cause = ( e.getCause( ) instanceof CompletionException ) ? e.getCause( ).getCause( ) : e.getCause( );
+                AppLogService.error( "Knowledge retrieval : dataset " + listDatasets.get( i ).getId( ) + " skipped : " + cause, cause );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread( ).interrupt( );
+                break;
+            }
+        }
+
+        // the sort is stable : on equal ranks the segments of the first datasets come first
+        listMerged.sort( Comparator.comparingDouble( ( EmbeddingMatch<TextSegment> match ) -> mapFusedScores.get( match ) ).reversed( ) );
+        int nMaxResults = primary.getSearchMaxRecord( );
+        return listMerged.size( ) > nMaxResults ? new ArrayList<>( listMerged.subList( 0, Math.max( 0, nMaxResults ) ) ) : listMerged;
+    }
+
+    /**
+     * Runs a task on the retrieval threads
+     * 
+     * @param task
+     *            The task
+     * @return The result of the task, failed at once if the retrieval threads are saturated
+     */
+    private static <T> CompletableFuture<T> submit( Supplier<T> task )
+    {
+        try
+        {
+            return CompletableFuture.supplyAsync( task, _executor );
+        }
+        catch( RejectedExecutionException e )
+        {
+            CompletableFuture<T> rejected = new CompletableFuture<>( );
+            rejected.completeExceptionally( e );
+            return rejected;
+        }
+    }
+
+    /**
+     * Gets the number of candidates to fetch for a dataset
+     * 
+     * @param dataSet
+     *            The dataset
+     * @return The search max record, multiplied by the fetch factor when the results are re-ranked
+     */
+    private static int getCandidateCount( Dataset dataSet )
+    {
+        return isReranked( dataSet ) ? dataSet.getSearchMaxRecord( ) * Math.max( 1, Constant.MMR_FETCH_FACTOR ) : dataSet.getSearchMaxRecord( );
+    }
+
+    /**
+     * Keeps the segments to return among candidates sorted by decreasing score
+     * 
+     * @param dataSet
+     *            The dataset
+     * @param listCandidates
+     *            The candidates
+     * @return The segments kept
+     */
+    private static List<EmbeddingMatch<TextSegment>> select( Dataset dataSet, List<EmbeddingMatch<TextSegment>> listCandidates )
+    {
+        int nMaxResults = dataSet.getSearchMaxRecord( );
+        if ( isReranked( dataSet ) )
+        {
+            return MmrReranker.rerank( listCandidates, nMaxResults, Math.max( 0, dataSet.getMmrLambda( ) ) );
+        }
+        return listCandidates.size( ) > nMaxResults ? new ArrayList<>( listCandidates.subList( 0, Math.max( 0, nMaxResults ) ) ) : listCandidates;
+    }
+
+    /**
+     * Tells whether the candidates of a dataset are re-ranked for diversity
+     * 
+     * @param dataSet
+     *            The dataset
+     * @return true if the diversity lambda is below 1 and more than one result is expected
+     */
+    private static boolean isReranked( Dataset dataSet )
+    {
+        return dataSet.getMmrLambda( ) < 1 && dataSet.getSearchMaxRecord( ) > 1;
+    }
+}
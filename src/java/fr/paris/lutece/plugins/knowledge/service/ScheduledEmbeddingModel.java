@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.List;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+/**
+ * Embedding model sending its requests through a lane of the {@link EmbeddingScheduler}.
+ */
+public class ScheduledEmbeddingModel implements EmbeddingModel
+{
+    private final EmbeddingModel _model;
+    private final EmbeddingScheduler.Lane _lane;
+
+    /**
+     * Constructor
+     * 
+     * @param model
+     *            The model sending the requests to the provider
+     * @param lane
+     *            The lane of the requests
+     */
+    public ScheduledEmbeddingModel( EmbeddingModel model, EmbeddingScheduler.Lane lane )
+    {
+        _model = model;
+        _lane = lane;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll( List<TextSegment> textSegments )
+    {
+        int nTokens = 0;
+        for ( TextSegment segment : textSegments )
+        {
+            nTokens += EmbeddingBatcher.estimateTokenCount( segment.text( ) );
+        }
+        return EmbeddingScheduler.run( _lane, textSegments.size( ), nTokens, ( ) -> _model.embedAll( textSegments ) );
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.portal.service.cache.AbstractCacheableService;
+
+/**
+ * Cache of the segments returned by the retrievals, shared by the cached results referencing them.
+ */
+public final class SegmentCacheService extends AbstractCacheableService
+{
+    private static final String SERVICE_NAME = "Knowledge Segment Cache Service";
+    private static final SegmentCacheService _instance = new SegmentCacheService( );
+
+    /**
+     * Private constructor
+     */
+    private SegmentCacheService( )
+    {
+        initCache( );
+    }
+
+    /**
+     * Returns the unique instance of the service
+     * 
+     * @return The instance
+     */
+    public static SegmentCacheService getInstance( )
+    {
+        return _instance;
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public String getName( )
+    {
+        return SERVICE_NAME;
+    }
+
+    /**
+     * Gets a segment
+     * 
+     * @param dataSet
+     *            The dataset of the segment
+     * @param strSegmentId
+     *            The id of the segment in the vector store
+     * @return The segment, or null if it is not in the cache
+     */
+    public TextSegment getSegment( Dataset dataSet, String strSegmentId )
+    {
+        CachedSegment segment = (CachedSegment) getFromCache( getKey( dataSet, strSegmentId ) );
+        return segment != null ? TextSegment.from( segment._strText, new Metadata( new HashMap<>( segment._mapMetadata ) ) ) : null;
+    }
+
+    /**
+     * Puts a segment in the cache
+     * 
+     * @param dataSet
+     *            The dataset of the segment
+     * @param strSegmentId
+     *            The id of the segment in the vector store
+     * @param segment
+     *            The segment
+     */
+    public void putSegment( Dataset dataSet, String strSegmentId, TextSegment segment )
+    {
+        putInCache( getKey( dataSet, strSegmentId ), new CachedSegment( segment ) );
+    }
+
+    private static String getKey( Dataset dataSet, String strSegmentId )
+    {
+        return dataSet.getId( ) + ":" + strSegmentId;
+    }
+
+    /**
+     * Text and metadata of a segment
+     */
+    private static final class CachedSegment implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String _strText;
+        private final HashMap<String, String> _mapMetadata;
+
+        CachedSegment( TextSegment segment )
+        {
+            _strText = segment.text( );
+            Map<String, String> mapMetadata = segment.metadata( ) != null ? segment.metadata( ).asMap( ) : new HashMap<>( );
+            _mapMetadata = new HashMap<>( mapMetadata );
+        }
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import dev.langchain4j.data.document.Metadata;
+
+/**
+ * Filter on the metadata of the segments, applied by the stores before ranking the vectors.
+ * <p>
+ * A filter is a list of conditions joined by <code>and</code>. A condition compares a metadata key with a value ( <code>file_id = 12</code>,
+ * <code>page &gt;= 3</code> ), a list of values ( <code>file_id in (12, 15)</code> ) or a prefix ( <code>file_name = 'guide_2023*'</code> ). Values
+ * containing spaces are quoted.
+ * </p>
+ */
+public final class SegmentFilter
+{
+    public static final String KEY_FILE_ID = "file_id";
+    public static final String KEY_FILE_NAME = "file_name";
+    public static final String KEY_PAGE = "page";
+    public static final String KEY_SECTION = "section";
+    /** Hash of a segment, stored to detect the unchanged segments of a modified file. It cannot be filtered on */
+    public static final String KEY_TEXT_HASH = "text_hash";
+
+    private static final List<String> KEYS = Arrays.asList( KEY_FILE_ID, KEY_FILE_NAME, KEY_PAGE, KEY_SECTION );
+    private static final List<String> NUMERIC_KEYS = Arrays.asList( KEY_FILE_ID, KEY_PAGE );
+    private static final Pattern PATTERN_IN = Pattern.compile( "(?i)^(\\w+)\\s+in\\s*\\((.*)\\)$" );
+    private static final Pattern PATTERN_COMPARISON = Pattern.compile( "^(\\w+)\\s*(>=|<=|=|>|<)\\s*(.+)$" );
+    private static final String WILDCARD = "*";
+
+    private static final SegmentFilter EMPTY = new SegmentFilter( Collections.emptyList( ) );
+
+    /**
+     * Operators of the conditions
+     */
+    public enum Operator
+    {
+        EQUALS, IN, PREFIX, GREATER_THAN, GREATER_OR_EQUALS, LESS_THAN, LESS_OR_EQUALS
+    }
+
+    /**
+     * Condition on a metadata key
+     */
+    public static final class Condition
+    {
+        private final String _strKey;
+        private final Operator _operator;
+        private final List<String> _listValues;
+
+        private Condition( String strKey, Operator operator, List<String> listValues )
+        {
+            _strKey = strKey;
+            _operator = operator;
+            _listValues = Collections.unmodifiableList( listValues );
+        }
+
+        /**
+         * @return The metadata key
+         */
+        public String getKey( )
+        {
+            return _strKey;
+        }
+
+        /**
+         * @return The operator
+         */
+        public Operator getOperator( )
+        {
+            return _operator;
+        }
+
+        /**
+         * @return The values, one unless the operator is IN
+         */
+        public List<String> getValues( )
+        {
+            return _listValues;
+        }
+
+        /**
+         * @return The single value of the condition
+         */
+        public String getValue( )
+        {
+            return _listValues.get( 0 );
+        }
+
+        /**
+         * @return true if the key holds numbers
+         */
+        public boolean isNumeric( )
+        {
+            return NUMERIC_KEYS.contains( _strKey );
+        }
+
+        /**
+         * @return A canonical form of the condition
+         */
+        @Override
+        public String toString( )
+        {
+            return _strKey + " " + _operator + " " + _listValues;
+        }
+
+        private boolean test( String strActual )
+        {
+            if ( strActual == null )
+            {
+                return false;
+            }
+            switch( _operator )
+            {
+                case EQUALS:
+                    return compare( strActual, getValue( ) ) == 0;
+                case IN:
+                    for ( String strValue : _listValues )
+                    {
+                        if ( compare( strActual, strValue ) == 0 )
+                        {
+                            return true;
+                        }
+                    }
+                    return false;
+                case PREFIX:
+                    return strActual.startsWith( getValue( ) );
+                case GREATER_THAN:
+                    return compare( strActual, getValue( ) ) > 0;
+                case GREATER_OR_EQUALS:
+                    return compare( strActual, getValue( ) ) >= 0;
+                case LESS_THAN:
+                    return compare( strActual, getValue( ) ) < 0;
+                default:
+                    return compare( strActual, getValue( ) ) <= 0;
+            }
+        }
+
+        private int compare( String strActual, String strValue )
+        {
+            if ( isNumeric( ) )
+            {
+                try
+                {
+                    return Double.compare( Double.parseDouble( strActual ), Double.parseDouble( strValue ) );
+                }
+                catch( NumberFormatException e )
+                {
+                    return -1;
+                }
+            }
+            return strActual.compareTo( strValue );
+        }
+    }
+
+    private final List<Condition> _listConditions;
+
+    private SegmentFilter( List<Condition> listConditions )
+    {
+        _listConditions = Collections.unmodifiableList( listConditions );
+    }
+
+    /**
+     * Returns the filter keeping all the segments.
+     * 
+     * @return The empty filter
+     */
+    public static SegmentFilter none( )
+    {
+        return EMPTY;
+    }
+
+    /**
+     * Parses a filter expression.
+     * 
+     * @param strExpression
+     *            The expression, may be null or blank
+     * @return The filter
+     * @throws IllegalArgumentException
+     *             if the expression is not valid
+     */
+    public static SegmentFilter parse( String strExpression )
+    {
+        if ( strExpression == null || strExpression.trim( ).isEmpty( ) )
+        {
+            return EMPTY;
+        }
+
+        List<Condition> listConditions = new ArrayList<>( );
+        for ( String strCondition : splitConditions( strExpression ) )
+        {
+            listConditions.add( parseCondition( strCondition.trim( ) ) );
+        }
+        return new SegmentFilter( listConditions );
+    }
+
+    /**
+     * Tells whether a filter expression can be parsed.
+     * 
+     * @param strExpression
+     *            The expression, may be null or blank
+     * @return true if the expression is valid
+     */
+    public static boolean isValid( String strExpression )
+    {
+        try
+        {
+            parse( strExpression );
+            return true;
+        }
+        catch( IllegalArgumentException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the filter keeps all the segments
+     */
+    public boolean isEmpty( )
+    {
+        return _listConditions.isEmpty( );
+    }
+
+    /**
+     * @return The conditions, all of them must be met
+     */
+    public List<Condition> getConditions( )
+    {
+        return _listConditions;
+    }
+
+    /**
+     * @return A canonical form of the filter, equal for filters made of the same conditions
+     */
+    @Override
+    public String toString( )
+    {
+        return _listConditions.stream( ).map( Condition::toString ).sorted( ).collect( Collectors.joining( " and " ) );
+    }
+
+    /**
+     * Tells whether a segment meets the filter.
+     * 
+     * @param metadata
+     *            The metadata of the segment, may be null
+     * @return true if the segment is kept
+     */
+    public boolean test( Metadata metadata )
+    {
+        for ( Condition condition : _listConditions )
+        {
+            if ( !condition.test( ( metadata != null ) ? metadata.get( condition.getKey( ) ) : null ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Condition parseCondition( String strCondition )
+    {
+        Matcher matcher = PATTERN_IN.matcher( strCondition );
+        if ( matcher.matches( ) )
+        {
+            List<String> listValues = new ArrayList<>( );
+            for ( String strValue : splitValues( matcher.group( 2 ) ) )
+            {
+                listValues.add( unquote( strValue ) );
+            }
+            if ( listValues.isEmpty( ) )
+            {
+                throw new IllegalArgumentException( "Empty value list in the filter condition : " + strCondition );
+            }
+            return new Condition( checkKey( matcher.group( 1 ) ), Operator.IN, checkValues( matcher.group( 1 ), listValues ) );
+        }
+
+        matcher = PATTERN_COMPARISON.matcher( strCondition );
+        if ( !matcher.matches( ) )
+        {
+            throw new IllegalArgumentException( "Invalid filter condition : " + strCondition );
+        }
+        String strKey = checkKey( matcher.group( 1 ) );
+        String strRawValue = matcher.group( 3 ).trim( );
+        String strValue = unquote( strRawValue );
+        Operator operator;
+        switch( matcher.group( 2 ) )
+        {
+            case ">":
+                operator = Operator.GREATER_THAN;
+                break;
+            case ">=":
+                operator = Operator.GREATER_OR_EQUALS;
+                break;
+            case "<":
+                operator = Operator.LESS_THAN;
+                break;
+            case "<=":
+                operator = Operator.LESS_OR_EQUALS;
+                break;
+            default:
+                operator = Operator.EQUALS;
+                if ( strValue.endsWith( WILDCARD ) && !NUMERIC_KEYS.contains( strKey ) )
+                {
+                    operator = Operator.PREFIX;
+                    strValue = strValue.substring( 0, strValue.length( ) - 1 );
+                }
+                break;
+        }
+        if ( operator != Operator.EQUALS && operator != Operator.PREFIX && !NUMERIC_KEYS.contains( strKey ) )
+        {
+            throw new IllegalArgumentException( "The key " + strKey + " cannot be compared with " + matcher.group( 2 ) );
+        }
+        return new Condition( strKey, operator, checkValues( strKey, Collections.singletonList( strValue ) ) );
+    }
+
+    private static List<String> checkValues( String strKey, List<String> listValues )
+    {
+        if ( NUMERIC_KEYS.contains( strKey ) )
+        {
+            for ( String strValue : listValues )
+            {
+                try
+                {
+                    Double.parseDouble( strValue );
+                }
+                catch( NumberFormatException e )
+                {
+                    throw new IllegalArgumentException( "The key " + strKey + " expects numbers : " + strValue, e );
+                }
+            }
+        }
+        return listValues;
+    }
+
+    private static String checkKey( String strKey )
+    {
+        if ( !KEYS.contains( strKey ) )
+        {
+            throw new IllegalArgumentException( "Unknown filter key : " + strKey );
+        }
+        return strKey;
+    }
+
+    /**
+     * Splits an expression on the <code>and</code> keywords found outside quotes and parentheses.
+     */
+    private static List<String> splitConditions( String strExpression )
+    {
+        List<String> listConditions = new ArrayList<>( );
+        int nStart = 0;
+        int nDepth = 0;
+        char cQuote = 0;
+        for ( int i = 0; i < strExpression.length( ); i++ )
+        {
+            char c = strExpression.charAt( i );
+            if ( cQuote != 0 )
+            {
+                cQuote = ( c == cQuote ) ? 0 : cQuote;
+            }
+            else
+                if ( c == '\'' || c == '"' )
+                {
+                    cQuote = c;
+                }
+                else
+                    if ( c == '(' || c == ')' )
+                    {
+                        nDepth += ( c == '(' ) ? 1 : -1;
+                    }
+                    else
+                        if ( nDepth == 0 && isAnd( strExpression, i ) )
+                        {
+                            listConditions.add( strExpression.substring( nStart, i ) );
+                            nStart = i + 3;
+                            i += 2;
+                        }
+        }
+        if ( cQuote != 0 || nDepth != 0 )
+        {
+            throw new IllegalArgumentException( "Unbalanced quotes or parentheses in the filter : " + strExpression );
+        }
+        listConditions.add( strExpression.substring( nStart ) );
+        for ( String strCondition : listConditions )
+        {
+            if ( strCondition.trim( ).isEmpty( ) )
+            {
+                throw new IllegalArgumentException( "Empty condition in the filter : " + strExpression );
+            }
+        }
+        return listConditions;
+    }
+
+    private static boolean isAnd( String strExpression, int nIndex )
+    {
+        return strExpression.regionMatches( true, nIndex, "and", 0, 3 ) && nIndex > 0 && Character.isWhitespace( strExpression.charAt( nIndex - 1 ) )
+                && nIndex + 3 < strExpression.length( ) && Character.isWhitespace( strExpression.charAt( nIndex + 3 ) );
+    }
+
+    /**
+     * Splits a comma separated value list, keeping the commas inside quotes.
+     */
+    private static List<String> splitValues( String strValues )
+    {
+        List<String> listValues = new ArrayList<>( );
+        StringBuilder sbValue = new StringBuilder( );
+        char cQuote = 0;
+        for ( char c : strValues.toCharArray( ) )
+        {
+            if ( cQuote == 0 && c == ',' )
+            {
+                listValues.add( sbValue.toString( ).trim( ) );
+                sbValue.setLength( 0 );
+                continue;
+            }
+            if ( cQuote == 0 && ( c == '\'' || c == '"' ) )
+            {
+                cQuote = c;
+            }
+            else
+                if ( c == cQuote )
+                {
+                    cQuote = 0;
+                }
+            sbValue.append( c );
+        }
+        if ( sbValue.toString( ).trim( ).length( ) > 0 )
+        {
+            listValues.add( sbValue.toString( ).trim( ) );
+        }
+        return listValues;
+    }
+
+    private static String unquote( String strValue )
+    {
+        String strTrimmed = strValue.trim( );
+        if ( strTrimmed.length( ) >= 2 && ( strTrimmed.charAt( 0 ) == '\'' || strTrimmed.charAt( 0 ) == '"' )
+                && strTrimmed.charAt( strTrimmed.length( ) - 1 ) == strTrimmed.charAt( 0 ) )
+        {
+            return strTrimmed.substring( 1, strTrimmed.length( ) - 1 );
+        }
+        return strTrimmed;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.Tokenizer;
+
+/**
+ * Splits documents into segments measured in tokens of the embedding model. The text is cut at the coarsest boundary that brings its pieces under
+ * the segment size : sections ( several blank lines or headings ), then paragraphs, lines, sentences and words, and the pieces are packed into
+ * segments as large as the size allows. Each segment may start with the last tokens of the previous one, so that a passage cut in two can still be
+ * found.
+ */
+public class TokenAwareDocumentSplitter implements DocumentSplitter
+{
+    private static final String METADATA_INDEX = "index";
+    private static final Pattern [ ] LEVELS = {
+            Pattern.compile( "\\n[ \\t]*\\n(?:[ \\t]*\\n)+\\s*|\\n\\s*(?=#{1,6}\\s)" ), // sections
+            Pattern.compile( "\\n[ \\t]*\\n\\s*" ), // paragraphs
+            Pattern.compile( "\\s*\\n\\s*" ), // lines
+            Pattern.compile( "(?<=[.!?;:…])\\s+" ), // sentences
+            Pattern.compile( "\\s+" ) // words
+    };
+    private static final String [ ] SEPARATORS = {
+            "\n\n", "\n\n", "\n", " ", " "
+    };
+    private static final int LEVEL_SENTENCE = 3;
+
+    private final Tokenizer _tokenizer;
+    private final int _nMaxTokens;
+    private final int _nOverlapTokens;
+
+    /**
+     * Constructor
+     * 
+     * @param tokenizer
+     *            The tokenizer of the embedding model
+     * @param nMaxTokens
+     *            The maximum number of tokens of a segment
+     * @param nOverlapTokens
+     *            The maximum number of tokens of a segment repeated at the start of the next one
+     */
+    public TokenAwareDocumentSplitter( Tokenizer tokenizer, int nMaxTokens, int nOverlapTokens )
+    {
+        if ( nMaxTokens <= 0 )
+        {
+            throw new IllegalArgumentException( "The maximum number of tokens of a segment must be positive" );
+        }
+        _tokenizer = tokenizer;
+        _nMaxTokens = nMaxTokens;
+        _nOverlapTokens = Math.max( 0, Math.min( nOverlapTokens, nMaxTokens / 2 ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<TextSegment> split( Document document )
+    {
+        List<Piece> listPieces = new ArrayList<>( );
+        collect( document.text( ), 0, SEPARATORS [0], listPieces );
+
+        List<TextSegment> listSegments = new ArrayList<>( );
+        List<Piece> listCurrent = new ArrayList<>( );
+        int nTokens = 0;
+        boolean bNewContent = false;
+        for ( Piece piece : listPieces )
+        {
+            // one more token for the separator
+            if ( bNewContent && nTokens + 1 + piece._nTokens > _nMaxTokens )
+            {
+                listSegments.add( toSegment( listCurrent, document, listSegments.size( ) ) );
+                listCurrent = overlap( listCurrent, _nMaxTokens - 1 - piece._nTokens );
+                nTokens = 0;
+                for ( Piece overlapPiece : listCurrent )
+                {
+                    nTokens += overlapPiece._nTokens + 1;
+                }
+            }
+            nTokens += listCurrent.isEmpty( ) ? piece._nTokens : piece._nTokens + 1;
+            listCurrent.add( piece );
+            bNewContent = true;
+        }
+        if ( bNewContent )
+        {
+            listSegments.add( toSegment( listCurrent, document, listSegments.size( ) ) );
+        }
+        return listSegments;
+    }
+
+    /**
+     * Cuts a text into pieces under the segment size, at the coarsest boundary possible
+     * 
+     * @param strText
+     *            The text
+     * @param nLevel
+     *            The first boundary level tried
+     * @param strSeparator
+     *            The separator between the text and the text before it
+     * @param listPieces
+     *            The list receiving the pieces
+     */
+    private void collect( String strText, int nLevel, String strSeparator, List<Piece> listPieces )
+    {
+        String strTrimmed = strText.trim( );
+        if ( strTrimmed.isEmpty( ) )
+        {
+            return;
+        }
+        int nTokens = _tokenizer.estimateTokenCountInText( strTrimmed );
+        if ( nTokens <= _nMaxTokens )
+        {
+            listPieces.add( new Piece( strTrimmed, nTokens, strSeparator ) );
+            return;
+        }
+        for ( int nCurrent = nLevel; nCurrent < LEVELS.length; nCurrent++ )
+        {
+            String [ ] parts = LEVELS [nCurrent].split( strTrimmed );
+            if ( parts.length > 1 )
+            {
+                for ( int i = 0; i < parts.length; i++ )
+                {
+                    collect( parts [i], nCurrent + 1, ( i == 0 ) ? strSeparator : SEPARATORS [nCurrent], listPieces );
+                }
+                return;
+            }
+        }
+        cut( strTrimmed, strSeparator, listPieces );
+    }
+
+    /**
+     * Cuts a text without any boundary ( e.g. a very long word or a line of digits ) into pieces of the segment size
+     * 
+     * @param strText
+     *            The text
+     * @param strSeparator
+     *            The separator between the text and the text before it
+     * @param listPieces
+     *            The list receiving the pieces
+     */
+    private void cut( String strText, String strSeparator, List<Piece> listPieces )
+    {
+        String strRest = strText;
+        String strPieceSeparator = strSeparator;
+        while ( !strRest.isEmpty( ) )
+        {
+            int nLow = 1;
+            int nHigh = strRest.length( );
+            while ( nLow < nHigh )
+            {
+                int nMiddle = ( nLow + nHigh + 1 ) >>> 1;
+                if ( _tokenizer.estimateTokenCountInText( strRest.substring( 0, nMiddle ) ) <= _nMaxTokens )
+                {
+                    nLow = nMiddle;
+                }
+                else
+                {
+                    nHigh = nMiddle - 1;
+                }
+            }
+            String strPiece = strRest.substring( 0, nLow );
+            listPieces.add( new Piece( strPiece, _tokenizer.estimateTokenCountInText( strPiece ), strPieceSeparator ) );
+            strRest = strRest.substring( nLow );
+            strPieceSeparator = "";
+        }
+    }
+
+    /**
+     * Selects the end of a segment repeated at the start of the next one : the last pieces within the overlap, or the last sentences or words of the
+     * last piece when it is larger than the overlap
+     * 
+     * @param listSegmentPieces
+     *            The pieces of the segment
+     * @param nRoom
+     *            The number of tokens left by the first piece of the next segment
+     * @return The pieces starting the next segment
+     */
+    private List<Piece> overlap( List<Piece> listSegmentPieces, int nRoom )
+    {
+        int nBudget = Math.min( _nOverlapTokens, nRoom );
+        List<Piece> listOverlap = new ArrayList<>( );
+        if ( nBudget <= 0 )
+        {
+            return listOverlap;
+        }
+        int nTokens = 0;
+        for ( int i = listSegmentPieces.size( ) - 1; i >= 0; i-- )
+        {
+            Piece piece = listSegmentPieces.get( i );
+            if ( nTokens + piece._nTokens + 1 > nBudget )
+            {
+                if ( listOverlap.isEmpty( ) )
+                {
+                    Piece tail = tail( piece._strText, nBudget );
+                    if ( tail != null )
+                    {
+                        listOverlap.add( tail );
+                    }
+                }
+                break;
+            }
+            listOverlap.add( 0, piece );
+            nTokens += piece._nTokens + 1;
+        }
+        return listOverlap;
+    }
+
+    /**
+     * Builds the longest end of a text made of whole sentences, or else of whole words, within a number of tokens
+     * 
+     * @param strText
+     *            The text
+     * @param nBudget
+     *            The maximum number of tokens
+     * @return The end of the text, or null if not even its last word fits
+     */
+    private Piece tail( String strText, int nBudget )
+    {
+        for ( int nLevel = LEVEL_SENTENCE; nLevel < LEVELS.length; nLevel++ )
+        {
+            String [ ] parts = LEVELS [nLevel].split( strText );
+            String strTail = null;
+            int nTokens = 0;
+            for ( int i = parts.length - 1; i > 0; i-- )
+            {
+                String strCandidate = ( strTail == null ) ? parts [i] : parts [i] + SEPARATORS [nLevel] + strTail;
+                int nCandidateTokens = _tokenizer.estimateTokenCountInText( strCandidate );
+                if ( nCandidateTokens > nBudget )
+                {
+                    break;
+                }
+                strTail = strCandidate;
+                nTokens = nCandidateTokens;
+            }
+            if ( strTail != null )
+            {
+                return new Piece( strTail, nTokens, SEPARATORS [nLevel] );
+            }
+        }
+        return null;
+    }
+
+    private static TextSegment toSegment( List<Piece> listPieces, Document document, int nIndex )
+    {
+        StringBuilder sbText = new StringBuilder( );
+        for ( Piece piece : listPieces )
+        {
+            if ( sbText.length( ) > 0 )
+            {
+                sbText.append( piece._strSeparator );
+            }
+            sbText.append( piece._strText );
+        }
+        return TextSegment.from( sbText.toString( ), document.metadata( ).copy( ).add( METADATA_INDEX, nIndex ) );
+    }
+
+    /**
+     * A piece of text under the segment size, with its number of tokens and the separator to put before it
+     */
+    private static final class Piece
+    {
+        private final String _strText;
+        private final int _nTokens;
+        private final String _strSeparator;
+
+        Piece( String strText, int nTokens, String strSeparator )
+        {
+            _strText = strText;
+            _nTokens = nTokens;
+            _strSeparator = strSeparator;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.input.TeeInputStream;
+
+import fr.paris.lutece.portal.service.file.IFileStoreServiceProvider;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Stores the uploaded files in the file store while copying them to a local spool file, in a single read of the upload. The ingestion job parses the
+ * spool file instead of reading the file back from the file store, and PDF and XLSX files are opened from it directly instead of being copied to a
+ * buffer first. The spool file of a file is removed once its text is extracted, and the spool files left behind ( e.g. by jobs that failed ) are
+ * purged after a while.
+ */
+public final class UploadSpoolService
+{
+    private static final String SPOOL_DIRECTORY = "knowledge-uploads";
+    private static final String SPOOL_EXTENSION = ".upload";
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Private constructor
+     */
+    private UploadSpoolService( )
+    {
+    }
+
+    /**
+     * Stores a file in the file store, and keeps a copy in the spool as it is read
+     * 
+     * @param fileStoreService
+     *            The file store
+     * @param inputStream
+     *            The content of the file, read to its end but not closed
+     * @return The key of the file in the file store
+     * @throws IOException
+     *             if the file cannot be read or stored
+     */
+    public static String store( IFileStoreServiceProvider fileStoreService, InputStream inputStream ) throws IOException
+    {
+        Path directory = getDirectory( );
+        Files.createDirectories( directory );
+        Path partFile = Files.createTempFile( directory, "part-", SPOOL_EXTENSION );
+        try
+        {
+            String strFileKey;
+            try ( OutputStream out = Files.newOutputStream( partFile ) )
+            {
+                InputStream tee = new TeeInputStream( inputStream, out, false );
+                strFileKey = fileStoreService.storeInputStream( tee );
+                // the spool file must hold the whole file, even if the file store stopped reading before its end
+                byte [ ] buffer = new byte [ BUFFER_SIZE];
+                while ( tee.read( buffer ) != -1 )
+                {
+                    // copied by the tee
+                }
+            }
+            Files.move( partFile, getPath( strFileKey ), StandardCopyOption.REPLACE_EXISTING );
+            return strFileKey;
+        }
+        catch( IOException | RuntimeException e )
+        {
+            Files.deleteIfExists( partFile );
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the spool file of a file
+     * 
+     * @param strFileKey
+     *            The key of the file in the file store
+     * @return The spool file, if the file was uploaded and its text is not extracted yet
+     */
+    public static Optional<Path> find( String strFileKey )
+    {
+        Path path = getPath( strFileKey );
+        return Files.isRegularFile( path ) ? Optional.of( path ) : Optional.empty( );
+    }
+
+    /**
+     * Removes the spool file of a file, if any
+     * 
+     * @param strFileKey
+     *            The key of the file in the file store
+     */
+    public static void remove( String strFileKey )
+    {
+        try
+        {
+            Files.deleteIfExists( getPath( strFileKey ) );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to remove the spool file of " + strFileKey, e );
+        }
+    }
+
+    /**
+     * Removes the spool files older than the configured age, e.g. the ones of the files whose ingestion failed
+     * 
+     * @return The number of removed files
+     */
+    public static int purge( )
+    {
+        Path directory = getDirectory( );
+        if ( !Files.isDirectory( directory ) )
+        {
+            return 0;
+        }
+        long lLimit = System.currentTimeMillis( ) - TimeUnit.HOURS.toMillis( Constant.UPLOAD_SPOOL_MAX_AGE_HOURS );
+        int nRemoved = 0;
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            for ( Path file : (Iterable<Path>) files::iterator )
+            {
+                if ( Files.getLastModifiedTime( file ).toMillis( ) < lLimit && Files.deleteIfExists( file ) )
+                {
+                    nRemoved++;
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            throw new UncheckedIOException( "Unable to purge the spool files", e );
+        }
+        return nRemoved;
+    }
+
+    private static Path getDirectory( )
+    {
+        return Paths.get( System.getProperty( "java.io.tmpdir" ), SPOOL_DIRECTORY );
+    }
+
+    private static Path getPath( String strFileKey )
+    {
+        // the keys of the file store are not all valid file names
+        return getDirectory( ).resolve( DigestUtils.sha256Hex( strFileKey ) + SPOOL_EXTENSION );
+    }
+}
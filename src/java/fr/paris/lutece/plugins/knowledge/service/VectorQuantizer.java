@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.util.Arrays;
+
+import fr.paris.lutece.plugins.knowledge.business.Dataset;
+
+/**
+ * Scalar ( int8 ) and binary quantization of embedding vectors.
+ * <p>
+ * Int8 codes scale each vector so that its largest component maps to 127 : the cosine similarity is scale invariant, so the codes can be compared directly
+ * ( Elasticsearch byte vectors ) or through the stored scale ( flat store ). Binary codes keep the sign of each component, packed in 64 bit words, and are
+ * compared with the Hamming distance.
+ * </p>
+ */
+public final class VectorQuantizer
+{
+    public static final String NONE = Dataset.QUANTIZATION_NONE;
+    public static final String INT8 = Dataset.QUANTIZATION_INT8;
+    public static final String BINARY = Dataset.QUANTIZATION_BINARY;
+
+    private static final float INT8_MAX = 127f;
+
+    /**
+     * Private constructor
+     */
+    private VectorQuantizer( )
+    {
+    }
+
+    /**
+     * Returns the quantization to apply, NONE for unknown or empty values.
+     * 
+     * @param strQuantization
+     *            The quantization of a dataset
+     * @return the quantization
+     */
+    public static String normalize( String strQuantization )
+    {
+        if ( INT8.equals( strQuantization ) || BINARY.equals( strQuantization ) )
+        {
+            return strQuantization;
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the size of the code of a vector.
+     * 
+     * @param strQuantization
+     *            The quantization
+     * @param nDimension
+     *            The dimension of the vectors
+     * @return the size in bytes
+     */
+    public static int codeBytes( String strQuantization, int nDimension )
+    {
+        switch( normalize( strQuantization ) )
+        {
+            case INT8:
+                return nDimension;
+            case BINARY:
+                return binaryWords( nDimension ) * Long.BYTES;
+            default:
+                return nDimension * Float.BYTES;
+        }
+    }
+
+    /**
+     * Returns the number of 64 bit words of a binary code.
+     * 
+     * @param nDimension
+     *            The dimension of the vectors
+     * @return the number of words
+     */
+    public static int binaryWords( int nDimension )
+    {
+        return ( nDimension + Long.SIZE - 1 ) / Long.SIZE;
+    }
+
+    /**
+     * Quantizes a vector to int8 codes.
+     * 
+     * @param vector
+     *            The vector
+     * @param codes
+     *            The codes to fill, of the dimension of the vector
+     * @return the factor converting the codes back to the vector ( 0 for a null vector )
+     */
+    public static float quantizeInt8( float [ ] vector, byte [ ] codes )
+    {
+        float fMax = 0f;
+        for ( float f : vector )
+        {
+            fMax = Math.max( fMax, Math.abs( f ) );
+        }
+        if ( fMax == 0f )
+        {
+            Arrays.fill( codes, (byte) 0 );
+            return 0f;
+        }
+
+        float fScale = INT8_MAX / fMax;
+        for ( int i = 0; i < vector.length; i++ )
+        {
+            codes [i] = (byte) Math.round( vector [i] * fScale );
+        }
+        return fMax / INT8_MAX;
+    }
+
+    /**
+     * Quantizes a vector to sign bits.
+     * 
+     * @param vector
+     *            The vector
+     * @param words
+     *            The words to fill, of binaryWords( dimension ) length
+     */
+    public static void quantizeBinary( float [ ] vector, long [ ] words )
+    {
+        Arrays.fill( words, 0L );
+        for ( int i = 0; i < vector.length; i++ )
+        {
+            if ( vector [i] > 0f )
+            {
+                words [i >>> 6] |= 1L << ( i & 63 );
+            }
+        }
+    }
+
+    /**
+     * Approximates the cosine of two vectors from their sign bits.
+     * 
+     * @param nHamming
+     *            The Hamming distance of the codes
+     * @param nDimension
+     *            The dimension of the vectors
+     * @return the approximated cosine
+     */
+    public static float binaryCosine( int nHamming, int nDimension )
+    {
+        return (float) Math.cos( Math.PI * nHamming / nDimension );
+    }
+
+    /**
+     * Returns the cosine similarity of two vectors.
+     * 
+     * @param a
+     *            The first vector
+     * @param b
+     *            The second vector
+     * @return the cosine similarity, 0 if a vector is null
+     */
+    public static double cosine( float [ ] a, float [ ] b )
+    {
+        double dDot = 0;
+        double dNormA = 0;
+        double dNormB = 0;
+        for ( int i = 0; i < a.length; i++ )
+        {
+            dDot += a [i] * b [i];
+            dNormA += a [i] * a [i];
+            dNormB += b [i] * b [i];
+        }
+        return ( dNormA == 0 || dNormB == 0 ) ? 0 : dDot / Math.sqrt( dNormA * dNormB );
+    }
+}
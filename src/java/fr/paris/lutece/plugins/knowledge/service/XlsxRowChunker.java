@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import dev.langchain4j.data.document.DocumentType;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.Tokenizer;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
+
+/**
+ * Splits XLSX files into segments while reading their rows, without loading the workbook. The first non empty row of each sheet is taken as the
+ * header, and each segment holds the header followed by as many rows as fit in the segment size, so that every segment can be understood on its
+ * own. A row larger than a segment is cut between its cells, or within a cell when needed, and each piece gets its own segment.
+ */
+public final class XlsxRowChunker
+{
+    private static final String CELL_SEPARATOR = " | ";
+    private static final String LINE_SEPARATOR = "\n";
+    private static final String [ ] CUT_SEPARATORS = {
+            CELL_SEPARATOR, " "
+    };
+
+    /**
+     * Private constructor
+     */
+    private XlsxRowChunker( )
+    {
+    }
+
+    /**
+     * Splits a XLSX file. The file is copied to a temporary file, so that its parts are read from the disk instead of memory.
+     * 
+     * @param inputStream
+     *            The input stream of the file
+     * @param dataSetFile
+     *            The file
+     * @param tokenizer
+     *            The tokenizer of the embedding model
+     * @param nMaxTokens
+     *            The maximum number of tokens per segment
+     * @param consumer
+     *            The consumer of the segments, called several times for large files
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public static void split( InputStream inputStream, DatasetFile dataSetFile, Tokenizer tokenizer, int nMaxTokens,
+            ElasticStoreService.SegmentConsumer consumer ) throws IOException, InterruptedException
+    {
+        Path tempFile = Files.createTempFile( "knowledge-", ".xlsx" );
+        try
+        {
+            Files.copy( inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING );
+            split( tempFile, dataSetFile, tokenizer, nMaxTokens, consumer );
+        }
+        finally
+        {
+            Files.deleteIfExists( tempFile );
+        }
+    }
+
+    /**
+     * Splits a XLSX file read from the disk
+     * 
+     * @param file
+     *            The file on the disk
+     * @param dataSetFile
+     *            The file
+     * @param tokenizer
+     *            The tokenizer of the embedding model
+     * @param nMaxTokens
+     *            The maximum number of tokens per segment
+     * @param consumer
+     *            The consumer of the segments, called several times for large files
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public static void split( Path file, DatasetFile dataSetFile, Tokenizer tokenizer, int nMaxTokens, ElasticStoreService.SegmentConsumer consumer )
+            throws IOException, InterruptedException
+    {
+        try ( OPCPackage pkg = OPCPackage.open( file.toFile( ), PackageAccess.READ ) )
+        {
+            XSSFReader reader = new XSSFReader( pkg );
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable( pkg, false );
+            DataFormatter formatter = new DataFormatter( );
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData( );
+            while ( sheets.hasNext( ) )
+            {
+                try ( InputStream sheet = sheets.next( ) )
+                {
+                    RowHandler handler = new RowHandler( dataSetFile, sheets.getSheetName( ), tokenizer, nMaxTokens, consumer );
+                    XMLReader parser = XMLHelper.newXMLReader( );
+                    parser.setContentHandler( new XSSFSheetXMLHandler( reader.getStylesTable( ), strings, handler, formatter, false ) );
+                    parser.parse( new InputSource( sheet ) );
+                    handler.flush( );
+                }
+            }
+        }
+        catch( InterruptedRuntimeException e )
+        {
+            throw e.getInterruptedException( );
+        }
+        catch( OpenXML4JException | SAXException | ParserConfigurationException e )
+        {
+            throw new IOException( "Unable to read the XLSX file " + dataSetFile.getName( ), e );
+        }
+    }
+
+    /**
+     * Builds the segments of a sheet as its rows are read, and hands them over by groups so that they are embedded while the next rows are read.
+     */
+    private static final class RowHandler implements SheetContentsHandler
+    {
+        private final DatasetFile _dataSetFile;
+        private final String _strSheetName;
+        private final Tokenizer _tokenizer;
+        private final int _nMaxTokens;
+        private final ElasticStoreService.SegmentConsumer _consumer;
+        private final int _nSegmentsPerHandover = Math.max( 1, Constant.EMBEDDING_BATCH_SIZE ) * Math.max( 1, Constant.EMBEDDING_CONCURRENCY );
+        private final List<TextSegment> _listSegments = new ArrayList<>( );
+        private final List<String> _listCells = new ArrayList<>( );
+        private String _strHeader;
+        private int _nHeaderTokens;
+        private StringBuilder _sbChunk;
+        private int _nChunkTokens;
+
+        RowHandler( DatasetFile dataSetFile, String strSheetName, Tokenizer tokenizer, int nMaxTokens, ElasticStoreService.SegmentConsumer consumer )
+        {
+            _dataSetFile = dataSetFile;
+            _strSheetName = strSheetName;
+            _tokenizer = tokenizer;
+            _nMaxTokens = nMaxTokens;
+            _consumer = consumer;
+        }
+
+        @Override
+        public void startRow( int nRowNum )
+        {
+            _listCells.clear( );
+        }
+
+        @Override
+        public void cell( String strCellReference, String strFormattedValue, XSSFComment comment )
+        {
+            int nColumn = ( strCellReference != null ) ? new CellReference( strCellReference ).getCol( ) : _listCells.size( );
+            while ( _listCells.size( ) < nColumn )
+            {
+                _listCells.add( "" );
+            }
+            _listCells.add( ( strFormattedValue != null ) ? strFormattedValue.replaceAll( "\\s+", " " ).trim( ) : "" );
+        }
+
+        @Override
+        public void endRow( int nRowNum )
+        {
+            if ( _listCells.stream( ).allMatch( String::isEmpty ) )
+            {
+                return;
+            }
+            String strLine = String.join( CELL_SEPARATOR, _listCells );
+            int nLineTokens = _tokenizer.estimateTokenCountInText( strLine );
+            if ( _strHeader == null )
+            {
+                // the header takes at most half of a segment, so that the rows keep some room
+                _strHeader = ( nLineTokens > _nMaxTokens / 2 ) ? cut( _listCells, Math.max( 1, _nMaxTokens / 2 ) ).get( 0 ) : strLine;
+                _nHeaderTokens = _tokenizer.estimateTokenCountInText( _strHeader );
+                return;
+            }
+            int nMaxRowTokens = Math.max( 1, _nMaxTokens - _nHeaderTokens );
+            if ( nLineTokens <= nMaxRowTokens )
+            {
+                addLine( strLine, nLineTokens );
+                return;
+            }
+            if ( _sbChunk != null )
+            {
+                endChunk( );
+            }
+            for ( String strPiece : cut( _listCells, nMaxRowTokens ) )
+            {
+                addLine( strPiece, _tokenizer.estimateTokenCountInText( strPiece ) );
+            }
+        }
+
+        private void addLine( String strLine, int nLineTokens )
+        {
+            if ( _sbChunk != null && _nChunkTokens + nLineTokens > _nMaxTokens )
+            {
+                endChunk( );
+            }
+            if ( _sbChunk == null )
+            {
+                _sbChunk = new StringBuilder( _strHeader );
+                _nChunkTokens = _nHeaderTokens;
+            }
+            _sbChunk.append( LINE_SEPARATOR ).append( strLine );
+            _nChunkTokens += nLineTokens;
+        }
+
+        /**
+         * Cuts the cells of a row into pieces of at most nMaxTokens tokens : between the cells, then between the words of a cell, then within a word.
+         */
+        private List<String> cut( List<String> listCells, int nMaxTokens )
+        {
+            List<String> listPieces = new ArrayList<>( );
+            cut( listCells, 0, nMaxTokens, listPieces );
+            return listPieces;
+        }
+
+        private void cut( List<String> listParts, int nLevel, int nMaxTokens, List<String> listPieces )
+        {
+            String strSeparator = CUT_SEPARATORS [nLevel];
+            int nSeparatorTokens = _tokenizer.estimateTokenCountInText( strSeparator );
+            StringBuilder sbPiece = null;
+            int nPieceTokens = 0;
+            for ( String strPart : listParts )
+            {
+                int nPartTokens = _tokenizer.estimateTokenCountInText( strPart );
+                if ( sbPiece != null && nPieceTokens + nSeparatorTokens + nPartTokens <= nMaxTokens )
+                {
+                    sbPiece.append( strSeparator ).append( strPart );
+                    nPieceTokens += nSeparatorTokens + nPartTokens;
+                    continue;
+                }
+                if ( sbPiece != null )
+                {
+                    listPieces.add( sbPiece.toString( ) );
+                    sbPiece = null;
+                }
+                if ( nPartTokens <= nMaxTokens )
+                {
+                    sbPiece = new StringBuilder( strPart );
+                    nPieceTokens = nPartTokens;
+                }
+                else
+                    if ( nLevel + 1 < CUT_SEPARATORS.length )
+                    {
+                        cut( Arrays.asList( strPart.split( Pattern.quote( CUT_SEPARATORS [nLevel + 1] ) ) ), nLevel + 1, nMaxTokens, listPieces );
+                    }
+                    else
+                    {
+                        cutCharacters( strPart, nMaxTokens, listPieces );
+                    }
+            }
+            if ( sbPiece != null )
+            {
+                listPieces.add( sbPiece.toString( ) );
+            }
+        }
+
+        private void cutCharacters( String strText, int nMaxTokens, List<String> listPieces )
+        {
+            int nStart = 0;
+            while ( nStart < strText.length( ) )
+            {
+                int nEnd = strText.length( );
+                while ( nEnd - nStart > 1 && _tokenizer.estimateTokenCountInText( strText.substring( nStart, nEnd ) ) > nMaxTokens )
+                {
+                    nEnd = nStart + ( nEnd - nStart ) / 2;
+                }
+                listPieces.add( strText.substring( nStart, nEnd ) );
+                nStart = nEnd;
+            }
+        }
+
+        /**
+         * Hands over the remaining segments of the sheet. A sheet holding only a header gets a segment with the header.
+         */
+        void flush( ) throws InterruptedException
+        {
+            if ( _sbChunk == null && _strHeader != null )
+            {
+                _sbChunk = new StringBuilder( _strHeader );
+            }
+            if ( _sbChunk != null )
+            {
+                _listSegments.add( toSegment( ) );
+                _sbChunk = null;
+            }
+            if ( !_listSegments.isEmpty( ) )
+            {
+                _consumer.accept( new ArrayList<>( _listSegments ) );
+                _listSegments.clear( );
+            }
+        }
+
+        private void endChunk( )
+        {
+            _listSegments.add( toSegment( ) );
+            _sbChunk = null;
+            if ( _listSegments.size( ) >= _nSegmentsPerHandover )
+            {
+                try
+                {
+                    _consumer.accept( new ArrayList<>( _listSegments ) );
+                }
+                catch( InterruptedException e )
+                {
+                    throw new InterruptedRuntimeException( e );
+                }
+                _listSegments.clear( );
+            }
+        }
+
+        private TextSegment toSegment( )
+        {
+            Metadata metadata = Metadata.from( "document_type", DocumentType.XLS ).add( SegmentFilter.KEY_FILE_ID, _dataSetFile.getId( ) )
+                    .add( SegmentFilter.KEY_FILE_NAME, _dataSetFile.getName( ) ).add( SegmentFilter.KEY_SECTION, _strSheetName );
+            return TextSegment.from( _sbChunk.toString( ), metadata );
+        }
+
+        @Override
+        public void headerFooter( String strText, boolean bIsHeader, String strTagName )
+        {
+            // headers and footers of the printed pages are not indexed
+        }
+    }
+
+    /**
+     * Carries an interruption through the SAX parser, whose callbacks cannot throw checked exceptions
+     */
+    private static final class InterruptedRuntimeException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        InterruptedRuntimeException( InterruptedException e )
+        {
+            super( e );
+        }
+
+        InterruptedException getInterruptedException( )
+        {
+            return (InterruptedException) getCause( );
+        }
+    }
+}
@@ -45,6 +45,8 @@ import fr.paris.lutece.portal.util.mvc.commons.annotations.View;
 import fr.paris.lutece.util.url.UrlItem;
 import fr.paris.lutece.util.html.AbstractPaginator;
 
+import org.apache.commons.lang3.math.NumberUtils;
+
 import java.util.Comparator;
 import java.util.ArrayList;
 import java.util.List;
@@ -72,6 +74,7 @@ public class BotJspBean extends AbstractManageBotsJspBean<Integer, Bot>
 
     // Parameters
     private static final String PARAMETER_ID_BOT = "id";
+    private static final String PARAMETER_ADDITIONAL_DATASETS = "additional_datasets";
 
     // Properties for page titles
     private static final String PROPERTY_PAGE_TITLE_MANAGE_BOTS = "knowledge.manage_bots.pageTitle";
@@ -193,6 +196,7 @@ public class BotJspBean extends AbstractManageBotsJspBean<Integer, Bot>
     public String doCreateBot( HttpServletRequest request ) throws AccessDeniedException
     {
         populate( _bot, request, getLocale( ) );
+        _bot.setAdditionalDatasetIds( getAdditionalDatasetIds( request ) );
 
         if ( !SecurityTokenService.getInstance( ).validate( request, ACTION_CREATE_BOT ) )
         {
@@ -319,6 +323,7 @@ public class BotJspBean extends AbstractManageBotsJspBean<Integer, Bot>
     public String doModifyBot( HttpServletRequest request ) throws AccessDeniedException
     {
         populate( _bot, request, getLocale( ) );
+        _bot.setAdditionalDatasetIds( getAdditionalDatasetIds( request ) );
 
         if ( !SecurityTokenService.getInstance( ).validate( request, ACTION_MODIFY_BOT ) )
         {
@@ -337,4 +342,29 @@ public class BotJspBean extends AbstractManageBotsJspBean<Integer, Bot>
 
         return redirectView( request, VIEW_MANAGE_BOTS );
     }
+
+    /**
+     * Reads the datasets searched in addition to the main dataset of the bot
+     * 
+     * @param request
+     *            The Http request
+     * @return The dataset ids, without the main dataset
+     */
+    private List<Integer> getAdditionalDatasetIds( HttpServletRequest request )
+    {
+        List<Integer> listDatasetIds = new ArrayList<>( );
+        String [ ] values = request.getParameterValues( PARAMETER_ADDITIONAL_DATASETS );
+        if ( values != null )
+        {
+            for ( String strValue : values )
+            {
+                int nDatasetId = NumberUtils.toInt( strValue, 0 );
+                if ( nDatasetId > 0 && nDatasetId != _bot.getDatasetId( ) && !listDatasetIds.contains( nDatasetId ) )
+                {
+                    listDatasetIds.add( nDatasetId );
+                }
+            }
+        }
+        return listDatasetIds;
+    }
 }
@@ -34,11 +34,13 @@
 
 package fr.paris.lutece.plugins.knowledge.web;
 
+import fr.paris.lutece.portal.service.i18n.I18nService;
 import fr.paris.lutece.portal.service.message.AdminMessage;
 import fr.paris.lutece.portal.service.message.AdminMessageService;
 import fr.paris.lutece.portal.service.security.SecurityTokenService;
 import fr.paris.lutece.portal.service.admin.AccessDeniedException;
 import fr.paris.lutece.portal.service.util.AppException;
+import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.util.mvc.admin.annotations.Controller;
 import fr.paris.lutece.portal.util.mvc.commons.annotations.Action;
 import fr.paris.lutece.portal.util.mvc.commons.annotations.View;
@@ -46,8 +48,11 @@ import fr.paris.lutece.portal.web.upload.MultipartHttpServletRequest;
 import fr.paris.lutece.util.url.UrlItem;
 import fr.paris.lutece.util.html.AbstractPaginator;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Comparator;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -57,9 +62,18 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.fileupload.FileItem;
 
 import fr.paris.lutece.plugins.knowledge.business.Dataset;
+import fr.paris.lutece.plugins.knowledge.business.DatasetFile;
 import fr.paris.lutece.plugins.knowledge.business.DatasetFileHome;
 import fr.paris.lutece.plugins.knowledge.business.DatasetHome;
+import fr.paris.lutece.plugins.knowledge.business.IngestionJob;
+import fr.paris.lutece.plugins.knowledge.service.BulkImportService;
 import fr.paris.lutece.plugins.knowledge.service.DataSetService;
+import fr.paris.lutece.plugins.knowledge.service.ElasticStoreService;
+import fr.paris.lutece.plugins.knowledge.service.EmbeddingModelService;
+import fr.paris.lutece.plugins.knowledge.service.EmbeddingScheduler;
+import fr.paris.lutece.plugins.knowledge.service.IndexRebuildService;
+import fr.paris.lutece.plugins.knowledge.service.IngestionJobService;
+import fr.paris.lutece.plugins.knowledge.service.LocalOnnxEmbeddingModel;
 
 /**
  * This class provides the user interface to manage Dataset features ( manage, create, modify, remove )
@@ -75,6 +89,9 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
     // Parameters
     private static final String PARAMETER_ID_DATASET = "id";
     private static final String PARAMETER_ID_DATASET_FILE = "id_dataset_file";
+    private static final String PARAMETER_ID_INGESTION_JOB = "id_ingestion_job";
+    private static final String PARAMETER_ARCHIVE = "archive";
+    private static final String PARAMETER_DIRECTORY = "directory";
 
     // Properties for page titles
     private static final String PROPERTY_PAGE_TITLE_MANAGE_DATASETS = "knowledge.manage_datasets.pageTitle";
@@ -85,11 +102,23 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
     private static final String MARK_DATASET_LIST = "dataset_list";
     private static final String MARK_DATASET = "dataset";
     private static final String MARK_DATASET_FILE_LIST = "dataset_file_list";
+    private static final String MARK_LOCAL_EMBEDDING_METRICS = "local_embedding_metrics";
+    private static final String MARK_EMBEDDING_LANE_METRICS = "embedding_lane_metrics";
+    private static final String MARK_REBUILD_PROGRESS = "rebuild_progress";
+    private static final String MARK_INGESTION_JOBS = "ingestion_jobs";
+    private static final String MARK_INGESTION_RUNNING = "ingestion_running";
+    private static final String MARK_BULK_IMPORT = "bulk_import";
+    private static final String MARK_BULK_IMPORT_COUNTS = "bulk_import_counts";
+    private static final String MARK_BULK_IMPORT_FINISHED = "bulk_import_finished";
+    private static final String MARK_IMPORT_DIRECTORY_ENABLED = "import_directory_enabled";
 
     private static final String JSP_MANAGE_DATASETS = "jsp/admin/plugins/knowledge/ManageDatasets.jsp";
 
     // Properties
     private static final String MESSAGE_CONFIRM_REMOVE_DATASET = "knowledge.message.confirmRemoveDataset";
+    private static final String MESSAGE_LOCAL_EMBEDDING_METRICS = "knowledge.manage_datasets.localEmbeddingMetrics";
+    private static final String MESSAGE_EMBEDDING_LANE_METRICS = "knowledge.manage_datasets.embeddingLaneMetrics";
+    private static final String MESSAGE_EMBEDDING_LANE_PREFIX = "knowledge.manage_datasets.embeddingLane.";
 
     // Validations
     private static final String VALIDATION_ATTRIBUTES_PREFIX = "knowledge.model.entity.dataset.attribute.";
@@ -106,14 +135,28 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
     private static final String ACTION_CONFIRM_REMOVE_DATASET = "confirmRemoveDataset";
     private static final String ACTION_ADD_DATASET_FILE = "addDatasetFile";
     private static final String ACTION_REMOVE_DATASET_FILE = "removeDatasetFile";
+    private static final String ACTION_UPDATE_DATASET_FILE = "updateDatasetFile";
+    private static final String ACTION_IMPORT_DATASET_FILES = "importDatasetFiles";
+    private static final String ACTION_REBUILD_DATASET_INDEX = "rebuildDatasetIndex";
+    private static final String ACTION_CANCEL_INGESTION_JOB = "cancelIngestionJob";
+    private static final String ACTION_RETRY_INGESTION_JOB = "retryIngestionJob";
 
     // Infos
     private static final String INFO_DATASET_CREATED = "knowledge.info.dataset.created";
     private static final String INFO_DATASET_UPDATED = "knowledge.info.dataset.updated";
     private static final String INFO_DATASET_REMOVED = "knowledge.info.dataset.removed";
+    private static final String INFO_DATASET_REBUILD_STARTED = "knowledge.info.dataset.rebuildStarted";
+    private static final String INFO_INGESTION_JOB_CANCELLED = "knowledge.info.ingestionJob.cancelled";
+    private static final String INFO_INGESTION_JOB_RETRIED = "knowledge.info.ingestionJob.retried";
+    private static final String INFO_IMPORT_STARTED = "knowledge.info.import.started";
 
     // Errors
     private static final String ERROR_RESOURCE_NOT_FOUND = "Resource not found";
+    private static final String ERROR_EMBEDDING_DIMENSION = "knowledge.error.dataset.embeddingDimension";
+    private static final String ERROR_REBUILD_RUNNING = "knowledge.error.dataset.rebuildRunning";
+    private static final String ERROR_INGESTION_JOB_NOT_CANCELLABLE = "knowledge.error.ingestionJob.notCancellable";
+    private static final String ERROR_INGESTION_JOB_NOT_RETRYABLE = "knowledge.error.ingestionJob.notRetryable";
+    private static final String ERROR_IMPORT = "knowledge.error.import";
 
     // Session variable to store working values
     private Dataset _dataset;
@@ -138,6 +181,33 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
 
         Map<String, Object> model = getPaginatedListModel( request, MARK_DATASET_LIST, _listIdDatasets, JSP_MANAGE_DATASETS );
 
+        LocalOnnxEmbeddingModel.Metrics metrics = EmbeddingModelService.getLocalModelMetrics( );
+        if ( metrics != null )
+        {
+            Object [ ] args = {
+                    metrics.getTexts( ), metrics.getBatches( ), String.format( "%.1f", metrics.getAverageBatchSize( ) ),
+                    String.format( "%.1f", metrics.getTextsPerSecond( ) ), String.format( "%.1f", metrics.getAverageLatency( ) )
+            };
+            model.put( MARK_LOCAL_EMBEDDING_METRICS, I18nService.getLocalizedString( MESSAGE_LOCAL_EMBEDDING_METRICS, args, getLocale( ) ) );
+        }
+
+        List<String> listLaneMetrics = new ArrayList<>( );
+        for ( EmbeddingScheduler.Lane lane : EmbeddingScheduler.Lane.values( ) )
+        {
+            EmbeddingScheduler.Metrics laneMetrics = EmbeddingScheduler.getMetrics( lane );
+            if ( laneMetrics.getRequests( ) > 0 )
+            {
+                Object [ ] args = {
+                        I18nService.getLocalizedString( MESSAGE_EMBEDDING_LANE_PREFIX + lane.name( ).toLowerCase( ), getLocale( ) ),
+                        laneMetrics.getRequests( ), laneMetrics.getErrors( ), laneMetrics.getTexts( ), laneMetrics.getTokens( ),
+                        String.format( "%.1f", laneMetrics.getAverageWait( ) ), String.format( "%.1f", laneMetrics.getMaxWait( ) ),
+                        String.format( "%.1f", laneMetrics.getAverageDuration( ) )
+                };
+                listLaneMetrics.add( I18nService.getLocalizedString( MESSAGE_EMBEDDING_LANE_METRICS, args, getLocale( ) ) );
+            }
+        }
+        model.put( MARK_EMBEDDING_LANE_METRICS, listLaneMetrics );
+
         return getPage( PROPERTY_PAGE_TITLE_MANAGE_DATASETS, TEMPLATE_MANAGE_DATASETS, model );
     }
 
@@ -202,7 +272,7 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
         }
 
         // Check constraints
-        if ( !validateBean( _dataset, VALIDATION_ATTRIBUTES_PREFIX ) )
+        if ( !validateBean( _dataset, VALIDATION_ATTRIBUTES_PREFIX ) || !validateEmbeddingModel( _dataset ) )
         {
             return redirectView( request, VIEW_CREATE_DATASET );
         }
@@ -245,7 +315,7 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
     {
         int nId = Integer.parseInt( request.getParameter( PARAMETER_ID_DATASET ) );
 
-        DatasetHome.remove( nId );
+        DataSetService.deleteDataset( nId );
         addInfo( INFO_DATASET_REMOVED, getLocale( ) );
         resetListId( );
 
@@ -272,6 +342,26 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
         Map<String, Object> model = getModel( );
         model.put( MARK_DATASET, _dataset );
         model.put( MARK_DATASET_FILE_LIST, DatasetFileHome.getDatasetFilesListByDataSetId( _dataset.getId( ) ) );
+        model.put( MARK_REBUILD_PROGRESS, IndexRebuildService.getProgress( _dataset.getId( ) ) );
+
+        Map<String, IngestionJob> mapJobs = new HashMap<>( );
+        boolean bRunning = false;
+        for ( IngestionJob job : IngestionJobService.getLastJobs( _dataset.getId( ) ) )
+        {
+            mapJobs.put( String.valueOf( job.getDatasetFileId( ) ), job );
+            bRunning = bRunning || job.isActive( );
+        }
+        model.put( MARK_INGESTION_JOBS, mapJobs );
+        model.put( MARK_INGESTION_RUNNING, bRunning );
+
+        BulkImportService.BulkImport bulkImport = BulkImportService.getLastImport( _dataset.getId( ) );
+        if ( bulkImport != null )
+        {
+            model.put( MARK_BULK_IMPORT, bulkImport );
+            model.put( MARK_BULK_IMPORT_COUNTS, bulkImport.getStatusCounts( mapJobs ) );
+            model.put( MARK_BULK_IMPORT_FINISHED, bulkImport.isFinished( mapJobs ) );
+        }
+        model.put( MARK_IMPORT_DIRECTORY_ENABLED, BulkImportService.isDirectoryImportEnabled( ) );
 
         model.put( SecurityTokenService.MARK_TOKEN, SecurityTokenService.getInstance( ).getToken( request, ACTION_MODIFY_DATASET ) );
 
@@ -288,6 +378,69 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
         return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
     }
 
+    /**
+     * Imports the files of a ZIP archive, or of a directory of the server
+     *
+     * @param request
+     *            The Http request
+     * @return The Jsp URL of the process result
+     */
+    @Action( ACTION_IMPORT_DATASET_FILES )
+    public String doImportDatasetFiles( HttpServletRequest request )
+    {
+        FileItem archive = null;
+        if ( request instanceof MultipartHttpServletRequest )
+        {
+            archive = ( (MultipartHttpServletRequest) request ).getFile( PARAMETER_ARCHIVE );
+        }
+        String strDirectory = request.getParameter( PARAMETER_DIRECTORY );
+        try
+        {
+            if ( archive != null && archive.getSize( ) > 0 )
+            {
+                try ( InputStream inputStream = archive.getInputStream( ) )
+                {
+                    BulkImportService.importZip( inputStream, archive.getName( ), _dataset );
+                }
+                addInfo( INFO_IMPORT_STARTED, getLocale( ) );
+            }
+            else if ( strDirectory != null && !strDirectory.trim( ).isEmpty( ) )
+            {
+                BulkImportService.importDirectory( strDirectory.trim( ), _dataset );
+                addInfo( INFO_IMPORT_STARTED, getLocale( ) );
+            }
+        }
+        catch( IOException | IllegalArgumentException e )
+        {
+            AppLogService.error( "Unable to import files into the dataset " + _dataset.getId( ), e );
+            addError( ERROR_IMPORT, getLocale( ) );
+        }
+
+        return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
+    }
+
+    /**
+     * Replaces a file of the dataset by a new version
+     *
+     * @param request
+     *            The Http request
+     * @return The Jsp URL of the process result
+     */
+    @Action( ACTION_UPDATE_DATASET_FILE )
+    public String doUpdateDatasetFile( HttpServletRequest request )
+    {
+        MultipartHttpServletRequest multipartRequest = (MultipartHttpServletRequest) request;
+        int nId = Integer.parseInt( multipartRequest.getParameter( PARAMETER_ID_DATASET_FILE ) );
+        DatasetFile datasetFile = DatasetFileHome.findByPrimaryKey( nId ).orElseThrow( ( ) -> new AppException( ERROR_RESOURCE_NOT_FOUND ) );
+        if ( datasetFile.getDatasetId( ) != _dataset.getId( ) )
+        {
+            throw new AppException( ERROR_RESOURCE_NOT_FOUND );
+        }
+        DataSetService.update( multipartRequest.getFile( "file" ), datasetFile );
+
+        return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
+    }
+
     @Action( ACTION_REMOVE_DATASET_FILE )
     public String doRemoveDatasetFile( HttpServletRequest request )
     {
@@ -297,6 +450,76 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
         return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
     }
 
+    /**
+     * Cancels the ingestion of a file
+     *
+     * @param request
+     *            The Http request
+     * @return The Jsp URL of the process result
+     */
+    @Action( ACTION_CANCEL_INGESTION_JOB )
+    public String doCancelIngestionJob( HttpServletRequest request )
+    {
+        int nId = Integer.parseInt( request.getParameter( PARAMETER_ID_INGESTION_JOB ) );
+        if ( IngestionJobService.cancel( nId ) )
+        {
+            addInfo( INFO_INGESTION_JOB_CANCELLED, getLocale( ) );
+        }
+        else
+        {
+            addError( ERROR_INGESTION_JOB_NOT_CANCELLABLE, getLocale( ) );
+        }
+
+        return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
+    }
+
+    /**
+     * Runs again the failed or cancelled ingestion of a file
+     *
+     * @param request
+     *            The Http request
+     * @return The Jsp URL of the process result
+     */
+    @Action( ACTION_RETRY_INGESTION_JOB )
+    public String doRetryIngestionJob( HttpServletRequest request )
+    {
+        int nId = Integer.parseInt( request.getParameter( PARAMETER_ID_INGESTION_JOB ) );
+        if ( IngestionJobService.retry( nId ) )
+        {
+            addInfo( INFO_INGESTION_JOB_RETRIED, getLocale( ) );
+        }
+        else
+        {
+            addError( ERROR_INGESTION_JOB_NOT_RETRYABLE, getLocale( ) );
+        }
+
+        return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
+    }
+
+    /**
+     * Rebuilds the index of a dataset in the background
+     *
+     * @param request
+     *            The Http request
+     * @return The Jsp URL of the process result
+     */
+    @Action( ACTION_REBUILD_DATASET_INDEX )
+    public String doRebuildDatasetIndex( HttpServletRequest request )
+    {
+        int nId = Integer.parseInt( request.getParameter( PARAMETER_ID_DATASET ) );
+        Dataset target = DatasetHome.findByPrimaryKey( nId ).orElseThrow( ( ) -> new AppException( ERROR_RESOURCE_NOT_FOUND ) );
+        if ( IndexRebuildService.start( target ) )
+        {
+            addInfo( INFO_DATASET_REBUILD_STARTED, getLocale( ) );
+        }
+        else
+        {
+            addError( ERROR_REBUILD_RUNNING, getLocale( ) );
+        }
+
+        return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, nId );
+    }
+
     /**
      * Process the change form of a dataset
      *
@@ -316,15 +539,102 @@ public class DatasetJspBean extends AbstractManageBotsJspBean<Integer, Dataset>
         }
 
         // Check constraints
-        if ( !validateBean( _dataset, VALIDATION_ATTRIBUTES_PREFIX ) )
+        if ( !validateBean( _dataset, VALIDATION_ATTRIBUTES_PREFIX ) || !validateEmbeddingModel( _dataset ) )
         {
             return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
         }
 
-        DatasetHome.update( _dataset );
-        addInfo( INFO_DATASET_UPDATED, getLocale( ) );
+        Dataset stored = DatasetHome.findByPrimaryKey( _dataset.getId( ) ).orElseThrow( ( ) -> new AppException( ERROR_RESOURCE_NOT_FOUND ) );
+        if ( isRebuildNeeded( stored, _dataset ) && !DatasetFileHome.getDatasetFilesListByDataSetId( _dataset.getId( ) ).isEmpty( ) )
+        {
+            if ( IndexRebuildService.isRunning( _dataset.getId( ) ) )
+            {
+                addError( ERROR_REBUILD_RUNNING, getLocale( ) );
+                return redirect( request, VIEW_MODIFY_DATASET, PARAMETER_ID_DATASET, _dataset.getId( ) );
+            }
+
+            // The current vectors are searched with the current settings until the rebuilt index replaces them
+            Dataset target = DatasetHome.findByPrimaryKey( _dataset.getId( ) ).orElseThrow( ( ) -> new AppException( ERROR_RESOURCE_NOT_FOUND ) );
+            target.setVectorStore( _dataset.getVectorStore( ) );
+            target.setQuantization( _dataset.getQuantization( ) );
+            target.setRecordMaxTokens( _dataset.getRecordMaxTokens( ) );
+            target.setRecordOverlapTokens( _dataset.getRecordOverlapTokens( ) );
+            target.setEmbeddingModel( _dataset.getEmbeddingModel( ) );
+            target.setEmbeddingDimension( _dataset.getEmbeddingDimension( ) );
+            _dataset.setVectorStore( stored.getVectorStore( ) );
+            _dataset.setRecordMaxTokens( stored.getRecordMaxTokens( ) );
+            _dataset.setRecordOverlapTokens( stored.getRecordOverlapTokens( ) );
+            _dataset.setEmbeddingModel( stored.getEmbeddingModel( ) );
+            _dataset.setEmbeddingDimension( stored.getEmbeddingDimension( ) );
+            DatasetHome.update( _dataset );
+            IndexRebuildService.start( target );
+            addInfo( INFO_DATASET_REBUILD_STARTED, getLocale( ) );
+        }
+        else
+        {
+            DatasetHome.update( _dataset );
+            if ( !stored.getVectorStore( ).equals( _dataset.getVectorStore( ) ) )
+            {
+                // a dataset without files has nothing to rebuild, the store of its previous type is only left over
+                dropPreviousStore( _dataset, stored.getVectorStore( ) );
+            }
+            addInfo( INFO_DATASET_UPDATED, getLocale( ) );
+        }
         resetListId( );
 
         return redirectView( request, VIEW_MANAGE_DATASETS );
     }
+
+    /**
+     * Tells whether the files of a dataset must be embedded again after a change of its settings
+     *
+     * @param stored
+     *            The dataset as stored
+     * @param dataset
+     *            The modified dataset
+     * @return true if the vector store type, the segment size or overlap, the embedding model or the dimension changed
+     */
+    private boolean isRebuildNeeded( Dataset stored, Dataset dataset )
+    {
+        return !stored.getVectorStore( ).equals( dataset.getVectorStore( ) ) || stored.getRecordMaxTokens( ) != dataset.getRecordMaxTokens( ) || stored.getRecordOverlapTokens( ) != dataset.getRecordOverlapTokens( )
+                || !stored.getEmbeddingModel( ).equals( dataset.getEmbeddingModel( ) )
+                || EmbeddingModelService.getDimension( stored ) != EmbeddingModelService.getDimension( dataset );
+    }
+
+    /**
+     * Drops the store of the vector store type a dataset no longer uses
+     *
+     * @param dataset
+     *            The dataset
+     * @param strPreviousVectorStore
+     *            The vector store type it used before
+     */
+    private void dropPreviousStore( Dataset dataset, String strPreviousVectorStore )
+    {
+        try
+        {
+            ElasticStoreService.dropPreviousStore( dataset.getId( ), strPreviousVectorStore );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Unable to drop the previous store of the dataset " + dataset.getId( ), e );
+        }
+    }
+
+    /**
+     * Checks the embedding model and dimension of a dataset.
+     *
+     * @param dataset
+     *            The dataset
+     * @return true if the embedding model can be used
+     */
+    private boolean validateEmbeddingModel( Dataset dataset )
+    {
+        if ( !EmbeddingModelService.isSupported( dataset.getEmbeddingModel( ), dataset.getEmbeddingDimension( ) ) )
+        {
+            addError( ERROR_EMBEDDING_DIMENSION, getLocale( ) );
+            return false;
+        }
+        return true;
+    }
 }
@@ -16,6 +16,17 @@ type_id long varchar NOT NULL,
 PRIMARY KEY (id_bots)
 );
 
+--
+-- Structure for table knowledge_bot_dataset
+--
+
+DROP TABLE IF EXISTS knowledge_bot_dataset;
+CREATE TABLE knowledge_bot_dataset (
+bot_id int default '0' NOT NULL,
+dataset_id int default '0' NOT NULL,
+PRIMARY KEY (bot_id, dataset_id)
+);
+
 --
 -- Structure for table knowledge_dataset
 --
@@ -26,10 +37,17 @@ id_dataset int AUTO_INCREMENT,
 name varchar(255) default '' NOT NULL,
 description long varchar,
 record_max_tokens int default '0' NOT NULL,
+record_overlap_tokens int default '0' NOT NULL,
 search_max_record int default '0' NOT NULL,
 search_max_tokens int default '0' NOT NULL,
 match_instruction long varchar NOT NULL,
 mismatch_instruction long varchar NOT NULL,
+vector_store varchar(50) default 'elastic' NOT NULL,
+quantization varchar(50) default 'none' NOT NULL,
+embedding_model varchar(255) default 'text-embedding-ada-002' NOT NULL,
+embedding_dimension int default '1536' NOT NULL,
+mmr_lambda float default '1' NOT NULL,
+version int default '0' NOT NULL,
 PRIMARY KEY (id_dataset)
 );
 
@@ -88,3 +106,65 @@ user_access_code long varchar NOT NULL,
 session_id long varchar NOT NULL,
 PRIMARY KEY (id_bot_session)
 );
+
+--
+-- Structure for table knowledge_ingestion_job
+--
+
+DROP TABLE IF EXISTS knowledge_ingestion_job;
+CREATE TABLE knowledge_ingestion_job (
+id_ingestion_job int AUTO_INCREMENT,
+dataset_id int default '0' NOT NULL,
+dataset_file_id int default '0' NOT NULL,
+status varchar(50) default 'pending' NOT NULL,
+segments_done int default '0' NOT NULL,
+segments_total int default '0' NOT NULL,
+checkpoint_segment int default '0' NOT NULL,
+batches_committed int default '0' NOT NULL,
+checkpoint_settings varchar(50) default '' NOT NULL,
+attempts int default '0' NOT NULL,
+error_message long varchar,
+creation_date timestamp NULL,
+update_date timestamp NULL,
+PRIMARY KEY (id_ingestion_job)
+);
+
+--
+-- Structure for table knowledge_embedding_cache
+--
+
+DROP TABLE IF EXISTS knowledge_embedding_cache;
+CREATE TABLE knowledge_embedding_cache (
+model varchar(255) default '' NOT NULL,
+text_hash varchar(64) default '' NOT NULL,
+vector long varbinary NOT NULL,
+PRIMARY KEY (model, text_hash)
+);
+
+--
+-- Structure for table knowledge_dataset_file_text
+--
+
+DROP TABLE IF EXISTS knowledge_dataset_file_text;
+CREATE TABLE knowledge_dataset_file_text (
+dataset_file_id int default '0' NOT NULL,
+content long varbinary,
+split_settings varchar(50) default '' NOT NULL,
+segment_count int default '0' NOT NULL,
+PRIMARY KEY (dataset_file_id)
+);
+
+--
+-- Structure for table knowledge_dataset_segment
+--
+
+DROP TABLE IF EXISTS knowledge_dataset_segment;
+CREATE TABLE knowledge_dataset_segment (
+dataset_file_id int default '0' NOT NULL,
+segment_index int default '0' NOT NULL,
+text_hash varchar(64) default '' NOT NULL,
+token_count int default '0' NOT NULL,
+text long varchar NOT NULL,
+metadata long varchar NOT NULL,
+PRIMARY KEY (dataset_file_id, segment_index)
+);
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+/**
+ * Benchmark of the recall / memory / latency trade-off of the vector quantizations, measured on the flat file store itself.
+ * <p>
+ * For each quantization the sample is indexed in a temporary flat store, and the queries are searched through the store. The report gives the size of a
+ * scanned record on disk, the memory needed by one million of them, the recall@k of the quantized scan alone ( no oversampling : the re-scoring only
+ * reorders the candidates ), the recall@k with the configured oversampling, and the mean search time. The reference results are those of the store
+ * without quantization, which scans the full precision vectors.
+ * </p>
+ * <p>
+ * Usage, from the test classpath : <code>QuantizationBenchmark [ vector file ] [ k ] [ queries ] [ int8 oversample ] [ binary oversample ]</code>. The
+ * vector file is the .vec file of a dataset using the flat store; without it ( or with "-" ), a synthetic clustered sample of 1536 dimension vectors is
+ * used.
+ * </p>
+ */
+public final class QuantizationBenchmark
+{
+    private static final int DEFAULT_K = 10;
+    private static final int DEFAULT_QUERIES = 200;
+    private static final int DEFAULT_INT8_OVERSAMPLE = 4;
+    private static final int DEFAULT_BINARY_OVERSAMPLE = 10;
+    private static final int MAX_SAMPLE_VECTORS = 50000;
+    private static final int SYNTHETIC_VECTORS = 20000;
+    private static final int SYNTHETIC_DIMENSION = 1536;
+    private static final int SYNTHETIC_CLUSTERS = 200;
+    private static final int BATCH_SIZE = 1000;
+    private static final int PARALLEL_THRESHOLD = 16384;
+    private static final long HEADER_BYTES = 4096;
+    private static final long MILLION = 1000000L;
+    private static final String [ ] QUANTIZATIONS = {
+            VectorQuantizer.NONE, VectorQuantizer.INT8, VectorQuantizer.BINARY
+    };
+
+    /**
+     * Private constructor
+     */
+    private QuantizationBenchmark( )
+    {
+    }
+
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args
+     *            The optional vector file, k, number of queries and oversampling factors
+     * @throws IOException
+     *             if the vector file cannot be read or the temporary stores cannot be written
+     */
+    public static void main( String [ ] args ) throws IOException
+    {
+        boolean bSynthetic = args.length == 0 || "-".equals( args [0] );
+        List<float [ ]> listVectors = bSynthetic ? syntheticSample( SYNTHETIC_VECTORS, SYNTHETIC_DIMENSION, SYNTHETIC_CLUSTERS, new Random( 42 ) )
+                : FlatFileEmbeddingStore.readVectors( Paths.get( args [0] ), MAX_SAMPLE_VECTORS );
+        int nK = intArgument( args, 1, DEFAULT_K );
+        int nQueries = intArgument( args, 2, DEFAULT_QUERIES );
+        int nInt8Oversample = intArgument( args, 3, DEFAULT_INT8_OVERSAMPLE );
+        int nBinaryOversample = intArgument( args, 4, DEFAULT_BINARY_OVERSAMPLE );
+
+        for ( String strLine : run( listVectors, nK, nQueries, nInt8Oversample, nBinaryOversample, new Random( 7 ) ) )
+        {
+            System.out.println( strLine );
+        }
+    }
+
+    /**
+     * Measures each quantization on a sample. The queries are noisy copies of sample vectors.
+     * 
+     * @param listVectors
+     *            The sample vectors
+     * @param nK
+     *            The number of results per query
+     * @param nQueries
+     *            The number of queries
+     * @param nInt8Oversample
+     *            The number of candidates re-scored per result with int8 codes
+     * @param nBinaryOversample
+     *            The number of candidates re-scored per result with binary codes
+     * @param random
+     *            The random generator of the queries
+     * @return the report lines
+     * @throws IOException
+     *             if the temporary stores cannot be written
+     */
+    public static List<String> run( List<float [ ]> listVectors, int nK, int nQueries, int nInt8Oversample, int nBinaryOversample, Random random )
+            throws IOException
+    {
+        int nDimension = listVectors.get( 0 ).length;
+        List<Embedding> listQueries = new ArrayList<>( nQueries );
+        for ( int q = 0; q < nQueries; q++ )
+        {
+            float [ ] source = listVectors.get( random.nextInt( listVectors.size( ) ) );
+            double dNorm = 0;
+            for ( float f : source )
+            {
+                dNorm += f * f;
+            }
+            double dNoise = 0.5 * Math.sqrt( dNorm / nDimension );
+            float [ ] query = new float [ nDimension];
+            for ( int i = 0; i < nDimension; i++ )
+            {
+                query [i] = source [i] + (float) ( random.nextGaussian( ) * dNoise );
+            }
+            listQueries.add( Embedding.from( query ) );
+        }
+
+        List<String> listReport = new ArrayList<>( );
+        listReport.add( String.format( Locale.ROOT, "%d vectors of dimension %d, %d queries, recall@%d", listVectors.size( ), nDimension, nQueries, nK ) );
+        listReport.add( String.format( Locale.ROOT, "%-8s %12s %14s %10s %12s %18s %10s", "codes", "bytes/vector", "MiB/1M vectors", "recall", "oversample",
+                "recall re-scored", "ms/query" ) );
+
+        Path directory = Files.createTempDirectory( "knowledge-quantization" );
+        try
+        {
+            List<Set<String>> listExact = null;
+            for ( String strQuantization : QUANTIZATIONS )
+            {
+                boolean bNone = VectorQuantizer.NONE.equals( strQuantization );
+                int nOversample = VectorQuantizer.BINARY.equals( strQuantization ) ? nBinaryOversample : nInt8Oversample;
+                FlatFileEmbeddingStore store = index( directory, strQuantization, nOversample, listVectors );
+                long lRecordBytes = bNone ? ( Files.size( directory.resolve( strQuantization + ".vec" ) ) - HEADER_BYTES ) / listVectors.size( )
+                        : Files.size( directory.resolve( strQuantization + ".q" + strQuantization ) ) / listVectors.size( );
+
+                long lStart = System.nanoTime( );
+                List<Set<String>> listResults = search( store, listQueries, nK );
+                double dMillisPerQuery = ( System.nanoTime( ) - lStart ) / 1e6 / nQueries;
+                if ( bNone )
+                {
+                    listExact = listResults;
+                    listReport.add( String.format( Locale.ROOT, "%-8s %12d %14.0f %10.3f %12s %18s %10.2f", strQuantization, lRecordBytes,
+                            lRecordBytes * MILLION / 1048576.0, 1.0, "-", "-", dMillisPerQuery ) );
+                    continue;
+                }
+
+                // with one candidate per result, the results are those of the quantized scan
+                FlatFileEmbeddingStore scanOnly = new FlatFileEmbeddingStore( directory, strQuantization, strQuantization, 1, PARALLEL_THRESHOLD );
+                double dRecall = recall( listExact, search( scanOnly, listQueries, nK ), nK );
+                double dRescoredRecall = recall( listExact, listResults, nK );
+                listReport.add( String.format( Locale.ROOT, "%-8s %12d %14.0f %10.3f %12d %18.3f %10.2f", strQuantization, lRecordBytes,
+                        lRecordBytes * MILLION / 1048576.0, dRecall, nOversample, dRescoredRecall, dMillisPerQuery ) );
+            }
+        }
+        finally
+        {
+            for ( String strQuantization : QUANTIZATIONS )
+            {
+                new FlatFileEmbeddingStore( directory, strQuantization, strQuantization, 1, PARALLEL_THRESHOLD ).delete( );
+            }
+            Files.deleteIfExists( directory );
+        }
+        return listReport;
+    }
+
+    /**
+     * Builds a sample of vectors gathered around random centroids, as embeddings of related documents are.
+     * 
+     * @param nVectors
+     *            The number of vectors
+     * @param nDimension
+     *            The dimension
+     * @param nClusters
+     *            The number of clusters
+     * @param random
+     *            The random generator
+     * @return the vectors
+     */
+    public static List<float [ ]> syntheticSample( int nVectors, int nDimension, int nClusters, Random random )
+    {
+        float [ ] [ ] centroids = new float [ nClusters] [ nDimension];
+        for ( float [ ] centroid : centroids )
+        {
+            for ( int i = 0; i < nDimension; i++ )
+            {
+                centroid [i] = (float) random.nextGaussian( );
+            }
+        }
+
+        List<float [ ]> listVectors = new ArrayList<>( nVectors );
+        for ( int v = 0; v < nVectors; v++ )
+        {
+            float [ ] centroid = centroids [random.nextInt( nClusters )];
+            float [ ] vector = new float [ nDimension];
+            for ( int i = 0; i < nDimension; i++ )
+            {
+                vector [i] = centroid [i] + (float) random.nextGaussian( );
+            }
+            listVectors.add( vector );
+        }
+        return listVectors;
+    }
+
+    /**
+     * Indexes the sample in a flat store named after the quantization.
+     */
+    private static FlatFileEmbeddingStore index( Path directory, String strQuantization, int nOversample, List<float [ ]> listVectors )
+    {
+        FlatFileEmbeddingStore store = new FlatFileEmbeddingStore( directory, strQuantization, strQuantization, nOversample, PARALLEL_THRESHOLD );
+        for ( int nFrom = 0; nFrom < listVectors.size( ); nFrom += BATCH_SIZE )
+        {
+            int nTo = Math.min( listVectors.size( ), nFrom + BATCH_SIZE );
+            List<String> listIds = new ArrayList<>( nTo - nFrom );
+            List<Embedding> listEmbeddings = new ArrayList<>( nTo - nFrom );
+            for ( int i = nFrom; i < nTo; i++ )
+            {
+                listIds.add( String.valueOf( i ) );
+                listEmbeddings.add( Embedding.from( listVectors.get( i ) ) );
+            }
+            store.addAll( listIds, listEmbeddings, new ArrayList<TextSegment>( Arrays.asList( new TextSegment [ nTo - nFrom] ) ) );
+        }
+        return store;
+    }
+
+    private static List<Set<String>> search( FlatFileEmbeddingStore store, List<Embedding> listQueries, int nK )
+    {
+        List<Set<String>> listResults = new ArrayList<>( listQueries.size( ) );
+        for ( Embedding query : listQueries )
+        {
+            Set<String> setIds = new HashSet<>( );
+            for ( EmbeddingMatch<TextSegment> match : store.findRelevant( query, nK, 0 ) )
+            {
+                setIds.add( match.embeddingId( ) );
+            }
+            listResults.add( setIds );
+        }
+        return listResults;
+    }
+
+    private static double recall( List<Set<String>> listExact, List<Set<String>> listResults, int nK )
+    {
+        double dRecall = 0;
+        for ( int q = 0; q < listExact.size( ); q++ )
+        {
+            int nCommon = 0;
+            for ( String strId : listResults.get( q ) )
+            {
+                if ( listExact.get( q ).contains( strId ) )
+                {
+                    nCommon++;
+                }
+            }
+            dRecall += nCommon / (double) nK;
+        }
+        return dRecall / listExact.size( );
+    }
+
+    private static int intArgument( String [ ] args, int nIndex, int nDefault )
+    {
+        return ( args.length > nIndex ) ? Integer.parseInt( args [nIndex] ) : nDefault;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2002-2023, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.knowledge.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import dev.langchain4j.data.document.Metadata;
+import fr.paris.lutece.plugins.knowledge.service.SegmentFilter.Condition;
+import fr.paris.lutece.plugins.knowledge.service.SegmentFilter.Operator;
+
+/**
+ * Tests of the grammar of the segment filters and of their evaluation.
+ */
+public class SegmentFilterTest
+{
+    @Test
+    public void testEmpty( )
+    {
+        assertSame( SegmentFilter.none( ), SegmentFilter.parse( null ) );
+        assertTrue( SegmentFilter.parse( "  " ).isEmpty( ) );
+        assertTrue( SegmentFilter.parse( null ).test( null ) );
+    }
+
+    @Test
+    public void testComparisons( )
+    {
+        assertCondition( "file_id = 12", SegmentFilter.KEY_FILE_ID, Operator.EQUALS, "12" );
+        assertCondition( "page>3", SegmentFilter.KEY_PAGE, Operator.GREATER_THAN, "3" );
+        assertCondition( "page >= 3", SegmentFilter.KEY_PAGE, Operator.GREATER_OR_EQUALS, "3" );
+        assertCondition( "page < 3", SegmentFilter.KEY_PAGE, Operator.LESS_THAN, "3" );
+        assertCondition( "page <= 3", SegmentFilter.KEY_PAGE, Operator.LESS_OR_EQUALS, "3" );
+        assertCondition( "section = 'Annex B'", SegmentFilter.KEY_SECTION, Operator.EQUALS, "Annex B" );
+        assertCondition( "file_name = \"guide.pdf\"", SegmentFilter.KEY_FILE_NAME, Operator.EQUALS, "guide.pdf" );
+    }
+
+    @Test
+    public void testPrefix( )
+    {
+        assertCondition( "file_name = 'guide_2023*'", SegmentFilter.KEY_FILE_NAME, Operator.PREFIX, "guide_2023" );
+
+        SegmentFilter filter = SegmentFilter.parse( "file_name = guide*" );
+        assertTrue( filter.test( metadata( "file_name", "guide_2023.pdf" ) ) );
+        assertFalse( filter.test( metadata( "file_name", "old_guide.pdf" ) ) );
+    }
+
+    @Test
+    public void testIn( )
+    {
+        SegmentFilter filter = SegmentFilter.parse( "file_id IN (12, 15)" );
+        Condition condition = filter.getConditions( ).get( 0 );
+        assertEquals( Operator.IN, condition.getOperator( ) );
+        assertEquals( Arrays.asList( "12", "15" ), condition.getValues( ) );
+        assertTrue( filter.test( metadata( "file_id", "15" ) ) );
+        assertFalse( filter.test( metadata( "file_id", "13" ) ) );
+
+        // the commas and the closing parentheses inside quotes belong to the values
+        condition = SegmentFilter.parse( "section in ('a, b', \"c)\")" ).getConditions( ).get( 0 );
+        assertEquals( Arrays.asList( "a, b", "c)" ), condition.getValues( ) );
+    }
+
+    @Test
+    public void testAnd( )
+    {
+        SegmentFilter filter = SegmentFilter.parse( "file_id = 12 AND page >= 3 and section = 'Terms and conditions'" );
+        assertEquals( 3, filter.getConditions( ).size( ) );
+        assertEquals( "Terms and conditions", filter.getConditions( ).get( 2 ).getValue( ) );
+
+        assertTrue( filter.test( metadata( "file_id", "12", "page", "4", "section", "Terms and conditions" ) ) );
+        assertFalse( filter.test( metadata( "file_id", "12", "page", "2", "section", "Terms and conditions" ) ) );
+        assertFalse( "a missing key does not match", filter.test( metadata( "file_id", "12", "page", "4" ) ) );
+        assertFalse( filter.test( null ) );
+    }
+
+    @Test
+    public void testNumericComparison( )
+    {
+        SegmentFilter filter = SegmentFilter.parse( "page > 9" );
+        assertTrue( "pages are compared as numbers", filter.test( metadata( "page", "10" ) ) );
+        assertFalse( filter.test( metadata( "page", "9" ) ) );
+        assertTrue( SegmentFilter.parse( "file_id = 12" ).test( metadata( "file_id", "12.0" ) ) );
+        assertFalse( SegmentFilter.parse( "page >= 1" ).test( metadata( "page", "n/a" ) ) );
+    }
+
+    @Test
+    public void testCanonicalForm( )
+    {
+        assertEquals( SegmentFilter.parse( "page > 2 and file_id = 3" ).toString( ), SegmentFilter.parse( "file_id=3  and page>2" ).toString( ) );
+    }
+
+    @Test
+    public void testIsValid( )
+    {
+        assertTrue( SegmentFilter.isValid( null ) );
+        assertTrue( SegmentFilter.isValid( "file_id in (1,2) and section = 'x'" ) );
+        assertFalse( SegmentFilter.isValid( "file_id = 1 or page = 2" ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnknownKey( )
+    {
+        SegmentFilter.parse( "author = 'Smith'" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testTextHashCannotBeFiltered( )
+    {
+        SegmentFilter.parse( SegmentFilter.KEY_TEXT_HASH + " = abc" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNumericKeyExpectsNumbers( )
+    {
+        SegmentFilter.parse( "file_id = abc" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNumericKeyExpectsNumbersInList( )
+    {
+        SegmentFilter.parse( "file_id in (1, two)" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNumericKeyHasNoPrefix( )
+    {
+        SegmentFilter.parse( "file_id = 1*" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testOrderingOnText( )
+    {
+        SegmentFilter.parse( "file_name > 'a'" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testEmptyList( )
+    {
+        SegmentFilter.parse( "file_id in ( )" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testMissingOperator( )
+    {
+        SegmentFilter.parse( "file_id 12" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testMissingValue( )
+    {
+        SegmentFilter.parse( "page >= " );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testEmptyCondition( )
+    {
+        SegmentFilter.parse( "file_id = 1 and  and page = 2" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnbalancedQuote( )
+    {
+        SegmentFilter.parse( "section = 'Annex" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnbalancedParenthesis( )
+    {
+        SegmentFilter.parse( "file_id in (1, 2" );
+    }
+
+    private static void assertCondition( String strExpression, String strKey, Operator operator, String strValue )
+    {
+        SegmentFilter filter = SegmentFilter.parse( strExpression );
+        assertEquals( strExpression, 1, filter.getConditions( ).size( ) );
+        Condition condition = filter.getConditions( ).get( 0 );
+        assertEquals( strExpression, strKey, condition.getKey( ) );
+        assertEquals( strExpression, operator, condition.getOperator( ) );
+        assertEquals( strExpression, strValue, condition.getValue( ) );
+    }
+
+    private static Metadata metadata( String... keyValues )
+    {
+        Map<String, String> map = new HashMap<>( );
+        for ( int i = 0; i < keyValues.length; i += 2 )
+        {
+            map.put( keyValues [i], keyValues [i + 1] );
+        }
+        return new Metadata( map );
+    }
+}
@@ -50,6 +50,12 @@ class KnowledgeChat {
          */
         this.currentAssistantCard = null;
 
+        /**
+         * The loading step element, shown while the knowledge base is loaded.
+         * @type {HTMLElement}
+         */
+        this.loadingElement = null;
+
         /**
          * Whether the chat is currently fetching content.
          * @type {boolean}
@@ -82,6 +88,29 @@ class KnowledgeChat {
         }
     }
 
+    /**
+     * Shows the loading step of the knowledge base until it is over.
+     * @param {Object} data - The step data.
+     */
+    handleLoading(data) {
+        if (data.status !== 'pending') {
+            if (this.loadingElement) {
+                this.loadingElement.remove();
+                this.loadingElement = null;
+            }
+            return;
+        }
+        if (!this.loadingElement) {
+            this.loadingElement = document.createElement('div');
+            this.loadingElement.className = 'text-muted fst-italic mb-3';
+            this.chatMessages.appendChild(this.loadingElement);
+        }
+        if (data.message) {
+            this.loadingElement.innerHTML = `<span class="spinner-border spinner-border-sm me-2" role="status"></span>${data.message}`;
+            this.scrollToBottom();
+        }
+    }
+
     /**
      * Adds a new chat message to the chat messages container.
      * @param {string} type - The message type (either 'Assistant' or 'User').
@@ -163,6 +192,8 @@ class KnowledgeChat {
                         const element = json[key];
                         if (element.container === "chat") {
                             this.handleMessage(element);
+                        } else if (element.container === "loading") {
+                            this.handleLoading(element);
                         }
                     }
                 }